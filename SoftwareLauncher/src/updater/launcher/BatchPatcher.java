@@ -27,6 +27,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import updater.crypto.AESKey;
+import updater.patch.FileChecksumIndex;
 import updater.patch.PatchRecord;
 import updater.patch.Patcher;
 import updater.patch.PatcherListener;
@@ -112,6 +113,8 @@ public class BatchPatcher implements Pausable {
     boolean previousPatchingAllSucceed = true;
     String currentVersion = fromVersion;
     Map<String, String> destinationReplacement = new HashMap<String, String>();
+    // the checksums of the files of the software, kept in the storage path to avoid reading the unchanged files again in next update
+    FileChecksumIndex checksumIndex = new FileChecksumIndex(new File(tempDir.getAbsolutePath() + File.separator + "checksums.idx"));
 
     for (Patch _patch : _patches) {
       count++;
@@ -136,8 +139,6 @@ public class BatchPatcher implements Pausable {
       }
 
       File patchFile = new File(tempDir.getAbsolutePath() + File.separator + _patch.getId() + ".patch");
-      File decryptedPatchFile = new File(tempDir.getAbsolutePath() + File.separator + _patch.getId() + ".patch.decrypted");
-      decryptedPatchFile.deleteOnExit();
       if (!patchFile.exists()) {
         listener.patchInvalid(_patch);
         throw new IOException("Patch file not found: " + patchFile.getAbsolutePath());
@@ -145,21 +146,30 @@ public class BatchPatcher implements Pausable {
 
       // initialize patcher
       final int _count = count;
-      patcher = new Patcher(new File(tempDirForPatch + File.separator + "action.log"));
-      List<ReplacementRecord> _replacementList = patcher.doPatch(new PatcherListener() {
-
-        @Override
-        public void patchProgress(int percentage, String message) {
-          float base = stepSize * (float) _count;
-          float addition = ((float) percentage / 100F) * stepSize;
-          listener.patchProgress((int) (base + addition), message);
+      patcher = new Patcher(new File(tempDirForPatch + File.separator + "action.log"), Runtime.getRuntime().availableProcessors(), checksumIndex);
+      List<ReplacementRecord> _replacementList = null;
+      try {
+        _replacementList = patcher.doPatch(new PatcherListener() {
+
+          @Override
+          public void patchProgress(int percentage, String message) {
+            float base = stepSize * (float) _count;
+            float addition = ((float) percentage / 100F) * stepSize;
+            listener.patchProgress((int) (base + addition), message);
+          }
+
+          @Override
+          public void patchEnableCancel(boolean enable) {
+            listener.patchEnableCancel(enable);
+          }
+        }, patchFile, _patch.getId(), aesKey, applyToFolder, tempDirForPatch, destinationReplacement);
+      } finally {
+        try {
+          checksumIndex.save();
+        } catch (IOException ex) {
+          // failure is allowed
         }
-
-        @Override
-        public void patchEnableCancel(boolean enable) {
-          listener.patchEnableCancel(enable);
-        }
-      }, patchFile, _patch.getId(), aesKey, applyToFolder, tempDirForPatch, destinationReplacement);
+      }
       for (ReplacementRecord _replacement : _replacementList) {
         String key = findKey(destinationReplacement, _replacement.getDestinationFilePath());
         if (key == null) {
@@ -177,7 +187,9 @@ public class BatchPatcher implements Pausable {
             destinationReplacement.put(key, _replacement.getNewFilePath());
             break;
           case NEW:
-            // for 15
+          case MOVE:
+          case COPY:
+            // for 15, 33, 38
             if (!_replacement.getNewFilePath().isEmpty() && !_replacement.getDestinationFilePath().isEmpty()) {
               destinationReplacement.put(key, _replacement.getNewFilePath());
             }
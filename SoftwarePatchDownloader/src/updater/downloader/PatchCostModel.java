@@ -0,0 +1,64 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.downloader;
+
+import updater.script.Patch;
+
+/**
+ * The cost of downloading and applying a patch, used by {@link VersionGraph} 
+ * to choose the patches to upgrade with.
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public interface PatchCostModel {
+
+  /**
+   * Use the download length of the patch as the cost.
+   */
+  static final PatchCostModel DOWNLOAD_LENGTH = new PatchCostModel() {
+
+    @Override
+    public long getCost(Patch patch) {
+      return Math.max(0, patch.getDownloadLength());
+    }
+  };
+  /**
+   * Accept full pack patches only, use the download length of the patch as 
+   * the cost.
+   */
+  static final PatchCostModel FULL_PACK_ONLY = new PatchCostModel() {
+
+    @Override
+    public long getCost(Patch patch) {
+      if (patch.getType() == null || !patch.getType().equals("full")) {
+        return -1;
+      }
+      return Math.max(0, patch.getDownloadLength());
+    }
+  };
+
+  /**
+   * Get the cost of the patch.
+   * @param patch the patch
+   * @return the cost, should >= 0, -1 means the patch should not be used
+   */
+  long getCost(Patch patch);
+}
@@ -31,12 +31,22 @@ import java.net.URL;
 import java.security.interfaces.RSAPublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.BadPaddingException;
+import javax.xml.transform.TransformerException;
 import updater.script.Catalog;
 import updater.script.Client;
 import updater.script.InvalidFormatException;
@@ -47,6 +57,7 @@ import updater.util.DownloadProgressListener;
 import updater.util.DownloadProgressUtil;
 import updater.util.DownloadResult;
 import updater.util.HTTPDownloader;
+import updater.util.HTTPTransport;
 
 /**
  * Patch and catalog downloader.
@@ -54,10 +65,48 @@ import updater.util.HTTPDownloader;
  */
 public class PatchDownloader {
   private static final Logger LOG = Logger.getLogger(PatchDownloader.class.getName());
+  /**
+   * The default maximum number of patches to download at the same time.
+   */
+  public static final int DEFAULT_CONCURRENT_DOWNLOADS = 3;
+  /**
+   * The maximum number of segments to download a large patch concurrently, 
+   * see {@link HTTPDownloader#setSegments(int)}.
+   */
+  public static final int DEFAULT_SEGMENTS = 4;
+  /**
+   * The file name of the locally cached catalog in the storage path, used 
+   * when the catalog has a change feed.
+   */
+  public static final String CATALOG_CACHE_FILE_NAME = "catalog.xml";
+  /**
+   * The transport shared by all downloads, so the connections can be reused 
+   * between the catalog, the patches and the retries.
+   */
+  protected static HTTPTransport transport = new HTTPTransport();
 
   protected PatchDownloader() {
   }
 
+  /**
+   * Get the transport shared by all downloads.
+   * @return the transport
+   */
+  public static HTTPTransport getTransport() {
+    return transport;
+  }
+
+  /**
+   * Set the transport shared by all downloads.
+   * @param transport the transport
+   */
+  public static void setTransport(HTTPTransport transport) {
+    if (transport == null) {
+      throw new NullPointerException("argument 'transport' cannot be null");
+    }
+    PatchDownloader.transport = transport;
+  }
+
   /**
    * Download specified patches and update the client script.
    * @param listener the download patch listener listen to progress and result
@@ -90,7 +139,7 @@ public class PatchDownloader {
    * @throws MalformedURLException any one URL of patches is invalid
    */
   public static DownloadPatchesResult downloadPatches(final DownloadPatchesListener listener, File clientScriptFile, Client clientScript, List<Patch> patches, int retryTimes, int retryDelay) throws MalformedURLException {
-    return downloadPatches(listener, patches, clientScript.getStoragePath(), retryTimes, retryDelay);
+    return downloadPatches(listener, patches, clientScript.getStoragePath(), retryTimes, retryDelay, DEFAULT_CONCURRENT_DOWNLOADS);
   }
 
   /**
@@ -104,6 +153,26 @@ public class PatchDownloader {
    * @throws MalformedURLException any one URL of patches is invalid
    */
   public static DownloadPatchesResult downloadPatches(final DownloadPatchesListener listener, List<Patch> patches, String storagePath, int retryTimes, int retryDelay) throws MalformedURLException {
+    return downloadPatches(listener, patches, storagePath, retryTimes, retryDelay, DEFAULT_CONCURRENT_DOWNLOADS);
+  }
+
+  /**
+   * Download specified patches and update the client script.
+   * <p>Up to {@code concurrentDownloads} patches are downloaded at the same 
+   * time, but {@link DownloadPatchesListener#downloadPatchesPatchDownloaded(updater.script.Patch)} 
+   * is always notified in the order of {@code patches}, a patch is notified 
+   * only after all patches before it are notified.</p>
+   * @param listener the download patch listener listen to progress and result
+   * @param storagePath the path for storage temporary files
+   * @param patches the patches to download
+   * @param retryTimes total number of times to retry (shared by all patches)
+   * @param retryDelay the time to delay before each retry
+   * @param concurrentDownloads the maximum number of patches to download at 
+   * the same time
+   * @return the download result
+   * @throws MalformedURLException any one URL of patches is invalid
+   */
+  public static DownloadPatchesResult downloadPatches(final DownloadPatchesListener listener, List<Patch> patches, final String storagePath, int retryTimes, final int retryDelay, int concurrentDownloads) throws MalformedURLException {
     if (listener == null) {
       throw new NullPointerException("argument 'listener' cannot be null");
     }
@@ -113,11 +182,19 @@ public class PatchDownloader {
     if (patches == null) {
       throw new NullPointerException("argument 'patches' cannot be null");
     }
+    if (concurrentDownloads < 1) {
+      throw new IllegalArgumentException("argument 'concurrentDownloads' should be at least 1");
+    }
 
     if (patches.isEmpty()) {
       return DownloadPatchesResult.COMPLETED;
     }
 
+    // check all URLs before starting any download
+    for (Patch patch : patches) {
+      new URL(patch.getDownloadUrl());
+    }
+
     listener.downloadPatchesProgress(0);
     listener.downloadPatchesMessage("Getting patches catalog ...");
 
@@ -125,91 +202,125 @@ public class PatchDownloader {
 
     // use to restrict/lower the 'download size' refresh time interval
     final AtomicLong lastRefreshTime = new AtomicLong(0L);
-    final AtomicInteger downloadedSizeSinceLastRefresh = new AtomicInteger(0);
+    final AtomicLong downloadedSizeSinceLastRefresh = new AtomicLong(0L);
 
-    // global download(ed) size record
+    // global download(ed) size record, sum of all patches being downloaded
     final long totalDownloadSize = calculateTotalLength(patches);
-    final AtomicInteger downloadedSize = new AtomicInteger(0);
+    final String totalDownloadSizeString = Util.humanReadableByteCount(totalDownloadSize, false);
+    final AtomicLong downloadedSize = new AtomicLong(0L);
 
     final DownloadProgressUtil downloadProgress = new DownloadProgressUtil();
     downloadProgress.setTotalSize(totalDownloadSize);
 
-    // download
-    for (Patch patch : patches) {
-      // downloaded size of this patch
-      final AtomicInteger patchDownloadedSize = new AtomicInteger(0);
-      DownloadProgressListener getPatchListener = new DownloadProgressListener() {
-
-        private String totalDownloadSizeString = Util.humanReadableByteCount(totalDownloadSize, false);
-        private float totalDownloadSizeFloat = (float) totalDownloadSize;
-
-        @Override
-        public void byteStart(long pos) {
-          patchDownloadedSize.set((int) pos);
-          downloadProgress.setDownloadedSize(downloadedSize.get() + patchDownloadedSize.get());
-          listener.downloadPatchesProgress((int) ((float) (downloadedSize.get() + patchDownloadedSize.get()) * 100F / (float) totalDownloadSize));
-        }
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrentDownloads, patches.size()));
+    try {
+      // download
+      List<Future<DownloadResult>> results = new ArrayList<Future<DownloadResult>>();
+      for (final Patch patch : patches) {
+        // downloaded size of this patch
+        final AtomicLong patchDownloadedSize = new AtomicLong(0L);
+        final DownloadProgressListener getPatchListener = new DownloadProgressListener() {
+
+          @Override
+          public void byteStart(long pos) {
+            downloadedSize.addAndGet(pos - patchDownloadedSize.getAndSet(pos));
+            synchronized (downloadProgress) {
+              downloadProgress.setDownloadedSize(downloadedSize.get());
+              listener.downloadPatchesProgress((int) ((float) downloadedSize.get() * 100F / (float) totalDownloadSize));
+            }
+          }
 
-        @Override
-        public void byteDownloaded(int numberOfBytes) {
-          downloadedSizeSinceLastRefresh.set(downloadedSizeSinceLastRefresh.get() + numberOfBytes);
+          @Override
+          public void byteDownloaded(int numberOfBytes) {
+            patchDownloadedSize.addAndGet(numberOfBytes);
+            downloadedSize.addAndGet(numberOfBytes);
+            downloadedSizeSinceLastRefresh.addAndGet(numberOfBytes);
+
+            long currentTime = System.currentTimeMillis();
+            if (currentTime - lastRefreshTime.get() > 200) {
+              synchronized (downloadProgress) {
+                if (currentTime - lastRefreshTime.get() <= 200) {
+                  // refreshed by other download
+                  return;
+                }
+                lastRefreshTime.set(currentTime);
+
+                downloadProgress.feed(downloadedSizeSinceLastRefresh.getAndSet(0L));
+                downloadProgress.setDownloadedSize(downloadedSize.get());
+
+                listener.downloadPatchesProgress((int) ((float) downloadedSize.get() * 100F / (float) totalDownloadSize));
+                // Downloading: 1.6 MiB / 240 MiB, 2.6 MiB/s, 1m 32s remaining
+                listener.downloadPatchesMessage("Downloading: "
+                        + Util.humanReadableByteCount(downloadedSize.get(), false) + " / " + totalDownloadSizeString + ", "
+                        + Util.humanReadableByteCount(downloadProgress.getSpeed(), false) + "/s" + ", "
+                        + Util.humanReadableTimeCount(downloadProgress.getTimeRemaining(), 3) + " remaining");
+              }
+            }
+          }
 
-          long currentTime = System.currentTimeMillis();
-          if (currentTime - lastRefreshTime.get() > 200) {
-            lastRefreshTime.set(currentTime);
+          @Override
+          public void byteTotal(long total) {
+          }
 
-            patchDownloadedSize.set(patchDownloadedSize.get() + downloadedSizeSinceLastRefresh.get());
+          @Override
+          public void downloadRetry(DownloadResult result) {
+            retryTimesRemaining.decrementAndGet();
 
-            downloadProgress.feed(downloadedSizeSinceLastRefresh.get());
-            downloadedSizeSinceLastRefresh.set(0);
+            synchronized (downloadProgress) {
+              lastRefreshTime.set(System.currentTimeMillis());
+              downloadProgress.feed(downloadedSizeSinceLastRefresh.getAndSet(0L));
+            }
 
-            listener.downloadPatchesProgress((int) ((float) (downloadedSize.get() + patchDownloadedSize.get()) * 100F / totalDownloadSizeFloat));
-            // Downloading: 1.6 MiB / 240 MiB, 2.6 MiB/s, 1m 32s remaining
-            listener.downloadPatchesMessage("Downloading: "
-                    + Util.humanReadableByteCount((downloadedSize.get() + patchDownloadedSize.get()), false) + " / " + totalDownloadSizeString + ", "
-                    + Util.humanReadableByteCount(downloadProgress.getSpeed(), false) + "/s" + ", "
-                    + Util.humanReadableTimeCount(downloadProgress.getTimeRemaining(), 3) + " remaining");
+            byteStart(0);
           }
-        }
-
-        @Override
-        public void byteTotal(long total) {
-        }
+        };
 
-        @Override
-        public void downloadRetry(DownloadResult result) {
-          retryTimesRemaining.decrementAndGet();
+        results.add(executor.submit(new Callable<DownloadResult>() {
 
-          lastRefreshTime.set(System.currentTimeMillis());
-          downloadProgress.feed(downloadedSizeSinceLastRefresh.get());
-          downloadedSizeSinceLastRefresh.set(0);
+          @Override
+          public DownloadResult call() throws Exception {
+            File saveToFile = new File(storagePath + File.separator + patch.getId() + ".patch");
+            return getPatch(getPatchListener, patch.getDownloadUrl(), saveToFile, patch.getDownloadChecksum(), patch.getDownloadLength(), patch.getDownloadChunkLength(), patch.getDownloadChunkChecksums(), retryTimesRemaining.get(), retryDelay);
+          }
+        }));
+      }
 
-          byteStart(0);
+      // commit in the order of the patches
+      for (int i = 0, iEnd = patches.size(); i < iEnd; i++) {
+        Patch patch = patches.get(i);
+
+        DownloadResult updateResult;
+        try {
+          updateResult = results.get(i).get();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          return DownloadPatchesResult.DOWNLOAD_INTERRUPTED;
+        } catch (ExecutionException ex) {
+          LOG.log(Level.SEVERE, null, ex.getCause());
+          return DownloadPatchesResult.ERROR;
+        }
+        if (updateResult == DownloadResult.INTERRUPTED) {
+          return DownloadPatchesResult.DOWNLOAD_INTERRUPTED;
+        }
+        if (updateResult != DownloadResult.SUCCEED) {
+          return DownloadPatchesResult.ERROR;
         }
-      };
-
-      File saveToFile = new File(storagePath + File.separator + patch.getId() + ".patch");
-
-      DownloadResult updateResult = getPatch(getPatchListener, patch.getDownloadUrl(), saveToFile, patch.getDownloadChecksum(), patch.getDownloadLength(), retryTimesRemaining.get(), retryDelay);
-      if (updateResult == DownloadResult.INTERRUPTED) {
-        return DownloadPatchesResult.DOWNLOAD_INTERRUPTED;
-      }
-      if (updateResult != DownloadResult.SUCCEED) {
-        return DownloadPatchesResult.ERROR;
-      }
 
-      downloadedSize.set(downloadedSize.get() + patch.getDownloadLength());
-      try {
-        // update client script
-        listener.downloadPatchesPatchDownloaded(new Patch(patch.getId(),
-                patch.getType(), patch.getVersionFrom(), patch.getVersionFromSubsequent(), patch.getVersionTo(),
-                null, null, -1,
-                patch.getDownloadEncryptionType(), patch.getDownloadEncryptionKey(), patch.getDownloadEncryptionIV(),
-                new ArrayList<Operation>(), new ArrayList<ValidationFile>()));
-      } catch (IOException ex) {
-        LOG.log(Level.WARNING, null, ex);
-        return DownloadPatchesResult.SAVE_TO_CLIENT_SCRIPT_FAIL;
+        try {
+          // update client script
+          listener.downloadPatchesPatchDownloaded(new Patch(patch.getId(),
+                  patch.getType(), patch.getVersionFrom(), patch.getVersionFromSubsequent(), patch.getVersionTo(),
+                  null, null, -1,
+                  patch.getDownloadEncryptionType(), patch.getDownloadEncryptionKey(), patch.getDownloadEncryptionIV(),
+                  new ArrayList<Operation>(), new ArrayList<ValidationFile>()));
+        } catch (IOException ex) {
+          LOG.log(Level.WARNING, null, ex);
+          return DownloadPatchesResult.SAVE_TO_CLIENT_SCRIPT_FAIL;
+        }
       }
+    } finally {
+      // stop the remaining downloads if returned early
+      executor.shutdownNow();
     }
 
     listener.downloadPatchesProgress(100);
@@ -233,6 +344,28 @@ public class PatchDownloader {
    * @throws MalformedURLException {@code url} is not a valid HTTP URL
    */
   public static DownloadResult getPatch(final DownloadProgressListener listener, String url, File saveToFile, String fileSHA256, int expectedLength, int retryTimes, int retryDelay) throws MalformedURLException {
+    return getPatch(listener, url, saveToFile, fileSHA256, expectedLength, -1, null, retryTimes, retryDelay);
+  }
+
+  /**
+   * Get the patch from the Internet.
+   * This will check the exist file in the path of {@code saveToFile} and 
+   * determine resume download. If {@code chunkChecksums} is specified, only 
+   * the corrupted chunks will be downloaded again when the checksum failed.
+   * @param listener the progress listener
+   * @param url the URL to download the patch from
+   * @param saveToFile the place to save the downloaded patch
+   * @param fileSHA256 the SHA-256 digest of the patch
+   * @param expectedLength the expected file length of the patch
+   * @param chunkLength the length of every chunk in {@code chunkChecksums}
+   * @param chunkChecksums the SHA-256 digest of every chunk of the patch, 
+   * null means not specified
+   * @param retryTimes total number of times to retry
+   * @param retryDelay the time to delay before each retry
+   * @return the get patch result
+   * @throws MalformedURLException {@code url} is not a valid HTTP URL
+   */
+  public static DownloadResult getPatch(final DownloadProgressListener listener, String url, File saveToFile, String fileSHA256, int expectedLength, int chunkLength, List<String> chunkChecksums, int retryTimes, int retryDelay) throws MalformedURLException {
     if (listener == null) {
       throw new NullPointerException("argument 'listener' cannot be null");
     }
@@ -252,7 +385,10 @@ public class PatchDownloader {
     FileOutputStream fout = null;
     try {
       HTTPDownloader downloader = new HTTPDownloader();
+      downloader.setTransport(transport);
       downloader.setResumeFile(saveToFile);
+      downloader.setSegments(DEFAULT_SEGMENTS);
+      downloader.setChunkChecksums(chunkLength, chunkChecksums);
       return downloader.download(listener, new URL(url), fileSHA256, expectedLength, retryTimes, retryDelay);
     } finally {
       Util.closeQuietly(fout);
@@ -283,48 +419,27 @@ public class PatchDownloader {
    * @return the list of suitable patches
    */
   public static List<Patch> getSuitablePatches(List<Patch> allPatches, String fromVersion, boolean acceptOnlyFullPack) {
+    return getSuitablePatches(allPatches, fromVersion, acceptOnlyFullPack ? PatchCostModel.FULL_PACK_ONLY : PatchCostModel.DOWNLOAD_LENGTH);
+  }
+
+  /**
+   * Determine the suitable patches to download to upgrade the software with 
+   * version {@code fromVersion} to highest possible version with least cost.
+   * @param allPatches all available patches to choose from
+   * @param fromVersion the starting version to match
+   * @param costModel the cost model, e.g. 
+   * {@link PatchCostModel#DOWNLOAD_LENGTH}, 
+   * {@link PatchCostModel#FULL_PACK_ONLY} or {@link EstimatedTimeCostModel}
+   * @return the list of suitable patches
+   */
+  public static List<Patch> getSuitablePatches(List<Patch> allPatches, String fromVersion, PatchCostModel costModel) {
     if (allPatches == null) {
       throw new NullPointerException("argument 'allPatches' cannot be null");
     }
     if (fromVersion == null) {
       throw new NullPointerException("argument 'fromVersion' cannot be null");
     }
-    List<Patch> returnResult = new ArrayList<Patch>();
-
-    String maxVersion = fromVersion;
-    for (Patch patch : allPatches) {
-      if (acceptOnlyFullPack && (patch.getType() == null || !patch.getType().equals("full"))) {
-        continue;
-      }
-
-      if ((patch.getVersionFrom() != null && patch.getVersionFrom().equals(fromVersion))
-              || (patch.getVersionFromSubsequent() != null && Util.compareVersion(fromVersion, patch.getVersionFromSubsequent()) >= 0 && Util.compareVersion(patch.getVersionTo(), fromVersion) > 0)) {
-        List<Patch> tempResult = new ArrayList<Patch>();
-
-        tempResult.add(patch);
-
-        List<Patch> _allUpdates = getSuitablePatches(allPatches, patch.getVersionTo(), acceptOnlyFullPack);
-        if (!_allUpdates.isEmpty()) {
-          tempResult.addAll(_allUpdates);
-        }
-
-        Patch _maxUpdateThisRound = tempResult.get(tempResult.size() - 1);
-        long compareResult = Util.compareVersion(_maxUpdateThisRound.getVersionTo(), maxVersion);
-        if (compareResult > 0) {
-          maxVersion = _maxUpdateThisRound.getVersionTo();
-          returnResult = tempResult;
-        } else if (compareResult == 0) {
-          long tempResultCost = calculateTotalLength(tempResult);
-          long returnResultCost = calculateTotalLength(returnResult);
-          if (tempResultCost < returnResultCost
-                  || (tempResultCost == returnResultCost && tempResult.size() < returnResult.size())) {
-            returnResult = tempResult;
-          }
-        }
-      }
-    }
-
-    return returnResult;
+    return new VersionGraph(allPatches).getPatches(fromVersion, costModel);
   }
 
   /**
@@ -360,6 +475,16 @@ public class PatchDownloader {
 
   /**
    * Get the updated catalog.
+   * <p>
+   * If the client has a change feed URL specified, the catalog will be cached 
+   * in the storage path and only the feed entries added after the cached 
+   * version will be fetched and merged to the cached one. The full catalog is 
+   * downloaded only when there is no usable cache.</p>
+   * <p>
+   * If the catalog is a sharded one, only the shards reachable from the 
+   * current version of the client will be fetched. The catalog assembled 
+   * from shards is not cached, so the change feed should not be used together 
+   * with shards.</p>
    * @param client the path of the file of the client script
    * @return the catalog, null means no newer version of catalog is available
    * @throws IOException RSA key invalid or error occurred when getting the 
@@ -385,8 +510,46 @@ public class PatchDownloader {
       }
     }
 
+    long lastUpdateDate = client.getCatalogLastUpdated();
+
+    File cacheFile = null;
+    if (client.getCatalogFeedUrl() != null) {
+      cacheFile = new File(client.getStoragePath(), CATALOG_CACHE_FILE_NAME);
+
+      Catalog cachedCatalog = null;
+      if (cacheFile.exists()) {
+        try {
+          cachedCatalog = Catalog.read(Util.readFile(cacheFile));
+        } catch (InvalidFormatException ex) {
+          LOG.log(Level.WARNING, "Cached catalog is corrupted, download the full catalog again.", ex);
+        }
+      }
+
+      if (cachedCatalog != null && cachedCatalog.getVersion() != 0) {
+        int feedResult = getCatalogFeed(cachedCatalog, client.getCatalogFeedUrl(), publicKey, keyLength);
+        if (feedResult > 0) {
+          try {
+            saveCatalogCache(cacheFile, cachedCatalog);
+          } catch (IOException ex) {
+            LOG.log(Level.WARNING, null, ex);
+          }
+          return cachedCatalog;
+        }
+        if (feedResult == 0) {
+          // if the client has not checked the patches since last merge, return the cached one
+          if (lastUpdateDate != -1 && cacheFile.lastModified() <= lastUpdateDate) {
+            return null;
+          }
+          return cachedCatalog;
+        }
+      }
+
+      // no usable cache, download the full catalog
+      lastUpdateDate = -1;
+    }
+
     ByteArrayOutputStream bout = new ByteArrayOutputStream();
-    DownloadResult getCatalogResult = getCatalog(bout, catalogURL, client.getCatalogLastUpdated(), publicKey, keyLength);
+    DownloadResult getCatalogResult = getCatalog(bout, catalogURL, lastUpdateDate, publicKey, keyLength);
     if (getCatalogResult == DownloadResult.FILE_NOT_MODIFIED) {
       return null;
     }
@@ -394,7 +557,135 @@ public class PatchDownloader {
       throw new IOException("Error occurred when getting the catalog.");
     }
 
-    return Catalog.read(bout.toByteArray());
+    Catalog catalog = Catalog.read(bout.toByteArray());
+    if (!catalog.getShards().isEmpty()) {
+      return getShardedCatalog(catalog, catalogURL, client.getVersion(), publicKey, keyLength);
+    }
+    if (cacheFile != null && catalog.getVersion() != 0) {
+      // the catalog has been fetched successfully, failed to cache it is not a fatal problem
+      try {
+        saveCatalogCache(cacheFile, catalog);
+      } catch (IOException ex) {
+        LOG.log(Level.WARNING, null, ex);
+      }
+    }
+
+    return catalog;
+  }
+
+  /**
+   * Fetch the change feed entries following the version of {@code catalog} 
+   * and merge them to {@code catalog}, until an entry is not found.
+   * @param catalog the catalog to merge the entries to
+   * @param feedURL the URL prefix of the change feed
+   * @param key see {@link #getCatalog(java.io.OutputStream, java.lang.String, long, java.security.interfaces.RSAPublicKey, int)}
+   * @param keyLength see {@link #getCatalog(java.io.OutputStream, java.lang.String, long, java.security.interfaces.RSAPublicKey, int)}
+   * @return the number of entries merged, -1 if the feed is not continuous 
+   * with {@code catalog} and the full catalog should be downloaded
+   * @throws IOException error occurred when getting the entry
+   * @throws InvalidFormatException the format of the entry is invalid
+   */
+  protected static int getCatalogFeed(Catalog catalog, String feedURL, RSAPublicKey key, int keyLength) throws IOException, InvalidFormatException {
+    if (catalog == null) {
+      throw new NullPointerException("argument 'catalog' cannot be null");
+    }
+    if (feedURL == null) {
+      throw new NullPointerException("argument 'feedURL' cannot be null");
+    }
+
+    int entriesMerged = 0;
+    while (true) {
+      ByteArrayOutputStream bout = new ByteArrayOutputStream();
+      DownloadResult result = getCatalog(bout, feedURL + (catalog.getVersion() + 1), -1, key, keyLength);
+      if (result == DownloadResult.FILE_NOT_FOUND) {
+        break;
+      }
+      if (result != DownloadResult.SUCCEED) {
+        throw new IOException("Error occurred when getting the catalog change feed.");
+      }
+
+      if (!catalog.merge(Catalog.read(bout.toByteArray()))) {
+        return -1;
+      }
+      entriesMerged++;
+    }
+
+    return entriesMerged;
+  }
+
+  /**
+   * Fetch the shards reachable from {@code currentVersion} and assemble them 
+   * into one catalog.
+   * @param index the root index of the sharded catalog
+   * @param indexURL the URL of the root index, to resolve the relative URL 
+   * of the shards
+   * @param currentVersion the current version of the software
+   * @param key see {@link #getCatalog(java.io.OutputStream, java.lang.String, long, java.security.interfaces.RSAPublicKey, int)}
+   * @param keyLength see {@link #getCatalog(java.io.OutputStream, java.lang.String, long, java.security.interfaces.RSAPublicKey, int)}
+   * @return the catalog containing the patches in the root index and in the 
+   * reachable shards
+   * @throws IOException error occurred when getting the shard
+   * @throws InvalidFormatException the format of the shard is invalid
+   */
+  protected static Catalog getShardedCatalog(Catalog index, String indexURL, String currentVersion, RSAPublicKey key, int keyLength) throws IOException, InvalidFormatException {
+    if (index == null) {
+      throw new NullPointerException("argument 'index' cannot be null");
+    }
+    if (indexURL == null) {
+      throw new NullPointerException("argument 'indexURL' cannot be null");
+    }
+    if (currentVersion == null) {
+      throw new NullPointerException("argument 'currentVersion' cannot be null");
+    }
+
+    Map<String, String> shards = index.getShards();
+    List<Patch> indexPatches = index.getPatchs();
+    List<Patch> patches = new ArrayList<Patch>(indexPatches);
+
+    Set<String> reached = new HashSet<String>();
+    LinkedList<String> versionsToVisit = new LinkedList<String>();
+    versionsToVisit.add(currentVersion);
+    reached.add(currentVersion);
+    while (!versionsToVisit.isEmpty()) {
+      String version = versionsToVisit.removeFirst();
+
+      List<Patch> patchesFromVersion = new ArrayList<Patch>();
+      for (Patch patch : indexPatches) {
+        if (patch.getVersionFromSubsequent() != null
+                && Util.compareVersion(version, patch.getVersionFromSubsequent()) >= 0
+                && Util.compareVersion(patch.getVersionTo(), version) > 0) {
+          patchesFromVersion.add(patch);
+        }
+      }
+
+      String shardURL = shards.get(version);
+      if (shardURL != null) {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DownloadResult result = getCatalog(bout, new URL(new URL(indexURL), shardURL).toString(), -1, key, keyLength);
+        if (result != DownloadResult.SUCCEED) {
+          throw new IOException(String.format("Error occurred when getting the catalog shard of version %1$s.", version));
+        }
+        List<Patch> shardPatches = Catalog.read(bout.toByteArray()).getPatchs();
+        patches.addAll(shardPatches);
+        patchesFromVersion.addAll(shardPatches);
+      }
+
+      for (Patch patch : patchesFromVersion) {
+        if (reached.add(patch.getVersionTo())) {
+          versionsToVisit.add(patch.getVersionTo());
+        }
+      }
+    }
+
+    return new Catalog(index.getVersion(), patches);
+  }
+
+  protected static void saveCatalogCache(File cacheFile, Catalog catalog) throws IOException {
+    try {
+      Util.writeFile(cacheFile, catalog.output());
+    } catch (TransformerException ex) {
+      throw new IOException(ex);
+    }
   }
 
   /**
@@ -404,12 +695,13 @@ public class PatchDownloader {
    * @param lastUpdateDate the last update date, if the catalog not be updated 
    * since this date, the content of the catalog will not be downloaded 
    * (save time and traffic); -1 means not specified
-   * @param key the RSA key to decrypt the catalog, null means no encryption
+   * @param key the RSA key to verify the signed catalog or decrypt the 
+   * encrypted catalog, null means the catalog is neither signed nor encrypted
    * @param keyLength if {@code key} specified, provide the key length of the 
    * RSA key in byte
    * @return the get catalog result
    * @throws MalformedURLException {@code url} is not a valid HTTP URL
-   * @throws IOException catalog content invalid
+   * @throws IOException catalog content invalid or the signature is invalid
    */
   public static DownloadResult getCatalog(OutputStream out, String url, long lastUpdateDate, RSAPublicKey key, int keyLength) throws MalformedURLException, IOException {
     if (out == null) {
@@ -429,6 +721,7 @@ public class PatchDownloader {
     try {
       ByteArrayOutputStream bout = new ByteArrayOutputStream();
       HTTPDownloader downloader = new HTTPDownloader();
+      downloader.setTransport(transport);
       downloader.setOutputTo(bout);
       if (lastUpdateDate != -1) {
         downloader.setIfModifiedSince(lastUpdateDate);
@@ -437,9 +730,13 @@ public class PatchDownloader {
       DownloadResult result = downloader.download(null, new URL(url), null, -1, 10, 1000);
       if (result == DownloadResult.SUCCEED) {
         byte[] content = bout.toByteArray();
-        // decrypt & decompress
+        // verify or decrypt, then decompress
         if (key != null) {
-          content = Util.rsaDecrypt(key, keyLength, content);
+          if (Util.isSignedCatalog(content)) {
+            content = Util.verifySignedCatalog(key, content);
+          } else {
+            content = Util.rsaDecrypt(key, keyLength, content);
+          }
           content = Util.GZipDecompress(content);
         }
         out.write(content);
@@ -9,7 +9,11 @@ import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.security.interfaces.RSAPublicKey;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import javax.xml.transform.TransformerException;
@@ -20,9 +24,12 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import static org.junit.Assert.*;
 import updater.TestCommon;
+import updater.TestHTTPServer;
 import updater.script.Catalog;
 import updater.script.InvalidFormatException;
 import updater.script.Patch;
+import updater.script.Patch.Operation;
+import updater.script.Patch.ValidationFile;
 import updater.util.CommonUtil;
 import updater.util.DownloadResult;
 
@@ -167,6 +174,72 @@ public class PatchDownloaderTest {
     assertEquals(200, totalSize);
   }
 
+  @Test
+  public void testGetPatches_CostModel() {
+    System.out.println("+++++ testGetPatches_CostModel +++++");
+
+    byte[] catalogData = null;
+    try {
+      catalogData = Util.readFile(new File(packagePath + "PatchDownloaderTest_getPatches.xml"));
+    } catch (IOException ex) {
+      Logger.getLogger(PatchDownloaderTest.class.getName()).log(Level.SEVERE, null, ex);
+    }
+    assertNotNull(catalogData);
+    assertTrue(catalogData.length != 0);
+
+    Catalog catalog = null;
+    try {
+      catalog = Catalog.read(catalogData);
+    } catch (InvalidFormatException ex) {
+      Logger.getLogger(PatchDownloader.class.getName()).log(Level.SEVERE, null, ex);
+      fail("! Failed to read test file.");
+    }
+
+
+    // the download length dominates, same as the default
+    List<Patch> result = PatchDownloader.getSuitablePatches(catalog.getPatchs(), "1.0.0", new EstimatedTimeCostModel(1, 1, 1, 0));
+    assertEquals(4, result.size());
+    assertEquals("1.0.1", result.get(0).getVersionTo());
+    assertEquals("1.0.4", result.get(1).getVersionTo());
+    assertEquals("1.0.5", result.get(2).getVersionTo());
+    assertEquals("1.0.6", result.get(3).getVersionTo());
+
+    // the overhead of every patch dominates
+    result = PatchDownloader.getSuitablePatches(catalog.getPatchs(), "1.0.0", new EstimatedTimeCostModel(1048576, 1048576, 1048576, 1000));
+    assertEquals(1, result.size());
+    assertEquals("1.0.0", result.get(0).getVersionFrom());
+    assertEquals("1.0.6", result.get(0).getVersionTo());
+
+    // no newer version
+    result = PatchDownloader.getSuitablePatches(catalog.getPatchs(), "1.0.6", PatchCostModel.DOWNLOAD_LENGTH);
+    assertTrue(result.isEmpty());
+  }
+
+  @Test
+  public void testGetPatches_VersionFromAndSubsequent() {
+    System.out.println("+++++ testGetPatches_VersionFromAndSubsequent +++++");
+
+    List<Patch> patches = new ArrayList<Patch>();
+    patches.add(new Patch(1, "patch", "1.0.0", null, "1.0.1", "http://localhost/1.patch", "", 10, null, null, null, new ArrayList<Operation>(), new ArrayList<ValidationFile>()));
+    // the patch applies to 1.0.0 and every version from 1.0.1
+    patches.add(new Patch(2, "full", "1.0.0", "1.0.1", "2.0.0", "http://localhost/2.patch", "", 100, null, null, null, new ArrayList<Operation>(), new ArrayList<ValidationFile>()));
+
+    List<Patch> result = PatchDownloader.getSuitablePatches(patches, "1.0.0", PatchCostModel.DOWNLOAD_LENGTH);
+    assertEquals(1, result.size());
+    assertEquals(2, result.get(0).getId());
+
+    result = PatchDownloader.getSuitablePatches(patches, "1.0.1", PatchCostModel.DOWNLOAD_LENGTH);
+    assertEquals(1, result.size());
+    assertEquals(2, result.get(0).getId());
+
+    result = PatchDownloader.getSuitablePatches(patches, "1.0.5", PatchCostModel.DOWNLOAD_LENGTH);
+    assertEquals(1, result.size());
+    assertEquals(2, result.get(0).getId());
+
+    result = PatchDownloader.getSuitablePatches(patches, "2.0.0", PatchCostModel.DOWNLOAD_LENGTH);
+    assertTrue(result.isEmpty());
+  }
+
   /**
    * Test of getCatalog method, of class PatchDownloader.
    * This test depends on some functions in /updater/util/Util.java.
@@ -292,4 +365,91 @@ public class PatchDownloaderTest {
 
     clientScriptTemp.delete();
   }
+
+  /**
+   * Test of downloadPatches method, of class PatchDownloader, downloading 
+   * concurrently.
+   */
+  @Test
+  public void testDownloadPatchesConcurrently() throws Exception {
+    System.out.println("+++++ testDownloadPatchesConcurrently +++++");
+
+    File downloadPatchesTestFolder = new File("testDownloadPatchesConcurrently");
+    downloadPatchesTestFolder.mkdirs();
+    assertTrue(downloadPatchesTestFolder.isDirectory());
+    assertTrue(CommonUtil.truncateFolder(downloadPatchesTestFolder));
+
+    File tempFile = new File(downloadPatchesTestFolder.getAbsolutePath() + File.separator + "content.tmp");
+    TestHTTPServer server = new TestHTTPServer();
+    try {
+      Random random = new Random(3);
+      List<byte[]> contents = new ArrayList<byte[]>();
+      List<Patch> patches = new ArrayList<Patch>();
+      for (int i = 1; i <= 3; i++) {
+        byte[] content = new byte[100000 + i * 1000];
+        random.nextBytes(content);
+        contents.add(content);
+        server.put(i + ".patch", content);
+        CommonUtil.writeFile(tempFile, content);
+        patches.add(new Patch(i,
+                "patch", "1." + (i - 1), null, "1." + i,
+                server.getURL(i + ".patch"), CommonUtil.getSHA256String(tempFile), content.length,
+                null, null, null,
+                new ArrayList<Operation>(), new ArrayList<ValidationFile>()));
+      }
+      tempFile.delete();
+      // the first patch finishes last
+      server.setDelay("1.patch", 1000);
+
+      //<editor-fold defaultstate="collapsed" desc="test notify in the order of the patches">
+      System.out.println("+ test notify in the order of the patches");
+
+      final List<Integer> downloadedPatchIds = Collections.synchronizedList(new ArrayList<Integer>());
+      DownloadPatchesListener listener = new DownloadPatchesListener() {
+
+        @Override
+        public void downloadPatchesPatchDownloaded(Patch patch) throws IOException {
+          downloadedPatchIds.add(patch.getId());
+        }
+
+        @Override
+        public void downloadPatchesProgress(int progress) {
+        }
+
+        @Override
+        public void downloadPatchesMessage(String message) {
+        }
+      };
+      DownloadPatchesResult result = PatchDownloader.downloadPatches(listener, patches, downloadPatchesTestFolder.getAbsolutePath(), 0, 0, 3);
+
+      assertEquals(DownloadPatchesResult.COMPLETED, result);
+      assertEquals(Arrays.asList(1, 2, 3), downloadedPatchIds);
+      assertTrue(server.getMaxActiveRequests() > 1);
+      for (int i = 1; i <= 3; i++) {
+        File downloadedPatch = new File(downloadPatchesTestFolder.getAbsolutePath() + File.separator + i + ".patch");
+        assertArrayEquals(contents.get(i - 1), CommonUtil.readFile(downloadedPatch));
+      }
+      //</editor-fold>
+
+      //<editor-fold defaultstate="collapsed" desc="test stop at the failed patch">
+      System.out.println("+ test stop at the failed patch");
+
+      assertTrue(CommonUtil.truncateFolder(downloadPatchesTestFolder));
+      downloadedPatchIds.clear();
+      server.remove("2.patch");
+
+      TestCommon.suppressErrorOutput();
+      result = PatchDownloader.downloadPatches(listener, patches, downloadPatchesTestFolder.getAbsolutePath(), 0, 0, 3);
+      TestCommon.restoreErrorOutput();
+
+      assertEquals(DownloadPatchesResult.ERROR, result);
+      assertEquals(Arrays.asList(1), downloadedPatchIds);
+      //</editor-fold>
+    } finally {
+      server.stop();
+      tempFile.delete();
+      CommonUtil.truncateFolder(downloadPatchesTestFolder);
+      downloadPatchesTestFolder.delete();
+    }
+  }
 }
@@ -0,0 +1,277 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.crypto;
+
+/**
+ * Table-driven AES block cipher.
+ * <p>The key schedule is the one of 
+ * {@link watne.seis720.project.WatneAES_Implementer}, which expands only the 
+ * first 128 bits of the key for all the rounds. It is not the standard 
+ * AES-192/AES-256 key schedule, but it has to be followed to stay compatible 
+ * with the files encrypted by {@link watne.seis720.project.AESForFile}.</p>
+ * <p>The key is expanded in the constructor and never changed after that, so 
+ * the instance can be shared by threads.</p>
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class AESBlockCipher {
+
+  /**
+   * The block size in bytes.
+   */
+  public static final int BLOCK_SIZE = 16;
+  /**
+   * The S-box and the inverse S-box.
+   */
+  protected static final int[] SBOX = new int[256], INV_SBOX = new int[256];
+  /**
+   * The tables for encryption rounds, each combines sub bytes and mix columns.
+   */
+  protected static final int[] TE0 = new int[256], TE1 = new int[256], TE2 = new int[256], TE3 = new int[256];
+  /**
+   * The tables for decryption rounds, each combines inverse sub bytes and 
+   * inverse mix columns.
+   */
+  protected static final int[] TD0 = new int[256], TD1 = new int[256], TD2 = new int[256], TD3 = new int[256];
+  /**
+   * The round constants.
+   */
+  protected static final int[] RCON = new int[14];
+
+  static {
+    // powers and logarithms of the generator 3 in GF(2^8)
+    int[] pow = new int[256], log = new int[256];
+    for (int i = 0, x = 1; i < 256; i++) {
+      pow[i] = x;
+      log[x] = i;
+      x ^= xtime(x);
+    }
+
+    for (int i = 0; i < 256; i++) {
+      int inverse = i == 0 ? 0 : pow[(255 - log[i]) % 255];
+      int s = inverse ^ rotateByte(inverse, 1) ^ rotateByte(inverse, 2) ^ rotateByte(inverse, 3) ^ rotateByte(inverse, 4) ^ 0x63;
+      SBOX[i] = s;
+      INV_SBOX[s] = i;
+    }
+
+    for (int i = 0; i < 256; i++) {
+      int s = SBOX[i];
+      int s2 = xtime(s);
+      TE0[i] = (s2 << 24) | (s << 16) | (s << 8) | (s2 ^ s);
+      TE1[i] = Integer.rotateRight(TE0[i], 8);
+      TE2[i] = Integer.rotateRight(TE0[i], 16);
+      TE3[i] = Integer.rotateRight(TE0[i], 24);
+
+      int is = INV_SBOX[i];
+      int is2 = xtime(is), is4 = xtime(is2), is8 = xtime(is4);
+      TD0[i] = ((is8 ^ is4 ^ is2) << 24) | ((is8 ^ is) << 16) | ((is8 ^ is4 ^ is) << 8) | (is8 ^ is2 ^ is);
+      TD1[i] = Integer.rotateRight(TD0[i], 8);
+      TD2[i] = Integer.rotateRight(TD0[i], 16);
+      TD3[i] = Integer.rotateRight(TD0[i], 24);
+    }
+
+    for (int i = 0, x = 1; i < RCON.length; i++) {
+      RCON[i] = x << 24;
+      x = xtime(x);
+    }
+  }
+  /**
+   * The number of rounds.
+   */
+  protected final int rounds;
+  /**
+   * The round keys for encryption.
+   */
+  protected final int[] encryptionKey;
+  /**
+   * The round keys for decryption.
+   */
+  protected final int[] decryptionKey;
+
+  /**
+   * Constructor.
+   * @param key the cipher key, only the first 16 bytes are used
+   * @param rounds the number of rounds, 10, 12 or 14
+   */
+  public AESBlockCipher(byte[] key, int rounds) {
+    if (key == null) {
+      throw new NullPointerException("argument 'key' cannot be null");
+    }
+    if (key.length < 16) {
+      throw new IllegalArgumentException("argument 'key' should be at least 16 bytes");
+    }
+    if (rounds < 1 || rounds > RCON.length) {
+      throw new IllegalArgumentException(String.format("argument 'rounds' should be between 1 and %1$d", RCON.length));
+    }
+
+    this.rounds = rounds;
+
+    // key expansion
+    encryptionKey = new int[4 * (rounds + 1)];
+    for (int i = 0; i < 4; i++) {
+      encryptionKey[i] = getInt(key, i * 4);
+    }
+    for (int i = 4; i < encryptionKey.length; i++) {
+      int temp = encryptionKey[i - 1];
+      if (i % 4 == 0) {
+        temp = subWord(Integer.rotateLeft(temp, 8)) ^ RCON[i / 4 - 1];
+      }
+      encryptionKey[i] = encryptionKey[i - 4] ^ temp;
+    }
+
+    // the round keys for the equivalent inverse cipher
+    decryptionKey = new int[encryptionKey.length];
+    for (int round = 0; round <= rounds; round++) {
+      for (int i = 0; i < 4; i++) {
+        int word = encryptionKey[(rounds - round) * 4 + i];
+        if (round != 0 && round != rounds) {
+          word = TD0[SBOX[word >>> 24]] ^ TD1[SBOX[(word >>> 16) & 0xff]] ^ TD2[SBOX[(word >>> 8) & 0xff]] ^ TD3[SBOX[word & 0xff]];
+        }
+        decryptionKey[round * 4 + i] = word;
+      }
+    }
+  }
+
+  /**
+   * Encrypt a block.
+   * @param in the input
+   * @param inOffset the offset of the block in {@code in}
+   * @param out the output, can be the same as {@code in}
+   * @param outOffset the offset to write the encrypted block in {@code out}
+   */
+  public void encryptBlock(byte[] in, int inOffset, byte[] out, int outOffset) {
+    int[] key = encryptionKey;
+    int s0 = getInt(in, inOffset) ^ key[0];
+    int s1 = getInt(in, inOffset + 4) ^ key[1];
+    int s2 = getInt(in, inOffset + 8) ^ key[2];
+    int s3 = getInt(in, inOffset + 12) ^ key[3];
+
+    int k = 4;
+    for (int round = 1; round < rounds; round++) {
+      int t0 = TE0[s0 >>> 24] ^ TE1[(s1 >>> 16) & 0xff] ^ TE2[(s2 >>> 8) & 0xff] ^ TE3[s3 & 0xff] ^ key[k];
+      int t1 = TE0[s1 >>> 24] ^ TE1[(s2 >>> 16) & 0xff] ^ TE2[(s3 >>> 8) & 0xff] ^ TE3[s0 & 0xff] ^ key[k + 1];
+      int t2 = TE0[s2 >>> 24] ^ TE1[(s3 >>> 16) & 0xff] ^ TE2[(s0 >>> 8) & 0xff] ^ TE3[s1 & 0xff] ^ key[k + 2];
+      int t3 = TE0[s3 >>> 24] ^ TE1[(s0 >>> 16) & 0xff] ^ TE2[(s1 >>> 8) & 0xff] ^ TE3[s2 & 0xff] ^ key[k + 3];
+      s0 = t0;
+      s1 = t1;
+      s2 = t2;
+      s3 = t3;
+      k += 4;
+    }
+
+    putInt(out, outOffset, finalRound(SBOX, s0, s1, s2, s3) ^ key[k]);
+    putInt(out, outOffset + 4, finalRound(SBOX, s1, s2, s3, s0) ^ key[k + 1]);
+    putInt(out, outOffset + 8, finalRound(SBOX, s2, s3, s0, s1) ^ key[k + 2]);
+    putInt(out, outOffset + 12, finalRound(SBOX, s3, s0, s1, s2) ^ key[k + 3]);
+  }
+
+  /**
+   * Decrypt a block.
+   * @param in the input
+   * @param inOffset the offset of the block in {@code in}
+   * @param out the output, can be the same as {@code in}
+   * @param outOffset the offset to write the decrypted block in {@code out}
+   */
+  public void decryptBlock(byte[] in, int inOffset, byte[] out, int outOffset) {
+    int[] key = decryptionKey;
+    int s0 = getInt(in, inOffset) ^ key[0];
+    int s1 = getInt(in, inOffset + 4) ^ key[1];
+    int s2 = getInt(in, inOffset + 8) ^ key[2];
+    int s3 = getInt(in, inOffset + 12) ^ key[3];
+
+    int k = 4;
+    for (int round = 1; round < rounds; round++) {
+      int t0 = TD0[s0 >>> 24] ^ TD1[(s3 >>> 16) & 0xff] ^ TD2[(s2 >>> 8) & 0xff] ^ TD3[s1 & 0xff] ^ key[k];
+      int t1 = TD0[s1 >>> 24] ^ TD1[(s0 >>> 16) & 0xff] ^ TD2[(s3 >>> 8) & 0xff] ^ TD3[s2 & 0xff] ^ key[k + 1];
+      int t2 = TD0[s2 >>> 24] ^ TD1[(s1 >>> 16) & 0xff] ^ TD2[(s0 >>> 8) & 0xff] ^ TD3[s3 & 0xff] ^ key[k + 2];
+      int t3 = TD0[s3 >>> 24] ^ TD1[(s2 >>> 16) & 0xff] ^ TD2[(s1 >>> 8) & 0xff] ^ TD3[s0 & 0xff] ^ key[k + 3];
+      s0 = t0;
+      s1 = t1;
+      s2 = t2;
+      s3 = t3;
+      k += 4;
+    }
+
+    putInt(out, outOffset, finalRound(INV_SBOX, s0, s3, s2, s1) ^ key[k]);
+    putInt(out, outOffset + 4, finalRound(INV_SBOX, s1, s0, s3, s2) ^ key[k + 1]);
+    putInt(out, outOffset + 8, finalRound(INV_SBOX, s2, s1, s0, s3) ^ key[k + 2]);
+    putInt(out, outOffset + 12, finalRound(INV_SBOX, s3, s2, s1, s0) ^ key[k + 3]);
+  }
+
+  /**
+   * Encrypt the blocks in the array.
+   * @param b the data to encrypt in place
+   * @param offset the offset of the first block
+   * @param length the length of the data, should be a multiple of 
+   * {@link #BLOCK_SIZE}
+   */
+  public void encryptBlocks(byte[] b, int offset, int length) {
+    if (length % BLOCK_SIZE != 0) {
+      throw new IllegalArgumentException("argument 'length' should be a multiple of the block size");
+    }
+    for (int i = offset, iEnd = offset + length; i < iEnd; i += BLOCK_SIZE) {
+      encryptBlock(b, i, b, i);
+    }
+  }
+
+  /**
+   * Decrypt the blocks in the array.
+   * @param b the data to decrypt in place
+   * @param offset the offset of the first block
+   * @param length the length of the data, should be a multiple of 
+   * {@link #BLOCK_SIZE}
+   */
+  public void decryptBlocks(byte[] b, int offset, int length) {
+    if (length % BLOCK_SIZE != 0) {
+      throw new IllegalArgumentException("argument 'length' should be a multiple of the block size");
+    }
+    for (int i = offset, iEnd = offset + length; i < iEnd; i += BLOCK_SIZE) {
+      decryptBlock(b, i, b, i);
+    }
+  }
+
+  protected static int finalRound(int[] box, int a, int b, int c, int d) {
+    return (box[a >>> 24] << 24) | (box[(b >>> 16) & 0xff] << 16) | (box[(c >>> 8) & 0xff] << 8) | box[d & 0xff];
+  }
+
+  protected static int subWord(int word) {
+    return (SBOX[word >>> 24] << 24) | (SBOX[(word >>> 16) & 0xff] << 16) | (SBOX[(word >>> 8) & 0xff] << 8) | SBOX[word & 0xff];
+  }
+
+  protected static int xtime(int x) {
+    return ((x << 1) ^ ((x & 0x80) != 0 ? 0x1b : 0)) & 0xff;
+  }
+
+  protected static int rotateByte(int x, int shift) {
+    return ((x << shift) | (x >>> (8 - shift))) & 0xff;
+  }
+
+  protected static int getInt(byte[] b, int offset) {
+    return (b[offset] << 24) | ((b[offset + 1] & 0xff) << 16) | ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff);
+  }
+
+  protected static void putInt(byte[] b, int offset, int value) {
+    b[offset] = (byte) (value >>> 24);
+    b[offset + 1] = (byte) (value >>> 16);
+    b[offset + 2] = (byte) (value >>> 8);
+    b[offset + 3] = (byte) value;
+  }
+}
@@ -0,0 +1,182 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.crypto;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream that decrypt the data read from the underlying input stream 
+ * with {@link AESBlockCipher}. It reads the data encrypted by 
+ * {@link AESEncryptOutputStream} or 
+ * {@link FastAESForFile#encryptFile(java.io.File, java.io.File)} with PKCS5 
+ * padding, the padding is removed.
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class AESDecryptInputStream extends FilterInputStream {
+
+  /**
+   * The block cipher.
+   */
+  protected final AESBlockCipher cipher;
+  /**
+   * The buffer, contain decrypted data from {@link #pos} to {@link #limit}, 
+   * and {@link #pending} bytes of encrypted data after {@link #limit}.
+   */
+  protected final byte[] buf;
+  /**
+   * The position of the next byte to read in {@link #buf}.
+   */
+  protected int pos;
+  /**
+   * The end of the decrypted data in {@link #buf}.
+   */
+  protected int limit;
+  /**
+   * The number of bytes of encrypted data after {@link #limit}, the last 
+   * block is kept encrypted until it is sure to be the last block or not.
+   */
+  protected int pending;
+  /**
+   * Indicate the end of the underlying stream is reached or not.
+   */
+  protected boolean eof;
+
+  /**
+   * Constructor.
+   * @param in the input stream to read the encrypted data from
+   * @param cipher the block cipher
+   */
+  public AESDecryptInputStream(InputStream in, AESBlockCipher cipher) {
+    super(in);
+    if (cipher == null) {
+      throw new NullPointerException("argument 'cipher' cannot be null");
+    }
+    this.cipher = cipher;
+    buf = new byte[32768 + AESBlockCipher.BLOCK_SIZE];
+    pos = 0;
+    limit = 0;
+    pending = 0;
+    eof = false;
+  }
+
+  /**
+   * Read and decrypt more data into the buffer.
+   * @throws IOException error occurred when reading, or the data is not 
+   * correctly padded
+   */
+  protected void fill() throws IOException {
+    System.arraycopy(buf, limit, buf, 0, pending);
+    int count = pending;
+    pos = 0;
+    limit = 0;
+    pending = 0;
+
+    int byteRead = 0;
+    while (count < buf.length && (byteRead = in.read(buf, count, buf.length - count)) != -1) {
+      count += byteRead;
+    }
+
+    if (byteRead == -1) {
+      eof = true;
+      if (count % AESBlockCipher.BLOCK_SIZE != 0) {
+        throw new IOException("The length of the encrypted data is not a multiple of the block size.");
+      }
+      if (count == 0) {
+        return;
+      }
+      cipher.decryptBlocks(buf, 0, count);
+      int paddingLength = buf[count - 1];
+      if (paddingLength < 1 || paddingLength > AESBlockCipher.BLOCK_SIZE) {
+        throw new IOException(String.format("Invalid number of padding bytes: %1$d", paddingLength));
+      }
+      limit = count - paddingLength;
+    } else {
+      // keep the last block, it may be the last block with padding
+      int remainder = count % AESBlockCipher.BLOCK_SIZE;
+      limit = count - (remainder == 0 ? AESBlockCipher.BLOCK_SIZE : remainder);
+      pending = count - limit;
+      cipher.decryptBlocks(buf, 0, limit);
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    while (pos == limit) {
+      if (eof) {
+        return -1;
+      }
+      fill();
+    }
+    int lengthToRead = Math.min(len, limit - pos);
+    System.arraycopy(buf, pos, b, off, lengthToRead);
+    pos += lengthToRead;
+    return lengthToRead;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long remaining = n;
+    while (remaining > 0) {
+      if (pos == limit) {
+        if (eof) {
+          break;
+        }
+        fill();
+        continue;
+      }
+      int lengthToSkip = (int) Math.min(remaining, limit - pos);
+      pos += lengthToSkip;
+      remaining -= lengthToSkip;
+    }
+    return n - remaining;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return limit - pos;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public synchronized void mark(int readlimit) {
+  }
+
+  @Override
+  public synchronized void reset() throws IOException {
+    throw new IOException("mark/reset not supported");
+  }
+}
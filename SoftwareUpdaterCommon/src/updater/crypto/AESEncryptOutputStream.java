@@ -0,0 +1,162 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.crypto;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that encrypt the data written with {@link AESBlockCipher} 
+ * and write to the underlying output stream. The output is the same as 
+ * {@link FastAESForFile#encryptFile(java.io.File, java.io.File)} with PKCS5 
+ * padding, the padding is written when the stream is closed.
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class AESEncryptOutputStream extends FilterOutputStream {
+
+  /**
+   * The block cipher.
+   */
+  protected final AESBlockCipher cipher;
+  /**
+   * The buffer of the data waiting to be encrypted.
+   */
+  protected final byte[] buf;
+  /**
+   * The number of bytes in {@link #buf}.
+   */
+  protected int count;
+  /**
+   * The total number of bytes written (before encryption).
+   */
+  protected long length;
+  /**
+   * Indicate the stream is closed or not.
+   */
+  protected boolean closed;
+
+  /**
+   * Constructor.
+   * @param out the output stream to write the encrypted data to
+   * @param cipher the block cipher
+   */
+  public AESEncryptOutputStream(OutputStream out, AESBlockCipher cipher) {
+    super(out);
+    if (cipher == null) {
+      throw new NullPointerException("argument 'cipher' cannot be null");
+    }
+    this.cipher = cipher;
+    buf = new byte[32768];
+    count = 0;
+    length = 0;
+    closed = false;
+  }
+
+  /**
+   * Get the total number of bytes written to this stream, that is the 
+   * length of the data before encryption and padding.
+   * @return the number of bytes
+   */
+  public long getLength() {
+    return length;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[]{(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed.");
+    }
+    while (len > 0) {
+      int lengthToCopy = Math.min(len, buf.length - count);
+      System.arraycopy(b, off, buf, count, lengthToCopy);
+      count += lengthToCopy;
+      length += lengthToCopy;
+      off += lengthToCopy;
+      len -= lengthToCopy;
+      if (count == buf.length) {
+        writeBlocks();
+      }
+    }
+  }
+
+  /**
+   * Encrypt and write all complete blocks in the buffer.
+   * @throws IOException error occurred when writing
+   */
+  protected void writeBlocks() throws IOException {
+    int blocksLength = count - (count % AESBlockCipher.BLOCK_SIZE);
+    if (blocksLength == 0) {
+      return;
+    }
+    cipher.encryptBlocks(buf, 0, blocksLength);
+    out.write(buf, 0, blocksLength);
+    count -= blocksLength;
+    System.arraycopy(buf, blocksLength, buf, 0, count);
+  }
+
+  /**
+   * Write all complete blocks and flush the underlying stream. The last 
+   * incomplete block is kept until more data written or the stream closed.
+   * @throws IOException error occurred when writing
+   */
+  @Override
+  public void flush() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed.");
+    }
+    writeBlocks();
+    out.flush();
+  }
+
+  /**
+   * Write the remaining data with padding and close the underlying stream. 
+   * Nothing is written if no data was written, same as 
+   * {@link FastAESForFile}.
+   * @throws IOException error occurred when writing
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    try {
+      writeBlocks();
+      if (length > 0) {
+        int paddingLength = AESBlockCipher.BLOCK_SIZE - count;
+        for (int i = 0; i < paddingLength; i++) {
+          buf[count++] = (byte) paddingLength;
+        }
+        writeBlocks();
+      }
+      out.flush();
+    } finally {
+      closed = true;
+      out.close();
+    }
+  }
+}
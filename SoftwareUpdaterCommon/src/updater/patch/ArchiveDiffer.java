@@ -0,0 +1,826 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import com.nothome.delta.ByteBufferSeekableSource;
+import com.nothome.delta.SeekableSource;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import updater.util.CommonUtil;
+
+/**
+ * The differ for zip archives (including jar) in the spirit of 
+ * archive-patcher. The DEFLATE-compressed content of an entry changes 
+ * entirely even if only a few bytes of the uncompressed content changed, so 
+ * the diff is computed on the archives with the entries uncompressed, and 
+ * the new archive is reconstructed by compressing the entries again with the 
+ * recorded parameters.
+ * <p>
+ * An entry of the new archive is uncompressed only if compressing its 
+ * content by {@link java.util.zip.Deflater} with one of the levels and 
+ * strategies reproduce the exact compressed bytes, other entries are kept 
+ * as is. The whole new archive is then reconstructed on the building side, 
+ * if it is not reproduced exactly, all the entries are kept as is. The 
+ * {@link java.util.zip.Deflater} of the patching side is expected to produce 
+ * the same output as the building side, the CRC-32 and the compressed length 
+ * of every entry compressed again are verified when patching, so the entry 
+ * that failed is reported before the checksum of the new file is verified.
+ * </p>
+ * <pre>
+ * "ARCD"           4 bytes, the header
+ * encoding         varint length then the UTF-8 string, the encoding of the 
+ *                  diff of the uncompressed archives
+ * old entries      varint count, then for every uncompressed entry in 
+ *                  ascending order of offset:
+ *   offset         varint, from the end of the previous entry in the old 
+ *                  archive
+ *   length         varint, the compressed length
+ *   uncompressed   varint, the uncompressed length
+ * new entries      varint count, then for every uncompressed entry in 
+ *                  ascending order of offset:
+ *   offset         varint, from the end of the previous entry in the 
+ *                  uncompressed new archive
+ *   uncompressed   varint, the uncompressed length
+ *   length         varint, the compressed length
+ *   crc            varint, the CRC-32 of the uncompressed content
+ *   level          1 byte, the level to compress with
+ *   strategy       1 byte, the strategy to compress with
+ * diff             the diff of the uncompressed archives
+ * </pre>
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class ArchiveDiffer implements Differ {
+
+  /**
+   * The default maximum length of the archives, compressed or uncompressed.
+   */
+  public static final int DEFAULT_MAX_FILE_LENGTH = 33554432;
+  protected static final byte[] HEADER = new byte[]{'A', 'R', 'C', 'D'};
+  /**
+   * The {level, strategy} to try when finding the parameters to reproduce 
+   * the compressed entry, in the order of how common they are.
+   */
+  protected static final int[][] DEFLATE_PARAMETERS;
+
+  static {
+    int[] levels = new int[]{6, 9, 1, 2, 3, 4, 5, 7, 8};
+    List<int[]> parameters = new ArrayList<int[]>();
+    for (int level : levels) {
+      parameters.add(new int[]{level, Deflater.DEFAULT_STRATEGY});
+    }
+    for (int level : levels) {
+      parameters.add(new int[]{level, Deflater.FILTERED});
+    }
+    parameters.add(new int[]{6, Deflater.HUFFMAN_ONLY});
+    parameters.add(new int[]{0, Deflater.DEFAULT_STRATEGY});
+    DEFLATE_PARAMETERS = parameters.toArray(new int[parameters.size()][]);
+  }
+  /**
+   * The encoding of the diff of the uncompressed archives.
+   */
+  protected final DiffEncoding diffEncoding;
+  /**
+   * The maximum length of the archives, compressed or uncompressed.
+   */
+  protected final int maxFileLength;
+
+  /**
+   * Constructor.
+   */
+  public ArchiveDiffer() {
+    this(DiffEncoding.GDIFF);
+  }
+
+  /**
+   * Constructor.
+   * @param diffEncoding the encoding of the diff of the uncompressed archives
+   */
+  public ArchiveDiffer(DiffEncoding diffEncoding) {
+    this(diffEncoding, DEFAULT_MAX_FILE_LENGTH);
+  }
+
+  /**
+   * Constructor.
+   * @param diffEncoding the encoding of the diff of the uncompressed archives
+   * @param maxFileLength the maximum length of the archives, compressed or 
+   * uncompressed
+   */
+  public ArchiveDiffer(DiffEncoding diffEncoding, int maxFileLength) {
+    if (diffEncoding == null) {
+      throw new NullPointerException("argument 'diffEncoding' cannot be null");
+    }
+    if (diffEncoding == DiffEncoding.ARCHIVE) {
+      throw new IllegalArgumentException("argument 'diffEncoding' cannot be archive");
+    }
+    this.diffEncoding = diffEncoding;
+    this.maxFileLength = maxFileLength;
+  }
+
+  /**
+   * Check if the files are both archives within the maximum length and the 
+   * new archive has compressed entry. Only the end of the files are read if 
+   * they are not archives.
+   * @param oldFile the old file
+   * @param newFile the new file
+   * @return true if able to, false if not
+   */
+  @Override
+  public boolean canDiff(File oldFile, File newFile) {
+    if (oldFile.length() > maxFileLength || newFile.length() > maxFileLength) {
+      return false;
+    }
+    try {
+      if (!hasEndOfCentralDirectory(newFile) || !hasEndOfCentralDirectory(oldFile)) {
+        return false;
+      }
+      byte[] newData = CommonUtil.readFile(newFile);
+      List<Entry> newEntries = readEntries(newData);
+      if (newEntries == null || newEntries.isEmpty() || getUncompressedLength(newData, newEntries) > maxFileLength) {
+        return false;
+      }
+      byte[] oldData = CommonUtil.readFile(oldFile);
+      List<Entry> oldEntries = readEntries(oldData);
+      return oldEntries != null && getUncompressedLength(oldData, oldEntries) <= maxFileLength;
+    } catch (IOException ex) {
+      return false;
+    }
+  }
+
+  @Override
+  public void diff(File oldFile, File newFile, OutputStream out) throws IOException {
+    if (oldFile == null) {
+      throw new NullPointerException("argument 'oldFile' cannot be null");
+    }
+    if (newFile == null) {
+      throw new NullPointerException("argument 'newFile' cannot be null");
+    }
+    if (out == null) {
+      throw new NullPointerException("argument 'out' cannot be null");
+    }
+    if (oldFile.length() > maxFileLength || newFile.length() > maxFileLength) {
+      throw new IOException(String.format("The files are larger than the maximum length %1$d, old file: %2$s, new file: %3$s",
+              maxFileLength, oldFile.getAbsolutePath(), newFile.getAbsolutePath()));
+    }
+
+    diff(CommonUtil.readFile(oldFile), CommonUtil.readFile(newFile), out);
+  }
+
+  /**
+   * Compute the diff of the data. If the data are not archives, it is the 
+   * diff of the data with no entry uncompressed.
+   * @param oldData the old data
+   * @param newData the new data
+   * @param out the stream to write the diff to, will not be closed
+   * @throws IOException error occurred when writing
+   */
+  @Override
+  public void diff(byte[] oldData, byte[] newData, OutputStream out) throws IOException {
+    if (oldData == null) {
+      throw new NullPointerException("argument 'oldData' cannot be null");
+    }
+    if (newData == null) {
+      throw new NullPointerException("argument 'newData' cannot be null");
+    }
+    if (out == null) {
+      throw new NullPointerException("argument 'out' cannot be null");
+    }
+
+    List<Entry> oldEntries = readEntries(oldData);
+    if (oldEntries == null) {
+      oldEntries = new ArrayList<Entry>();
+    }
+    byte[] uncompressedOldData = uncompress(oldData, oldEntries);
+
+    List<Entry> newEntries = readEntries(newData);
+    if (newEntries == null) {
+      newEntries = new ArrayList<Entry>();
+    }
+    // uncompress the entries of the new archive that can be reproduced
+    List<Entry> uncompressedNewEntries = new ArrayList<Entry>();
+    ByteArrayOutputStream uncompressedNewOut = new ByteArrayOutputStream(newData.length);
+    int[] lastParameters = null;
+    int position = 0;
+    for (Entry entry : newEntries) {
+      byte[] content = inflate(newData, entry);
+      if (content == null) {
+        continue;
+      }
+      int[] parameters = findDeflateParameters(content, newData, entry, lastParameters);
+      if (parameters == null) {
+        continue;
+      }
+      lastParameters = parameters;
+
+      uncompressedNewOut.write(newData, position, entry.offset - position);
+      Entry uncompressedEntry = new Entry(uncompressedNewOut.size(), entry.length, content.length);
+      uncompressedEntry.crc = getCRC32(content);
+      uncompressedEntry.level = parameters[0];
+      uncompressedEntry.strategy = parameters[1];
+      uncompressedNewEntries.add(uncompressedEntry);
+      uncompressedNewOut.write(content);
+      position = entry.offset + entry.length;
+    }
+    uncompressedNewOut.write(newData, position, newData.length - position);
+    byte[] uncompressedNewData = uncompressedNewOut.toByteArray();
+
+    // verify the new archive can be reconstructed, otherwise keep all the entries as is
+    if (!isReconstructible(newData, uncompressedNewData, uncompressedNewEntries)) {
+      uncompressedNewEntries.clear();
+      uncompressedNewData = newData;
+    }
+
+    out.write(HEADER);
+    byte[] encodingBytes = diffEncoding.getValue().getBytes("UTF-8");
+    SuffixArrayDiffer.writeVarint(out, encodingBytes.length);
+    out.write(encodingBytes);
+
+    SuffixArrayDiffer.writeVarint(out, oldEntries.size());
+    int lastEnd = 0;
+    for (Entry entry : oldEntries) {
+      SuffixArrayDiffer.writeVarint(out, entry.offset - lastEnd);
+      SuffixArrayDiffer.writeVarint(out, entry.length);
+      SuffixArrayDiffer.writeVarint(out, entry.uncompressedLength);
+      lastEnd = entry.offset + entry.length;
+    }
+
+    SuffixArrayDiffer.writeVarint(out, uncompressedNewEntries.size());
+    lastEnd = 0;
+    for (Entry entry : uncompressedNewEntries) {
+      SuffixArrayDiffer.writeVarint(out, entry.offset - lastEnd);
+      SuffixArrayDiffer.writeVarint(out, entry.uncompressedLength);
+      SuffixArrayDiffer.writeVarint(out, entry.length);
+      SuffixArrayDiffer.writeVarint(out, entry.crc);
+      out.write(entry.level);
+      out.write(entry.strategy);
+      lastEnd = entry.offset + entry.uncompressedLength;
+    }
+
+    diffEncoding.getDiffer().diff(uncompressedOldData, uncompressedNewData, out);
+  }
+
+  @Override
+  public void patch(SeekableSource oldFile, InputStream patchIn, OutputStream out) throws IOException {
+    if (oldFile == null) {
+      throw new NullPointerException("argument 'oldFile' cannot be null");
+    }
+    if (patchIn == null) {
+      throw new NullPointerException("argument 'patchIn' cannot be null");
+    }
+    if (out == null) {
+      throw new NullPointerException("argument 'out' cannot be null");
+    }
+
+    byte[] header = new byte[HEADER.length];
+    SuffixArrayDiffer.readFully(patchIn, header, header.length);
+    for (int i = 0; i < HEADER.length; i++) {
+      if (header[i] != HEADER[i]) {
+        throw new IOException("Invalid header of the diff.");
+      }
+    }
+
+    byte[] encodingBytes = new byte[readInt(patchIn)];
+    SuffixArrayDiffer.readFully(patchIn, encodingBytes, encodingBytes.length);
+    String encoding = new String(encodingBytes, "UTF-8");
+    DiffEncoding _diffEncoding = DiffEncoding.get(encoding);
+    if (_diffEncoding == null || _diffEncoding == DiffEncoding.ARCHIVE) {
+      throw new IOException(String.format("Patch encoding not supported: %1$s", encoding));
+    }
+
+    int oldEntryCount = readInt(patchIn);
+    List<Entry> oldEntries = new ArrayList<Entry>();
+    int lastEnd = 0;
+    for (int i = 0; i < oldEntryCount; i++) {
+      Entry entry = new Entry(lastEnd + readInt(patchIn), readInt(patchIn), readInt(patchIn));
+      oldEntries.add(entry);
+      lastEnd = entry.offset + entry.length;
+    }
+
+    int newEntryCount = readInt(patchIn);
+    List<Entry> newEntries = new ArrayList<Entry>();
+    lastEnd = 0;
+    for (int i = 0; i < newEntryCount; i++) {
+      int offset = lastEnd + readInt(patchIn);
+      int uncompressedLength = readInt(patchIn);
+      Entry entry = new Entry(offset, readInt(patchIn), uncompressedLength);
+      entry.crc = SuffixArrayDiffer.readVarint(patchIn);
+      entry.level = patchIn.read();
+      entry.strategy = patchIn.read();
+      if (entry.strategy == -1) {
+        throw new IOException("Reach the end of stream.");
+      }
+      newEntries.add(entry);
+      lastEnd = entry.offset + entry.uncompressedLength;
+    }
+
+    byte[] oldData = readAll(oldFile);
+    byte[] uncompressedOldData = uncompress(oldData, oldEntries);
+    if (oldEntries.size() != oldEntryCount) {
+      throw new IOException("Invalid diff, failed to uncompress the entries of the old file.");
+    }
+
+    RecompressOutputStream recompressOut = new RecompressOutputStream(out, newEntries);
+    _diffEncoding.getDiffer().patch(new ByteBufferSeekableSource(uncompressedOldData), patchIn, recompressOut);
+    recompressOut.finish();
+  }
+
+  /**
+   * Get the DEFLATE-compressed entries of the archive from its central 
+   * directory. Encrypted entries and entries in ZIP64 format are ignored.
+   * @param data the archive
+   * @return the entries in ascending order of offset, null if {@code data} 
+   * is not an archive
+   */
+  protected static List<Entry> readEntries(byte[] data) {
+    // find the end of central directory record, it may be followed by a comment
+    int endOfCentralDirectory = -1;
+    for (int i = data.length - 22, iEnd = Math.max(0, data.length - 22 - 65535); i >= iEnd; i--) {
+      if (readInt(data, i) == 0x06054b50) {
+        endOfCentralDirectory = i;
+        break;
+      }
+    }
+    if (endOfCentralDirectory == -1) {
+      return null;
+    }
+    int entryCount = readShort(data, endOfCentralDirectory + 10);
+    long centralDirectoryLength = readInt(data, endOfCentralDirectory + 12) & 0xffffffffL;
+    long centralDirectoryOffset = readInt(data, endOfCentralDirectory + 16) & 0xffffffffL;
+    if (centralDirectoryOffset + centralDirectoryLength > endOfCentralDirectory) {
+      return null;
+    }
+
+    List<Entry> entries = new ArrayList<Entry>();
+    int position = (int) centralDirectoryOffset;
+    for (int i = 0; i < entryCount; i++) {
+      if (position + 46 > endOfCentralDirectory || readInt(data, position) != 0x02014b50) {
+        return null;
+      }
+      int flags = readShort(data, position + 8);
+      int method = readShort(data, position + 10);
+      long length = readInt(data, position + 20) & 0xffffffffL;
+      long uncompressedLength = readInt(data, position + 24) & 0xffffffffL;
+      long localHeaderOffset = readInt(data, position + 42) & 0xffffffffL;
+      position += 46 + readShort(data, position + 28) + readShort(data, position + 30) + readShort(data, position + 32);
+
+      // 8 is DEFLATE, bit 0 of flags is encryption
+      if (method != 8 || (flags & 1) != 0 || uncompressedLength >= Integer.MAX_VALUE
+              || localHeaderOffset + 30 > data.length || readInt(data, (int) localHeaderOffset) != 0x04034b50) {
+        continue;
+      }
+      long offset = localHeaderOffset + 30 + readShort(data, (int) localHeaderOffset + 26) + readShort(data, (int) localHeaderOffset + 28);
+      if (offset + length > data.length) {
+        continue;
+      }
+      entries.add(new Entry((int) offset, (int) length, (int) uncompressedLength));
+    }
+
+    Collections.sort(entries, new Comparator<Entry>() {
+
+      @Override
+      public int compare(Entry o1, Entry o2) {
+        return o1.offset - o2.offset;
+      }
+    });
+    // remove the overlapping entries
+    int lastEnd = 0;
+    for (Iterator<Entry> iterator = entries.iterator(); iterator.hasNext();) {
+      Entry entry = iterator.next();
+      if (entry.offset < lastEnd) {
+        iterator.remove();
+        continue;
+      }
+      lastEnd = entry.offset + entry.length;
+    }
+
+    return entries;
+  }
+
+  /**
+   * Check if the end of central directory record exists in the end of the 
+   * file, see {@link #readEntries(byte[])}.
+   * @param file the file
+   * @return true if exists, false if not
+   * @throws IOException error occurred when reading the file
+   */
+  protected static boolean hasEndOfCentralDirectory(File file) throws IOException {
+    RandomAccessFile in = null;
+    try {
+      in = new RandomAccessFile(file, "r");
+      // the record is 22 bytes and may be followed by a comment
+      byte[] tail = new byte[(int) Math.min(in.length(), 22 + 65535)];
+      in.seek(in.length() - tail.length);
+      in.readFully(tail);
+      for (int i = tail.length - 22; i >= 0; i--) {
+        if (readInt(tail, i) == 0x06054b50) {
+          return true;
+        }
+      }
+      return false;
+    } finally {
+      CommonUtil.closeQuietly(in);
+    }
+  }
+
+  /**
+   * Get the length of the archive with the entries uncompressed.
+   * @param data the archive
+   * @param entries the entries to uncompress
+   * @return the length
+   */
+  protected static long getUncompressedLength(byte[] data, List<Entry> entries) {
+    long length = data.length;
+    for (Entry entry : entries) {
+      length += entry.uncompressedLength - entry.length;
+    }
+    return length;
+  }
+
+  /**
+   * Get the archive with the entries uncompressed. The entries failed to 
+   * uncompress are removed from {@code entries} and kept as is.
+   * @param data the archive
+   * @param entries the entries to uncompress in ascending order of offset
+   * @return the uncompressed archive
+   */
+  protected static byte[] uncompress(byte[] data, List<Entry> entries) {
+    ByteArrayOutputStream uncompressedOut = new ByteArrayOutputStream(data.length);
+    int position = 0;
+    for (Iterator<Entry> iterator = entries.iterator(); iterator.hasNext();) {
+      Entry entry = iterator.next();
+      byte[] content = entry.offset >= position && (long) entry.offset + entry.length <= data.length ? inflate(data, entry) : null;
+      if (content == null) {
+        iterator.remove();
+        continue;
+      }
+      uncompressedOut.write(data, position, entry.offset - position);
+      uncompressedOut.write(content, 0, content.length);
+      position = entry.offset + entry.length;
+    }
+    uncompressedOut.write(data, position, data.length - position);
+    return uncompressedOut.toByteArray();
+  }
+
+  /**
+   * Uncompress the entry.
+   * @param data the archive
+   * @param entry the entry
+   * @return the uncompressed content, null if the entry is invalid
+   */
+  protected static byte[] inflate(byte[] data, Entry entry) {
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(data, entry.offset, entry.length);
+      // one more byte to detect the content longer than expected
+      byte[] content = new byte[entry.uncompressedLength + 1];
+      int contentLength = 0;
+      while (!inflater.finished()) {
+        int byteInflated = inflater.inflate(content, contentLength, content.length - contentLength);
+        if (byteInflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          return null;
+        }
+        contentLength += byteInflated;
+        if (contentLength > entry.uncompressedLength) {
+          return null;
+        }
+      }
+      if (contentLength != entry.uncompressedLength || inflater.getBytesRead() != entry.length) {
+        return null;
+      }
+      byte[] returnContent = new byte[contentLength];
+      System.arraycopy(content, 0, returnContent, 0, contentLength);
+      return returnContent;
+    } catch (DataFormatException ex) {
+      return null;
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Compress the content with the level and strategy.
+   * @param content the content
+   * @param level the level
+   * @param strategy the strategy
+   * @param out the stream to write the compressed content to
+   * @throws IOException error occurred when writing
+   */
+  protected static void deflate(byte[] content, int level, int strategy, OutputStream out) throws IOException {
+    Deflater deflater = new Deflater(level, true);
+    try {
+      deflater.setStrategy(strategy);
+      // feed the input at once, so the output is the same on the building and patching side
+      deflater.setInput(content);
+      deflater.finish();
+      byte[] buf = new byte[32768];
+      while (!deflater.finished()) {
+        int byteDeflated = deflater.deflate(buf);
+        out.write(buf, 0, byteDeflated);
+      }
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Find the level and strategy that reproduce the compressed entry.
+   * @param content the uncompressed content
+   * @param data the archive
+   * @param entry the entry
+   * @param lastParameters the {level, strategy} found for the previous entry 
+   * to try first, can be null
+   * @return the {level, strategy}, null if not found
+   */
+  protected static int[] findDeflateParameters(byte[] content, byte[] data, Entry entry, int[] lastParameters) {
+    if (lastParameters != null && isReproducible(content, data, entry, lastParameters)) {
+      return lastParameters;
+    }
+    for (int[] parameters : DEFLATE_PARAMETERS) {
+      if (parameters != lastParameters && isReproducible(content, data, entry, parameters)) {
+        return parameters;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Check if compressing the entries of the uncompressed archive again 
+   * reproduces the archive exactly.
+   * @param data the archive
+   * @param uncompressedData the archive with {@code entries} uncompressed
+   * @param entries the uncompressed entries in ascending order of offset in 
+   * {@code uncompressedData}
+   * @return true if reproduced, false if not
+   */
+  protected static boolean isReconstructible(byte[] data, byte[] uncompressedData, List<Entry> entries) {
+    MatchOutputStream matchOut = new MatchOutputStream(data, 0, data.length);
+    try {
+      RecompressOutputStream recompressOut = new RecompressOutputStream(matchOut, entries);
+      recompressOut.write(uncompressedData, 0, uncompressedData.length);
+      recompressOut.finish();
+    } catch (IOException ex) {
+      // mismatch
+      return false;
+    }
+    return matchOut.isMatched();
+  }
+
+  protected static boolean isReproducible(byte[] content, byte[] data, Entry entry, int[] parameters) {
+    MatchOutputStream matchOut = new MatchOutputStream(data, entry.offset, entry.length);
+    try {
+      deflate(content, parameters[0], parameters[1], matchOut);
+    } catch (IOException ex) {
+      // mismatch
+      return false;
+    }
+    return matchOut.isMatched();
+  }
+
+  protected static long getCRC32(byte[] content) {
+    CRC32 crc32 = new CRC32();
+    crc32.update(content);
+    return crc32.getValue();
+  }
+
+  protected static byte[] readAll(SeekableSource in) throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    ByteBuffer buffer = ByteBuffer.allocate(32768);
+    in.seek(0);
+    while (in.read(buffer) != -1) {
+      bout.write(buffer.array(), 0, buffer.position());
+      buffer.clear();
+    }
+    return bout.toByteArray();
+  }
+
+  protected static int readInt(InputStream in) throws IOException {
+    long value = SuffixArrayDiffer.readVarint(in);
+    if (value > Integer.MAX_VALUE) {
+      throw new IOException("Invalid diff, the value exceed the range.");
+    }
+    return (int) value;
+  }
+
+  protected static int readShort(byte[] data, int offset) {
+    return (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8);
+  }
+
+  protected static int readInt(byte[] data, int offset) {
+    return readShort(data, offset) | (readShort(data, offset + 2) << 16);
+  }
+
+  /**
+   * The DEFLATE-compressed entry of an archive.
+   */
+  protected static class Entry {
+
+    /**
+     * The offset of the compressed (or uncompressed) content.
+     */
+    protected final int offset;
+    /**
+     * The compressed length.
+     */
+    protected final int length;
+    protected final int uncompressedLength;
+    /**
+     * The CRC-32 of the uncompressed content.
+     */
+    protected long crc;
+    /**
+     * The level and strategy to compress the content with.
+     */
+    protected int level;
+    protected int strategy;
+
+    protected Entry(int offset, int length, int uncompressedLength) {
+      this.offset = offset;
+      this.length = length;
+      this.uncompressedLength = uncompressedLength;
+    }
+  }
+
+  /**
+   * The output stream that compare the data written with the expected data, 
+   * throws {@link java.io.IOException} when mismatch.
+   */
+  protected static class MatchOutputStream extends OutputStream {
+
+    protected final byte[] data;
+    protected final int end;
+    protected int position;
+
+    protected MatchOutputStream(byte[] data, int offset, int length) {
+      this.data = data;
+      this.end = offset + length;
+      this.position = offset;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (len > end - position) {
+        throw new IOException("Mismatch");
+      }
+      for (int i = 0; i < len; i++) {
+        if (b[off + i] != data[position + i]) {
+          throw new IOException("Mismatch");
+        }
+      }
+      position += len;
+    }
+
+    protected boolean isMatched() {
+      return position == end;
+    }
+  }
+
+  /**
+   * The output stream that receive the uncompressed archive and write the 
+   * archive with the entries compressed to the underlying stream.
+   */
+  protected static class RecompressOutputStream extends OutputStream {
+
+    protected final OutputStream out;
+    /**
+     * The entries in ascending order of offset in the uncompressed archive.
+     */
+    protected final List<Entry> entries;
+    protected int entryIndex;
+    /**
+     * The position in the uncompressed archive.
+     */
+    protected long position;
+    /**
+     * The position in the archive written.
+     */
+    protected long outPosition;
+    protected byte[] content;
+    protected int contentLength;
+
+    protected RecompressOutputStream(OutputStream out, List<Entry> entries) {
+      this.out = out;
+      this.entries = entries;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        recompressEmptyEntries();
+
+        Entry entry = entryIndex < entries.size() ? entries.get(entryIndex) : null;
+        if (entry == null || position < entry.offset) {
+          int lengthToWrite = entry == null ? len : (int) Math.min(len, entry.offset - position);
+          out.write(b, off, lengthToWrite);
+          outPosition += lengthToWrite;
+          off += lengthToWrite;
+          len -= lengthToWrite;
+          position += lengthToWrite;
+          continue;
+        }
+
+        if (content == null) {
+          content = new byte[entry.uncompressedLength];
+          contentLength = 0;
+        }
+        int lengthToCopy = Math.min(len, content.length - contentLength);
+        System.arraycopy(b, off, content, contentLength, lengthToCopy);
+        off += lengthToCopy;
+        len -= lengthToCopy;
+        position += lengthToCopy;
+        contentLength += lengthToCopy;
+        if (contentLength == content.length) {
+          recompress(entry, content);
+          content = null;
+          entryIndex++;
+        }
+      }
+    }
+
+    protected void recompressEmptyEntries() throws IOException {
+      while (entryIndex < entries.size()) {
+        Entry entry = entries.get(entryIndex);
+        if (entry.offset != position || entry.uncompressedLength != 0) {
+          break;
+        }
+        recompress(entry, new byte[0]);
+        entryIndex++;
+      }
+    }
+
+    /**
+     * Compress the content of the entry and write it to the underlying 
+     * stream.
+     * @param entry the entry
+     * @param content the uncompressed content
+     * @throws IOException the content or the compressed length of the entry 
+     * is not the expected one or error occurred when writing
+     */
+    protected void recompress(Entry entry, byte[] content) throws IOException {
+      if (getCRC32(content) != entry.crc) {
+        throw new IOException(String.format("Invalid diff, the CRC-32 of the entry at offset %1$d of the new file mismatch.", outPosition));
+      }
+      ByteArrayOutputStream compressedOut = new ByteArrayOutputStream(entry.length);
+      deflate(content, entry.level, entry.strategy, compressedOut);
+      if (compressedOut.size() != entry.length) {
+        throw new IOException(String.format("Failed to reproduce the compressed entry at offset %1$d of the new file, the compressed length is %2$d, expected %3$d.",
+                outPosition, compressedOut.size(), entry.length));
+      }
+      compressedOut.writeTo(out);
+      outPosition += entry.length;
+    }
+
+    /**
+     * Finish writing, the underlying stream is not closed.
+     * @throws IOException the uncompressed archive written is incomplete or 
+     * error occurred when writing
+     */
+    protected void finish() throws IOException {
+      recompressEmptyEntries();
+      if (entryIndex != entries.size()) {
+        throw new IOException("Invalid diff, the new file is incomplete.");
+      }
+      out.flush();
+    }
+  }
+}
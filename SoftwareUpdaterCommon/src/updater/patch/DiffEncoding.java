@@ -0,0 +1,100 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+/**
+ * Enum for specifying the encoding of the diff in the content of the 'patch' 
+ * operation.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public enum DiffEncoding {
+
+  /**
+   * GDiff computed by {@link com.nothome.delta.Delta}, the default when the 
+   * operation specify no encoding.
+   */
+  GDIFF("gdiff"),
+  /**
+   * See {@link SuffixArrayDiffer}.
+   */
+  SUFFIX_ARRAY("sadiff"),
+  /**
+   * See {@link ArchiveDiffer}.
+   */
+  ARCHIVE("archive"),
+  /**
+   * See {@link TextDiffer}.
+   */
+  TEXT("text");
+  /**
+   * The string value representation of the encoding.
+   */
+  protected final String value;
+
+  DiffEncoding(String value) {
+    this.value = value;
+  }
+
+  /**
+   * Get the unique string representation for this encoding.
+   * @return the string value
+   */
+  public String getValue() {
+    return value;
+  }
+
+  /**
+   * Get a new differ of this encoding. The differ is not thread-safe.
+   * @return the differ
+   */
+  public Differ getDiffer() {
+    switch (this) {
+      case SUFFIX_ARRAY:
+        return new SuffixArrayDiffer();
+      case ARCHIVE:
+        return new ArchiveDiffer();
+      case TEXT:
+        return new TextDiffer();
+      default:
+        return new GDiffDiffer();
+    }
+  }
+
+  /**
+   * Get the {@link updater.patch.DiffEncoding} by the encodings' string 
+   * value.
+   * @param value the string value, null means {@link #GDIFF}
+   * @return the {@link updater.patch.DiffEncoding} or null if not 
+   * correspondent found
+   */
+  public static DiffEncoding get(String value) {
+    if (value == null) {
+      return GDIFF;
+    }
+    DiffEncoding[] diffEncodings = DiffEncoding.values();
+    for (DiffEncoding diffEncoding : diffEncodings) {
+      if (diffEncoding.getValue().equals(value)) {
+        return diffEncoding;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,74 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import com.nothome.delta.SeekableSource;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The binary differ that compute the diff of two files and apply the diff on 
+ * the old file to get the new file.
+ * @see DiffEncoding
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public interface Differ {
+
+  /**
+   * Check if the differ is able to compute the diff of the files, e.g. the 
+   * files are not too large for it.
+   * @param oldFile the old file
+   * @param newFile the new file
+   * @return true if able to, false if not
+   */
+  boolean canDiff(File oldFile, File newFile);
+
+  /**
+   * Compute the diff of the files.
+   * @param oldFile the old file
+   * @param newFile the new file
+   * @param out the stream to write the diff to, will not be closed
+   * @throws IOException error occurred when reading the files or writing
+   */
+  void diff(File oldFile, File newFile, OutputStream out) throws IOException;
+
+  /**
+   * Compute the diff of the data.
+   * @param oldData the old data
+   * @param newData the new data
+   * @param out the stream to write the diff to, will not be closed
+   * @throws IOException error occurred when writing
+   */
+  void diff(byte[] oldData, byte[] newData, OutputStream out) throws IOException;
+
+  /**
+   * Apply the diff on the old file. Exactly the diff is read from 
+   * {@code patchIn}, the data after it is left unread.
+   * @param oldFile the old file
+   * @param patchIn the stream to read the diff from
+   * @param out the stream to write the new file to, will not be closed
+   * @throws IOException error occurred when reading or writing, or the diff 
+   * is invalid
+   */
+  void patch(SeekableSource oldFile, InputStream patchIn, OutputStream out) throws IOException;
+}
@@ -0,0 +1,328 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import updater.util.CommonUtil;
+
+/**
+ * The index of the SHA-256 checksums of files. A checksum is trusted only 
+ * when the length, last modified time and file key (inode on *nix) of the 
+ * file are not changed since the checksum recorded. The file key is 
+ * available on Java 7 or above only.
+ * 
+ * <b>Format: </b><br />
+ * [version (int)] [number of records (int)] ([path (UTF)] [length (long)] [last modified (long)] [file key (UTF)] [checksum (UTF)])*
+ * 
+ * <p>This class is thread-safe.</p>
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class FileChecksumIndex {
+
+  /**
+   * The version of the format of the index file.
+   */
+  public static final int FORMAT_VERSION = 1;
+  /**
+   * The methods to get the file key, they are Java 7 API so they are got by 
+   * reflection, null if not available.
+   */
+  protected static final Method TO_PATH_METHOD;
+  protected static final Method READ_ATTRIBUTES_METHOD;
+  protected static final Method FILE_KEY_METHOD;
+  protected static final Class<?> BASIC_FILE_ATTRIBUTES_CLASS;
+  protected static final Object NO_LINK_OPTIONS;
+
+  static {
+    Method toPathMethod = null;
+    Method readAttributesMethod = null;
+    Method fileKeyMethod = null;
+    Class<?> basicFileAttributesClass = null;
+    Object noLinkOptions = null;
+    try {
+      Class<?> pathClass = Class.forName("java.nio.file.Path");
+      basicFileAttributesClass = Class.forName("java.nio.file.attribute.BasicFileAttributes");
+      noLinkOptions = Array.newInstance(Class.forName("java.nio.file.LinkOption"), 0);
+      toPathMethod = File.class.getMethod("toPath");
+      readAttributesMethod = Class.forName("java.nio.file.Files").getMethod("readAttributes", pathClass, Class.class, noLinkOptions.getClass());
+      fileKeyMethod = basicFileAttributesClass.getMethod("fileKey");
+    } catch (Exception ex) {
+      // Java 6, use the length and last modified time only
+      toPathMethod = null;
+    }
+    TO_PATH_METHOD = toPathMethod;
+    READ_ATTRIBUTES_METHOD = readAttributesMethod;
+    FILE_KEY_METHOD = fileKeyMethod;
+    BASIC_FILE_ATTRIBUTES_CLASS = basicFileAttributesClass;
+    NO_LINK_OPTIONS = noLinkOptions;
+  }
+  /**
+   * The index file, null if the index is not persistent.
+   */
+  protected File file;
+  /**
+   * The records, the key is the absolute path of the file.
+   */
+  protected final Map<String, Record> records;
+
+  /**
+   * Constructor for a non-persistent index.
+   */
+  public FileChecksumIndex() {
+    file = null;
+    records = new ConcurrentHashMap<String, Record>();
+  }
+
+  /**
+   * Constructor. The records will be loaded from {@code file} if it exists.
+   * @param file the index file
+   * @throws IOException error occurred when reading the index file
+   */
+  public FileChecksumIndex(File file) throws IOException {
+    if (file == null) {
+      throw new NullPointerException("argument 'file' cannot be null");
+    }
+
+    this.file = file;
+    records = new ConcurrentHashMap<String, Record>();
+
+    if (file.exists()) {
+      load();
+    }
+  }
+
+  /**
+   * Load the records from the index file. Discard all the records if the 
+   * index file is not in expected format or cannot be read, the index is 
+   * only a cache and the checksums will be computed again.
+   * @throws IOException error occurred when reading the index file
+   */
+  protected void load() throws IOException {
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      if (in.readInt() != FORMAT_VERSION) {
+        return;
+      }
+      for (int i = 0, iEnd = in.readInt(); i < iEnd; i++) {
+        String path = in.readUTF();
+        records.put(path, new Record(in.readLong(), in.readLong(), in.readUTF(), in.readUTF()));
+      }
+    } catch (IOException ex) {
+      // the index is broken, start from empty
+      records.clear();
+    } finally {
+      CommonUtil.closeQuietly(in);
+    }
+  }
+
+  /**
+   * Save the records to the index file. Do nothing if the index is not 
+   * persistent.
+   * @throws IOException error occurred when writing the index file
+   */
+  public synchronized void save() throws IOException {
+    if (file == null) {
+      return;
+    }
+
+    // write to a temporary file first to avoid leaving a broken index
+    File tempFile = new File(file.getAbsolutePath() + ".tmp");
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+
+      // drop the records of the files that no longer exist
+      Map<String, Record> _records = new HashMap<String, Record>();
+      for (Entry<String, Record> entry : records.entrySet()) {
+        if (new File(entry.getKey()).exists()) {
+          _records.put(entry.getKey(), entry.getValue());
+        }
+      }
+
+      out.writeInt(FORMAT_VERSION);
+      out.writeInt(_records.size());
+      for (Entry<String, Record> entry : _records.entrySet()) {
+        Record record = entry.getValue();
+        out.writeUTF(entry.getKey());
+        out.writeLong(record.getLength());
+        out.writeLong(record.getLastModified());
+        out.writeUTF(record.getFileKey());
+        out.writeUTF(record.getChecksum());
+      }
+    } finally {
+      CommonUtil.closeQuietly(out);
+    }
+
+    file.delete();
+    if (!tempFile.renameTo(file)) {
+      throw new IOException(String.format("Failed to rename file from %1$s to %2$s", tempFile.getAbsolutePath(), file.getAbsolutePath()));
+    }
+  }
+
+  /**
+   * Get the recorded checksum of the file.
+   * @param file the file
+   * @return the SHA-256 checksum in hex string, null if no record or the file 
+   * is changed since the checksum recorded
+   */
+  public String get(File file) {
+    Record record = records.get(file.getAbsolutePath());
+    if (record == null
+            || record.getLength() != file.length()
+            || record.getLastModified() != file.lastModified()
+            || !record.getFileKey().equals(getFileKey(file))) {
+      return null;
+    }
+    return record.getChecksum();
+  }
+
+  /**
+   * Record the checksum of the file with the current length, last modified 
+   * time and file key of the file.
+   * @param file the file
+   * @param checksum the SHA-256 checksum in hex string
+   */
+  public void put(File file, String checksum) {
+    if (checksum == null) {
+      throw new NullPointerException("argument 'checksum' cannot be null");
+    }
+    records.put(file.getAbsolutePath(), new Record(file.length(), file.lastModified(), getFileKey(file), checksum));
+  }
+
+  /**
+   * Remove the record of the file.
+   * @param file the file
+   */
+  public void remove(File file) {
+    records.remove(file.getAbsolutePath());
+  }
+
+  /**
+   * Move the record of the file {@code from} to the file {@code to}, should be 
+   * invoked after the file renamed. The record will be dropped if the file 
+   * is changed by the renaming.
+   * @param from the file before rename
+   * @param to the file after rename
+   */
+  public void move(File from, File to) {
+    Record record = records.remove(from.getAbsolutePath());
+    if (record != null && record.getLength() == to.length() && record.getLastModified() == to.lastModified()) {
+      records.put(to.getAbsolutePath(), new Record(record.getLength(), record.getLastModified(), getFileKey(to), record.getChecksum()));
+    } else {
+      records.remove(to.getAbsolutePath());
+    }
+  }
+
+  /**
+   * Get the SHA-256 checksum of the file. The recorded checksum will be used 
+   * if the file is not changed, otherwise the file will be read and the 
+   * checksum will be recorded.
+   * @param file the file
+   * @return the SHA-256 checksum in hex string
+   * @throws IOException error occurred when reading the file
+   */
+  public String getSHA256String(File file) throws IOException {
+    String checksum = get(file);
+    if (checksum == null) {
+      // get the state before reading, the checksum is not recorded if the file is changed during reading
+      long length = file.length();
+      long lastModified = file.lastModified();
+      String fileKey = getFileKey(file);
+
+      checksum = CommonUtil.getSHA256String(file);
+
+      if (file.length() == length && file.lastModified() == lastModified && getFileKey(file).equals(fileKey)) {
+        records.put(file.getAbsolutePath(), new Record(length, lastModified, fileKey, checksum));
+      } else {
+        records.remove(file.getAbsolutePath());
+      }
+    }
+    return checksum;
+  }
+
+  /**
+   * Get the file key, that is the inode on *nix.
+   * @param file the file
+   * @return the file key, empty string if not available, e.g. on Java 6
+   */
+  protected static String getFileKey(File file) {
+    if (TO_PATH_METHOD == null) {
+      return "";
+    }
+    try {
+      Object attributes = READ_ATTRIBUTES_METHOD.invoke(null, TO_PATH_METHOD.invoke(file), BASIC_FILE_ATTRIBUTES_CLASS, NO_LINK_OPTIONS);
+      Object fileKey = FILE_KEY_METHOD.invoke(attributes);
+      return fileKey != null ? fileKey.toString() : "";
+    } catch (Exception ex) {
+      // e.g. the file not exist
+      return "";
+    }
+  }
+
+  /**
+   * The checksum record of a file.
+   */
+  protected static class Record {
+
+    protected long length;
+    protected long lastModified;
+    protected String fileKey;
+    protected String checksum;
+
+    public Record(long length, long lastModified, String fileKey, String checksum) {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.fileKey = fileKey;
+      this.checksum = checksum;
+    }
+
+    public long getLength() {
+      return length;
+    }
+
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    public String getFileKey() {
+      return fileKey;
+    }
+
+    public String getChecksum() {
+      return checksum;
+    }
+  }
+}
@@ -20,22 +20,31 @@
 // WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 package updater.patch;
 
-import javax.xml.transform.TransformerException;
-import com.nothome.delta.Delta;
-import com.nothome.delta.DiffWriter;
-import com.nothome.delta.GDiffWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import org.tukaani.xz.LZMA2Options;
 import org.tukaani.xz.XZOutputStream;
 import updater.crypto.AESKey;
 import updater.script.Patch;
@@ -49,7 +58,22 @@ import updater.util.CommonUtil;
  */
 public class PatchCreator {
 
-  private static final Logger LOG = Logger.getLogger(PatchCreator.class.getName());
+  /**
+   * The number of hashes kept in the sketches of the files when finding the 
+   * similar files, see {@link MinHashSketch}.
+   */
+  protected static final int SKETCH_SIZE = 128;
+  /**
+   * The minimum estimated similarity for a removed file to be the base of the 
+   * diff of a new file when their names are not matched.
+   */
+  protected static final float MIN_SIMILARITY = 0.5F;
+  /**
+   * The maximum number of memory heavy candidate diffs, see 
+   * {@link DiffCandidate#isMemoryHeavy()}, computed at the same time when 
+   * selecting the diffs.
+   */
+  protected static final int MAX_MEMORY_HEAVY_DIFFS = 2;
 
   protected PatchCreator() {
   }
@@ -63,21 +87,38 @@ public class PatchCreator {
    * @param fromSubsequentVersion the version-from-subsequent, can be null
    * @param toVersion the version-to, can be null
    * @param aesKey the cipher key, null means don't use encryption
-   * @param tempFileForEncryption if {@code aesKey} is specified, this should 
-   * be provided to store the temporary encrypted file
+   * @param tempFileForEncryption not used, the patch is encrypted while 
+   * writing
    * @throws IOException error occurred when creating the full patch
    */
   public static void createFullPatch(File softwareDirectory, File patch, int patchId, String fromVersion, String fromSubsequentVersion, String toVersion,
           AESKey aesKey, File tempFileForEncryption) throws IOException {
+    createFullPatch(softwareDirectory, patch, patchId, fromVersion, fromSubsequentVersion, toVersion, aesKey, tempFileForEncryption, false);
+  }
+
+  /**
+   * Create full patch.
+   * @param softwareDirectory
+   * @param patch the place to save the created patch
+   * @param patchId the patch id of the patch
+   * @param fromVersion the version-from, can be null
+   * @param fromSubsequentVersion the version-from-subsequent, can be null
+   * @param toVersion the version-to, can be null
+   * @param aesKey the cipher key, null means don't use encryption
+   * @param tempFileForEncryption not used, the patch is encrypted while 
+   * writing
+   * @param binaryManifest true to write the patch script as binary manifest 
+   * instead of XML, see {@link PatchManifest}
+   * @throws IOException error occurred when creating the full patch
+   */
+  public static void createFullPatch(File softwareDirectory, File patch, int patchId, String fromVersion, String fromSubsequentVersion, String toVersion,
+          AESKey aesKey, File tempFileForEncryption, boolean binaryManifest) throws IOException {
     if (softwareDirectory == null) {
       throw new NullPointerException("argument 'softwareDirectory' cannot be null");
     }
     if (patch == null) {
       throw new NullPointerException("argument 'patch' cannot be null");
     }
-    if (aesKey != null && tempFileForEncryption == null) {
-      throw new NullPointerException("argument 'tempFileForEncryption' cannot be null while argument 'aesKey' is not null");
-    }
 
     if (!softwareDirectory.exists() || !softwareDirectory.isDirectory()) {
       throw new IOException("'softwareDirectory' not exist or not a directory.");
@@ -164,49 +205,33 @@ public class PatchCreator {
     patchScript.setOperations(operations);
 
 
-    // prepare patch script
-    byte[] patchScriptOutput = null;
-    try {
-      patchScriptOutput = patchScript.output();
-    } catch (TransformerException ex) {
-      LOG.log(Level.SEVERE, null, ex);
-      throw new IOException("Error occurred when generating the patch script.");
-    }
-
-
     // packing
     // why not use PatchPacker here?
     // here will not copy the new file to another folder for packing but instead directly read the new file to the patch
-    FileOutputStream fout = null;
+    IndexedPatchWriter patchOut = null;
     try {
-      fout = new FileOutputStream(patch);
-
-      PatchWriteUtil.writeHeader(fout);
-      XZOutputStream xzOut = (XZOutputStream) PatchWriteUtil.writeCompressionMethod(fout, Compression.LZMA2);
-      PatchWriteUtil.writeXML(xzOut, patchScriptOutput);
+      patchOut = new IndexedPatchWriter(patch, Compression.LZMA2, aesKey);
+      patchOut.writeScript(patchScript, binaryManifest);
 
       // patch content
       for (File _file : patchForceFileList) {
-        PatchWriteUtil.writePatch(_file, xzOut);
+        patchOut.writePatch(_file);
       }
 
-      xzOut.finish();
+      patchOut.finish();
     } finally {
-      CommonUtil.closeQuietly(fout);
-    }
-
-
-    // encryption
-    if (aesKey != null) {
-      PatchWriteUtil.encrypt(aesKey, null, patch, tempFileForEncryption);
-
-      patch.delete();
-      tempFileForEncryption.renameTo(patch);
+      CommonUtil.closeQuietly(patchOut);
     }
   }
 
   /**
-   * Create patch.
+   * Create patch. The new files that are identical to a file in the old 
+   * version are moved or copied from that file by the 'move' and 'copy' 
+   * operations instead of being put into the patch. The other new files are 
+   * diffed against the most similar removed file if any, see 
+   * {@link #findSimilarFiles(java.util.concurrent.ExecutorService, java.util.List, java.util.List)}, 
+   * and the 'patch' operation with the removed file as source is used if the 
+   * diff is smaller.
    * @param oldVersion the folder that contain the old version of software
    * @param newVersion the folder that contain the new version of software
    * @param tempDir the temporary folder to store the temporary generated files
@@ -215,11 +240,80 @@ public class PatchCreator {
    * @param fromVersion the version-from, can be null
    * @param toVersion the version-to, can be null
    * @param aesKey the cipher key, null means don't use encryption
-   * @param tempFileForEncryption if {@code aesKey} is specified, this should 
-   * be provided to store the temporary encrypted file
+   * @param tempFileForEncryption not used, the patch is encrypted while 
+   * writing
    * @throws IOException error occurred when creating the patch
    */
   public static void createPatch(File oldVersion, File newVersion, File tempDir, File patch, int patchId, String fromVersion, String toVersion, AESKey aesKey, File tempFileForEncryption) throws IOException {
+    createPatch(oldVersion, newVersion, tempDir, patch, patchId, fromVersion, toVersion, aesKey, tempFileForEncryption, 1);
+  }
+
+  /**
+   * Create patch using multiple threads. The checksum generation, file 
+   * comparison and diff computation are done concurrently, the patch created 
+   * is identical to the one created using single thread.
+   * @param oldVersion the folder that contain the old version of software
+   * @param newVersion the folder that contain the new version of software
+   * @param tempDir the temporary folder to store the temporary generated files
+   * @param patch the place to save the created patch
+   * @param patchId the patch id of the patch
+   * @param fromVersion the version-from, can be null
+   * @param toVersion the version-to, can be null
+   * @param aesKey the cipher key, null means don't use encryption
+   * @param tempFileForEncryption not used, the patch is encrypted while 
+   * writing
+   * @param threads the number of threads to use, must be at least 1
+   * @throws IOException error occurred when creating the patch
+   */
+  public static void createPatch(File oldVersion, File newVersion, File tempDir, File patch, int patchId, String fromVersion, String toVersion, AESKey aesKey, File tempFileForEncryption, int threads) throws IOException {
+    createPatch(oldVersion, newVersion, tempDir, patch, patchId, fromVersion, toVersion, aesKey, tempFileForEncryption, threads, false);
+  }
+
+  /**
+   * Create patch using multiple threads.
+   * @param binaryManifest true to write the patch script as binary manifest 
+   * instead of XML, see {@link PatchManifest}
+   * @see #createPatch(java.io.File, java.io.File, java.io.File, java.io.File, int, java.lang.String, java.lang.String, updater.crypto.AESKey, java.io.File, int) 
+   */
+  public static void createPatch(File oldVersion, File newVersion, File tempDir, File patch, int patchId, String fromVersion, String toVersion, AESKey aesKey, File tempFileForEncryption, int threads, boolean binaryManifest) throws IOException {
+    createPatch(oldVersion, newVersion, tempDir, patch, patchId, fromVersion, toVersion, aesKey, tempFileForEncryption, threads, binaryManifest, DiffEncoding.GDIFF);
+  }
+
+  /**
+   * Create patch using multiple threads.
+   * @param binaryManifest true to write the patch script as binary manifest 
+   * instead of XML, see {@link PatchManifest}
+   * @param diffEncoding the encoding of the diff of the 'patch' operations, 
+   * GDiff is used instead for the files that the differ of the encoding 
+   * cannot handle; with archive, archives (e.g. jar) are diffed by 
+   * {@link ArchiveDiffer} with their entries uncompressed, it is opt-in 
+   * because the patching side has to reproduce the compressed entries with 
+   * its {@link java.util.zip.Deflater}
+   * @see #createPatch(java.io.File, java.io.File, java.io.File, java.io.File, int, java.lang.String, java.lang.String, updater.crypto.AESKey, java.io.File, int) 
+   */
+  public static void createPatch(File oldVersion, File newVersion, File tempDir, File patch, int patchId, String fromVersion, String toVersion, AESKey aesKey, File tempFileForEncryption, int threads, boolean binaryManifest, DiffEncoding diffEncoding) throws IOException {
+    createPatch(oldVersion, newVersion, tempDir, patch, patchId, fromVersion, toVersion, aesKey, tempFileForEncryption, threads, binaryManifest, diffEncoding, 0);
+  }
+
+  /**
+   * Create patch using multiple threads. With {@code cpuBudget}, the diffs 
+   * of other encodings (GDiff with different chunk sizes, text delta, 
+   * suffix array, and archive if {@code diffEncoding} is archive) are 
+   * computed concurrently for every changed file, and the smallest after compression among them, the diff of 
+   * {@code diffEncoding} and the new file (the 'replace' operation) is used.
+   * @param binaryManifest true to write the patch script as binary manifest 
+   * instead of XML, see {@link PatchManifest}
+   * @param diffEncoding the encoding of the diff of the 'patch' operations, 
+   * see {@link #createPatch(java.io.File, java.io.File, java.io.File, java.io.File, int, java.lang.String, java.lang.String, updater.crypto.AESKey, java.io.File, int, boolean, updater.patch.DiffEncoding)}
+   * @param cpuBudget the CPU time in milliseconds allowed for each changed 
+   * file, including the diff of {@code diffEncoding} and the compressed 
+   * lengths, the encodings not started when the budget is used up are 
+   * skipped; 0 to use the diff of {@code diffEncoding} only
+   * @return the reports of the changed files, empty if {@code cpuBudget} is 
+   * 0
+   * @see #createPatch(java.io.File, java.io.File, java.io.File, java.io.File, int, java.lang.String, java.lang.String, updater.crypto.AESKey, java.io.File, int) 
+   */
+  public static List<DiffReport> createPatch(File oldVersion, File newVersion, File tempDir, File patch, int patchId, String fromVersion, String toVersion, AESKey aesKey, File tempFileForEncryption, int threads, boolean binaryManifest, DiffEncoding diffEncoding, long cpuBudget) throws IOException {
     if (oldVersion == null) {
       throw new NullPointerException("argument 'oldVersion' cannot be null");
     }
@@ -232,8 +326,14 @@ public class PatchCreator {
     if (patch == null) {
       throw new NullPointerException("argument 'patch' cannot be null");
     }
-    if (aesKey != null && tempFileForEncryption == null) {
-      throw new NullPointerException("argument 'tempFileForEncryption' cannot be null while argument 'aesKey' is not null");
+    if (diffEncoding == null) {
+      throw new NullPointerException("argument 'diffEncoding' cannot be null");
+    }
+    if (threads < 1) {
+      throw new IllegalArgumentException("argument 'threads' should be at least 1");
+    }
+    if (cpuBudget < 0) {
+      throw new IllegalArgumentException("argument 'cpuBudget' should not be negative");
     }
 
     if (!oldVersion.exists() || !oldVersion.isDirectory()) {
@@ -243,6 +343,23 @@ public class PatchCreator {
       throw new IOException("Directory of new verison not exist or not a directory.");
     }
 
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      return createPatch(oldVersion, newVersion, tempDir, patch, patchId, fromVersion, toVersion, aesKey, tempFileForEncryption, executor, binaryManifest, diffEncoding, cpuBudget);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Create patch. The checksum generation, file comparison and diff 
+   * computation are submitted to {@code executor}, the results are collected 
+   * in the same order as they are submitted.
+   * @param executor the executor to run the tasks
+   * @see #createPatch(java.io.File, java.io.File, java.io.File, java.io.File, int, java.lang.String, java.lang.String, updater.crypto.AESKey, java.io.File, int) 
+   */
+  protected static List<DiffReport> createPatch(File oldVersion, File newVersion, File tempDir, File patch, int patchId, String fromVersion, String toVersion, AESKey aesKey, File tempFileForEncryption, ExecutorService executor, boolean binaryManifest, DiffEncoding diffEncoding, long cpuBudget) throws IOException {
+
     // prepare the patch script
     List<Operation> operations = new ArrayList<Operation>();
     List<ValidationFile> validations = new ArrayList<ValidationFile>();
@@ -273,14 +390,20 @@ public class PatchCreator {
     Map<String, String> newVersionFilesChecksumMap = new HashMap<String, String>();
 
     //<editor-fold defaultstate="collapsed" desc="validations - add validations list first">
+    Map<String, Future<String>> newVersionFilesChecksumFutures = new HashMap<String, Future<String>>();
+    for (File _newFile : newVersionFiles.values()) {
+      if (!_newFile.isDirectory()) {
+        newVersionFilesChecksumFutures.put(_newFile.getAbsolutePath(), submitSHA256(executor, _newFile));
+      }
+    }
     for (String _filePath : newVersionFiles.keySet()) {
       File _newFile = newVersionFiles.get(_filePath);
       ValidationFile validationFile;
       if (_newFile.isDirectory()) {
         validationFile = new ValidationFile(_filePath, "", -1);
       } else {
-        String sha256 = CommonUtil.getSHA256String(_newFile);
-        newVersionFilesChecksumMap.put(_filePath, sha256);
+        String sha256 = getResult(newVersionFilesChecksumFutures.get(_newFile.getAbsolutePath()));
+        newVersionFilesChecksumMap.put(_newFile.getAbsolutePath(), sha256);
         validationFile = new ValidationFile(_filePath, sha256, (int) _newFile.length());
       }
       validations.add(validationFile);
@@ -339,14 +462,210 @@ public class PatchCreator {
     sortFileListDesc(removeFileList);
     //</editor-fold>
 
+    // submit the time consuming tasks, the results are collected in order when generating the operations
+    List<Future<String>> removeFileChecksumFutures = new ArrayList<Future<String>>();
+    for (OperationRecord record : removeFileList) {
+      File _oldFile = record.getOldFile();
+      removeFileChecksumFutures.add(_oldFile.isDirectory() ? null : submitSHA256(executor, _oldFile));
+    }
+    // the old files of patchFileList can be copied from only if there is a new file with the same length
+    Set<Long> newFileLengths = new HashSet<Long>();
+    for (OperationRecord record : newFileList) {
+      if (!record.getNewFile().isDirectory()) {
+        newFileLengths.add(record.getNewFile().length());
+      }
+    }
+    List<Future<String>> patchOldFileChecksumFutures = new ArrayList<Future<String>>();
+    for (OperationRecord record : patchFileList) {
+      File _oldFile = record.getOldFile();
+      patchOldFileChecksumFutures.add(newFileLengths.contains(_oldFile.length()) ? submitSHA256(executor, _oldFile) : null);
+    }
+    List<Future<DiffResult>> patchFileDiffFutures = new ArrayList<Future<DiffResult>>();
+    for (int i = 0, iEnd = patchFileList.size(); i < iEnd; i++) {
+      OperationRecord record = patchFileList.get(i);
+      patchFileDiffFutures.add(submitDiff(executor, record.getOldFile(), record.getNewFile(), new File(tempDir + File.separator + Integer.toString(i)), diffEncoding));
+    }
+
+    //<editor-fold defaultstate="collapsed" desc="move & copy - find the old files that are identical to the new files">
+    List<String> removeFileChecksums = new ArrayList<String>();
+    for (Future<String> future : removeFileChecksumFutures) {
+      removeFileChecksums.add(future == null ? "" : getResult(future));
+    }
+
+    // the removed files inside a path that change between file and folder cannot be moved, the folder has to be removed before adding the file
+    Set<String> removePaths = new HashSet<String>();
+    for (OperationRecord record : removeFileList) {
+      removePaths.add(record.getOldFile().getAbsolutePath().replace(oldVersionPath, "").replace(File.separator, "/"));
+    }
+    List<String> typeChangedPaths = new ArrayList<String>();
+    for (OperationRecord record : newFileList) {
+      String _filePath = record.getNewFile().getAbsolutePath().replace(newVersionPath, "").replace(File.separator, "/");
+      if (removePaths.contains(_filePath)) {
+        typeChangedPaths.add(_filePath);
+      }
+    }
+
+    // the removed files can be moved, the files that still exist in new version can only be copied
+    Map<String, List<File>> movableFiles = new HashMap<String, List<File>>();
+    List<File> similarBaseFiles = new ArrayList<File>();
+    for (int i = 0, iEnd = removeFileList.size(); i < iEnd; i++) {
+      File _oldFile = removeFileList.get(i).getOldFile();
+      if (_oldFile.isDirectory()) {
+        continue;
+      }
+      String _filePath = _oldFile.getAbsolutePath().replace(oldVersionPath, "").replace(File.separator, "/");
+      boolean typeChanged = false;
+      for (String typeChangedPath : typeChangedPaths) {
+        if (_filePath.equals(typeChangedPath) || _filePath.startsWith(typeChangedPath + "/")) {
+          typeChanged = true;
+          break;
+        }
+      }
+      if (typeChanged) {
+        continue;
+      }
+      similarBaseFiles.add(_oldFile);
+      List<File> files = movableFiles.get(removeFileChecksums.get(i));
+      if (files == null) {
+        files = new ArrayList<File>();
+        movableFiles.put(removeFileChecksums.get(i), files);
+      }
+      files.add(_oldFile);
+    }
+    Map<String, File> copyableFiles = new HashMap<String, File>();
+    for (int i = 0, iEnd = patchFileList.size(); i < iEnd; i++) {
+      if (patchOldFileChecksumFutures.get(i) != null) {
+        String sha256 = getResult(patchOldFileChecksumFutures.get(i));
+        if (!copyableFiles.containsKey(sha256)) {
+          copyableFiles.put(sha256, patchFileList.get(i).getOldFile());
+        }
+      }
+    }
+
+    Map<String, List<File>> newFilesByChecksum = new LinkedHashMap<String, List<File>>();
+    for (OperationRecord record : newFileList) {
+      File _newFile = record.getNewFile();
+      String sha256 = newVersionFilesChecksumMap.get(_newFile.getAbsolutePath());
+      if (_newFile.isDirectory() || (!movableFiles.containsKey(sha256) && !copyableFiles.containsKey(sha256))) {
+        continue;
+      }
+      List<File> files = newFilesByChecksum.get(sha256);
+      if (files == null) {
+        files = new ArrayList<File>();
+        newFilesByChecksum.put(sha256, files);
+      }
+      files.add(_newFile);
+    }
+
+    // the new files are in ascending order and the operations are done in this order, the last ones are moved so 
+    // the others can still be copied from the same file before it is moved
+    Map<File, File> moveSources = new HashMap<File, File>();
+    Map<File, File> copySources = new HashMap<File, File>();
+    for (Map.Entry<String, List<File>> entry : newFilesByChecksum.entrySet()) {
+      List<File> newFiles = entry.getValue();
+      List<File> movable = movableFiles.get(entry.getKey());
+      int moveCount = movable == null ? 0 : Math.min(movable.size(), newFiles.size());
+      for (int i = 0; i < moveCount; i++) {
+        moveSources.put(newFiles.get(newFiles.size() - 1 - i), movable.get(i));
+      }
+      File copySource = copyableFiles.get(entry.getKey());
+      if (copySource == null && movable != null) {
+        copySource = movable.get(0);
+      }
+      for (int i = 0, iEnd = newFiles.size() - moveCount; i < iEnd; i++) {
+        copySources.put(newFiles.get(i), copySource);
+      }
+    }
+
+    Set<File> movedFiles = new HashSet<File>(moveSources.values());
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="similar files - diff the new files against the similar removed files">
+    List<File> similarNewFiles = new ArrayList<File>();
+    for (OperationRecord record : newFileList) {
+      File _newFile = record.getNewFile();
+      if (!_newFile.isDirectory() && !moveSources.containsKey(_newFile) && !copySources.containsKey(_newFile)) {
+        similarNewFiles.add(_newFile);
+      }
+    }
+    similarBaseFiles.removeAll(movedFiles);
+    Map<File, File> similarFiles = findSimilarFiles(executor, similarNewFiles, similarBaseFiles);
+
+    // the diffs are numbered after those of patchFileList
+    List<OperationRecord> similarFileList = new ArrayList<OperationRecord>();
+    List<Future<DiffResult>> similarFileDiffFutures = new ArrayList<Future<DiffResult>>();
+    for (File _newFile : similarNewFiles) {
+      File _baseFile = similarFiles.get(_newFile);
+      if (_baseFile != null) {
+        similarFileList.add(new OperationRecord(_baseFile, _newFile));
+        similarFileDiffFutures.add(submitDiff(executor, _baseFile, _newFile, new File(tempDir + File.separator + Integer.toString(patchFileList.size() + similarFileDiffFutures.size())), diffEncoding));
+      }
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="diff results">
+    List<OperationRecord> diffFileList = new ArrayList<OperationRecord>(patchFileList);
+    diffFileList.addAll(similarFileList);
+    List<Future<DiffResult>> diffFutures = new ArrayList<Future<DiffResult>>(patchFileDiffFutures);
+    diffFutures.addAll(similarFileDiffFutures);
+    List<DiffResult> diffResults = new ArrayList<DiffResult>();
+    for (int i = 0, iEnd = diffFileList.size(); i < iEnd; i++) {
+      DiffResult diffResult = getResult(diffFutures.get(i));
+      // if the patched file is larger than the new file (very rare), don't patch it, use replace instead
+      if (diffResult.getDiffFile() != null && diffResult.getDiffFile().length() > diffFileList.get(i).getNewFile().length()) {
+        diffResult.setReplace(true);
+      }
+      diffResults.add(diffResult);
+    }
+    List<DiffReport> diffReports = new ArrayList<DiffReport>();
+    if (cpuBudget > 0) {
+      diffReports = selectDiffs(executor, diffFileList, diffResults, tempDir, newVersionPath, diffEncoding, cpuBudget);
+    }
+    List<DiffResult> patchFileDiffResults = diffResults.subList(0, patchFileList.size());
+
+    // the new files that are not smaller by diffing are added as new files
+    Map<File, DiffResult> similarFileDiffResults = new HashMap<File, DiffResult>();
+    Set<File> similarFileBases = new HashSet<File>();
+    for (int i = 0, iEnd = similarFileList.size(); i < iEnd; i++) {
+      OperationRecord record = similarFileList.get(i);
+      DiffResult diffResult = diffResults.get(patchFileList.size() + i);
+      if (diffResult.getDiffFile() == null || diffResult.isReplace()) {
+        if (diffResult.getDiffFile() != null) {
+          diffResult.getDiffFile().delete();
+        }
+        continue;
+      }
+      similarFileDiffResults.put(record.getNewFile(), diffResult);
+      similarFileBases.add(record.getOldFile());
+    }
+
+    // the removal of the files that are diffed against and the folders that contain the moved files or them are done 
+    // after the files are moved and patched
+    Set<File> removeAfterFolders = new HashSet<File>();
+    List<File> removeAfterFiles = new ArrayList<File>(movedFiles);
+    removeAfterFiles.addAll(similarFileBases);
+    for (File _file : removeAfterFiles) {
+      for (File folder = _file.getParentFile(); folder != null && removeAfterFolders.add(folder); folder = folder.getParentFile()) {
+      }
+    }
+    //</editor-fold>
+
     // three list that record those file with their content needed to put into the patch
     List<File> patchNewFileList = new ArrayList<File>();
     List<File> patchPatchFileList = new ArrayList<File>();
     List<File> patchReplaceFileList = new ArrayList<File>();
     int pos = 0, operationIdCounter = 1;
     //<editor-fold defaultstate="collapsed" desc="remove file list">
-    for (OperationRecord record : removeFileList) {
-      File _oldFile = record.getOldFile();
+    List<Integer> removeAfterIndexes = new ArrayList<Integer>();
+    for (int i = 0, iEnd = removeFileList.size(); i < iEnd; i++) {
+      File _oldFile = removeFileList.get(i).getOldFile();
+      if (movedFiles.contains(_oldFile)) {
+        continue;
+      }
+      if (similarFileBases.contains(_oldFile) || removeAfterFolders.contains(_oldFile)) {
+        removeAfterIndexes.add(i);
+        continue;
+      }
 
       int fileLength = 0;
       String fileType = "folder";
@@ -354,7 +673,7 @@ public class PatchCreator {
       if (!_oldFile.isDirectory()) {
         fileLength = (int) _oldFile.length();
         fileType = "file";
-        fileSHA256 = CommonUtil.getSHA256String(_oldFile);
+        fileSHA256 = removeFileChecksums.get(i);
       }
 
       Operation _operation = new Operation(operationIdCounter, OperationType.REMOVE.getValue(), 0, 0, fileType, _oldFile.getAbsolutePath().replace(oldVersionPath, "").replace(File.separator, "/"), fileSHA256, fileLength, null, -1);
@@ -366,6 +685,26 @@ public class PatchCreator {
     for (OperationRecord record : newFileList) {
       File _newFile = record.getNewFile();
 
+      File _sourceFile = moveSources.get(_newFile);
+      OperationType operationType = OperationType.MOVE;
+      if (_sourceFile == null) {
+        _sourceFile = copySources.get(_newFile);
+        operationType = OperationType.COPY;
+      }
+      if (_sourceFile != null) {
+        int fileLength = (int) _newFile.length();
+        String fileSHA256 = newVersionFilesChecksumMap.get(_newFile.getAbsolutePath());
+
+        Operation _operation = new Operation(operationIdCounter, operationType.getValue(), 0, 0, "file", _newFile.getAbsolutePath().replace(newVersionPath, "").replace(File.separator, "/"), fileSHA256, fileLength, fileSHA256, fileLength);
+        _operation.setSourceFilePath(_sourceFile.getAbsolutePath().replace(oldVersionPath, "").replace(File.separator, "/"));
+        operationIdCounter++;
+        operations.add(_operation);
+        continue;
+      }
+      if (similarFileDiffResults.containsKey(_newFile)) {
+        continue;
+      }
+
       int fileLength = 0;
       String fileType = "folder";
       String fileSHA256 = "";
@@ -387,36 +726,71 @@ public class PatchCreator {
       pos += fileLength;
     }
     //</editor-fold>
+    //<editor-fold defaultstate="collapsed" desc="similar file list">
+    for (OperationRecord record : similarFileList) {
+      File _baseFile = record.getOldFile();
+      File _newFile = record.getNewFile();
+      DiffResult diffResult = similarFileDiffResults.get(_newFile);
+      if (diffResult == null) {
+        continue;
+      }
+
+      File diffFile = diffResult.getDiffFile();
+      int fileLength = (int) diffFile.length();
+      int newFileLength = (int) _newFile.length();
+      String newFileSHA256 = newVersionFilesChecksumMap.get(_newFile.getAbsolutePath());
+
+      patchPatchFileList.add(diffFile);
+      Operation _operation = new Operation(operationIdCounter, OperationType.PATCH.getValue(), pos, fileLength, "file", _newFile.getAbsolutePath().replace(newVersionPath, "").replace(File.separator, "/"), diffResult.getOldFileSHA256(), (int) _baseFile.length(), newFileSHA256, newFileLength);
+      _operation.setSourceFilePath(_baseFile.getAbsolutePath().replace(oldVersionPath, "").replace(File.separator, "/"));
+      if (diffResult.getDiffEncoding() != DiffEncoding.GDIFF) {
+        _operation.setPatchEncoding(diffResult.getDiffEncoding().getValue());
+      }
+      operationIdCounter++;
+      operations.add(_operation);
+
+      pos += fileLength;
+    }
+    //</editor-fold>
+    //<editor-fold defaultstate="collapsed" desc="remove after list - the files diffed against and the folders that contain the moved files or them">
+    for (int i : removeAfterIndexes) {
+      File _oldFile = removeFileList.get(i).getOldFile();
+
+      int fileLength = 0;
+      String fileType = "folder";
+      String fileSHA256 = "";
+      if (!_oldFile.isDirectory()) {
+        fileLength = (int) _oldFile.length();
+        fileType = "file";
+        fileSHA256 = removeFileChecksums.get(i);
+      }
+
+      Operation _operation = new Operation(operationIdCounter, OperationType.REMOVE.getValue(), 0, 0, fileType, _oldFile.getAbsolutePath().replace(oldVersionPath, "").replace(File.separator, "/"), fileSHA256, fileLength, null, -1);
+      operationIdCounter++;
+      operations.add(_operation);
+    }
+    //</editor-fold>
     //<editor-fold defaultstate="collapsed" desc="patch file list">
-    int count = 0;
-    Delta delta = new Delta();
-    for (OperationRecord record : patchFileList) {
+    Map<File, String> replaceFileOldChecksumMap = new HashMap<File, String>();
+    for (int i = 0, iEnd = patchFileList.size(); i < iEnd; i++) {
+      OperationRecord record = patchFileList.get(i);
       File _oldFile = record.getOldFile();
       File _newFile = record.getNewFile();
 
+      DiffResult diffResult = patchFileDiffResults.get(i);
       // two file are identical
-      if (CommonUtil.compareFile(_oldFile, _newFile)) {
+      if (diffResult.getDiffFile() == null) {
         continue;
       }
 
-      // get delta/diff
-      File diffFile = new File(tempDir + File.separator + Integer.toString(count));
-      FileOutputStream fout = null;
-      try {
-        fout = new FileOutputStream(diffFile);
-        DiffWriter diffOut = new GDiffWriter(fout);
-        delta.compute(_oldFile, _newFile, diffOut);
-      } catch (Exception ex) {
-        CommonUtil.closeQuietly(fout);
-      }
-
+      File diffFile = diffResult.getDiffFile();
       int fileLength = (int) diffFile.length();
       int newFileLength = (int) _newFile.length();
 
       Operation _operation;
-      if (fileLength > newFileLength) {
-        // if the patched file is larger than the new file (very rare), don't patch it, use replace instead
+      if (diffResult.isReplace()) {
         replaceFileList.add(record);
+        replaceFileOldChecksumMap.put(_oldFile, diffResult.getOldFileSHA256());
         diffFile.delete();
         continue;
       } else {
@@ -425,13 +799,15 @@ public class PatchCreator {
           newFileSHA256 = CommonUtil.getSHA256String(_newFile);
         }
         patchPatchFileList.add(diffFile);
-        _operation = new Operation(operationIdCounter, OperationType.PATCH.getValue(), pos, fileLength, "file", _oldFile.getAbsolutePath().replace(oldVersionPath, "").replace(File.separator, "/"), CommonUtil.getSHA256String(_oldFile), (int) _oldFile.length(), newFileSHA256, newFileLength);
+        _operation = new Operation(operationIdCounter, OperationType.PATCH.getValue(), pos, fileLength, "file", _oldFile.getAbsolutePath().replace(oldVersionPath, "").replace(File.separator, "/"), diffResult.getOldFileSHA256(), (int) _oldFile.length(), newFileSHA256, newFileLength);
+        if (diffResult.getDiffEncoding() != DiffEncoding.GDIFF) {
+          _operation.setPatchEncoding(diffResult.getDiffEncoding().getValue());
+        }
         operationIdCounter++;
       }
       operations.add(_operation);
 
       pos += fileLength;
-      count++;
     }
     //</editor-fold>
     //<editor-fold defaultstate="collapsed" desc="replace file list">
@@ -448,7 +824,7 @@ public class PatchCreator {
 
       patchReplaceFileList.add(_newFile);
 
-      Operation _operation = new Operation(operationIdCounter, OperationType.REPLACE.getValue(), pos, fileLength, "file", _oldFile.getAbsolutePath().replace(oldVersionPath, "").replace(File.separator, "/"), CommonUtil.getSHA256String(_oldFile), (int) _oldFile.length(), newFileSHA256, newFileLength);
+      Operation _operation = new Operation(operationIdCounter, OperationType.REPLACE.getValue(), pos, fileLength, "file", _oldFile.getAbsolutePath().replace(oldVersionPath, "").replace(File.separator, "/"), replaceFileOldChecksumMap.get(_oldFile), (int) _oldFile.length(), newFileSHA256, newFileLength);
       operationIdCounter++;
       operations.add(_operation);
 
@@ -458,51 +834,523 @@ public class PatchCreator {
     patchScript.setOperations(operations);
 
 
-    // patch script
-    byte[] patchScriptOutput = null;
-    try {
-      patchScriptOutput = patchScript.output();
-    } catch (TransformerException ex) {
-      LOG.log(Level.SEVERE, null, ex);
-      throw new IOException("Error occurred when generating the patch script.");
-    }
-
-
     // packing
     // why not use PatchPacker here?
     // here will not copy the new file to another folder for packing but instead directly read the new file to the patch
-    FileOutputStream fout = null;
+    IndexedPatchWriter patchOut = null;
     try {
-      fout = new FileOutputStream(patch);
-
-      PatchWriteUtil.writeHeader(fout);
-      XZOutputStream xzOut = (XZOutputStream) PatchWriteUtil.writeCompressionMethod(fout, Compression.LZMA2);
-      PatchWriteUtil.writeXML(xzOut, patchScriptOutput);
+      patchOut = new IndexedPatchWriter(patch, Compression.LZMA2, aesKey);
+      patchOut.writeScript(patchScript, binaryManifest);
 
       // patch content
       for (File _file : patchNewFileList) {
-        PatchWriteUtil.writePatch(_file, xzOut);
+        patchOut.writePatch(_file);
       }
       for (File _file : patchPatchFileList) {
-        PatchWriteUtil.writePatch(_file, xzOut);
+        patchOut.writePatch(_file);
         _file.delete();
       }
       for (File _file : patchReplaceFileList) {
-        PatchWriteUtil.writePatch(_file, xzOut);
+        patchOut.writePatch(_file);
       }
 
+      patchOut.finish();
+    } finally {
+      CommonUtil.closeQuietly(patchOut);
+    }
+
+    return diffReports;
+  }
+
+  /**
+   * Find the removed file that is the most similar to each new file to be the 
+   * base of its diff. Only the removed files with the same extension and a 
+   * length within half to double of the new file are considered. Those with 
+   * the same name after removing the version numbers, see 
+   * {@link #getVersionlessName(java.lang.String)}, are preferred, otherwise 
+   * the most similar one is used if the similarity estimated by 
+   * {@link MinHashSketch} is at least {@link #MIN_SIMILARITY}.
+   * @param executor the executor to create the sketches of the files
+   * @param newFiles the new files
+   * @param removedFiles the removed files
+   * @return the map with the new file as key and the removed file as value, 
+   * the new files that have no similar removed file are not included
+   * @throws IOException error occurred when reading the files
+   */
+  protected static Map<File, File> findSimilarFiles(ExecutorService executor, List<File> newFiles, List<File> removedFiles) throws IOException {
+    Map<String, List<File>> removedFilesByExtension = new HashMap<String, List<File>>();
+    Map<File, String> versionlessNames = new HashMap<File, String>();
+    for (File _removedFile : removedFiles) {
+      String extension = getExtension(_removedFile.getName());
+      List<File> files = removedFilesByExtension.get(extension);
+      if (files == null) {
+        files = new ArrayList<File>();
+        removedFilesByExtension.put(extension, files);
+      }
+      files.add(_removedFile);
+      versionlessNames.put(_removedFile, getVersionlessName(_removedFile.getName()));
+    }
+
+    Map<File, List<File>> candidatesMap = new LinkedHashMap<File, List<File>>();
+    Set<File> nameMatchedFiles = new HashSet<File>();
+    Map<File, Future<MinHashSketch>> sketchFutures = new HashMap<File, Future<MinHashSketch>>();
+    for (File _newFile : newFiles) {
+      long newFileLength = _newFile.length();
+      List<File> files = removedFilesByExtension.get(getExtension(_newFile.getName()));
+      if (newFileLength == 0 || files == null) {
+        continue;
+      }
+
+      String versionlessName = getVersionlessName(_newFile.getName());
+      List<File> candidates = new ArrayList<File>();
+      List<File> nameMatched = new ArrayList<File>();
+      for (File _removedFile : files) {
+        long removedFileLength = _removedFile.length();
+        if (removedFileLength * 2 < newFileLength || newFileLength * 2 < removedFileLength) {
+          continue;
+        }
+        candidates.add(_removedFile);
+        if (versionlessNames.get(_removedFile).equals(versionlessName)) {
+          nameMatched.add(_removedFile);
+        }
+      }
+      if (!nameMatched.isEmpty()) {
+        candidates = nameMatched;
+        nameMatchedFiles.add(_newFile);
+      }
+      if (candidates.isEmpty()) {
+        continue;
+      }
+      candidatesMap.put(_newFile, candidates);
+
+      // a single removed file with the matched name need not be compared
+      if (candidates.size() == 1 && !nameMatched.isEmpty()) {
+        continue;
+      }
+      sketchFutures.put(_newFile, submitSketch(executor, _newFile));
+      for (File candidate : candidates) {
+        if (!sketchFutures.containsKey(candidate)) {
+          sketchFutures.put(candidate, submitSketch(executor, candidate));
+        }
+      }
+    }
+
+    Map<File, File> similarFiles = new HashMap<File, File>();
+    for (Map.Entry<File, List<File>> entry : candidatesMap.entrySet()) {
+      File _newFile = entry.getKey();
+      List<File> candidates = entry.getValue();
+      boolean nameMatched = nameMatchedFiles.contains(_newFile);
+      if (candidates.size() == 1 && nameMatched) {
+        similarFiles.put(_newFile, candidates.get(0));
+        continue;
+      }
+
+      MinHashSketch newFileSketch = getResult(sketchFutures.get(_newFile));
+      File mostSimilarFile = null;
+      float maxSimilarity = -1F;
+      for (File candidate : candidates) {
+        float similarity = newFileSketch.getSimilarity(getResult(sketchFutures.get(candidate)));
+        if (similarity > maxSimilarity) {
+          mostSimilarFile = candidate;
+          maxSimilarity = similarity;
+        }
+      }
+      if (nameMatched || maxSimilarity >= MIN_SIMILARITY) {
+        similarFiles.put(_newFile, mostSimilarFile);
+      }
+    }
+
+    return similarFiles;
+  }
+
+  /**
+   * Get the file name with the version numbers replaced by '#', e.g. 
+   * 'commons-io-#.jar' for 'commons-io-2.16.1.jar'.
+   * @param name the file name
+   * @return the name without version numbers
+   */
+  protected static String getVersionlessName(String name) {
+    return name.replaceAll("[0-9]+([._-][0-9]+)*", "#");
+  }
+
+  /**
+   * Get the extension of the file name in lower case.
+   * @param name the file name
+   * @return the extension, empty string if there is no extension
+   */
+  protected static String getExtension(String name) {
+    int index = name.lastIndexOf('.');
+    return index == -1 ? "" : name.substring(index + 1).toLowerCase();
+  }
+
+  /**
+   * Submit a task to {@code executor} to create the sketch of the 
+   * {@code file}.
+   * @param executor the executor to run the task
+   * @param file the file
+   * @return the future of the sketch
+   */
+  protected static Future<MinHashSketch> submitSketch(ExecutorService executor, final File file) {
+    return executor.submit(new Callable<MinHashSketch>() {
+
+      @Override
+      public MinHashSketch call() throws Exception {
+        return MinHashSketch.create(file, SKETCH_SIZE);
+      }
+    });
+  }
+
+  /**
+   * Submit a task to {@code executor} to generate the SHA-256 checksum of the 
+   * {@code file}.
+   * @param executor the executor to run the task
+   * @param file the file to generate checksum
+   * @return the future of the hex string of the checksum
+   */
+  protected static Future<String> submitSHA256(ExecutorService executor, final File file) {
+    return executor.submit(new Callable<String>() {
+
+      @Override
+      public String call() throws Exception {
+        return CommonUtil.getSHA256String(file);
+      }
+    });
+  }
+
+  /**
+   * Submit a task to {@code executor} to compare the {@code oldFile} and 
+   * {@code newFile} and compute the diff into {@code diffFile} if they are 
+   * not identical.
+   * @param executor the executor to run the task
+   * @param oldFile the old file
+   * @param newFile the new file
+   * @param diffFile the file to store the diff
+   * @param diffEncoding the encoding of the diff, GDiff is used instead if 
+   * the differ of the encoding cannot handle the files, e.g. the files are 
+   * not archives for archive
+   * @return the future of the diff result
+   */
+  protected static Future<DiffResult> submitDiff(ExecutorService executor, final File oldFile, final File newFile, final File diffFile, final DiffEncoding diffEncoding) {
+    return executor.submit(new Callable<DiffResult>() {
+
+      @Override
+      public DiffResult call() throws Exception {
+        long startTime = getCpuTime();
+        // two file are identical
+        if (CommonUtil.compareFile(oldFile, newFile)) {
+          return new DiffResult(null, null, null, null);
+        }
+
+        // get delta/diff, differ is not thread-safe
+        DiffEncoding _diffEncoding = diffEncoding;
+        Differ differ = _diffEncoding.getDiffer();
+        if (!differ.canDiff(oldFile, newFile)) {
+          _diffEncoding = DiffEncoding.GDIFF;
+          differ = _diffEncoding.getDiffer();
+        }
+        FileOutputStream fout = null;
+        try {
+          fout = new FileOutputStream(diffFile);
+          differ.diff(oldFile, newFile, fout);
+        } finally {
+          CommonUtil.closeQuietly(fout);
+        }
+
+        String name = _diffEncoding == DiffEncoding.ARCHIVE ? "archive(gdiff)" : _diffEncoding.getValue();
+        DiffResult diffResult = new DiffResult(diffFile, _diffEncoding, name, CommonUtil.getSHA256String(oldFile));
+        diffResult.setCpuTime(getCpuTime() - startTime);
+        return diffResult;
+      }
+    });
+  }
+
+  /**
+   * Compute the diffs of other encodings for the changed files and select the 
+   * smallest after compression among them, the diff in {@code diffResults} 
+   * and the new file (the 'replace' operation). The earlier one is preferred 
+   * if the lengths are equal.
+   * @param executor the executor to run the tasks
+   * @param patchFileList the changed files
+   * @param diffResults the diff results of {@code patchFileList}, the 
+   * selected results are set into it, the diff files not selected are 
+   * deleted
+   * @param tempDir the temporary folder to store the diffs
+   * @param newVersionPath the path of the folder of the new version
+   * @param diffEncoding the encoding requested, the archive candidates are 
+   * tried only if it is archive
+   * @param cpuBudget the CPU time in milliseconds allowed for each file, the 
+   * first diff and the compressed lengths are counted in it
+   * @return the reports of the changed files
+   * @throws IOException error occurred when computing the diffs
+   */
+  protected static List<DiffReport> selectDiffs(ExecutorService executor, List<OperationRecord> patchFileList, List<DiffResult> diffResults, File tempDir, String newVersionPath, DiffEncoding diffEncoding, long cpuBudget) throws IOException {
+    List<Future<Long>> diffLengthFutures = new ArrayList<Future<Long>>();
+    List<Future<Long>> replaceLengthFutures = new ArrayList<Future<Long>>();
+    List<Future<List<DiffResult>>> candidateFutures = new ArrayList<Future<List<DiffResult>>>();
+    Semaphore memoryHeavyDiffs = new Semaphore(MAX_MEMORY_HEAVY_DIFFS);
+    for (int i = 0, iEnd = patchFileList.size(); i < iEnd; i++) {
+      OperationRecord record = patchFileList.get(i);
+      DiffResult diffResult = diffResults.get(i);
+      if (diffResult.getDiffFile() == null) {
+        diffLengthFutures.add(null);
+        replaceLengthFutures.add(null);
+        candidateFutures.add(null);
+        continue;
+      }
+
+      // the compressed length of the first diff and the new file are also charged to the budget of the file
+      AtomicLong cpuTimeUsed = new AtomicLong(diffResult.getCpuTime());
+      diffLengthFutures.add(submitCompressedLength(executor, diffResult.getDiffFile(), cpuTimeUsed));
+      replaceLengthFutures.add(submitCompressedLength(executor, record.getNewFile(), cpuTimeUsed));
+
+      List<DiffCandidate> candidates = getDiffCandidates(diffEncoding == DiffEncoding.ARCHIVE);
+      List<DiffCandidate> _candidates = new ArrayList<DiffCandidate>();
+      List<File> diffFiles = new ArrayList<File>();
+      for (int j = 0, jEnd = candidates.size(); j < jEnd; j++) {
+        DiffCandidate candidate = candidates.get(j);
+        if (candidate.getName().equals(diffResult.getName())) {
+          continue;
+        }
+        _candidates.add(candidate);
+        diffFiles.add(new File(tempDir + File.separator + Integer.toString(i) + "_" + Integer.toString(j)));
+      }
+      candidateFutures.add(submitCandidateDiffs(executor, record.getOldFile(), record.getNewFile(), diffFiles, _candidates, diffResult.getOldFileSHA256(), cpuTimeUsed, cpuBudget * 1000000L, memoryHeavyDiffs));
+    }
+
+    List<DiffReport> reports = new ArrayList<DiffReport>();
+    for (int i = 0, iEnd = patchFileList.size(); i < iEnd; i++) {
+      OperationRecord record = patchFileList.get(i);
+      DiffResult diffResult = diffResults.get(i);
+      if (diffResult.getDiffFile() == null) {
+        continue;
+      }
+
+      long diffLength = getResult(diffLengthFutures.get(i));
+      long replaceLength = getResult(replaceLengthFutures.get(i));
+      String baseline = diffResult.isReplace() ? "replace" : diffResult.getName();
+      long baselineLength = diffResult.isReplace() ? replaceLength : diffLength;
+
+      DiffResult selected = diffResult;
+      long selectedLength = diffLength;
+      boolean replace = false;
+      if (replaceLength < selectedLength) {
+        selectedLength = replaceLength;
+        replace = true;
+      }
+      int tried = 2;
+      for (DiffResult candidateResult : getResult(candidateFutures.get(i))) {
+        tried++;
+        if (candidateResult.getCompressedLength() < selectedLength) {
+          if (selected != diffResult) {
+            selected.getDiffFile().delete();
+          }
+          selected = candidateResult;
+          selectedLength = candidateResult.getCompressedLength();
+          replace = false;
+        } else {
+          candidateResult.getDiffFile().delete();
+        }
+      }
+      if (selected != diffResult) {
+        diffResult.getDiffFile().delete();
+      }
+      selected.setReplace(replace);
+      diffResults.set(i, selected);
+
+      String path = record.getNewFile().getAbsolutePath().replace(newVersionPath, "").replace(File.separator, "/");
+      reports.add(new DiffReport(path, replace ? "replace" : selected.getName(), selectedLength, baseline, baselineLength, tried));
+    }
+
+    return reports;
+  }
+
+  /**
+   * Get the candidates of the diff selection, the cheaper ones first.
+   * @param archive true to include the candidates diffing the archives with 
+   * the entries uncompressed
+   * @return the candidates, every candidate has its own differ
+   */
+  protected static List<DiffCandidate> getDiffCandidates(boolean archive) {
+    List<DiffCandidate> candidates = new ArrayList<DiffCandidate>();
+    candidates.add(new DiffCandidate(DiffEncoding.GDIFF.getValue(), DiffEncoding.GDIFF, new GDiffDiffer(), false));
+    for (int chunkSize : new int[]{8, 32, 64}) {
+      candidates.add(new DiffCandidate(String.format("gdiff(%1$d)", chunkSize), DiffEncoding.GDIFF, new GDiffDiffer(chunkSize), false));
+    }
+    candidates.add(new DiffCandidate(DiffEncoding.TEXT.getValue(), DiffEncoding.TEXT, new TextDiffer(), true));
+    if (archive) {
+      candidates.add(new DiffCandidate("archive(gdiff)", DiffEncoding.ARCHIVE, new ArchiveDiffer(DiffEncoding.GDIFF), true));
+    }
+    candidates.add(new DiffCandidate(DiffEncoding.SUFFIX_ARRAY.getValue(), DiffEncoding.SUFFIX_ARRAY, new SuffixArrayDiffer(), true));
+    if (archive) {
+      candidates.add(new DiffCandidate("archive(sadiff)", DiffEncoding.ARCHIVE, new ArchiveDiffer(DiffEncoding.SUFFIX_ARRAY), true));
+    }
+    return candidates;
+  }
+
+  /**
+   * Submit a task to {@code executor} to compute the diffs of the 
+   * {@code candidates} one after another, the cheaper ones first. The CPU 
+   * time of every diff is counted when it finishes, and the remaining 
+   * candidates are skipped once {@code cpuTimeBudget} is used up. The diff 
+   * that is running when the budget is used up is not stopped, so the budget 
+   * can be exceeded by at most one diff.
+   * @param executor the executor to run the task
+   * @param oldFile the old file
+   * @param newFile the new file
+   * @param diffFiles the files to store the diffs of {@code candidates}
+   * @param candidates the candidates
+   * @param oldFileSHA256 the SHA-256 checksum of the old file
+   * @param cpuTimeUsed the CPU time in nanoseconds used for the file, shared 
+   * with the tasks getting the compressed lengths of the file, the CPU time 
+   * of the candidates is added to it
+   * @param cpuTimeBudget the CPU time in nanoseconds allowed for the file
+   * @param memoryHeavyDiffs the permits to acquire before computing the diff 
+   * of a memory heavy candidate
+   * @return the future of the results of the candidates computed, 
+   * the candidates that cannot diff the files or are skipped are not included
+   */
+  protected static Future<List<DiffResult>> submitCandidateDiffs(ExecutorService executor, final File oldFile, final File newFile, final List<File> diffFiles, final List<DiffCandidate> candidates, final String oldFileSHA256, final AtomicLong cpuTimeUsed, final long cpuTimeBudget, final Semaphore memoryHeavyDiffs) {
+    return executor.submit(new Callable<List<DiffResult>>() {
+
+      @Override
+      public List<DiffResult> call() throws Exception {
+        List<DiffResult> results = new ArrayList<DiffResult>();
+        for (int i = 0, iEnd = candidates.size(); i < iEnd && cpuTimeUsed.get() < cpuTimeBudget; i++) {
+          DiffCandidate candidate = candidates.get(i);
+          File diffFile = diffFiles.get(i);
+          Differ differ = candidate.getDiffer();
+          boolean acquired = false;
+          long startTime = getCpuTime();
+          try {
+            if (!differ.canDiff(oldFile, newFile)) {
+              continue;
+            }
+            if (candidate.isMemoryHeavy()) {
+              memoryHeavyDiffs.acquire();
+              acquired = true;
+            }
+
+            FileOutputStream fout = null;
+            try {
+              fout = new FileOutputStream(diffFile);
+              differ.diff(oldFile, newFile, fout);
+            } finally {
+              CommonUtil.closeQuietly(fout);
+            }
+
+            DiffResult diffResult = new DiffResult(diffFile, candidate.getDiffEncoding(), candidate.getName(), oldFileSHA256);
+            diffResult.setCompressedLength(getCompressedLength(diffFile));
+            results.add(diffResult);
+          } finally {
+            cpuTimeUsed.addAndGet(getCpuTime() - startTime);
+            if (acquired) {
+              memoryHeavyDiffs.release();
+            }
+          }
+        }
+        return results;
+      }
+    });
+  }
+
+  /**
+   * Submit a task to {@code executor} to get the length of the {@code file} 
+   * after compression.
+   * @param executor the executor to run the task
+   * @param file the file
+   * @param cpuTimeUsed the CPU time in nanoseconds used for the file, the CPU 
+   * time of the compression is added to it
+   * @return the future of the compressed length
+   */
+  protected static Future<Long> submitCompressedLength(ExecutorService executor, final File file, final AtomicLong cpuTimeUsed) {
+    return executor.submit(new Callable<Long>() {
+
+      @Override
+      public Long call() throws Exception {
+        long startTime = getCpuTime();
+        try {
+          return getCompressedLength(file);
+        } finally {
+          cpuTimeUsed.addAndGet(getCpuTime() - startTime);
+        }
+      }
+    });
+  }
+
+  /**
+   * Get the length of the {@code file} after compressed by LZMA2, the 
+   * compression used by the patch.
+   * @param file the file
+   * @return the compressed length
+   * @throws IOException error occurred when reading the file
+   */
+  protected static long getCompressedLength(File file) throws IOException {
+    final long[] compressedLength = new long[1];
+    OutputStream countOut = new OutputStream() {
+
+      @Override
+      public void write(int b) {
+        compressedLength[0]++;
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        compressedLength[0] += len;
+      }
+    };
+
+    FileInputStream fin = null;
+    try {
+      fin = new FileInputStream(file);
+
+      LZMA2Options options = new LZMA2Options();
+      options.setDictSize((int) Math.max(LZMA2Options.DICT_SIZE_MIN, Math.min(file.length(), options.getDictSize())));
+      XZOutputStream xzOut = new XZOutputStream(countOut, options);
+      byte[] buf = new byte[32768];
+      int byteRead;
+      while ((byteRead = fin.read(buf)) != -1) {
+        xzOut.write(buf, 0, byteRead);
+      }
       xzOut.finish();
     } finally {
-      CommonUtil.closeQuietly(fout);
+      CommonUtil.closeQuietly(fin);
     }
 
+    return compressedLength[0];
+  }
 
-    // encryption
-    if (aesKey != null) {
-      PatchWriteUtil.encrypt(aesKey, null, patch, tempFileForEncryption);
+  /**
+   * Get the CPU time of the current thread, or the wall-clock time if not 
+   * supported.
+   * @return the time in nanoseconds
+   */
+  protected static long getCpuTime() {
+    ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    if (threadMXBean.isCurrentThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled()) {
+      return threadMXBean.getCurrentThreadCpuTime();
+    }
+    return System.nanoTime();
+  }
 
-      patch.delete();
-      tempFileForEncryption.renameTo(patch);
+  /**
+   * Wait for and get the result of the {@code future}.
+   * @param <T> the type of the result
+   * @param future the future
+   * @return the result
+   * @throws IOException error occurred when executing the task or the 
+   * current thread is interrupted when waiting
+   */
+  protected static <T> T getResult(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted when waiting for the result of the task.");
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof IOException) {
+        throw (IOException) ex.getCause();
+      }
+      throw new IOException(ex.getCause());
     }
   }
 
@@ -544,6 +1392,162 @@ public class PatchCreator {
     });
   }
 
+  /**
+   * The result of comparing and computing diff of a pair of file.
+   */
+  protected static class DiffResult {
+
+    /**
+     * The diff file, null if the two file are identical.
+     */
+    protected File diffFile;
+    /**
+     * The encoding of the diff, null if the two file are identical.
+     */
+    protected DiffEncoding diffEncoding;
+    /**
+     * The name of the encoding used in {@link DiffReport}, e.g. 'gdiff(32)'.
+     */
+    protected String name;
+    /**
+     * The SHA-256 checksum of the old file, null if the two file are identical.
+     */
+    protected String oldFileSHA256;
+    /**
+     * True to use the 'replace' operation instead of the diff.
+     */
+    protected boolean replace;
+    /**
+     * The length of the diff after compression, -1 if not computed.
+     */
+    protected long compressedLength;
+    /**
+     * The CPU time in nanoseconds used to compute the diff.
+     */
+    protected long cpuTime;
+
+    /**
+     * Constructor.
+     * @param diffFile the diff file, null if the two file are identical
+     * @param diffEncoding the encoding of the diff
+     * @param name the name of the encoding
+     * @param oldFileSHA256 the SHA-256 checksum of the old file
+     */
+    protected DiffResult(File diffFile, DiffEncoding diffEncoding, String name, String oldFileSHA256) {
+      this.diffFile = diffFile;
+      this.diffEncoding = diffEncoding;
+      this.name = name;
+      this.oldFileSHA256 = oldFileSHA256;
+      this.replace = false;
+      this.compressedLength = -1;
+      this.cpuTime = 0;
+    }
+
+    /**
+     * Get the diff file.
+     * @return the diff file, null if the two file are identical
+     */
+    public File getDiffFile() {
+      return diffFile;
+    }
+
+    /**
+     * Get the encoding of the diff.
+     * @return the encoding
+     */
+    public DiffEncoding getDiffEncoding() {
+      return diffEncoding;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public boolean isReplace() {
+      return replace;
+    }
+
+    public void setReplace(boolean replace) {
+      this.replace = replace;
+    }
+
+    public long getCompressedLength() {
+      return compressedLength;
+    }
+
+    public void setCompressedLength(long compressedLength) {
+      this.compressedLength = compressedLength;
+    }
+
+    public long getCpuTime() {
+      return cpuTime;
+    }
+
+    public void setCpuTime(long cpuTime) {
+      this.cpuTime = cpuTime;
+    }
+
+    /**
+     * Get the SHA-256 checksum of the old file.
+     * @return the hex string of the checksum
+     */
+    public String getOldFileSHA256() {
+      return oldFileSHA256;
+    }
+  }
+
+  /**
+   * The candidate encoding of the diff selection.
+   */
+  protected static class DiffCandidate {
+
+    /**
+     * The name used in {@link DiffReport}.
+     */
+    protected String name;
+    /**
+     * The encoding recorded in the operation.
+     */
+    protected DiffEncoding diffEncoding;
+    protected Differ differ;
+    /**
+     * Whether the differ keeps a large part of the files in memory, e.g. the 
+     * suffix array or the inflated archive entries.
+     */
+    protected boolean memoryHeavy;
+
+    /**
+     * Constructor.
+     * @param name the name used in {@link DiffReport}
+     * @param diffEncoding the encoding recorded in the operation
+     * @param differ the differ
+     * @param memoryHeavy whether the differ keeps a large part of the files in 
+     * memory
+     */
+    protected DiffCandidate(String name, DiffEncoding diffEncoding, Differ differ, boolean memoryHeavy) {
+      this.name = name;
+      this.diffEncoding = diffEncoding;
+      this.differ = differ;
+      this.memoryHeavy = memoryHeavy;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public DiffEncoding getDiffEncoding() {
+      return diffEncoding;
+    }
+
+    public Differ getDiffer() {
+      return differ;
+    }
+
+    public boolean isMemoryHeavy() {
+      return memoryHeavy;
+    }
+  }
+
   /**
    * The temporary record used when creating the patch.
    */
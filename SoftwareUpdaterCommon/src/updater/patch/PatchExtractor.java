@@ -28,6 +28,7 @@ import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.xml.transform.TransformerException;
+import updater.crypto.AESDecryptInputStream;
 import updater.crypto.AESKey;
 import updater.script.InvalidFormatException;
 import updater.script.Patch;
@@ -50,8 +51,8 @@ public class PatchExtractor {
    * @param patchFile the patch file
    * @param saveToFolder where to save the extracted patch file
    * @param aesKey the cipher key, null means no encryption used
-   * @param tempFileForDecryption if {@code aesKey} is specified, this should 
-   * be provided to store the temporary decrypted file
+   * @param tempFileForDecryption not used, the patch is decrypted while 
+   * reading
    * @throws IOException error occurred when extracting
    * @throws InvalidFormatException the format of the patch XML in the patch 
    * is invalid
@@ -63,12 +64,6 @@ public class PatchExtractor {
     if (saveToFolder == null) {
       throw new NullPointerException("argument 'saveToFolder' cannot be null");
     }
-    if (aesKey != null && tempFileForDecryption == null) {
-      throw new NullPointerException("argument 'tempFileForDecryption' cannot be null while argument 'aesKey' is not null");
-    }
-
-    File _patchFile = patchFile;
-    boolean deletePatch = false;
 
     if (!saveToFolder.isDirectory() && !saveToFolder.exists()) {
       saveToFolder.mkdirs();
@@ -77,21 +72,24 @@ public class PatchExtractor {
       throw new IOException("Please specify a valid folder 'saveToFolder'.");
     }
 
-    if (aesKey != null) {
-      PatchReadUtil.decrypt(aesKey, null, patchFile, tempFileForDecryption);
-
-      _patchFile = tempFileForDecryption;
-      _patchFile.deleteOnExit();
-      deletePatch = true;
-    }
-
-    FileInputStream in = null;
+    InputStream in = null;
+    IndexedPatchReader indexedPatch = null;
     try {
-      in = new FileInputStream(_patchFile);
+      InputStream decompressedIn = null;
+      Patch patchXML;
+      if (IndexedPatchReader.isIndexedPatch(patchFile, aesKey)) {
+        indexedPatch = new IndexedPatchReader(patchFile, aesKey);
+        patchXML = indexedPatch.readXML();
+      } else {
+        in = new FileInputStream(patchFile);
+        if (aesKey != null) {
+          in = new AESDecryptInputStream(in, PatchReadUtil.getCipher(aesKey));
+        }
 
-      PatchReadUtil.readHeader(in);
-      InputStream decompressedIn = PatchReadUtil.readCompressionMethod(in);
-      Patch patchXML = PatchReadUtil.readXML(decompressedIn);
+        PatchReadUtil.readHeader(in);
+        decompressedIn = PatchReadUtil.readCompressionMethod(in);
+        patchXML = PatchReadUtil.readXML(decompressedIn);
+      }
 
       CommonUtil.writeFile(new File(saveToFolder.getAbsolutePath() + File.separator + "patch.xml"), patchXML.output());
 
@@ -99,7 +97,17 @@ public class PatchExtractor {
       List<Operation> operations = patchXML.getOperations();
       for (Operation operation : operations) {
         if (operation.getPatchLength() > 0) {
-          PatchReadUtil.readToFile(new File(saveToFolder.getAbsolutePath() + File.separator + id), decompressedIn, operation.getPatchLength());
+          File saveTo = new File(saveToFolder.getAbsolutePath() + File.separator + id);
+          if (indexedPatch != null) {
+            InputStream operationIn = indexedPatch.getPatchInputStream(operation);
+            try {
+              PatchReadUtil.readToFile(saveTo, operationIn, operation.getPatchLength());
+            } finally {
+              CommonUtil.closeQuietly(operationIn);
+            }
+          } else {
+            PatchReadUtil.readToFile(saveTo, decompressedIn, operation.getPatchLength());
+          }
         }
         id++;
       }
@@ -107,9 +115,7 @@ public class PatchExtractor {
       LOG.log(Level.SEVERE, null, ex);
     } finally {
       CommonUtil.closeQuietly(in);
-      if (deletePatch) {
-        _patchFile.delete();
-      }
+      CommonUtil.closeQuietly(indexedPatch);
     }
   }
 }
@@ -0,0 +1,470 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import updater.script.InvalidFormatException;
+import updater.script.Patch;
+import updater.script.Patch.Operation;
+import updater.script.Patch.ValidationFile;
+import updater.util.CommonUtil;
+
+/**
+ * The binary manifest of the patch, an alternative to the patch XML that is 
+ * smaller and faster to read, and not limited to 16MiB.
+ * <pre>
+ * version       1 byte, {@link #VERSION}
+ * header        id, type, version-from, version-from-subsequent, 
+ *               version-to, download url, checksum, length, encryption 
+ *               type, key, IV, then the chunk checksums
+ * operations    number of operations, then every operation
+ * validations   number of validation files, then every validation file
+ * </pre>
+ * <p>
+ * Integers are written as varints, zigzag-encoded if they can be negative. 
+ * Strings are written as the varint length plus one (0 for null) followed 
+ * by the UTF-8 bytes. SHA-256 checksums are written as the raw 32-byte 
+ * digest. File paths are written as the number of leading UTF-8 bytes shared 
+ * with the previous path followed by the remaining bytes. The id and patch 
+ * position of the operations are written as the difference from the 
+ * expected value.
+ * </p>
+ * @see PatchWriteUtil#writeManifest(java.io.OutputStream, byte[])
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class PatchManifest {
+
+  /**
+   * The format version of the manifest.
+   */
+  public static final int VERSION = 2;
+  /**
+   * Checksum types.
+   */
+  protected static final int CHECKSUM_NULL = 0;
+  protected static final int CHECKSUM_SHA256 = 1;
+  protected static final int CHECKSUM_STRING = 2;
+
+  protected PatchManifest() {
+  }
+
+  /**
+   * Encode the patch into manifest.
+   * @param patch the patch
+   * @return the manifest
+   */
+  public static byte[] output(Patch patch) {
+    if (patch == null) {
+      throw new NullPointerException("argument 'patch' cannot be null");
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(VERSION);
+
+    writeInt(out, patch.getId());
+    writeString(out, patch.getType());
+    writeString(out, patch.getVersionFrom());
+    writeString(out, patch.getVersionFromSubsequent());
+    writeString(out, patch.getVersionTo());
+    writeString(out, patch.getDownloadUrl());
+    writeChecksum(out, patch.getDownloadChecksum());
+    writeInt(out, patch.getDownloadLength());
+    writeString(out, patch.getDownloadEncryptionType());
+    writeString(out, patch.getDownloadEncryptionKey());
+    writeString(out, patch.getDownloadEncryptionIV());
+    List<String> downloadChunkChecksums = patch.getDownloadChunkChecksums();
+    if (downloadChunkChecksums == null) {
+      writeVarint(out, 0);
+    } else {
+      writeVarint(out, downloadChunkChecksums.size() + 1);
+      writeInt(out, patch.getDownloadChunkLength());
+      for (String checksum : downloadChunkChecksums) {
+        writeChecksum(out, checksum);
+      }
+    }
+
+    List<Operation> operations = patch.getOperations();
+    writeVarint(out, operations.size());
+    int lastId = 0, expectedPatchPos = 0;
+    byte[] lastPath = new byte[0];
+    for (Operation operation : operations) {
+      writeInt(out, operation.getId() - (lastId + 1));
+      writeString(out, operation.getType());
+      writeInt(out, operation.getPatchPos() - expectedPatchPos);
+      writeInt(out, operation.getPatchLength());
+      writeString(out, operation.getPatchEncoding());
+      writeString(out, operation.getFileType());
+      lastPath = writePath(out, operation.getDestFilePath(), lastPath);
+      writeString(out, operation.getSourceFilePath());
+      writeChecksum(out, operation.getOldFileChecksum());
+      writeInt(out, operation.getOldFileLength());
+      writeChecksum(out, operation.getNewFileChecksum());
+      writeInt(out, operation.getNewFileLength());
+
+      lastId = operation.getId();
+      expectedPatchPos = operation.getPatchPos() + operation.getPatchLength();
+    }
+
+    List<ValidationFile> validations = patch.getValidations();
+    writeVarint(out, validations.size());
+    lastPath = new byte[0];
+    for (ValidationFile validation : validations) {
+      lastPath = writePath(out, validation.getFilePath(), lastPath);
+      writeChecksum(out, validation.getFileChecksum());
+      writeInt(out, validation.getFileLength());
+    }
+
+    return out.toByteArray();
+  }
+
+  /**
+   * Decode the manifest.
+   * @param content the manifest
+   * @return the patch
+   * @throws InvalidFormatException the format of the manifest is invalid
+   */
+  public static Patch read(byte[] content) throws InvalidFormatException {
+    StreamReader reader = new StreamReader(content);
+    try {
+      return reader.readAll();
+    } finally {
+      reader.close();
+    }
+  }
+
+  protected static void writeVarint(ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7fL) != 0) {
+      out.write((int) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  protected static void writeInt(ByteArrayOutputStream out, int value) {
+    writeVarint(out, ((value << 1) ^ (value >> 31)) & 0xffffffffL);
+  }
+
+  protected static void writeBytes(ByteArrayOutputStream out, byte[] b, int off) {
+    writeVarint(out, b.length - off + 1);
+    out.write(b, off, b.length - off);
+  }
+
+  protected static void writeString(ByteArrayOutputStream out, String value) {
+    if (value == null) {
+      writeVarint(out, 0);
+      return;
+    }
+    writeBytes(out, getBytes(value), 0);
+  }
+
+  protected static void writeChecksum(ByteArrayOutputStream out, String checksum) {
+    if (checksum == null) {
+      writeVarint(out, CHECKSUM_NULL);
+    } else if (isSHA256String(checksum)) {
+      writeVarint(out, CHECKSUM_SHA256);
+      out.write(CommonUtil.hexStringToByteArray(checksum), 0, 32);
+    } else {
+      writeVarint(out, CHECKSUM_STRING);
+      writeString(out, checksum);
+    }
+  }
+
+  /**
+   * Write the path prefix-compressed against {@code lastPath}.
+   * @return the UTF-8 bytes of {@code path}, or {@code lastPath} if 
+   * {@code path} is null
+   */
+  protected static byte[] writePath(ByteArrayOutputStream out, String path, byte[] lastPath) {
+    if (path == null) {
+      writeVarint(out, 0);
+      writeVarint(out, 0);
+      return lastPath;
+    }
+
+    byte[] pathBytes = getBytes(path);
+    int shared = 0;
+    for (int iEnd = Math.min(pathBytes.length, lastPath.length); shared < iEnd && pathBytes[shared] == lastPath[shared]; shared++) {
+    }
+    writeVarint(out, shared);
+    writeBytes(out, pathBytes, shared);
+    return pathBytes;
+  }
+
+  /**
+   * Check if the checksum is the lower-case hex string of SHA-256 digest, 
+   * which is what {@link CommonUtil#getSHA256String(java.io.File)} returns.
+   */
+  protected static boolean isSHA256String(String checksum) {
+    if (checksum.length() != 64) {
+      return false;
+    }
+    for (int i = 0; i < 64; i++) {
+      char c = checksum.charAt(i);
+      if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  protected static byte[] getBytes(String value) {
+    try {
+      return value.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException ex) {
+      // should not happen
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /**
+   * Read the manifest with the operations and validations left unread, they 
+   * are decoded one by one when requested.
+   */
+  public static class StreamReader extends Patch.StreamReader {
+
+    protected final byte[] content;
+    protected int position;
+    protected int version;
+    protected int operationCount;
+    protected int remainingOperations;
+    protected int remainingValidations;
+    protected int lastId;
+    protected int expectedPatchPos;
+    protected byte[] lastPath;
+
+    /**
+     * Constructor.
+     * @param content the manifest
+     * @throws InvalidFormatException the format of the manifest is invalid
+     */
+    public StreamReader(byte[] content) throws InvalidFormatException {
+      super(new Patch(0, null, null, null, null, null, null, -1, null, null, null, null, null));
+      if (content == null) {
+        throw new NullPointerException("argument 'content' cannot be null");
+      }
+      this.content = content;
+      position = 0;
+
+      version = readByte();
+      if (version < 1 || version > VERSION) {
+        throw new InvalidFormatException("Manifest version not supported.");
+      }
+
+      patch.setId(readInt());
+      patch.setType(readString());
+      patch.setVersionFrom(readString());
+      patch.setVersionFromSubsequent(readString());
+      patch.setVersionTo(readString());
+      patch.setDownloadUrl(readString());
+      patch.setDownloadChecksum(readChecksum());
+      patch.setDownloadLength(readInt());
+      patch.setDownloadEncryptionType(readString());
+      patch.setDownloadEncryptionKey(readString());
+      patch.setDownloadEncryptionIV(readString());
+      int downloadChunkCount = readCount() - 1;
+      if (downloadChunkCount >= 0) {
+        int downloadChunkLength = readInt();
+        List<String> downloadChunkChecksums = new ArrayList<String>(downloadChunkCount);
+        for (int i = 0; i < downloadChunkCount; i++) {
+          downloadChunkChecksums.add(readChecksum());
+        }
+        patch.setDownloadChunkChecksums(downloadChunkLength, downloadChunkChecksums);
+      }
+
+      operationCount = readCount();
+      remainingOperations = operationCount;
+      remainingValidations = -1;
+      inOperations = true;
+      inValidations = true;
+      lastId = 0;
+      expectedPatchPos = 0;
+      lastPath = new byte[0];
+    }
+
+    @Override
+    public int countOperations() {
+      return operationCount;
+    }
+
+    @Override
+    public Operation nextOperation() throws InvalidFormatException {
+      if (remainingOperations <= 0) {
+        inOperations = false;
+        return null;
+      }
+      remainingOperations--;
+
+      int id = lastId + 1 + readInt();
+      String type = readString();
+      int patchPos = expectedPatchPos + readInt();
+      int patchLength = readInt();
+      String patchEncoding = readString();
+      String fileType = readString();
+      String destFilePath = readPath();
+      // version 1 has no source path
+      String sourceFilePath = version >= 2 ? readString() : null;
+      String oldFileChecksum = readChecksum();
+      int oldFileLength = readInt();
+      String newFileChecksum = readChecksum();
+      int newFileLength = readInt();
+
+      lastId = id;
+      expectedPatchPos = patchPos + patchLength;
+      Operation operation = new Operation(id, type, patchPos, patchLength, fileType, destFilePath, oldFileChecksum, oldFileLength, newFileChecksum, newFileLength);
+      operation.setPatchEncoding(patchEncoding);
+      operation.setSourceFilePath(sourceFilePath);
+      return operation;
+    }
+
+    @Override
+    public ValidationFile nextValidation() throws InvalidFormatException {
+      while (nextOperation() != null) {
+      }
+      if (remainingValidations == -1) {
+        remainingValidations = readCount();
+        lastPath = new byte[0];
+      }
+      if (remainingValidations == 0) {
+        inValidations = false;
+        return null;
+      }
+      remainingValidations--;
+
+      String filePath = readPath();
+      String fileChecksum = readChecksum();
+      int fileLength = readInt();
+      return new ValidationFile(filePath, fileChecksum, fileLength);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    protected int readByte() throws InvalidFormatException {
+      if (position >= content.length) {
+        throw new InvalidFormatException("Manifest is truncated.");
+      }
+      return content[position++] & 0xff;
+    }
+
+    protected long readVarint() throws InvalidFormatException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = readByte();
+        value |= (long) (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new InvalidFormatException("Invalid varint in manifest.");
+    }
+
+    protected int readInt() throws InvalidFormatException {
+      long value = readVarint();
+      if (value > 0xffffffffL) {
+        throw new InvalidFormatException("Invalid integer in manifest.");
+      }
+      int n = (int) value;
+      return (n >>> 1) ^ -(n & 1);
+    }
+
+    /**
+     * Read a count or length, which must not exceed the remaining content.
+     */
+    protected int readCount() throws InvalidFormatException {
+      long value = readVarint();
+      if (value > content.length - position + 1) {
+        throw new InvalidFormatException("Invalid length in manifest.");
+      }
+      return (int) value;
+    }
+
+    /**
+     * @return the bytes read, null if the string is null
+     */
+    protected byte[] readBytes() throws InvalidFormatException {
+      int length = readCount() - 1;
+      if (length == -1) {
+        return null;
+      }
+      if (length > content.length - position) {
+        throw new InvalidFormatException("Manifest is truncated.");
+      }
+      byte[] b = new byte[length];
+      System.arraycopy(content, position, b, 0, length);
+      position += length;
+      return b;
+    }
+
+    protected String readString() throws InvalidFormatException {
+      byte[] b = readBytes();
+      return b != null ? toString(b) : null;
+    }
+
+    protected String readChecksum() throws InvalidFormatException {
+      int checksumType = (int) readVarint();
+      switch (checksumType) {
+        case CHECKSUM_NULL:
+          return null;
+        case CHECKSUM_SHA256:
+          if (content.length - position < 32) {
+            throw new InvalidFormatException("Manifest is truncated.");
+          }
+          byte[] digest = new byte[32];
+          System.arraycopy(content, position, digest, 0, 32);
+          position += 32;
+          return CommonUtil.byteArrayToHexString(digest);
+        case CHECKSUM_STRING:
+          return readString();
+        default:
+          throw new InvalidFormatException(String.format("Invalid checksum type in manifest: %1$d", checksumType));
+      }
+    }
+
+    protected String readPath() throws InvalidFormatException {
+      int shared = readCount();
+      byte[] suffix = readBytes();
+      if (suffix == null) {
+        return null;
+      }
+      if (shared > lastPath.length) {
+        throw new InvalidFormatException("Invalid path in manifest.");
+      }
+      byte[] path = new byte[shared + suffix.length];
+      System.arraycopy(lastPath, 0, path, 0, shared);
+      System.arraycopy(suffix, 0, path, shared, suffix.length);
+      lastPath = path;
+      return toString(path);
+    }
+
+    protected static String toString(byte[] b) {
+      try {
+        return new String(b, "UTF-8");
+      } catch (UnsupportedEncodingException ex) {
+        // should not happen
+        throw new RuntimeException(ex);
+      }
+    }
+  }
+}
@@ -21,11 +21,8 @@
 package updater.patch;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.List;
-import javax.xml.transform.TransformerException;
-import org.tukaani.xz.XZOutputStream;
 import updater.crypto.AESKey;
 import updater.script.InvalidFormatException;
 import updater.script.Patch;
@@ -53,6 +50,23 @@ public class PatchPacker {
    * is invalid
    */
   public static void pack(File sourceFolder, File saveToFile, AESKey aesKey, File tempFileForEncryption) throws IOException, InvalidFormatException {
+    pack(sourceFolder, saveToFile, aesKey, tempFileForEncryption, false);
+  }
+
+  /**
+   * Pack the patch from the folder.
+   * @param sourceFolder the folder that store the patch data to be pack
+   * @param saveToFile the place to store the packed patch
+   * @param aesKey the cipher key, null means don't use encryption
+   * @param tempFileForEncryption if {@code aesKey} is specified, this should 
+   * be provided to store the temporary encrypted file
+   * @param binaryManifest true to write the patch script as binary manifest 
+   * instead of XML, see {@link PatchManifest}
+   * @throws IOException error occurred when packing
+   * @throws InvalidFormatException the format of the patch XML in the patch 
+   * is invalid
+   */
+  public static void pack(File sourceFolder, File saveToFile, AESKey aesKey, File tempFileForEncryption, boolean binaryManifest) throws IOException, InvalidFormatException {
     if (sourceFolder == null) {
       throw new NullPointerException("argument 'sourceFolder' cannot be null");
     }
@@ -72,24 +86,17 @@ public class PatchPacker {
 
     String sourceFolderPath = sourceFolder.getAbsolutePath();
 
-    FileOutputStream fout = null;
+    IndexedPatchWriter patchOut = null;
     try {
-      fout = new FileOutputStream(saveToFile);
-
-      PatchWriteUtil.writeHeader(fout);
-      XZOutputStream xzOut = (XZOutputStream) PatchWriteUtil.writeCompressionMethod(fout, Compression.LZMA2);
-      try {
-        PatchWriteUtil.writeXML(xzOut, patch.output());
-      } catch (TransformerException ex) {
-        throw new IOException("patch.xml format invalid: " + ex.getMessage());
-      }
+      patchOut = new IndexedPatchWriter(saveToFile, Compression.LZMA2);
+      patchOut.writeScript(patch, binaryManifest);
 
       int operationIdCounter = 1;
       List<Operation> operations = patch.getOperations();
       for (Operation operation : operations) {
         if (operation.getPatchLength() > 0) {
           try {
-            PatchWriteUtil.writePatch(new File(sourceFolderPath + File.separator + operationIdCounter), xzOut);
+            patchOut.writePatch(new File(sourceFolderPath + File.separator + operationIdCounter));
           } catch (IOException ex) {
             throw new IOException("Error occurred when packing patches: " + ex.getMessage());
           }
@@ -97,16 +104,9 @@ public class PatchPacker {
         operationIdCounter++;
       }
 
-      xzOut.finish();
+      patchOut.finish();
     } finally {
-      CommonUtil.closeQuietly(fout);
-    }
-
-    if (aesKey != null) {
-      PatchWriteUtil.encrypt(aesKey, null, saveToFile, tempFileForEncryption);
-
-      saveToFile.delete();
-      tempFileForEncryption.renameTo(saveToFile);
+      CommonUtil.closeQuietly(patchOut);
     }
   }
 }
@@ -26,11 +26,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.zip.GZIPInputStream;
 import org.tukaani.xz.XZInputStream;
+import updater.crypto.AESBlockCipher;
 import updater.crypto.AESKey;
+import updater.crypto.FastAESForFile;
 import updater.script.InvalidFormatException;
 import updater.script.Patch;
 import updater.util.CommonUtil;
-import watne.seis720.project.AESForFile;
 import watne.seis720.project.AESForFileListener;
 import watne.seis720.project.KeySize;
 import watne.seis720.project.Mode;
@@ -96,28 +97,72 @@ public class PatchReadUtil {
   }
 
   /**
-   * Read the XML from the stream.
+   * Read the XML, or the binary manifest, from the stream.
    * @param in the stream to read
    * @return the XML read
    * @throws IOException error occurred when reading
    * @throws InvalidFormatException the format of the XML read is incorrect
    */
   public static Patch readXML(InputStream in) throws IOException, InvalidFormatException {
+    Patch.StreamReader reader = openXML(in);
+    try {
+      return reader.readAll();
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Read the XML, or the binary manifest, from the stream but leave the 
+   * operations and validations unread, see 
+   * {@link updater.script.Patch.StreamReader}.
+   * @param in the stream to read
+   * @return the reader of the XML read
+   * @throws IOException error occurred when reading
+   * @throws InvalidFormatException the format of the XML read is incorrect
+   */
+  public static Patch.StreamReader openXML(InputStream in) throws IOException, InvalidFormatException {
     if (in == null) {
       throw new NullPointerException("argument 'in' cannot be null");
     }
 
-    byte[] buf = new byte[3];
-    if (in.read(buf, 0, 3) != 3) {
-      throw new IOException("Reach the end of stream.");
+    byte[] buf = readFully(in, 3);
+    int xmlLength = ((buf[0] & 0xff) << 16) | ((buf[1] & 0xff) << 8) | (buf[2] & 0xff);
+    if (xmlLength != 0) {
+      return new Patch.StreamReader(readFully(in, xmlLength));
     }
 
-    int xmlLength = ((buf[0] & 0xff) << 16) | ((buf[1] & 0xff) << 8) | (buf[2] & 0xff);
-    byte[] xmlData = new byte[xmlLength];
-    if (in.read(xmlData) != xmlLength) {
-      throw new IOException("Reach the end of stream.");
+    // binary manifest, see PatchWriteUtil#writeManifest
+    int manifestLength = 0;
+    for (int shift = 0;; shift += 7) {
+      int b = in.read();
+      if (b == -1) {
+        throw new IOException("Reach the end of stream.");
+      }
+      if (shift > 28) {
+        throw new IOException("Invalid length of the manifest.");
+      }
+      manifestLength |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        break;
+      }
+    }
+    if (manifestLength < 0) {
+      throw new IOException("Invalid length of the manifest.");
+    }
+    return new PatchManifest.StreamReader(readFully(in, manifestLength));
+  }
+
+  protected static byte[] readFully(InputStream in, int length) throws IOException {
+    byte[] data = new byte[length];
+    // decompressing stream may return less than requested
+    for (int byteRead, cumulativeByteRead = 0; cumulativeByteRead < length; cumulativeByteRead += byteRead) {
+      byteRead = in.read(data, cumulativeByteRead, length - cumulativeByteRead);
+      if (byteRead == -1) {
+        throw new IOException("Reach the end of stream.");
+      }
     }
-    return Patch.read(xmlData);
+    return data;
   }
 
   /**
@@ -161,6 +206,20 @@ public class PatchReadUtil {
     }
   }
 
+  /**
+   * Get the block cipher of the patch encryption. Decrypting with it by 
+   * {@link updater.crypto.AESDecryptInputStream} gives the same result as 
+   * {@link #decrypt(AESKey, AESForFileListener, File, File)}.
+   * @param aesKey the cipher key to use
+   * @return the block cipher
+   */
+  public static AESBlockCipher getCipher(AESKey aesKey) {
+    if (aesKey == null) {
+      throw new NullPointerException("argument 'aesKey' cannot be null");
+    }
+    return new AESBlockCipher(aesKey.getKey(), KeySize.BITS256.getNumRounds());
+  }
+
   /**
    * Decrypt the {@code patchFile} and save to {@code decryptTo}.
    * @param aesKey the cipher key to use
@@ -183,10 +242,11 @@ public class PatchReadUtil {
     decryptTo.delete();
 
     try {
-      AESForFile aesCipher = new AESForFile();
+      FastAESForFile aesCipher = new FastAESForFile();
       if (listener != null) {
         aesCipher.setListener(listener);
       }
+      aesCipher.setThreads(Runtime.getRuntime().availableProcessors());
       aesCipher.setMode(Mode.CBC);
       aesCipher.setPadding(Padding.PKCS5PADDING);
       aesCipher.setKeySize(KeySize.BITS256);
@@ -28,6 +28,7 @@ import java.util.zip.GZIPOutputStream;
 import org.tukaani.xz.LZMA2Options;
 import org.tukaani.xz.XZOutputStream;
 import updater.crypto.AESKey;
+import updater.crypto.FastAESForFile;
 import updater.util.CommonUtil;
 import watne.seis720.project.AESForFile;
 import watne.seis720.project.AESForFileListener;
@@ -41,6 +42,11 @@ import watne.seis720.project.Padding;
  */
 public class PatchWriteUtil {
 
+  /**
+   * The maximum length of the patch XML, limited by the 3-byte length.
+   */
+  public static final int MAX_XML_LENGTH = 0xffffff;
+
   protected PatchWriteUtil() {
   }
 
@@ -104,6 +110,9 @@ public class PatchWriteUtil {
     }
 
     int contentLength = content.length;
+    if (contentLength == 0 || contentLength > MAX_XML_LENGTH) {
+      throw new IOException(String.format("The length of the patch XML should be between 1 and %1$d, length: %2$d", MAX_XML_LENGTH, contentLength));
+    }
 
     out.write((contentLength >> 16) & 0xff);
     out.write((contentLength >> 8) & 0xff);
@@ -113,6 +122,36 @@ public class PatchWriteUtil {
     out.write(content);
   }
 
+  /**
+   * Write the binary manifest to the patch in place of the patch XML. It is 
+   * marked by a zero XML length followed by the varint length of the 
+   * manifest.
+   * @param out the stream to output
+   * @param content the manifest, see {@link PatchManifest}
+   * @throws IOException error occurred when outputing to {@code out}
+   */
+  public static void writeManifest(OutputStream out, byte[] content) throws IOException {
+    if (out == null) {
+      throw new NullPointerException("argument 'out' cannot be null");
+    }
+    if (content == null) {
+      throw new NullPointerException("argument 'content' cannot be null");
+    }
+
+    out.write(0);
+    out.write(0);
+    out.write(0);
+
+    int contentLength = content.length;
+    while ((contentLength & ~0x7f) != 0) {
+      out.write((contentLength & 0x7f) | 0x80);
+      contentLength >>>= 7;
+    }
+    out.write(contentLength);
+
+    out.write(content);
+  }
+
   /**
    * Write the content of the file to {@code toStream}.
    * @param fromFile the file to read
@@ -176,7 +215,7 @@ public class PatchWriteUtil {
     encryptTo.delete();
 
     try {
-      AESForFile aesCipher = new AESForFile();
+      AESForFile aesCipher = new FastAESForFile();
       if (listener != null) {
         aesCipher.setListener(listener);
       }
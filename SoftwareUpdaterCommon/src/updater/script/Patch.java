@@ -20,23 +20,39 @@
 // WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 package updater.script;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.TransformerException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 import updater.util.XMLUtil;
+import updater.util.XMLUtil.XMLElementReader;
+import updater.util.XMLUtil.XMLElementWriter;
 
 /**
  * This script resides in the patch describing the patch, includes how the 
  * patch is packed and the operations needed to be taken to apply the patch.
  * It be used independently and as part of the Catalog and Client script.
+ * <p>
+ * The script is read and written with StAX. To avoid holding all 
+ * operations of a large patch in memory, use {@link StreamReader} to read 
+ * the operations and validations one by one.</p>
  * 
  * @author Chan Wai Shing <cws1989@gmail.com>
  */
 public class Patch {
 
+  /**
+   * The default length of the chunks that the chunk checksums are computed 
+   * on.
+   */
+  public static final int DEFAULT_DOWNLOAD_CHUNK_LENGTH = 4194304;
+
   protected int id;
   protected String type;
   protected String versionFrom;
@@ -48,6 +64,8 @@ public class Patch {
   protected String downloadEncryptionType;
   protected String downloadEncryptionKey;
   protected String downloadEncryptionIV;
+  protected int downloadChunkLength;
+  protected List<String> downloadChunkChecksums;
   protected List<Operation> operations;
   protected List<ValidationFile> validations;
 
@@ -69,6 +87,8 @@ public class Patch {
     this.downloadEncryptionType = downloadEncryptionType;
     this.downloadEncryptionKey = downloadEncryptionKey;
     this.downloadEncryptionIV = downloadEncryptionIV;
+    this.downloadChunkLength = -1;
+    this.downloadChunkChecksums = null;
 
     this.operations = operations != null ? new ArrayList<Operation>(operations) : new ArrayList<Operation>();
     this.validations = validations != null ? new ArrayList<ValidationFile>(validations) : new ArrayList<ValidationFile>();
@@ -162,6 +182,40 @@ public class Patch {
     this.downloadEncryptionIV = downloadEncryptionIV;
   }
 
+  /**
+   * Get the length of every chunk that {@link #getDownloadChunkChecksums()} 
+   * is computed on.
+   * @return the length in bytes, -1 if there is no chunk checksum
+   */
+  public int getDownloadChunkLength() {
+    return downloadChunkLength;
+  }
+
+  /**
+   * Get the SHA-256 checksums of every chunk of the patch file in order, the 
+   * last chunk can be shorter than {@link #getDownloadChunkLength()}.
+   * @return the checksums, null if not specified
+   */
+  public List<String> getDownloadChunkChecksums() {
+    return downloadChunkChecksums != null ? new ArrayList<String>(downloadChunkChecksums) : null;
+  }
+
+  /**
+   * Set the SHA-256 checksums of every chunk of the patch file, so corrupted 
+   * part of the download can be found and downloaded again.
+   * @param downloadChunkLength the length of every chunk in bytes
+   * @param downloadChunkChecksums the checksums, null means not specified
+   */
+  public void setDownloadChunkChecksums(int downloadChunkLength, List<String> downloadChunkChecksums) {
+    if (downloadChunkChecksums == null) {
+      this.downloadChunkLength = -1;
+      this.downloadChunkChecksums = null;
+      return;
+    }
+    this.downloadChunkLength = downloadChunkLength;
+    this.downloadChunkChecksums = new ArrayList<String>(downloadChunkChecksums);
+  }
+
   public List<Operation> getOperations() {
     return new ArrayList<Operation>(operations);
   }
@@ -191,14 +245,26 @@ public class Patch {
       throw new NullPointerException("argument 'content' cannot be null");
     }
 
-    Document doc;
+    StreamReader reader = new StreamReader(content);
     try {
-      doc = XMLUtil.readDocument(content);
-    } catch (Exception ex) {
-      throw new InvalidFormatException("XML format incorrect. " + ex.getMessage());
+      return reader.readAll();
+    } finally {
+      reader.close();
     }
+  }
 
-    return read(doc.getDocumentElement());
+  /**
+   * Read the patch from the reader, the reader should be at the start of the 
+   * &lt;patch&gt; element and will be at the end of it after read.
+   * @param reader the reader
+   * @return the patch
+   * @throws InvalidFormatException the format of the patch is invalid
+   */
+  public static Patch read(XMLElementReader reader) throws InvalidFormatException {
+    if (reader == null) {
+      throw new NullPointerException("argument 'reader' cannot be null");
+    }
+    return new StreamReader(reader).readAll();
   }
 
   public static Patch read(Element patchElement) throws InvalidFormatException {
@@ -226,6 +292,8 @@ public class Patch {
     String _downloadEncryptionType = null;
     String _downloadEncryptionKey = null;
     String _downloadEncryptionIV = null;
+    int _downloadChunkLength = -1;
+    List<String> _downloadChunkChecksums = null;
     Element _downloadElement = XMLUtil.getElement(patchElement, "download", false);
     if (_downloadElement != null) {
       Element _downloadUrlElement = XMLUtil.getElement(_downloadElement, "url", false);
@@ -245,6 +313,24 @@ public class Patch {
         _downloadEncryptionKey = XMLUtil.getTextContent(_downloadEncryptionElement, "key", true);
         _downloadEncryptionIV = XMLUtil.getTextContent(_downloadEncryptionElement, "IV", true);
       }
+
+      Element _downloadChunksElement = XMLUtil.getElement(_downloadElement, "chunks", false);
+      if (_downloadChunksElement != null) {
+        try {
+          _downloadChunkLength = Integer.parseInt(_downloadChunksElement.getAttribute("length"));
+        } catch (NumberFormatException ex) {
+          throw new InvalidFormatException("attribute 'length' for 'chunks' element is not a valid integer");
+        }
+        if (_downloadChunkLength <= 0) {
+          throw new InvalidFormatException("attribute 'length' for 'chunks' element should greater than 0");
+        }
+
+        _downloadChunkChecksums = new ArrayList<String>();
+        NodeList _chunkChecksumNodeList = XMLUtil.getNodeList(_downloadChunksElement, "checksum", 1, -1);
+        for (int i = 0, iEnd = _chunkChecksumNodeList.getLength(); i < iEnd; i++) {
+          _downloadChunkChecksums.add(((Element) _chunkChecksumNodeList.item(i)).getTextContent());
+        }
+      }
     }
 
     if (_versionFrom == null && _versionFromSubsequent == null) {
@@ -273,23 +359,100 @@ public class Patch {
       }
     }
 
-    return new Patch(_id,
+    Patch _patch = new Patch(_id,
             _type, _versionFrom, _versionFromSubsequent, _versionTo,
             _downloadUrl, _downloadChecksum, _downloadLength,
             _downloadEncryptionType, _downloadEncryptionKey, _downloadEncryptionIV,
             _operations, _validations);
+    _patch.setDownloadChunkChecksums(_downloadChunkLength, _downloadChunkChecksums);
+
+    return _patch;
   }
 
   public byte[] output() throws TransformerException {
-    Document doc = XMLUtil.createEmptyDocument();
-    if (doc == null) {
-      return null;
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    try {
+      XMLElementWriter writer = XMLUtil.createElementWriter(bout);
+      write(writer);
+      writer.finish();
+    } catch (XMLStreamException ex) {
+      throw new TransformerException(ex);
+    }
+    return bout.toByteArray();
+  }
+
+  /**
+   * Write the &lt;patch&gt; element.
+   * @param writer the writer
+   * @throws XMLStreamException error occurred when writing
+   */
+  public void write(XMLElementWriter writer) throws XMLStreamException {
+    if (writer == null) {
+      throw new NullPointerException("argument 'writer' cannot be null");
+    }
+
+    writer.startElement("patch");
+    writer.attribute("id", Integer.toString(id));
+
+    if (type != null) {
+      writer.textElement("type", type);
+    }
+
+    writer.startElement("version");
+    if (versionFrom != null) {
+      writer.textElement("from", versionFrom);
+    } else if (versionFromSubsequent != null) {
+      writer.textElement("from-subsequent", versionFromSubsequent);
+    }
+    writer.textElement("to", versionTo);
+    writer.endElement();
+
+    if (downloadUrl != null || downloadEncryptionType != null) {
+      writer.startElement("download");
+
+      if (downloadUrl != null) {
+        writer.textElement("url", downloadUrl);
+        writer.textElement("checksum", downloadChecksum);
+        writer.textElement("length", Integer.toString(downloadLength));
+      }
+
+      if (downloadEncryptionType != null) {
+        writer.startElement("encryption");
+        writer.textElement("type", downloadEncryptionType);
+        writer.textElement("key", downloadEncryptionKey);
+        writer.textElement("IV", downloadEncryptionIV);
+        writer.endElement();
+      }
+
+      if (downloadChunkChecksums != null) {
+        writer.startElement("chunks");
+        writer.attribute("length", Integer.toString(downloadChunkLength));
+        for (String checksum : downloadChunkChecksums) {
+          writer.textElement("checksum", checksum);
+        }
+        writer.endElement();
+      }
+
+      writer.endElement();
+    }
+
+    if (!operations.isEmpty()) {
+      writer.startElement("operations");
+      for (Operation operation : operations) {
+        operation.write(writer);
+      }
+      writer.endElement();
     }
 
-    Element patchElement = getElement(doc);
-    doc.appendChild(patchElement);
+    if (!validations.isEmpty()) {
+      writer.startElement("validations");
+      for (ValidationFile file : validations) {
+        file.write(writer);
+      }
+      writer.endElement();
+    }
 
-    return XMLUtil.getOutput(doc);
+    writer.endElement();
   }
 
   public Element getElement(Document doc) {
@@ -356,6 +519,18 @@ public class Patch {
         downloadEncryptionIVElement.setTextContent(downloadEncryptionIV);
         downloadEncryptionElement.appendChild(downloadEncryptionIVElement);
       }
+
+      if (downloadChunkChecksums != null) {
+        Element downloadChunksElement = doc.createElement("chunks");
+        downloadChunksElement.setAttribute("length", Integer.toString(downloadChunkLength));
+        downloadElement.appendChild(downloadChunksElement);
+
+        for (String checksum : downloadChunkChecksums) {
+          Element downloadChunkChecksumElement = doc.createElement("checksum");
+          downloadChunkChecksumElement.setTextContent(checksum);
+          downloadChunksElement.appendChild(downloadChunkChecksumElement);
+        }
+      }
     }
 
     if (!operations.isEmpty()) {
@@ -377,6 +552,391 @@ public class Patch {
     return patchElement;
   }
 
+  /**
+   * Read the patch script with the operations and validations left unread, 
+   * they are read one by one using {@link #nextOperation()} and 
+   * {@link #nextValidation()}. The other elements of the patch should appear 
+   * before &lt;operations&gt; and &lt;validations&gt;, like what 
+   * {@link Patch#output()} does.
+   */
+  public static class StreamReader {
+
+    protected final byte[] content;
+    protected final XMLElementReader reader;
+    protected final Patch patch;
+    protected boolean inOperations;
+    protected boolean inValidations;
+    /**
+     * The number of operations read from {@link #reader}.
+     */
+    protected int operationsRead;
+    /**
+     * The operations and validations read ahead by {@link #countOperations()} 
+     * and not yet returned, null if not read ahead.
+     */
+    protected List<Operation> operationsReadAhead;
+    protected List<ValidationFile> validationsReadAhead;
+
+    /**
+     * Constructor.
+     * @param content the patch script
+     * @throws InvalidFormatException the format of the patch is invalid
+     */
+    public StreamReader(byte[] content) throws InvalidFormatException {
+      if (content == null) {
+        throw new NullPointerException("argument 'content' cannot be null");
+      }
+      this.content = content;
+      reader = XMLUtil.createElementReader(new ByteArrayInputStream(content));
+      patch = readHeader();
+    }
+
+    /**
+     * Constructor.
+     * @param reader the reader at the start of the &lt;patch&gt; element
+     * @throws InvalidFormatException the format of the patch is invalid
+     */
+    protected StreamReader(XMLElementReader reader) throws InvalidFormatException {
+      content = null;
+      this.reader = reader;
+      patch = readHeader();
+    }
+
+    /**
+     * Constructor for the subclass that read the patch in other format, the 
+     * subclass should override the methods that read the operations and 
+     * validations.
+     * @param patch the patch read, without the operations and validations
+     */
+    protected StreamReader(Patch patch) {
+      content = null;
+      reader = null;
+      this.patch = patch;
+    }
+
+    /**
+     * Get the patch read, the operations and validations are not included.
+     * @return the patch
+     */
+    public Patch getPatch() {
+      return patch;
+    }
+
+    /**
+     * Count the operations. If the patch is read from content, the operations 
+     * are counted without constructing them; otherwise the reader cannot be 
+     * rewound, the remaining operations and validations are read ahead and 
+     * kept for {@link #nextOperation()} and {@link #nextValidation()}.
+     * @return the number of operations
+     * @throws InvalidFormatException the format of the patch is invalid
+     */
+    public int countOperations() throws InvalidFormatException {
+      if (content == null) {
+        if (operationsReadAhead == null) {
+          List<Operation> _operations = new LinkedList<Operation>();
+          List<ValidationFile> _validations = new LinkedList<ValidationFile>();
+          readRemaining(_operations, _validations);
+          operationsReadAhead = _operations;
+          validationsReadAhead = _validations;
+        }
+        return operationsRead;
+      }
+
+      XMLElementReader counter = XMLUtil.createElementReader(new ByteArrayInputStream(content));
+      try {
+        int count = 0;
+        while (counter.nextChild()) {
+          if (counter.getName().equals("operations")) {
+            while (counter.nextChild()) {
+              if (counter.getName().equals("operation")) {
+                count++;
+              }
+              counter.skip();
+            }
+          } else {
+            counter.skip();
+          }
+        }
+        return count;
+      } catch (XMLStreamException ex) {
+        throw new InvalidFormatException("XML format incorrect. " + ex.getMessage());
+      } finally {
+        counter.close();
+      }
+    }
+
+    /**
+     * Read the next operation.
+     * @return the operation, null if there is no more operation
+     * @throws InvalidFormatException the format of the operation is invalid
+     */
+    public Operation nextOperation() throws InvalidFormatException {
+      if (operationsReadAhead != null) {
+        return operationsReadAhead.isEmpty() ? null : operationsReadAhead.remove(0);
+      }
+      try {
+        while (inOperations) {
+          if (!reader.nextChild()) {
+            inOperations = false;
+            nextSection();
+            break;
+          }
+          if (reader.getName().equals("operation")) {
+            Operation operation = Operation.read(reader);
+            operationsRead++;
+            return operation;
+          }
+          reader.skip();
+        }
+        return null;
+      } catch (XMLStreamException ex) {
+        throw new InvalidFormatException("XML format incorrect. " + ex.getMessage());
+      }
+    }
+
+    /**
+     * Read the next validation file. The operations not yet read will be 
+     * skipped.
+     * @return the validation file, null if there is no more validation file
+     * @throws InvalidFormatException the format of the validation is invalid
+     */
+    public ValidationFile nextValidation() throws InvalidFormatException {
+      if (validationsReadAhead != null) {
+        operationsReadAhead.clear();
+        return validationsReadAhead.isEmpty() ? null : validationsReadAhead.remove(0);
+      }
+      try {
+        while (inOperations) {
+          if (!reader.nextChild()) {
+            inOperations = false;
+            nextSection();
+            break;
+          }
+          reader.skip();
+        }
+        while (inValidations) {
+          if (!reader.nextChild()) {
+            inValidations = false;
+            nextSection();
+            break;
+          }
+          if (reader.getName().equals("file")) {
+            return ValidationFile.read(reader);
+          }
+          reader.skip();
+        }
+        return null;
+      } catch (XMLStreamException ex) {
+        throw new InvalidFormatException("XML format incorrect. " + ex.getMessage());
+      }
+    }
+
+    /**
+     * Read all the remaining operations and validations into the patch.
+     * @return the patch
+     * @throws InvalidFormatException the format of the patch is invalid
+     */
+    public Patch readAll() throws InvalidFormatException {
+      List<Operation> _operations = patch.getOperations();
+      List<ValidationFile> _validations = patch.getValidations();
+      if (operationsReadAhead != null) {
+        _operations.addAll(operationsReadAhead);
+        operationsReadAhead.clear();
+        _validations.addAll(validationsReadAhead);
+        validationsReadAhead.clear();
+      }
+      readRemaining(_operations, _validations);
+      patch.setOperations(_operations);
+      patch.setValidations(_validations);
+      return patch;
+    }
+
+    /**
+     * Read the remaining operations and validations from the reader.
+     * @param operations the list to add the operations read to
+     * @param validations the list to add the validations read to
+     * @throws InvalidFormatException the format of the patch is invalid
+     */
+    protected void readRemaining(List<Operation> operations, List<ValidationFile> validations) throws InvalidFormatException {
+      while (inOperations || inValidations) {
+        Operation operation = nextOperation();
+        if (operation != null) {
+          operations.add(operation);
+          continue;
+        }
+        ValidationFile validation = nextValidation();
+        if (validation != null) {
+          validations.add(validation);
+        }
+      }
+    }
+
+    public void close() {
+      if (reader != null) {
+        reader.close();
+      }
+    }
+
+    protected void nextSection() throws XMLStreamException {
+      while (reader.nextChild()) {
+        if (reader.getName().equals("operations")) {
+          inOperations = true;
+          return;
+        } else if (reader.getName().equals("validations")) {
+          inValidations = true;
+          return;
+        }
+        reader.skip();
+      }
+    }
+
+    protected Patch readHeader() throws InvalidFormatException {
+      try {
+        int _id = 0;
+        try {
+          _id = Integer.parseInt(reader.getAttribute("id"));
+        } catch (NumberFormatException ex) {
+          throw new InvalidFormatException("attribute 'id' for 'update' element not exist");
+        }
+
+        String _type = null;
+        boolean _versionExist = false;
+        String _versionFrom = null;
+        String _versionFromSubsequent = null;
+        String _versionTo = null;
+        String _downloadUrl = null;
+        String _downloadChecksum = null;
+        String _downloadLengthString = null;
+        boolean _downloadEncryptionExist = false;
+        String _downloadEncryptionType = null;
+        String _downloadEncryptionKey = null;
+        String _downloadEncryptionIV = null;
+        String _downloadChunkLengthString = null;
+        List<String> _downloadChunkChecksums = null;
+        while (reader.nextChild()) {
+          String name = reader.getName();
+          if (name.equals("type")) {
+            _type = reader.readText();
+          } else if (name.equals("version")) {
+            _versionExist = true;
+            while (reader.nextChild()) {
+              String versionName = reader.getName();
+              if (versionName.equals("from")) {
+                _versionFrom = reader.readText();
+              } else if (versionName.equals("from-subsequent")) {
+                _versionFromSubsequent = reader.readText();
+              } else if (versionName.equals("to")) {
+                _versionTo = reader.readText();
+              } else {
+                reader.skip();
+              }
+            }
+          } else if (name.equals("download")) {
+            while (reader.nextChild()) {
+              String downloadName = reader.getName();
+              if (downloadName.equals("url")) {
+                _downloadUrl = reader.readText();
+              } else if (downloadName.equals("checksum")) {
+                _downloadChecksum = reader.readText();
+              } else if (downloadName.equals("length")) {
+                _downloadLengthString = reader.readText();
+              } else if (downloadName.equals("encryption")) {
+                _downloadEncryptionExist = true;
+                while (reader.nextChild()) {
+                  String encryptionName = reader.getName();
+                  if (encryptionName.equals("type")) {
+                    _downloadEncryptionType = reader.readText();
+                  } else if (encryptionName.equals("key")) {
+                    _downloadEncryptionKey = reader.readText();
+                  } else if (encryptionName.equals("IV")) {
+                    _downloadEncryptionIV = reader.readText();
+                  } else {
+                    reader.skip();
+                  }
+                }
+              } else if (downloadName.equals("chunks")) {
+                _downloadChunkLengthString = reader.getAttribute("length");
+                _downloadChunkChecksums = new ArrayList<String>();
+                while (reader.nextChild()) {
+                  if (reader.getName().equals("checksum")) {
+                    _downloadChunkChecksums.add(reader.readText());
+                  } else {
+                    reader.skip();
+                  }
+                }
+              } else {
+                reader.skip();
+              }
+            }
+          } else if (name.equals("operations")) {
+            inOperations = true;
+            break;
+          } else if (name.equals("validations")) {
+            inValidations = true;
+            break;
+          } else {
+            reader.skip();
+          }
+        }
+
+        if (!_versionExist) {
+          throw new InvalidFormatException("Element <version> not found in <patch>.");
+        }
+        XMLUtil.checkExist(_versionTo, "version", "to");
+        if (_versionFrom == null && _versionFromSubsequent == null) {
+          throw new InvalidFormatException("<from> or <from-subsequent> must exist under <version>.");
+        } else if (_versionFrom != null && _versionFromSubsequent != null) {
+          throw new InvalidFormatException("<version> cannot contain both <from> and <from-subsequent>.");
+        }
+
+        int _downloadLength = -1;
+        if (_downloadUrl != null) {
+          XMLUtil.checkExist(_downloadChecksum, "download", "checksum");
+          XMLUtil.checkExist(_downloadLengthString, "download", "length");
+          try {
+            _downloadLength = Integer.parseInt(_downloadLengthString);
+          } catch (NumberFormatException ex) {
+            throw new InvalidFormatException("attribute 'length' for 'download' element is not a valid integer");
+          }
+        } else {
+          _downloadChecksum = null;
+        }
+
+        if (_downloadEncryptionExist) {
+          XMLUtil.checkExist(_downloadEncryptionType, "encryption", "type");
+          XMLUtil.checkExist(_downloadEncryptionKey, "encryption", "key");
+          XMLUtil.checkExist(_downloadEncryptionIV, "encryption", "IV");
+        }
+
+        int _downloadChunkLength = -1;
+        if (_downloadChunkChecksums != null) {
+          try {
+            _downloadChunkLength = Integer.parseInt(_downloadChunkLengthString);
+          } catch (NumberFormatException ex) {
+            throw new InvalidFormatException("attribute 'length' for 'chunks' element is not a valid integer");
+          }
+          if (_downloadChunkLength <= 0) {
+            throw new InvalidFormatException("attribute 'length' for 'chunks' element should greater than 0");
+          }
+          if (_downloadChunkChecksums.isEmpty()) {
+            throw new InvalidFormatException("Element <checksum> not found in <chunks>.");
+          }
+        }
+
+        Patch _patch = new Patch(_id,
+                _type, _versionFrom, _versionFromSubsequent, _versionTo,
+                _downloadUrl, _downloadChecksum, _downloadLength,
+                _downloadEncryptionType, _downloadEncryptionKey, _downloadEncryptionIV,
+                null, null);
+        _patch.setDownloadChunkChecksums(_downloadChunkLength, _downloadChunkChecksums);
+
+        return _patch;
+      } catch (XMLStreamException ex) {
+        throw new InvalidFormatException("XML format incorrect. " + ex.getMessage());
+      }
+    }
+  }
+
   public static class Operation {
 
     protected int id;
@@ -384,10 +944,12 @@ public class Patch {
     //
     protected int patchPos;
     protected int patchLength;
+    protected String patchEncoding;
     //
     protected String fileType;
     //
     protected String destFilePath;
+    protected String sourceFilePath;
     //
     protected String oldFileChecksum;
     protected int oldFileLength;
@@ -488,6 +1050,32 @@ public class Patch {
       this.newFileLength = newFileLength;
     }
 
+    /**
+     * Get the path of the file in the old version that the 'move' and 'copy' 
+     * operation take the content from.
+     * @return the path, null means the destination
+     */
+    public String getSourceFilePath() {
+      return sourceFilePath;
+    }
+
+    public void setSourceFilePath(String sourceFilePath) {
+      this.sourceFilePath = sourceFilePath;
+    }
+
+    /**
+     * Get the encoding of the diff in the content of the 'patch' operation, 
+     * see {@link updater.patch.DiffEncoding}.
+     * @return the encoding, null means the default GDiff encoding
+     */
+    public String getPatchEncoding() {
+      return patchEncoding;
+    }
+
+    public void setPatchEncoding(String patchEncoding) {
+      this.patchEncoding = patchEncoding;
+    }
+
     protected static Operation read(Element operationElement) throws InvalidFormatException {
       if (operationElement == null) {
         throw new NullPointerException("argument 'operationElement' cannot be null");
@@ -508,6 +1096,7 @@ public class Patch {
 
       int pos = 0;
       int length = 0;
+      String encoding = null;
       if (_type.equals("patch") || _type.equals("replace") || _type.equals("new") || _type.equals("force")) {
         Element _contentElement = XMLUtil.getElement(operationElement, "content", true);
         try {
@@ -516,14 +1105,16 @@ public class Patch {
         } catch (NumberFormatException ex) {
           throw new InvalidFormatException("pos or length of <content> is not a valid integer, found: pos: " + XMLUtil.getTextContent(_contentElement, "pos", true) + ", length: " + XMLUtil.getTextContent(_contentElement, "length", true));
         }
+        encoding = XMLUtil.getTextContent(_contentElement, "encoding", false);
       }
 
       String _fileType = XMLUtil.getTextContent(operationElement, "file-type", true);
       String destPath = XMLUtil.getTextContent(operationElement, "destination", true);
+      String sourcePath = XMLUtil.getTextContent(operationElement, "source", _type.equals("move") || _type.equals("copy"));
 
       String oldChecksum = null;
       int oldLength = -1;
-      if (_type.equals("patch") || _type.equals("replace") || _type.equals("remove")) {
+      if (_type.equals("patch") || _type.equals("replace") || _type.equals("remove") || _type.equals("move") || _type.equals("copy")) {
         Element _oldFileElement = XMLUtil.getElement(operationElement, "old-file", true);
         oldChecksum = XMLUtil.getTextContent(_oldFileElement, "checksum", true);
         try {
@@ -535,7 +1126,7 @@ public class Patch {
 
       String newChecksum = null;
       int newLength = -1;
-      if (_type.equals("patch") || _type.equals("replace") || _type.equals("new") || _type.equals("force")) {
+      if (_type.equals("patch") || _type.equals("replace") || _type.equals("new") || _type.equals("force") || _type.equals("move") || _type.equals("copy")) {
         Element _newFileElement = XMLUtil.getElement(operationElement, "new-file", true);
         newChecksum = XMLUtil.getTextContent(_newFileElement, "checksum", true);
         try {
@@ -545,7 +1136,170 @@ public class Patch {
         }
       }
 
-      return new Operation(_id, _type, pos, length, _fileType, destPath, oldChecksum, oldLength, newChecksum, newLength);
+      Operation operation = new Operation(_id, _type, pos, length, _fileType, destPath, oldChecksum, oldLength, newChecksum, newLength);
+      operation.setPatchEncoding(encoding);
+      operation.setSourceFilePath(sourcePath);
+      return operation;
+    }
+
+    protected static Operation read(XMLElementReader reader) throws InvalidFormatException, XMLStreamException {
+      String idString = reader.getAttribute("id");
+      if (idString == null) {
+        throw new InvalidFormatException("No id found for <operation>");
+      }
+      int _id = 0;
+      try {
+        _id = Integer.parseInt(idString);
+      } catch (NumberFormatException ex) {
+        throw new InvalidFormatException("id for <operation> is not a valid integer, found: " + idString);
+      }
+
+      String _type = null;
+      String _posString = null;
+      String _lengthString = null;
+      String _encoding = null;
+      String _fileType = null;
+      String _destPath = null;
+      String _sourcePath = null;
+      String _oldChecksum = null;
+      String _oldLengthString = null;
+      String _newChecksum = null;
+      String _newLengthString = null;
+      while (reader.nextChild()) {
+        String name = reader.getName();
+        if (name.equals("type")) {
+          _type = reader.readText();
+        } else if (name.equals("content")) {
+          while (reader.nextChild()) {
+            if (reader.getName().equals("pos")) {
+              _posString = reader.readText();
+            } else if (reader.getName().equals("length")) {
+              _lengthString = reader.readText();
+            } else if (reader.getName().equals("encoding")) {
+              _encoding = reader.readText();
+            } else {
+              reader.skip();
+            }
+          }
+        } else if (name.equals("file-type")) {
+          _fileType = reader.readText();
+        } else if (name.equals("destination")) {
+          _destPath = reader.readText();
+        } else if (name.equals("source")) {
+          _sourcePath = reader.readText();
+        } else if (name.equals("old-file") || name.equals("new-file")) {
+          String _checksum = null;
+          String _length = null;
+          while (reader.nextChild()) {
+            if (reader.getName().equals("checksum")) {
+              _checksum = reader.readText();
+            } else if (reader.getName().equals("length")) {
+              _length = reader.readText();
+            } else {
+              reader.skip();
+            }
+          }
+          if (name.equals("old-file")) {
+            _oldChecksum = _checksum;
+            _oldLengthString = _length;
+          } else {
+            _newChecksum = _checksum;
+            _newLengthString = _length;
+          }
+        } else {
+          reader.skip();
+        }
+      }
+
+      XMLUtil.checkExist(_type, "operation", "type");
+      XMLUtil.checkExist(_fileType, "operation", "file-type");
+      XMLUtil.checkExist(_destPath, "operation", "destination");
+      if (_type.equals("move") || _type.equals("copy")) {
+        XMLUtil.checkExist(_sourcePath, "operation", "source");
+      }
+
+      int pos = 0;
+      int length = 0;
+      if (_type.equals("patch") || _type.equals("replace") || _type.equals("new") || _type.equals("force")) {
+        XMLUtil.checkExist(_posString, "content", "pos");
+        XMLUtil.checkExist(_lengthString, "content", "length");
+        try {
+          pos = Integer.parseInt(_posString);
+          length = Integer.parseInt(_lengthString);
+        } catch (NumberFormatException ex) {
+          throw new InvalidFormatException("pos or length of <content> is not a valid integer, found: pos: " + _posString + ", length: " + _lengthString);
+        }
+      }
+
+      String oldChecksum = null;
+      int oldLength = -1;
+      if (_type.equals("patch") || _type.equals("replace") || _type.equals("remove") || _type.equals("move") || _type.equals("copy")) {
+        oldChecksum = XMLUtil.checkExist(_oldChecksum, "old-file", "checksum");
+        XMLUtil.checkExist(_oldLengthString, "old-file", "length");
+        try {
+          oldLength = Integer.parseInt(_oldLengthString);
+        } catch (NumberFormatException ex) {
+          throw new InvalidFormatException("length of <old-file> is not a valid integer, found: " + _oldLengthString);
+        }
+      }
+
+      String newChecksum = null;
+      int newLength = -1;
+      if (_type.equals("patch") || _type.equals("replace") || _type.equals("new") || _type.equals("force") || _type.equals("move") || _type.equals("copy")) {
+        newChecksum = XMLUtil.checkExist(_newChecksum, "new-file", "checksum");
+        XMLUtil.checkExist(_newLengthString, "new-file", "length");
+        try {
+          newLength = Integer.parseInt(_newLengthString);
+        } catch (NumberFormatException ex) {
+          throw new InvalidFormatException("length of <new-file> is not a valid integer, found: " + _newLengthString);
+        }
+      }
+
+      Operation operation = new Operation(_id, _type, pos, length, _fileType, _destPath, oldChecksum, oldLength, newChecksum, newLength);
+      if (_type.equals("patch") || _type.equals("replace") || _type.equals("new") || _type.equals("force")) {
+        operation.setPatchEncoding(_encoding);
+      }
+      operation.setSourceFilePath(_sourcePath);
+      return operation;
+    }
+
+    protected void write(XMLElementWriter writer) throws XMLStreamException {
+      writer.startElement("operation");
+      writer.attribute("id", Integer.toString(id));
+
+      writer.textElement("type", type);
+
+      if (patchPos != -1) {
+        writer.startElement("content");
+        writer.textElement("pos", Integer.toString(patchPos));
+        writer.textElement("length", Integer.toString(patchLength));
+        if (patchEncoding != null) {
+          writer.textElement("encoding", patchEncoding);
+        }
+        writer.endElement();
+      }
+
+      writer.textElement("file-type", fileType);
+      writer.textElement("destination", destFilePath);
+      if (sourceFilePath != null) {
+        writer.textElement("source", sourceFilePath);
+      }
+
+      if (oldFileChecksum != null) {
+        writer.startElement("old-file");
+        writer.textElement("checksum", oldFileChecksum);
+        writer.textElement("length", Integer.toString(oldFileLength));
+        writer.endElement();
+      }
+
+      if (newFileChecksum != null) {
+        writer.startElement("new-file");
+        writer.textElement("checksum", newFileChecksum);
+        writer.textElement("length", Integer.toString(newFileLength));
+        writer.endElement();
+      }
+
+      writer.endElement();
     }
 
     protected Element getElement(Document doc) {
@@ -572,6 +1326,12 @@ public class Patch {
         Element _patchLength = doc.createElement("length");
         _patchLength.appendChild(doc.createTextNode(Integer.toString(patchLength)));
         _patch.appendChild(_patchLength);
+
+        if (patchEncoding != null) {
+          Element _patchEncoding = doc.createElement("encoding");
+          _patchEncoding.appendChild(doc.createTextNode(patchEncoding));
+          _patch.appendChild(_patchEncoding);
+        }
       }
       //</editor-fold>
 
@@ -583,6 +1343,12 @@ public class Patch {
       _destFilePath.appendChild(doc.createTextNode(destFilePath));
       _operation.appendChild(_destFilePath);
 
+      if (sourceFilePath != null) {
+        Element _sourceFilePath = doc.createElement("source");
+        _sourceFilePath.appendChild(doc.createTextNode(sourceFilePath));
+        _operation.appendChild(_sourceFilePath);
+      }
+
       //<editor-fold defaultstate="collapsed" desc="old">
       if (oldFileChecksum != null) {
         Element _old = doc.createElement("old-file");
@@ -665,6 +1431,44 @@ public class Patch {
       return new ValidationFile(_path, _checksum, _length);
     }
 
+    protected static ValidationFile read(XMLElementReader reader) throws InvalidFormatException, XMLStreamException {
+      String _path = null;
+      String _checksum = null;
+      String _lengthString = null;
+      while (reader.nextChild()) {
+        String name = reader.getName();
+        if (name.equals("path")) {
+          _path = reader.readText();
+        } else if (name.equals("checksum")) {
+          _checksum = reader.readText();
+        } else if (name.equals("length")) {
+          _lengthString = reader.readText();
+        } else {
+          reader.skip();
+        }
+      }
+
+      XMLUtil.checkExist(_path, "file", "path");
+      XMLUtil.checkExist(_checksum, "file", "checksum");
+      XMLUtil.checkExist(_lengthString, "file", "length");
+      int _length;
+      try {
+        _length = Integer.parseInt(_lengthString);
+      } catch (NumberFormatException ex) {
+        throw new InvalidFormatException("length of <file> is not a valid integer, found: " + _lengthString);
+      }
+
+      return new ValidationFile(_path, _checksum, _length);
+    }
+
+    protected void write(XMLElementWriter writer) throws XMLStreamException {
+      writer.startElement("file");
+      writer.textElement("path", filePath);
+      writer.textElement("checksum", fileChecksum);
+      writer.textElement("length", Integer.toString(fileLength));
+      writer.endElement();
+    }
+
     protected Element getElement(Document doc) {
       if (doc == null) {
         throw new NullPointerException("argument 'doc' cannot be null");
@@ -37,12 +37,17 @@ import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import java.security.SignatureException;
 import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.RSAPrivateKeySpec;
 import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -62,6 +67,10 @@ import updater.script.InvalidFormatException;
 public class CommonUtil {
 
   private static final Logger LOG = Logger.getLogger(CommonUtil.class.getName());
+  /**
+   * The header of the signed catalog, the last byte is the format version.
+   */
+  protected static final byte[] SIGNED_CATALOG_HEADER = new byte[]{'S', 'C', 'A', 'T', 1};
 
   protected CommonUtil() {
   }
@@ -188,6 +197,63 @@ public class CommonUtil {
     return null;
   }
 
+  /**
+   * Get the SHA-256 digest of every {@code chunkLength} bytes of a file, the 
+   * last chunk can be shorter.
+   * @param file the file to digest
+   * @param chunkLength the length of every chunk in bytes
+   * @return the SHA-256 of the chunks in hex string representation
+   * @throws IOException error occurred when reading the file
+   */
+  public static List<String> getChunkSHA256Strings(File file, int chunkLength) throws IOException {
+    if (file == null) {
+      throw new NullPointerException("argument 'file' cannot be null");
+    }
+    if (chunkLength <= 0) {
+      throw new IllegalArgumentException("argument 'chunkLength' should greater than 0");
+    }
+
+    List<String> returnResult = new ArrayList<String>();
+
+    InputStream fin = null;
+    try {
+      long fileLength = file.length();
+      fin = new FileInputStream(file);
+
+      MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+
+      int byteRead, chunkByteRead = 0;
+      long cumulateByteRead = 0;
+      byte[] b = new byte[32768];
+      while ((byteRead = fin.read(b, 0, Math.min(b.length, chunkLength - chunkByteRead))) != -1) {
+        messageDigest.update(b, 0, byteRead);
+
+        chunkByteRead += byteRead;
+        cumulateByteRead += byteRead;
+        if (chunkByteRead == chunkLength || cumulateByteRead >= fileLength) {
+          returnResult.add(byteArrayToHexString(messageDigest.digest()));
+          chunkByteRead = 0;
+        }
+        if (cumulateByteRead >= fileLength) {
+          break;
+        }
+      }
+
+      if (cumulateByteRead != fileLength) {
+        throw new IOException(String.format("The total number of bytes read does not match the file size. Actual file size: %1$d, bytes read: %2$d, path: %3$s",
+                fileLength, cumulateByteRead, file.getAbsolutePath()));
+      }
+    } catch (NoSuchAlgorithmException ex) {
+      // should have SHA-256
+      LOG.log(Level.SEVERE, null, ex);
+      return null;
+    } finally {
+      closeQuietly(fin);
+    }
+
+    return returnResult;
+  }
+
   /**
    * Set UI look & feel to system look & feel.
    * @throws Exception error occurred when setting look & feel
@@ -687,6 +753,154 @@ public class CommonUtil {
     return bout.toByteArray();
   }
 
+  /**
+   * Sign the SHA-256 digest of the data with RSA.
+   * @param key the RSA private key
+   * @param b the data to sign
+   * @return the signature, the length is the key size (in bits) divided by 8
+   */
+  public static byte[] rsaSign(RSAPrivateKey key, byte[] b) {
+    if (key == null) {
+      throw new NullPointerException("argument 'key' cannot be null");
+    }
+    if (b == null) {
+      throw new NullPointerException("argument 'b' cannot be null");
+    }
+
+    try {
+      Signature signature = Signature.getInstance("SHA256withRSA");
+      signature.initSign(key);
+      signature.update(b);
+      return signature.sign();
+    } catch (NoSuchAlgorithmException ex) {
+      // it should be included in JCE
+      LOG.log(Level.SEVERE, null, ex);
+    } catch (InvalidKeyException ex) {
+      // the key is RSAPrivateKey
+      LOG.log(Level.SEVERE, null, ex);
+    } catch (SignatureException ex) {
+      // the signature is initialized
+      LOG.log(Level.SEVERE, null, ex);
+    }
+
+    return null;
+  }
+
+  /**
+   * Verify the RSA signature of the SHA-256 digest of the data.
+   * @param key the RSA public key
+   * @param b the data that signed
+   * @param signatureData the signature
+   * @return true if the signature is valid, false if not
+   */
+  public static boolean rsaVerify(RSAPublicKey key, byte[] b, byte[] signatureData) {
+    if (key == null) {
+      throw new NullPointerException("argument 'key' cannot be null");
+    }
+    if (b == null) {
+      throw new NullPointerException("argument 'b' cannot be null");
+    }
+    if (signatureData == null) {
+      throw new NullPointerException("argument 'signatureData' cannot be null");
+    }
+
+    try {
+      Signature signature = Signature.getInstance("SHA256withRSA");
+      signature.initVerify(key);
+      signature.update(b);
+      return signature.verify(signatureData);
+    } catch (NoSuchAlgorithmException ex) {
+      // it should be included in JCE
+      LOG.log(Level.SEVERE, null, ex);
+    } catch (InvalidKeyException ex) {
+      // the key is RSAPublicKey
+      LOG.log(Level.SEVERE, null, ex);
+    } catch (SignatureException ex) {
+      // the signature is not a valid format
+    }
+
+    return false;
+  }
+
+  /**
+   * Pack the compressed catalog with its RSA signature, see 
+   * {@link #rsaSign(java.security.interfaces.RSAPrivateKey, byte[])}. 
+   * The catalog is not encrypted, so the client need only one RSA 
+   * operation to verify it, instead of decrypting it block by block.
+   * <p>Format: {@link #SIGNED_CATALOG_HEADER}, signature length (2 bytes), 
+   * signature, compressed catalog.</p>
+   * @param key the RSA private key
+   * @param compressedCatalog the compressed catalog
+   * @return the signed catalog
+   */
+  public static byte[] signCatalog(RSAPrivateKey key, byte[] compressedCatalog) {
+    byte[] signature = rsaSign(key, compressedCatalog);
+
+    byte[] returnResult = new byte[SIGNED_CATALOG_HEADER.length + 2 + signature.length + compressedCatalog.length];
+    System.arraycopy(SIGNED_CATALOG_HEADER, 0, returnResult, 0, SIGNED_CATALOG_HEADER.length);
+    int offset = SIGNED_CATALOG_HEADER.length;
+    returnResult[offset++] = (byte) (signature.length >> 8);
+    returnResult[offset++] = (byte) signature.length;
+    System.arraycopy(signature, 0, returnResult, offset, signature.length);
+    offset += signature.length;
+    System.arraycopy(compressedCatalog, 0, returnResult, offset, compressedCatalog.length);
+
+    return returnResult;
+  }
+
+  /**
+   * Check if the {@code content} is a catalog packed by 
+   * {@link #signCatalog(java.security.interfaces.RSAPrivateKey, byte[])}.
+   * @param content the content
+   * @return true if it is, false if not
+   */
+  public static boolean isSignedCatalog(byte[] content) {
+    if (content == null) {
+      throw new NullPointerException("argument 'content' cannot be null");
+    }
+    if (content.length < SIGNED_CATALOG_HEADER.length + 2) {
+      return false;
+    }
+    for (int i = 0; i < SIGNED_CATALOG_HEADER.length; i++) {
+      if (content[i] != SIGNED_CATALOG_HEADER[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Verify the catalog packed by 
+   * {@link #signCatalog(java.security.interfaces.RSAPrivateKey, byte[])}.
+   * @param key the RSA public key
+   * @param content the signed catalog
+   * @return the compressed catalog
+   * @throws IOException {@code content} is not a signed catalog or the 
+   * signature is invalid
+   */
+  public static byte[] verifySignedCatalog(RSAPublicKey key, byte[] content) throws IOException {
+    if (!isSignedCatalog(content)) {
+      throw new IOException("The content is not a signed catalog.");
+    }
+
+    int offset = SIGNED_CATALOG_HEADER.length;
+    int signatureLength = ((content[offset] & 0xff) << 8) | (content[offset + 1] & 0xff);
+    offset += 2;
+    if (offset + signatureLength > content.length) {
+      throw new IOException(String.format("The signature length exceeds the content length. Signature length: %1$d, content length: %2$d",
+              signatureLength, content.length));
+    }
+    byte[] signature = Arrays.copyOfRange(content, offset, offset + signatureLength);
+    offset += signatureLength;
+    byte[] compressedCatalog = Arrays.copyOfRange(content, offset, content.length);
+
+    if (!rsaVerify(key, compressedCatalog, signature)) {
+      throw new IOException("The signature of the catalog is invalid.");
+    }
+
+    return compressedCatalog;
+  }
+
   /**
    * Get the {@link java.security.interfaces.RSAPublicKey} by the modulus and 
    * public exponent.
@@ -29,6 +29,7 @@ public enum DownloadResult {
 
   SUCCEED("SUCCEED"),
   FILE_NOT_MODIFIED("FILE_NOT_MODIFIED"),
+  FILE_NOT_FOUND("FILE_NOT_FOUND"),
   EXPECTED_LENGTH_NOT_MATCH("EXPECTED_LENGTH_NOT_MATCH"),
   CHECKSUM_FAILED("CHECKSUM_FAILED"),
   FAILED("FAILED"),
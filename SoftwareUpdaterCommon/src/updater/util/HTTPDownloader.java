@@ -22,24 +22,35 @@ package updater.util;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
+import updater.crypto.SHA256Digest;
 
 /**
  * The HTTP downloader.
@@ -47,6 +58,19 @@ import java.util.zip.GZIPInputStream;
  */
 public class HTTPDownloader implements Pausable, Interruptible {
 
+  /**
+   * The minimum length of a segment in segmented download.
+   */
+  public static final int MINIMUM_SEGMENT_LENGTH = 1048576;
+  /**
+   * The format version of the segment state file.
+   */
+  protected static final int SEGMENT_FILE_FORMAT_VERSION = 1;
+  /**
+   * The number of bytes downloaded between saving the digest state, see 
+   * {@link #getDigestStateFile()}.
+   */
+  protected static final int DIGEST_CHECKPOINT_INTERVAL = 8388608;
   /**
    * List of tasks to be executed after interrupted.
    */
@@ -73,6 +97,23 @@ public class HTTPDownloader implements Pausable, Interruptible {
    * Indicate if currently is downloading a file.
    */
   protected boolean downloading;
+  /**
+   * The maximum number of segments to download concurrently, 1 means 
+   * download in single stream.
+   */
+  protected int segments;
+  /**
+   * The transport to open the connections.
+   */
+  protected HTTPTransport transport;
+  /**
+   * The length of every chunk in {@link #chunkChecksums}.
+   */
+  protected int chunkLength;
+  /**
+   * The SHA-256 checksums of every chunk of the file, null if not specified.
+   */
+  protected List<String> chunkChecksums;
 
   /**
    * Constructor.
@@ -82,6 +123,10 @@ public class HTTPDownloader implements Pausable, Interruptible {
     outputTo = null;
     ifModifiedSince = -1;
     downloading = false;
+    segments = 1;
+    transport = new HTTPTransport();
+    chunkLength = -1;
+    chunkChecksums = null;
 
     interruptedTasks = Collections.synchronizedList(new ArrayList<Runnable>());
     pause = false;
@@ -155,6 +200,113 @@ public class HTTPDownloader implements Pausable, Interruptible {
     this.outputTo = outputTo;
   }
 
+  /**
+   * Get the transport to open the connections.
+   * @return the transport
+   */
+  public HTTPTransport getTransport() {
+    return transport;
+  }
+
+  /**
+   * Set the transport to open the connections. The same transport can be 
+   * shared by downloaders so that they share the same settings.
+   * @param transport the transport
+   */
+  public void setTransport(HTTPTransport transport) {
+    if (transport == null) {
+      throw new NullPointerException("argument 'transport' cannot be null");
+    }
+    this.transport = transport;
+  }
+
+  /**
+   * Get the maximum number of segments to download concurrently.
+   * @return the number of segments
+   */
+  public int getSegments() {
+    return segments;
+  }
+
+  /**
+   * Set the maximum number of segments to download concurrently. Segmented 
+   * download is used only when {@link #resumeFile} is set, 
+   * {@link #outputTo} is not set and the expected length is known, every 
+   * segment is at least {@link #MINIMUM_SEGMENT_LENGTH} bytes. The progress 
+   * of the segments is saved in {@link #getSegmentFile()} for resuming.
+   * @param segments the number of segments, 1 means download in single 
+   * stream
+   */
+  public void setSegments(int segments) {
+    if (segments < 1) {
+      throw new IllegalArgumentException("argument 'segments' should be at least 1");
+    }
+    this.segments = segments;
+  }
+
+  /**
+   * Get the length of every chunk that the chunk checksums are computed on.
+   * @return the length in bytes, -1 if there is no chunk checksum
+   */
+  public int getChunkLength() {
+    return chunkLength;
+  }
+
+  /**
+   * Get the SHA-256 checksums of every chunk of the file.
+   * @return the checksums, null if not specified
+   */
+  public List<String> getChunkChecksums() {
+    return chunkChecksums != null ? new ArrayList<String>(chunkChecksums) : null;
+  }
+
+  /**
+   * Set the SHA-256 checksums of every chunk of the file. When 
+   * {@link #resumeFile} is set, every chunk is verified when it is 
+   * downloaded and only the corrupted chunks are downloaded again, instead of 
+   * the whole file.
+   * @param chunkLength the length of every chunk in bytes, the last chunk 
+   * can be shorter
+   * @param chunkChecksums the checksums of the chunks in order, null means 
+   * not specified
+   */
+  public void setChunkChecksums(int chunkLength, List<String> chunkChecksums) {
+    if (chunkChecksums == null) {
+      this.chunkLength = -1;
+      this.chunkChecksums = null;
+      return;
+    }
+    if (chunkLength <= 0) {
+      throw new IllegalArgumentException("argument 'chunkLength' should greater than 0");
+    }
+    for (String checksum : chunkChecksums) {
+      if (checksum == null || !checksum.matches("^[0-9a-f]{64}$")) {
+        throw new IllegalArgumentException("SHA format invalid, expected: ^[0-9a-f]{64}$, checksum: " + checksum);
+      }
+    }
+    this.chunkLength = chunkLength;
+    this.chunkChecksums = new ArrayList<String>(chunkChecksums);
+  }
+
+  /**
+   * Get the file that store the progress of the segments in segmented 
+   * download.
+   * @return the file, null if {@link #resumeFile} is not set
+   */
+  public File getSegmentFile() {
+    return resumeFile != null ? new File(resumeFile.getAbsolutePath() + ".segments") : null;
+  }
+
+  /**
+   * Get the file that store the SHA-256 digest state of the downloaded part 
+   * of {@link #resumeFile}, so resuming the download need not read the 
+   * downloaded part again.
+   * @return the file, null if {@link #resumeFile} is not set
+   */
+  public File getDigestStateFile() {
+    return resumeFile != null ? new File(resumeFile.getAbsolutePath() + ".sha256") : null;
+  }
+
   /**
    * Set the If-Modified-Since header.
    * @param time the time in milli second
@@ -184,9 +336,28 @@ public class HTTPDownloader implements Pausable, Interruptible {
     if (fileSHA256 != null && !fileSHA256.matches("^[0-9a-f]{64}$")) {
       throw new IllegalArgumentException("SHA format invalid, expected: ^[0-9a-f]{64}$, checksum: " + fileSHA256);
     }
+    if (chunkChecksums != null && expectedLength >= 0 && chunkChecksums.size() != (expectedLength + (long) chunkLength - 1) / chunkLength) {
+      throw new IllegalArgumentException(String.format("The number of chunk checksums does not match the expected length. Expected length: %1$d, chunk length: %2$d, number of checksums: %3$d",
+              expectedLength, chunkLength, chunkChecksums.size()));
+    }
+
+    // the segment file also exist when the corrupted chunks are to be downloaded again
+    if (resumeFile != null && outputTo == null && expectedLength >= 0
+            && ((segments > 1 && expectedLength >= 2 * MINIMUM_SEGMENT_LENGTH) || getSegmentFile().isFile())) {
+      DownloadResult segmentedResult = downloadSegmented(listener, url, fileSHA256, expectedLength, retryTimes, retryDelay);
+      if (segmentedResult != null) {
+        return segmentedResult;
+      }
+      // the server does not support range request, download in single stream
+    }
 
     DownloadResult retryResult = null;
     boolean truncateResumeFileOnRetry = true;
+    boolean completed = false;
+    // the digest of the downloaded part of resumeFile, null if not to save
+    SHA256Digest digestToCheckpoint = null;
+    // the start position of the chunk that failed the chunk checksum, -1 if none
+    long corruptedChunkStart = -1;
 
     HttpURLConnection httpConn = null;
     InputStream in = null;
@@ -194,22 +365,8 @@ public class HTTPDownloader implements Pausable, Interruptible {
     try {
       downloading = true;
 
-      URLConnection conn = url.openConnection();
-      conn.setConnectTimeout(5000);
-      if (!(conn instanceof HttpURLConnection)) {
-        throw new MalformedURLException("It is not a valid http URL: " + conn.toString());
-      }
-
-      httpConn = (HttpURLConnection) conn;
-
-      httpConn.setDoInput(true);
-      httpConn.setDoOutput(true);
-
-      // set request header
-      httpConn.setRequestProperty("Connection", "close");
+      httpConn = openConnection(url);
       httpConn.setRequestProperty("Accept-Encoding", "gzip");
-      httpConn.setRequestProperty("User-Agent", "HTTP Downloader");
-      httpConn.setUseCaches(false);
 
       long startRange = 0;
       if (resumeFile != null && resumeFile.length() > 0) {
@@ -218,8 +375,15 @@ public class HTTPDownloader implements Pausable, Interruptible {
         if (expectedLength >= 0) {
           if (resumeFileLength == expectedLength) {
             if (fileSHA256 != null) {
-              if (!CommonUtil.getSHA256String(resumeFile).equals(fileSHA256)) {
-                CommonUtil.truncateFile(resumeFile);
+              if (!getResumeFileSHA256String().equals(fileSHA256)) {
+                if (markCorruptedChunks(fileSHA256, expectedLength)) {
+                  // download the corrupted chunks only
+                  DownloadResult segmentedResult = downloadSegmented(listener, url, fileSHA256, expectedLength, retryTimes, retryDelay);
+                  if (segmentedResult != null) {
+                    return segmentedResult;
+                  }
+                }
+                truncateResumeFile();
               } else {
                 // download finished
                 if (listener != null) {
@@ -235,7 +399,7 @@ public class HTTPDownloader implements Pausable, Interruptible {
               return DownloadResult.SUCCEED;
             }
           } else if (resumeFileLength > expectedLength) {
-            CommonUtil.truncateFile(resumeFile);
+            truncateResumeFile();
           } else {
             startRange = resumeFileLength;
             httpConn.setRequestProperty("Range", "bytes=" + resumeFileLength + "-");
@@ -285,7 +449,7 @@ public class HTTPDownloader implements Pausable, Interruptible {
           }
         } else {
           startRange = 0;
-          CommonUtil.truncateFile(resumeFile);
+          truncateResumeFile();
         }
       }
 
@@ -296,6 +460,9 @@ public class HTTPDownloader implements Pausable, Interruptible {
       // check according to header information
       if (httpStatusCode == 304 && ifModifiedSince != -1) {
         return DownloadResult.FILE_NOT_MODIFIED;
+      } else if (httpStatusCode == 404) {
+        // not worth retrying
+        return DownloadResult.FILE_NOT_FOUND;
       } else if (httpStatusCode != 200 && httpStatusCode != 206) {
         throw new RuntimeException(DownloadResult.EXPECTED_LENGTH_NOT_MATCH.getValue());
       }
@@ -310,19 +477,16 @@ public class HTTPDownloader implements Pausable, Interruptible {
       }
 
       // download
-      MessageDigest digest = null;
+      SHA256Digest digest = null;
       if (fileSHA256 != null) {
-        try {
-          digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException ex) {
-          return DownloadResult.FAILED;
+        digest = new SHA256Digest();
+        if (startRange != 0) {
+          digestResumeFile(digest);
         }
       }
-      if (startRange != 0) {
-        digest(digest, resumeFile);
-      }
       in = httpConn.getInputStream();
-      in = (contentEncoding != null && contentEncoding.equals("gzip")) ? new GZIPInputStream(in, 32768) : new BufferedInputStream(in, 32768);
+      int bufferSize = transport.getBufferSize();
+      in = (contentEncoding != null && contentEncoding.equals("gzip")) ? new GZIPInputStream(in, bufferSize) : new BufferedInputStream(in, bufferSize);
       OutputStream outputToOut = null;
       if (resumeFile != null) {
         resumeFileOut = new BufferedOutputStream(new FileOutputStream(resumeFile, startRange != 0), 32768);
@@ -330,8 +494,18 @@ public class HTTPDownloader implements Pausable, Interruptible {
       if (outputTo != null) {
         outputToOut = outputTo;
       }
-      int byteRead, cumulateByteRead = 0;
-      byte[] b = new byte[2048];
+      if (resumeFile != null) {
+        digestToCheckpoint = digest;
+      }
+      SHA256Digest chunkDigest = null;
+      long chunkStart = 0, position = startRange;
+      if (chunkChecksums != null && resumeFile != null) {
+        chunkDigest = new SHA256Digest();
+        chunkStart = startRange - startRange % chunkLength;
+        digestFileRange(resumeFile, chunkStart, startRange, chunkDigest);
+      }
+      int byteRead, cumulateByteRead = 0, byteReadSinceCheckpoint = 0;
+      byte[] b = new byte[bufferSize];
       while ((byteRead = in.read(b)) != -1) {
         try {
           check();
@@ -350,6 +524,30 @@ public class HTTPDownloader implements Pausable, Interruptible {
         }
         cumulateByteRead += byteRead;
 
+        if (chunkDigest != null) {
+          for (int offset = 0; offset < byteRead;) {
+            int length = (int) Math.min(byteRead - offset, chunkStart + chunkLength - position);
+            chunkDigest.update(b, offset, length);
+            offset += length;
+            position += length;
+            if (position == chunkStart + chunkLength) {
+              if (!verifyChunk(chunkDigest, chunkStart)) {
+                digestToCheckpoint = null;
+                corruptedChunkStart = chunkStart;
+                throw new RuntimeException(DownloadResult.CHECKSUM_FAILED.getValue());
+              }
+              chunkStart = position;
+            }
+          }
+        }
+
+        byteReadSinceCheckpoint += byteRead;
+        if (digestToCheckpoint != null && byteReadSinceCheckpoint >= DIGEST_CHECKPOINT_INTERVAL) {
+          byteReadSinceCheckpoint = 0;
+          resumeFileOut.flush();
+          writeDigestState(digestToCheckpoint);
+        }
+
         if (listener != null) {
           listener.byteDownloaded(byteRead);
         }
@@ -359,9 +557,18 @@ public class HTTPDownloader implements Pausable, Interruptible {
       if (cumulateByteRead + startRange != contentLength) {
         throw new RuntimeException(DownloadResult.FAILED.getValue());
       }
+      digestToCheckpoint = null;
+      if (chunkDigest != null && position > chunkStart && !verifyChunk(chunkDigest, chunkStart)) {
+        corruptedChunkStart = chunkStart;
+        throw new RuntimeException(DownloadResult.CHECKSUM_FAILED.getValue());
+      }
       if (fileSHA256 != null && digest != null && !CommonUtil.byteArrayToHexString(digest.digest()).equals(fileSHA256)) {
         throw new RuntimeException(DownloadResult.CHECKSUM_FAILED.getValue());
       }
+      completed = true;
+      if (resumeFile != null) {
+        getDigestStateFile().delete();
+      }
     } catch (IOException ex) {
       truncateResumeFileOnRetry = false;
       retryResult = DownloadResult.FAILED;
@@ -375,18 +582,424 @@ public class HTTPDownloader implements Pausable, Interruptible {
       downloading = false;
       CommonUtil.closeQuietly(in);
       CommonUtil.closeQuietly(resumeFileOut);
-      if (httpConn != null) {
-        httpConn.disconnect();
+      transport.releaseConnection(httpConn, completed);
+      if (digestToCheckpoint != null) {
+        writeDigestState(digestToCheckpoint);
+      }
+    }
+
+    if (retryResult != null) {
+      if (corruptedChunkStart != -1) {
+        // keep the verified chunks, download again from the corrupted chunk
+        truncateResumeFileOnRetry = !truncateResumeFile(corruptedChunkStart);
+      } else if (retryResult == DownloadResult.CHECKSUM_FAILED && markCorruptedChunks(fileSHA256, expectedLength)) {
+        truncateResumeFileOnRetry = false;
+      }
+      return retry(retryResult, truncateResumeFileOnRetry, listener, url, fileSHA256, expectedLength, retryTimes, retryDelay);
+    }
+
+    return DownloadResult.SUCCEED;
+  }
+
+  /**
+   * Open the connection to {@code url} by {@link #transport}.
+   * @param url the URL to connect to
+   * @return the connection, not connected yet
+   * @throws MalformedURLException {@code url} is not a HTTP URL
+   * @throws IOException error occurred when opening the connection
+   */
+  protected HttpURLConnection openConnection(URL url) throws MalformedURLException, IOException {
+    return transport.openConnection(url);
+  }
+
+  /**
+   * Download {@link #resumeFile} in segments concurrently by range requests.
+   * @param listener see {@link #download(updater.util.DownloadProgressListener, java.net.URL, java.lang.String, int, int, int)}
+   * @param url see {@link #download(updater.util.DownloadProgressListener, java.net.URL, java.lang.String, int, int, int)}
+   * @param fileSHA256 see {@link #download(updater.util.DownloadProgressListener, java.net.URL, java.lang.String, int, int, int)}
+   * @param expectedLength see {@link #download(updater.util.DownloadProgressListener, java.net.URL, java.lang.String, int, int, int)}
+   * @param retryTimes see {@link #download(updater.util.DownloadProgressListener, java.net.URL, java.lang.String, int, int, int)}
+   * @param retryDelay see {@link #download(updater.util.DownloadProgressListener, java.net.URL, java.lang.String, int, int, int)}
+   * @return the result, null if the server does not support range request
+   * @throws MalformedURLException URL is invalid
+   */
+  protected DownloadResult downloadSegmented(final DownloadProgressListener listener, final URL url, String fileSHA256, int expectedLength, int retryTimes, int retryDelay) throws MalformedURLException {
+    File segmentFile = getSegmentFile();
+
+    DownloadResult retryResult = null;
+    boolean truncateResumeFileOnRetry = true;
+
+    RandomAccessFile file = null;
+    ExecutorService executor = null;
+    List<long[]> segmentList = null;
+    try {
+      downloading = true;
+
+      segmentList = readSegments(segmentFile, expectedLength, fileSHA256);
+      if (segmentList == null) {
+        long resumeFileLength = resumeFile.length();
+        if (resumeFileLength == expectedLength) {
+          if (fileSHA256 == null || getResumeFileSHA256String().equals(fileSHA256)) {
+            // download finished
+            if (listener != null) {
+              listener.byteStart(resumeFileLength);
+            }
+            return DownloadResult.SUCCEED;
+          }
+          if (markCorruptedChunks(fileSHA256, expectedLength)) {
+            // download the corrupted chunks only
+            segmentList = readSegments(segmentFile, expectedLength, fileSHA256);
+          }
+          resumeFileLength = 0;
+        } else if (resumeFileLength > expectedLength) {
+          resumeFileLength = 0;
+        }
+        if (segmentList == null) {
+          segmentList = createSegments(resumeFileLength, expectedLength);
+          writeSegments(segmentFile, expectedLength, fileSHA256, segmentList);
+        }
+      }
+
+      file = new RandomAccessFile(resumeFile, "rw");
+      file.setLength(expectedLength);
+      final FileChannel channel = file.getChannel();
+
+      long downloadedLength = 0;
+      for (long[] segment : segmentList) {
+        downloadedLength += segment[2] - segment[0];
+      }
+      if (listener != null) {
+        listener.byteTotal(expectedLength);
+        listener.byteStart(downloadedLength);
+      }
+
+      List<long[]> pendingSegmentList = new ArrayList<long[]>();
+      for (long[] segment : segmentList) {
+        if (segment[2] < segment[1]) {
+          pendingSegmentList.add(segment);
+        }
+      }
+
+      executor = Executors.newFixedThreadPool(Math.max(1, Math.min(segments, pendingSegmentList.size())));
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (final long[] segment : pendingSegmentList) {
+        futures.add(executor.submit(new Callable<Void>() {
+
+          @Override
+          public Void call() throws Exception {
+            downloadSegment(listener, url, channel, segment);
+            return null;
+          }
+        }));
+      }
+
+      for (Future<Void> future : futures) {
+        while (true) {
+          try {
+            future.get(1000, TimeUnit.MILLISECONDS);
+            break;
+          } catch (TimeoutException ex) {
+            writeSegments(segmentFile, expectedLength, fileSHA256, segmentList);
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+          }
+          try {
+            check();
+          } catch (RuntimeException ex) {
+            return DownloadResult.INTERRUPTED;
+          }
+        }
+      }
+
+      // check the downloaded file
+      writeSegments(segmentFile, expectedLength, fileSHA256, segmentList);
+      file.close();
+      if (fileSHA256 != null && !CommonUtil.getSHA256String(resumeFile).equals(fileSHA256)) {
+        throw new RuntimeException(DownloadResult.CHECKSUM_FAILED.getValue());
+      }
+      segmentFile.delete();
+      getDigestStateFile().delete();
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof RuntimeException) {
+        truncateResumeFileOnRetry = true;
+        retryResult = DownloadResult.getDownloadResult(cause.getMessage());
+        if (retryResult == DownloadResult.RESUME_RANGE_FAILED) {
+          // fall back to download in single stream
+          stopSegments(executor);
+          CommonUtil.closeQuietly(file);
+          truncateResumeFile();
+          return null;
+        }
+        if (retryResult == null) {
+          retryResult = DownloadResult.FAILED;
+        }
+      } else {
+        truncateResumeFileOnRetry = false;
+        retryResult = DownloadResult.FAILED;
+      }
+    } catch (IOException ex) {
+      truncateResumeFileOnRetry = false;
+      retryResult = DownloadResult.FAILED;
+    } catch (RuntimeException ex) {
+      truncateResumeFileOnRetry = true;
+      retryResult = DownloadResult.getDownloadResult(ex.getMessage());
+      if (retryResult == null) {
+        retryResult = DownloadResult.FAILED;
+      }
+    } finally {
+      downloading = false;
+      stopSegments(executor);
+      CommonUtil.closeQuietly(file);
+      if (segmentList != null && segmentFile.exists()) {
+        try {
+          writeSegments(segmentFile, expectedLength, fileSHA256, segmentList);
+        } catch (IOException ex) {
+          // failure is allowed, the segments will be downloaded again
+          segmentFile.delete();
+        }
       }
     }
 
     if (retryResult != null) {
+      if (retryResult == DownloadResult.CHECKSUM_FAILED && markCorruptedChunks(fileSHA256, expectedLength)) {
+        truncateResumeFileOnRetry = false;
+      }
       return retry(retryResult, truncateResumeFileOnRetry, listener, url, fileSHA256, expectedLength, retryTimes, retryDelay);
     }
 
     return DownloadResult.SUCCEED;
   }
 
+  /**
+   * Download the range of the {@code segment} and write to {@code channel}. 
+   * If chunk checksums are specified, every chunk that lies within the 
+   * segment is verified when it is downloaded.
+   * @param listener the listener to listen to download progress, can be null
+   * @param url the URL to download from
+   * @param channel the channel of the file to write to
+   * @param segment the segment, {start, end (exclusive), position}, the 
+   * position will be updated along the download
+   * @throws IOException error occurred when downloading or writing, or a 
+   * chunk is corrupted
+   */
+  protected void downloadSegment(DownloadProgressListener listener, URL url, FileChannel channel, long[] segment) throws IOException {
+    long position;
+    synchronized (segment) {
+      position = segment[2];
+    }
+    long end = segment[1];
+
+    // chunks start before this segment cannot be verified here
+    SHA256Digest chunkDigest = null;
+    long chunkStart = 0, fileLength = channel.size();
+    if (chunkChecksums != null) {
+      chunkStart = position - position % chunkLength;
+      if (chunkStart >= segment[0]) {
+        chunkDigest = new SHA256Digest();
+        digestFileRange(channel, chunkStart, position, chunkDigest);
+      }
+    }
+
+    boolean completed = false;
+
+    HttpURLConnection httpConn = null;
+    InputStream in = null;
+    try {
+      httpConn = openConnection(url);
+      httpConn.setRequestProperty("Range", "bytes=" + position + "-" + (end - 1));
+      httpConn.connect();
+
+      if (httpConn.getResponseCode() != 206) {
+        throw new RuntimeException(DownloadResult.RESUME_RANGE_FAILED.getValue());
+      }
+      String contentRangeString = httpConn.getHeaderField("Content-Range");
+      Matcher matcher = Pattern.compile("^bytes\\s([0-9]+)-([0-9]+)/([0-9]+)$").matcher(contentRangeString != null ? contentRangeString.trim() : "");
+      if (!matcher.matches() || Long.parseLong(matcher.group(1)) != position || Long.parseLong(matcher.group(2)) != end - 1) {
+        throw new RuntimeException(DownloadResult.RESUME_RANGE_RESPOND_INVALID.getValue());
+      }
+
+      in = httpConn.getInputStream();
+      int byteRead;
+      byte[] b = new byte[transport.getBufferSize()];
+      while (position < end && (byteRead = in.read(b)) != -1) {
+        checkPause();
+        if (Thread.interrupted()) {
+          throw new InterruptedIOException();
+        }
+
+        byteRead = (int) Math.min(byteRead, end - position);
+        for (int offset = 0; offset < byteRead;) {
+          int length = byteRead - offset;
+          if (chunkChecksums != null) {
+            length = (int) Math.min(length, chunkStart + chunkLength - position);
+          }
+
+          ByteBuffer buffer = ByteBuffer.wrap(b, offset, length);
+          while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position() - offset);
+          }
+          if (chunkDigest != null) {
+            chunkDigest.update(b, offset, length);
+          }
+          offset += length;
+          position += length;
+
+          if (chunkChecksums != null && (position == chunkStart + chunkLength || position == fileLength)) {
+            if (chunkDigest != null && !verifyChunk(chunkDigest, chunkStart)) {
+              synchronized (segment) {
+                segment[2] = chunkStart;
+              }
+              throw new IOException(String.format("Chunk checksum not match, chunk start: %1$d, url: %2$s", chunkStart, url));
+            }
+            chunkStart = position;
+            if (chunkDigest == null) {
+              chunkDigest = new SHA256Digest();
+            }
+          }
+        }
+        synchronized (segment) {
+          segment[2] = position;
+        }
+
+        if (listener != null) {
+          synchronized (listener) {
+            listener.byteDownloaded(byteRead);
+          }
+        }
+      }
+
+      if (position != end) {
+        throw new IOException("The segment is not completely downloaded.");
+      }
+      completed = in.read() == -1;
+    } finally {
+      CommonUtil.closeQuietly(in);
+      transport.releaseConnection(httpConn, completed);
+    }
+  }
+
+  /**
+   * Stop the segment download threads and wait for them to stop writing.
+   * @param executor the executor, can be null
+   */
+  protected static void stopSegments(ExecutorService executor) {
+    if (executor == null) {
+      return;
+    }
+    executor.shutdownNow();
+    try {
+      executor.awaitTermination(5000, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Split the range from {@code downloadedLength} to {@code expectedLength} 
+   * into segments. The range before {@code downloadedLength} is recorded as 
+   * a downloaded segment.
+   * @param downloadedLength the length already downloaded
+   * @param expectedLength the length of the file
+   * @return the segments, every segment is {start, end (exclusive), position}
+   */
+  protected List<long[]> createSegments(long downloadedLength, long expectedLength) {
+    List<long[]> segmentList = new ArrayList<long[]>();
+    if (downloadedLength > 0) {
+      segmentList.add(new long[]{0, downloadedLength, downloadedLength});
+    }
+
+    long remaining = expectedLength - downloadedLength;
+    int count = (int) Math.max(1, Math.min(segments, remaining / MINIMUM_SEGMENT_LENGTH));
+    long start = downloadedLength;
+    for (int i = 1; i <= count; i++) {
+      long end = downloadedLength + remaining * i / count;
+      if (i != count && chunkChecksums != null) {
+        // align to chunk so that every chunk can be verified when downloaded
+        end -= end % chunkLength;
+      }
+      if (end > start) {
+        segmentList.add(new long[]{start, end, start});
+        start = end;
+      }
+    }
+
+    return segmentList;
+  }
+
+  /**
+   * Read the segments from the segment state file.
+   * @param segmentFile the segment state file
+   * @param expectedLength the length of the file
+   * @param fileSHA256 the SHA-256 checksum of the file, can be null
+   * @return the segments, null if the file not exist or it is not for this 
+   * download
+   */
+  protected static List<long[]> readSegments(File segmentFile, long expectedLength, String fileSHA256) {
+    if (!segmentFile.isFile()) {
+      return null;
+    }
+
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile)));
+      if (in.readInt() != SEGMENT_FILE_FORMAT_VERSION
+              || in.readLong() != expectedLength
+              || !in.readUTF().equals(fileSHA256 != null ? fileSHA256 : "")) {
+        return null;
+      }
+
+      int count = in.readInt();
+      List<long[]> segmentList = new ArrayList<long[]>(Math.max(0, Math.min(count, 1024)));
+      long expectedStart = 0;
+      for (int i = 0; i < count; i++) {
+        long[] segment = new long[]{in.readLong(), in.readLong(), in.readLong()};
+        if (segment[0] != expectedStart || segment[1] <= segment[0] || segment[2] < segment[0] || segment[2] > segment[1]) {
+          return null;
+        }
+        expectedStart = segment[1];
+        segmentList.add(segment);
+      }
+      if (expectedStart != expectedLength) {
+        return null;
+      }
+
+      return segmentList;
+    } catch (IOException ex) {
+      return null;
+    } finally {
+      CommonUtil.closeQuietly(in);
+    }
+  }
+
+  /**
+   * Save the segments to the segment state file.
+   * @param segmentFile the segment state file
+   * @param expectedLength the length of the file
+   * @param fileSHA256 the SHA-256 checksum of the file, can be null
+   * @param segmentList the segments
+   * @throws IOException error occurred when writing
+   */
+  protected static void writeSegments(File segmentFile, long expectedLength, String fileSHA256, List<long[]> segmentList) throws IOException {
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segmentFile)));
+      out.writeInt(SEGMENT_FILE_FORMAT_VERSION);
+      out.writeLong(expectedLength);
+      out.writeUTF(fileSHA256 != null ? fileSHA256 : "");
+      out.writeInt(segmentList.size());
+      for (long[] segment : segmentList) {
+        synchronized (segment) {
+          out.writeLong(segment[0]);
+          out.writeLong(segment[1]);
+          out.writeLong(segment[2]);
+        }
+      }
+    } finally {
+      CommonUtil.closeQuietly(out);
+    }
+  }
+
   /**
    * Retry the download.
    * @param result the reason to retry
@@ -420,7 +1033,7 @@ public class HTTPDownloader implements Pausable, Interruptible {
     }
     if (truncateResumeFileOnRetry) {
       if (resumeFile != null) {
-        CommonUtil.truncateFile(resumeFile);
+        truncateResumeFile();
       }
     }
     return download(listener, url, fileSHA256, expectedLength, retryTimes - 1, retryDelay);
@@ -430,6 +1043,21 @@ public class HTTPDownloader implements Pausable, Interruptible {
    * Check if paused or interrupted.
    */
   protected void check() {
+    checkPause();
+    if (Thread.interrupted()) {
+      synchronized (interruptedTasks) {
+        for (Runnable task : interruptedTasks) {
+          task.run();
+        }
+      }
+      throw new RuntimeException(new InterruptedException());
+    }
+  }
+
+  /**
+   * Wait if paused.
+   */
+  protected void checkPause() {
     synchronized (this) {
       if (pause) {
         try {
@@ -439,54 +1067,219 @@ public class HTTPDownloader implements Pausable, Interruptible {
         }
       }
     }
-    if (Thread.interrupted()) {
-      synchronized (interruptedTasks) {
-        for (Runnable task : interruptedTasks) {
-          task.run();
-        }
+  }
+
+  /**
+   * Truncate {@link #resumeFile} and remove the segment and digest state of 
+   * it.
+   */
+  protected void truncateResumeFile() {
+    CommonUtil.truncateFile(resumeFile);
+    getSegmentFile().delete();
+    getDigestStateFile().delete();
+  }
+
+  /**
+   * Truncate {@link #resumeFile} to {@code length} and remove the segment 
+   * state. The digest state is kept, it will be ignored when resume if it 
+   * goes beyond {@code length}.
+   * @param length the length to keep
+   * @return true if succeed, false if failed
+   */
+  protected boolean truncateResumeFile(long length) {
+    RandomAccessFile file = null;
+    try {
+      file = new RandomAccessFile(resumeFile, "rw");
+      if (file.length() > length) {
+        file.setLength(length);
       }
-      throw new RuntimeException(new InterruptedException());
+    } catch (IOException ex) {
+      return false;
+    } finally {
+      CommonUtil.closeQuietly(file);
     }
+    getSegmentFile().delete();
+    return true;
   }
 
   /**
-   * Read the content in the {@code file} and put into the {@code digest}.
-   * 
-   * @param digest the digest object
-   * @param file the file to read the content from
-   * 
-   * @throws IOException error occurred when reading file
+   * Check the {@code chunkDigest} against the chunk checksum. The 
+   * {@code chunkDigest} is reset after this.
+   * @param chunkDigest the digest of the chunk
+   * @param chunkStart the start position of the chunk
+   * @return true if match, false if not
    */
-  protected static void digest(MessageDigest digest, File file) throws IOException {
-    if (digest == null) {
-      throw new NullPointerException("argument 'digest' cannot be null");
+  protected boolean verifyChunk(SHA256Digest chunkDigest, long chunkStart) {
+    int index = (int) (chunkStart / chunkLength);
+    if (index >= chunkChecksums.size()) {
+      chunkDigest.reset();
+      return false;
     }
-    if (file == null) {
-      throw new NullPointerException("argument 'file' cannot be null");
+    return CommonUtil.byteArrayToHexString(chunkDigest.digest()).equals(chunkChecksums.get(index));
+  }
+
+  /**
+   * Find the corrupted chunks in {@link #resumeFile} and record them in the 
+   * segment file as not downloaded, so that only the corrupted chunks will 
+   * be downloaded again.
+   * @param fileSHA256 the SHA-256 checksum of the file, can be null
+   * @param expectedLength the length of the file
+   * @return true if there is corrupted chunk and the segment file is 
+   * written, false if not
+   */
+  protected boolean markCorruptedChunks(String fileSHA256, long expectedLength) {
+    if (chunkChecksums == null || resumeFile == null || expectedLength < 0 || resumeFile.length() != expectedLength) {
+      return false;
     }
 
-    FileInputStream fin = null;
+    List<long[]> segmentList = new ArrayList<long[]>();
+    boolean corrupted = false;
+
+    RandomAccessFile file = null;
     try {
-      long fileLength = file.length();
-      fin = new FileInputStream(file);
+      file = new RandomAccessFile(resumeFile, "r");
+      FileChannel channel = file.getChannel();
 
-      int byteRead, cumulateByteRead = 0;
-      byte[] b = new byte[32768];
-      while ((byteRead = fin.read(b)) != -1) {
-        digest.update(b, 0, byteRead);
+      SHA256Digest chunkDigest = new SHA256Digest();
+      long[] lastSegment = null;
+      boolean lastSegmentCorrupted = false;
+      for (long chunkStart = 0; chunkStart < expectedLength; chunkStart += chunkLength) {
+        long chunkEnd = Math.min(chunkStart + chunkLength, expectedLength);
+        digestFileRange(channel, chunkStart, chunkEnd, chunkDigest);
+        boolean chunkCorrupted = !verifyChunk(chunkDigest, chunkStart);
+        corrupted |= chunkCorrupted;
 
-        cumulateByteRead += byteRead;
-        if (cumulateByteRead >= fileLength) {
-          break;
+        if (lastSegment != null && lastSegmentCorrupted == chunkCorrupted) {
+          lastSegment[1] = chunkEnd;
+          if (!chunkCorrupted) {
+            lastSegment[2] = chunkEnd;
+          }
+        } else {
+          lastSegment = new long[]{chunkStart, chunkEnd, chunkCorrupted ? chunkStart : chunkEnd};
+          lastSegmentCorrupted = chunkCorrupted;
+          segmentList.add(lastSegment);
         }
       }
+    } catch (IOException ex) {
+      return false;
+    } finally {
+      CommonUtil.closeQuietly(file);
+    }
+    if (!corrupted) {
+      // the file is not the one described by the chunk checksums
+      return false;
+    }
+
+    try {
+      writeSegments(getSegmentFile(), expectedLength, fileSHA256, segmentList);
+    } catch (IOException ex) {
+      getSegmentFile().delete();
+      return false;
+    }
+    getDigestStateFile().delete();
+    return true;
+  }
+
+  /**
+   * Get the SHA-256 checksum of {@link #resumeFile}, continue from the saved 
+   * digest state if any.
+   * @return the checksum in hex string
+   * @throws IOException error occurred when reading the file
+   */
+  protected String getResumeFileSHA256String() throws IOException {
+    SHA256Digest digest = new SHA256Digest();
+    digestResumeFile(digest);
+    return CommonUtil.byteArrayToHexString(digest.digest());
+  }
+
+  /**
+   * Put the content of {@link #resumeFile} into the {@code digest}. If the 
+   * digest state saved in {@link #getDigestStateFile()} is valid, only the 
+   * content after the saved state is read.
+   * @param digest the digest
+   * @throws IOException error occurred when reading the file
+   */
+  protected void digestResumeFile(SHA256Digest digest) throws IOException {
+    long fileLength = resumeFile.length();
 
-      if (cumulateByteRead != fileLength) {
-        throw new IOException(String.format("The total number of bytes read does not match the file size. Actual file size: %1$d, bytes read: %2$d, path: %3$s",
-                fileLength, cumulateByteRead, file.getAbsolutePath()));
+    digest.reset();
+    File digestStateFile = getDigestStateFile();
+    if (digestStateFile.isFile()) {
+      try {
+        digest.setState(CommonUtil.readFile(digestStateFile));
+        if (digest.getLength() > fileLength) {
+          digest.reset();
+        }
+      } catch (IOException ex) {
+        // failure is allowed, read the whole file
+        digest.reset();
       }
+    }
+
+    digestFileRange(resumeFile, digest.getLength(), fileLength, digest);
+  }
+
+  /**
+   * Put the content of {@code file} from {@code start} to {@code end} into 
+   * the {@code digest}.
+   * @param file the file to read
+   * @param start the start position
+   * @param end the end position (exclusive)
+   * @param digest the digest
+   * @throws IOException error occurred when reading the file
+   */
+  protected static void digestFileRange(File file, long start, long end, SHA256Digest digest) throws IOException {
+    if (start >= end) {
+      return;
+    }
+    RandomAccessFile randomAccessFile = null;
+    try {
+      randomAccessFile = new RandomAccessFile(file, "r");
+      digestFileRange(randomAccessFile.getChannel(), start, end, digest);
     } finally {
-      CommonUtil.closeQuietly(fin);
+      CommonUtil.closeQuietly(randomAccessFile);
+    }
+  }
+
+  /**
+   * Put the content of {@code channel} from {@code start} to {@code end} 
+   * into the {@code digest}.
+   * @param channel the channel to read, the position of it is not changed
+   * @param start the start position
+   * @param end the end position (exclusive)
+   * @param digest the digest
+   * @throws IOException error occurred when reading or the channel is 
+   * shorter than {@code end}
+   */
+  protected static void digestFileRange(FileChannel channel, long start, long end, SHA256Digest digest) throws IOException {
+    byte[] b = new byte[32768];
+    ByteBuffer buffer = ByteBuffer.wrap(b);
+
+    long position = start;
+    while (position < end) {
+      buffer.clear();
+      buffer.limit((int) Math.min(b.length, end - position));
+      int byteRead = channel.read(buffer, position);
+      if (byteRead == -1) {
+        throw new IOException(String.format("The total number of bytes read does not match the expected length. Expected end: %1$d, bytes read until: %2$d",
+                end, position));
+      }
+      digest.update(b, 0, byteRead);
+      position += byteRead;
+    }
+  }
+
+  /**
+   * Save the state of the {@code digest} to {@link #getDigestStateFile()}. 
+   * The content in {@link #resumeFile} should be flushed before this.
+   * @param digest the digest
+   */
+  protected void writeDigestState(SHA256Digest digest) {
+    try {
+      CommonUtil.writeFile(getDigestStateFile(), digest.getState());
+    } catch (IOException ex) {
+      // failure is allowed, the whole file will be read when resume
+      getDigestStateFile().delete();
     }
   }
 }
@@ -0,0 +1,193 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.util;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * The transport used by {@link HTTPDownloader} to open and release the HTTP 
+ * connections. Subclass it to change how the connections are made.
+ * <p>With keep-alive enabled, the connection of a completely read response 
+ * is returned to the keep-alive cache of the JVM instead of being closed, so 
+ * the following requests to the same host (catalog, patches, retries and 
+ * segments) skip the TCP and TLS handshake.</p>
+ * <p>The settings should not be changed while downloading.</p>
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class HTTPTransport {
+
+  /**
+   * The connect timeout in milli second, 0 means no timeout.
+   */
+  protected int connectTimeout;
+  /**
+   * The read timeout in milli second, 0 means no timeout.
+   */
+  protected int readTimeout;
+  /**
+   * Indicate reuse the connections or not.
+   */
+  protected boolean keepAlive;
+  /**
+   * The size of the buffer to read the response.
+   */
+  protected int bufferSize;
+
+  /**
+   * Constructor.
+   */
+  public HTTPTransport() {
+    connectTimeout = 5000;
+    readTimeout = 30000;
+    keepAlive = true;
+    bufferSize = 32768;
+  }
+
+  /**
+   * Get the connect timeout.
+   * @return the time in milli second, 0 means no timeout
+   */
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /**
+   * Set the connect timeout.
+   * @param connectTimeout the time in milli second, 0 means no timeout
+   */
+  public void setConnectTimeout(int connectTimeout) {
+    if (connectTimeout < 0) {
+      throw new IllegalArgumentException("argument 'connectTimeout' should >= 0");
+    }
+    this.connectTimeout = connectTimeout;
+  }
+
+  /**
+   * Get the read timeout.
+   * @return the time in milli second, 0 means no timeout
+   */
+  public int getReadTimeout() {
+    return readTimeout;
+  }
+
+  /**
+   * Set the read timeout, the maximum time to wait for data when reading the 
+   * response.
+   * @param readTimeout the time in milli second, 0 means no timeout
+   */
+  public void setReadTimeout(int readTimeout) {
+    if (readTimeout < 0) {
+      throw new IllegalArgumentException("argument 'readTimeout' should >= 0");
+    }
+    this.readTimeout = readTimeout;
+  }
+
+  /**
+   * Check if the connections are reused.
+   * @return true if reused, false if not
+   */
+  public boolean isKeepAlive() {
+    return keepAlive;
+  }
+
+  /**
+   * Set whether to reuse the connections or not.
+   * @param keepAlive true to reuse, false to close the connection after 
+   * every request
+   */
+  public void setKeepAlive(boolean keepAlive) {
+    this.keepAlive = keepAlive;
+  }
+
+  /**
+   * Get the size of the buffer to read the response.
+   * @return the size in bytes
+   */
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * Set the size of the buffer to read the response.
+   * @param bufferSize the size in bytes
+   */
+  public void setBufferSize(int bufferSize) {
+    if (bufferSize < 1024) {
+      throw new IllegalArgumentException("argument 'bufferSize' should >= 1024");
+    }
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Open the connection to {@code url} with the common request headers set.
+   * @param url the URL to connect to
+   * @return the connection, not connected yet
+   * @throws MalformedURLException {@code url} is not a HTTP URL
+   * @throws IOException error occurred when opening the connection
+   */
+  public HttpURLConnection openConnection(URL url) throws MalformedURLException, IOException {
+    if (url == null) {
+      throw new NullPointerException("argument 'url' cannot be null");
+    }
+
+    URLConnection conn = url.openConnection();
+    if (!(conn instanceof HttpURLConnection)) {
+      throw new MalformedURLException("It is not a valid http URL: " + conn.toString());
+    }
+
+    HttpURLConnection httpConn = (HttpURLConnection) conn;
+
+    httpConn.setConnectTimeout(connectTimeout);
+    httpConn.setReadTimeout(readTimeout);
+    httpConn.setDoInput(true);
+    httpConn.setDoOutput(true);
+
+    // set request header
+    if (!keepAlive) {
+      httpConn.setRequestProperty("Connection", "close");
+    }
+    httpConn.setRequestProperty("User-Agent", "HTTP Downloader");
+    httpConn.setUseCaches(false);
+
+    return httpConn;
+  }
+
+  /**
+   * Release the connection after use. The input stream of the connection 
+   * should be closed before this.
+   * @param httpConn the connection
+   * @param completed true if the response is completely read, the connection 
+   * can only be reused in this case
+   */
+  public void releaseConnection(HttpURLConnection httpConn, boolean completed) {
+    if (httpConn == null) {
+      return;
+    }
+    if (!keepAlive || !completed) {
+      httpConn.disconnect();
+    }
+  }
+}
@@ -0,0 +1,175 @@
+package updater;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The HTTP server on localhost for the download tests. It serves the
+ * contents put into it, supports (or refuses) range requests, and can delay
+ * or corrupt the responses.
+ *
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class TestHTTPServer {
+
+  protected final HttpServer server;
+  protected final ExecutorService executor;
+  protected final Map<String, byte[]> contents;
+  protected final Map<String, Integer> delays;
+  /**
+   * {position, times}, flip the byte at position in the following number of
+   * responses that contain it.
+   */
+  protected final Map<String, int[]> corruptions;
+  /**
+   * The "Range" header of every request, "" if not specified.
+   */
+  protected final Map<String, List<String>> ranges;
+  protected volatile boolean rangeSupported;
+  protected final AtomicInteger activeRequests;
+  protected final AtomicInteger maxActiveRequests;
+
+  public TestHTTPServer() throws IOException {
+    contents = new ConcurrentHashMap<String, byte[]>();
+    delays = new ConcurrentHashMap<String, Integer>();
+    corruptions = new ConcurrentHashMap<String, int[]>();
+    ranges = new ConcurrentHashMap<String, List<String>>();
+    rangeSupported = true;
+    activeRequests = new AtomicInteger(0);
+    maxActiveRequests = new AtomicInteger(0);
+
+    executor = Executors.newCachedThreadPool();
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", new HttpHandler() {
+
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        int active = activeRequests.incrementAndGet();
+        while (true) {
+          int max = maxActiveRequests.get();
+          if (active <= max || maxActiveRequests.compareAndSet(max, active)) {
+            break;
+          }
+        }
+        try {
+          respond(exchange);
+        } finally {
+          activeRequests.decrementAndGet();
+          exchange.close();
+        }
+      }
+    });
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  protected void respond(HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getPath().substring(1);
+    String range = exchange.getRequestHeaders().getFirst("Range");
+    getRanges(path).add(range != null ? range : "");
+
+    Integer delay = delays.get(path);
+    if (delay != null) {
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    byte[] content = contents.get(path);
+    if (content == null) {
+      exchange.sendResponseHeaders(404, -1);
+      return;
+    }
+
+    int start = 0, end = content.length;
+    int statusCode = 200;
+    Matcher matcher = Pattern.compile("^bytes=([0-9]+)-([0-9]*)$").matcher(range != null ? range : "");
+    if (rangeSupported && matcher.matches()) {
+      start = Integer.parseInt(matcher.group(1));
+      end = matcher.group(2).isEmpty() ? content.length : Math.min(content.length, Integer.parseInt(matcher.group(2)) + 1);
+      if (start >= end) {
+        exchange.sendResponseHeaders(416, -1);
+        return;
+      }
+      statusCode = 206;
+      exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + content.length);
+    }
+
+    byte[] response = new byte[end - start];
+    System.arraycopy(content, start, response, 0, response.length);
+    synchronized (corruptions) {
+      int[] corruption = corruptions.get(path);
+      if (corruption != null && corruption[1] > 0 && corruption[0] >= start && corruption[0] < end) {
+        response[corruption[0] - start] ^= 0xff;
+        corruption[1]--;
+      }
+    }
+
+    exchange.sendResponseHeaders(statusCode, response.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(response);
+    out.flush();
+  }
+
+  public String getURL(String path) {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/" + path;
+  }
+
+  public void put(String path, byte[] content) {
+    contents.put(path, content);
+  }
+
+  public void remove(String path) {
+    contents.remove(path);
+  }
+
+  public void setRangeSupported(boolean rangeSupported) {
+    this.rangeSupported = rangeSupported;
+  }
+
+  public void setDelay(String path, int delay) {
+    delays.put(path, delay);
+  }
+
+  public void corrupt(String path, int position, int times) {
+    synchronized (corruptions) {
+      corruptions.put(path, new int[]{position, times});
+    }
+  }
+
+  public List<String> getRanges(String path) {
+    synchronized (ranges) {
+      List<String> pathRanges = ranges.get(path);
+      if (pathRanges == null) {
+        pathRanges = Collections.synchronizedList(new ArrayList<String>());
+        ranges.put(path, pathRanges);
+      }
+      return pathRanges;
+    }
+  }
+
+  public int getMaxActiveRequests() {
+    return maxActiveRequests.get();
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+}
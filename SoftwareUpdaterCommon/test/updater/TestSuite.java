@@ -10,10 +10,18 @@ import org.junit.runners.Suite;
 @Suite.SuiteClasses({
     updater.concurrent.LockUtilTest.class,
     updater.crypto.AESKeyTest.class,
+    updater.crypto.FastAESForFileTest.class,
     updater.crypto.KeyGeneratorTest.class,
     updater.crypto.RSAKeyTest.class,
+    updater.crypto.SHA256DigestTest.class,
+    updater.patch.ArchiveDifferTest.class,
+    updater.patch.FileChecksumIndexTest.class,
+    updater.patch.MinHashSketchTest.class,
     updater.patch.PatchLogTest.class,
+    updater.patch.PatchManifestTest.class,
     updater.patch.PatchTest.class,
+    updater.patch.SuffixArrayDifferTest.class,
+    updater.patch.TextDifferTest.class,
     updater.script.ScriptTest.class,
     updater.util.CommonUtilTest.class,
     updater.util.DownloadProgressUtilTest.class,
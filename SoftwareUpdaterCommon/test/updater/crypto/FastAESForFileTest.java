@@ -0,0 +1,190 @@
+package updater.crypto;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import updater.util.CommonUtil;
+import watne.seis720.project.AESForFile;
+import watne.seis720.project.AESForFileListener;
+import watne.seis720.project.KeySize;
+import watne.seis720.project.Mode;
+import watne.seis720.project.Padding;
+import static org.junit.Assert.*;
+
+/**
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class FastAESForFileTest {
+
+  public FastAESForFileTest() {
+  }
+
+  protected static String getClassName() {
+    return new Object() {
+    }.getClass().getEnclosingClass().getName();
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    System.out.println("***** " + getClassName() + " *****");
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception {
+    System.out.println("******************************\r\n");
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  protected static AESForFile setUpCipher(AESForFile cipher, byte[] key, byte[] iv) throws Exception {
+    cipher.setMode(Mode.CBC);
+    cipher.setPadding(Padding.PKCS5PADDING);
+    cipher.setKeySize(KeySize.BITS256);
+    cipher.setKey(key);
+    cipher.setInitializationVector(iv);
+    return cipher;
+  }
+
+  @Test
+  public void test() throws Exception {
+    System.out.println("+++++ test +++++");
+
+    File file = new File("FastAESForFileTest_j7Sd2.txt");
+    File encryptedFile = new File("FastAESForFileTest_j7Sd2.encrypted");
+    File fastEncryptedFile = new File("FastAESForFileTest_j7Sd2.fast_encrypted");
+    File decryptedFile = new File("FastAESForFileTest_j7Sd2.decrypted");
+
+    Random random = new Random();
+    byte[] key = new byte[32];
+    byte[] iv = new byte[16];
+    random.nextBytes(key);
+    random.nextBytes(iv);
+
+    try {
+      for (int length : new int[]{0, 1, 15, 16, 17, 32768, 40000}) {
+        byte[] content = new byte[length];
+        random.nextBytes(content);
+        CommonUtil.writeFile(file, content);
+
+        setUpCipher(new AESForFile(), key, iv).encryptFile(file, encryptedFile);
+        setUpCipher(new FastAESForFile(), key, iv).encryptFile(file, fastEncryptedFile);
+        assertTrue(Arrays.equals(CommonUtil.readFile(encryptedFile), CommonUtil.readFile(fastEncryptedFile)));
+
+        setUpCipher(new FastAESForFile(), key, iv).decryptFile(encryptedFile, decryptedFile);
+        assertTrue(Arrays.equals(content, CommonUtil.readFile(decryptedFile)));
+      }
+    } finally {
+      file.delete();
+      encryptedFile.delete();
+      fastEncryptedFile.delete();
+      decryptedFile.delete();
+    }
+  }
+
+  @Test
+  public void testParallelDecrypt() throws Exception {
+    System.out.println("+++++ testParallelDecrypt +++++");
+
+    File file = new File("FastAESForFileTest_p3Qa8.txt");
+    File encryptedFile = new File("FastAESForFileTest_p3Qa8.encrypted");
+    File decryptedFile = new File("FastAESForFileTest_p3Qa8.decrypted");
+
+    Random random = new Random();
+    byte[] key = new byte[32];
+    byte[] iv = new byte[16];
+    random.nextBytes(key);
+    random.nextBytes(iv);
+
+    try {
+      for (int length : new int[]{1048576, 1048577, 3145728, 5000000}) {
+        byte[] content = new byte[length];
+        random.nextBytes(content);
+        CommonUtil.writeFile(file, content);
+
+        setUpCipher(new FastAESForFile(), key, iv).encryptFile(file, encryptedFile);
+
+        FastAESForFile cipher = (FastAESForFile) setUpCipher(new FastAESForFile(), key, iv);
+        cipher.setThreads(4);
+        final int[] lastPercentage = new int[]{0};
+        cipher.setListener(new AESForFileListener() {
+
+          @Override
+          public void cryptProgress(int percentage) {
+            assertTrue(percentage > lastPercentage[0]);
+            lastPercentage[0] = percentage;
+          }
+        });
+        cipher.decryptFile(encryptedFile, decryptedFile);
+        assertTrue(Arrays.equals(content, CommonUtil.readFile(decryptedFile)));
+        assertEquals(100, lastPercentage[0]);
+      }
+    } finally {
+      file.delete();
+      encryptedFile.delete();
+      decryptedFile.delete();
+    }
+  }
+
+  @Test
+  public void testStream() throws Exception {
+    System.out.println("+++++ testStream +++++");
+
+    File file = new File("FastAESForFileTest_s9Ke1.txt");
+    File encryptedFile = new File("FastAESForFileTest_s9Ke1.encrypted");
+
+    Random random = new Random();
+    byte[] key = new byte[32];
+    byte[] iv = new byte[16];
+    random.nextBytes(key);
+    random.nextBytes(iv);
+    AESBlockCipher cipher = new AESBlockCipher(key, KeySize.BITS256.getNumRounds());
+
+    try {
+      for (int length : new int[]{0, 1, 15, 16, 17, 32768, 32784, 70000}) {
+        byte[] content = new byte[length];
+        random.nextBytes(content);
+        CommonUtil.writeFile(file, content);
+
+        setUpCipher(new FastAESForFile(), key, iv).encryptFile(file, encryptedFile);
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        AESEncryptOutputStream encryptOut = new AESEncryptOutputStream(bout, cipher);
+        for (int offset = 0, chunk = 1; offset < length; offset += chunk, chunk = chunk * 3 + 1) {
+          encryptOut.write(content, offset, Math.min(chunk, length - offset));
+        }
+        encryptOut.close();
+        assertEquals(length, encryptOut.getLength());
+        assertTrue(Arrays.equals(CommonUtil.readFile(encryptedFile), bout.toByteArray()));
+
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        AESDecryptInputStream decryptIn = new AESDecryptInputStream(new FileInputStream(encryptedFile), cipher);
+        try {
+          byte[] b = new byte[1000];
+          int byteRead;
+          while ((byteRead = decryptIn.read(b)) != -1) {
+            decrypted.write(b, 0, byteRead);
+          }
+        } finally {
+          decryptIn.close();
+        }
+        assertTrue(Arrays.equals(content, decrypted.toByteArray()));
+      }
+    } finally {
+      file.delete();
+      encryptedFile.delete();
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package updater.crypto;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class SHA256DigestTest {
+
+  public SHA256DigestTest() {
+  }
+
+  protected static String getClassName() {
+    return new Object() {
+    }.getClass().getEnclosingClass().getName();
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    System.out.println("***** " + getClassName() + " *****");
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception {
+    System.out.println("******************************\r\n");
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  @Test
+  public void test() throws Exception {
+    System.out.println("+++++ test +++++");
+
+    Random random = new Random();
+    for (int length : new int[]{0, 1, 55, 56, 63, 64, 65, 119, 120, 1000, 40000}) {
+      byte[] content = new byte[length];
+      random.nextBytes(content);
+
+      byte[] expected = MessageDigest.getInstance("SHA-256").digest(content);
+
+      SHA256Digest digest = new SHA256Digest();
+      digest.update(content, 0, length);
+      assertEquals(length, digest.getLength());
+      assertTrue(Arrays.equals(expected, digest.digest()));
+
+      // after digest(), the digest should be reset
+      for (byte b : content) {
+        digest.update(b);
+      }
+      assertTrue(Arrays.equals(expected, digest.digest()));
+    }
+  }
+
+  @Test
+  public void testState() throws Exception {
+    System.out.println("+++++ testState +++++");
+
+    Random random = new Random();
+    byte[] content = new byte[10000];
+    random.nextBytes(content);
+    byte[] expected = MessageDigest.getInstance("SHA-256").digest(content);
+
+    for (int split : new int[]{0, 1, 63, 64, 65, 5000, 10000}) {
+      SHA256Digest digest = new SHA256Digest();
+      digest.update(content, 0, split);
+      byte[] state = digest.getState();
+
+      SHA256Digest resumedDigest = new SHA256Digest();
+      resumedDigest.setState(state);
+      assertEquals(split, resumedDigest.getLength());
+      resumedDigest.update(content, split, content.length - split);
+      assertTrue(Arrays.equals(expected, resumedDigest.digest()));
+    }
+
+    try {
+      new SHA256Digest().setState(new byte[3]);
+      fail("Invalid state should be rejected.");
+    } catch (IOException ex) {
+    }
+  }
+}
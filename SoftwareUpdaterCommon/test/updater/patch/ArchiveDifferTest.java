@@ -0,0 +1,241 @@
+package updater.patch;
+
+import com.nothome.delta.ByteBufferSeekableSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import updater.util.CommonUtil;
+import static org.junit.Assert.*;
+
+/**
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class ArchiveDifferTest {
+
+  public ArchiveDifferTest() {
+  }
+
+  protected static String getClassName() {
+    return new Object() {
+    }.getClass().getEnclosingClass().getName();
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    System.out.println("***** " + getClassName() + " *****");
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception {
+    System.out.println("******************************\r\n");
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  protected static byte[] createArchive(byte[][] contents, int level) throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    ZipOutputStream zipOut = new ZipOutputStream(bout);
+    zipOut.setLevel(level);
+    for (int i = 0; i < contents.length; i++) {
+      ZipEntry entry = new ZipEntry("entry" + i);
+      if (i % 4 == 3) {
+        // stored entry
+        CRC32 crc32 = new CRC32();
+        crc32.update(contents[i]);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(contents[i].length);
+        entry.setCrc(crc32.getValue());
+      }
+      zipOut.putNextEntry(entry);
+      zipOut.write(contents[i]);
+      zipOut.closeEntry();
+    }
+    zipOut.close();
+    return bout.toByteArray();
+  }
+
+  protected static byte[] diffAndPatch(ArchiveDiffer differ, byte[] oldData, byte[] newData) throws IOException {
+    ByteArrayOutputStream diffOut = new ByteArrayOutputStream();
+    differ.diff(oldData, newData, diffOut);
+    // the patcher should read exactly the diff and leave the trailing bytes
+    diffOut.write(new byte[]{1, 2, 3});
+    byte[] diff = diffOut.toByteArray();
+
+    ByteArrayInputStream patchIn = new ByteArrayInputStream(diff);
+    ByteArrayOutputStream newOut = new ByteArrayOutputStream();
+    differ.patch(new ByteBufferSeekableSource(oldData), patchIn, newOut);
+    assertArrayEquals(newData, newOut.toByteArray());
+    assertEquals(3, patchIn.available());
+
+    return diff;
+  }
+
+  @Test
+  public void test() throws IOException {
+    System.out.println("+++++ test +++++");
+
+    Random random = new Random(22);
+
+    byte[][] oldContents = new byte[10][];
+    byte[][] newContents = new byte[10][];
+    for (int i = 0; i < oldContents.length; i++) {
+      // compressible content
+      oldContents[i] = new byte[i == 5 ? 0 : 20000 + random.nextInt(20000)];
+      for (int j = 0; j < oldContents[i].length; j++) {
+        oldContents[i][j] = (byte) ('a' + random.nextInt(4));
+      }
+      newContents[i] = oldContents[i].clone();
+      if (i % 2 == 0 && newContents[i].length > 0) {
+        newContents[i][random.nextInt(newContents[i].length)] = 'z';
+      }
+    }
+
+    for (int level : new int[]{Deflater.DEFAULT_COMPRESSION, 1, 9}) {
+      byte[] oldData = createArchive(oldContents, level);
+      byte[] newData = createArchive(newContents, level);
+
+      List<ArchiveDiffer.Entry> entries = ArchiveDiffer.readEntries(newData);
+      assertNotNull(entries);
+      assertEquals(8, entries.size());
+
+      for (DiffEncoding diffEncoding : new DiffEncoding[]{DiffEncoding.GDIFF, DiffEncoding.SUFFIX_ARRAY}) {
+        ArchiveDiffer differ = new ArchiveDiffer(diffEncoding);
+        byte[] diff = diffAndPatch(differ, oldData, newData);
+
+        ByteArrayOutputStream plainDiffOut = new ByteArrayOutputStream();
+        diffEncoding.getDiffer().diff(oldData, newData, plainDiffOut);
+        assertTrue(diff.length < plainDiffOut.size() / 4);
+
+        diffAndPatch(differ, oldData, oldData);
+        diffAndPatch(differ, new byte[0], newData);
+        diffAndPatch(differ, newData, new byte[0]);
+      }
+    }
+
+    // not archives
+    byte[] oldData = new byte[5000];
+    random.nextBytes(oldData);
+    byte[] newData = oldData.clone();
+    newData[100]++;
+    assertNull(ArchiveDiffer.readEntries(oldData));
+    diffAndPatch(new ArchiveDiffer(), oldData, newData);
+
+    File oldFile = new File("ArchiveDifferTest_s7Gd2_old");
+    File newFile = new File("ArchiveDifferTest_s7Gd2_new");
+    try {
+      CommonUtil.writeFile(oldFile, oldData);
+      CommonUtil.writeFile(newFile, createArchive(newContents, 9));
+      assertFalse(new ArchiveDiffer().canDiff(oldFile, newFile));
+      CommonUtil.writeFile(oldFile, createArchive(oldContents, 9));
+      assertTrue(new ArchiveDiffer().canDiff(oldFile, newFile));
+    } finally {
+      oldFile.delete();
+      newFile.delete();
+    }
+  }
+
+  @Test
+  public void testRecompress() throws IOException {
+    System.out.println("+++++ testRecompress +++++");
+
+    byte[] content = new byte[10000];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) ('a' + i % 7);
+    }
+    ByteArrayOutputStream compressedOut = new ByteArrayOutputStream();
+    ArchiveDiffer.deflate(content, 6, Deflater.DEFAULT_STRATEGY, compressedOut);
+    byte[] compressed = compressedOut.toByteArray();
+    long crc = ArchiveDiffer.getCRC32(content);
+
+    assertArrayEquals(compressed, recompress(content, compressed.length, crc));
+
+    // the entry with mismatched content or compressed length is reported
+    try {
+      recompress(content, compressed.length, crc + 1);
+      fail("IOException expected");
+    } catch (IOException ex) {
+      assertTrue(ex.getMessage().contains("CRC-32"));
+    }
+    try {
+      recompress(content, compressed.length + 1, crc);
+      fail("IOException expected");
+    } catch (IOException ex) {
+      assertTrue(ex.getMessage().contains("compressed length"));
+    }
+  }
+
+  @Test
+  public void testMismatch() throws IOException {
+    System.out.println("+++++ testMismatch +++++");
+
+    byte[][] oldContents = new byte[1][20000];
+    for (int i = 0; i < oldContents[0].length; i++) {
+      oldContents[0][i] = (byte) ('a' + (i * i) % 13);
+    }
+    byte[][] newContents = new byte[][]{oldContents[0].clone()};
+    newContents[0][100] = 'z';
+    byte[] oldData = createArchive(oldContents, 9);
+    byte[] newData = createArchive(newContents, 9);
+
+    ByteArrayOutputStream diffOut = new ByteArrayOutputStream();
+    new ArchiveDiffer().diff(oldData, newData, diffOut);
+    byte[] diff = diffOut.toByteArray();
+
+    // find the strategy of the new entry and change it, as if the Deflater of the patching side produces different output
+    ByteArrayInputStream diffIn = new ByteArrayInputStream(diff);
+    diffIn.skip(4);
+    diffIn.skip(SuffixArrayDiffer.readVarint(diffIn));
+    for (long i = 0, iEnd = SuffixArrayDiffer.readVarint(diffIn) * 3; i < iEnd; i++) {
+      SuffixArrayDiffer.readVarint(diffIn);
+    }
+    assertEquals(1, SuffixArrayDiffer.readVarint(diffIn));
+    for (int i = 0; i < 4; i++) {
+      SuffixArrayDiffer.readVarint(diffIn);
+    }
+    int strategyPosition = diff.length - diffIn.available() + 1;
+    assertEquals(Deflater.DEFAULT_STRATEGY, diff[strategyPosition]);
+    diff[strategyPosition] = Deflater.HUFFMAN_ONLY;
+
+    try {
+      new ArchiveDiffer().patch(new ByteBufferSeekableSource(oldData), new ByteArrayInputStream(diff), new ByteArrayOutputStream());
+      fail("IOException expected");
+    } catch (IOException ex) {
+      assertTrue(ex.getMessage().contains("Failed to reproduce the compressed entry"));
+    }
+  }
+
+  protected static byte[] recompress(byte[] content, int length, long crc) throws IOException {
+    ArchiveDiffer.Entry entry = new ArchiveDiffer.Entry(3, length, content.length);
+    entry.crc = crc;
+    entry.level = 6;
+    entry.strategy = Deflater.DEFAULT_STRATEGY;
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ArchiveDiffer.RecompressOutputStream recompressOut = new ArchiveDiffer.RecompressOutputStream(out, Arrays.asList(entry));
+    recompressOut.write(new byte[]{1, 2, 3});
+    recompressOut.write(content);
+    recompressOut.finish();
+
+    byte[] data = out.toByteArray();
+    return Arrays.copyOfRange(data, 3, data.length);
+  }
+}
@@ -0,0 +1,111 @@
+package updater.patch;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import updater.util.CommonUtil;
+import static org.junit.Assert.*;
+
+/**
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class FileChecksumIndexTest {
+
+  public FileChecksumIndexTest() {
+  }
+
+  protected static String getClassName() {
+    return new Object() {
+    }.getClass().getEnclosingClass().getName();
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    System.out.println("***** " + getClassName() + " *****");
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception {
+    System.out.println("******************************\r\n");
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  @Test
+  public void test() throws IOException {
+    System.out.println("+++++ test +++++");
+
+    File indexFile = new File("FileChecksumIndexTest_k3Ds8.idx");
+    File file = new File("FileChecksumIndexTest_k3Ds8.txt");
+    indexFile.delete();
+    file.delete();
+
+    try {
+      CommonUtil.writeFile(file, "content");
+      String checksum = CommonUtil.getSHA256String(file);
+
+      FileChecksumIndex index = new FileChecksumIndex(indexFile);
+      assertNull(index.get(file));
+      assertEquals(checksum, index.getSHA256String(file));
+      assertEquals(checksum, index.get(file));
+      index.save();
+
+      // the recorded checksum is trusted even if it is not the real one
+      index.put(file, "recorded");
+      index.save();
+      index = new FileChecksumIndex(indexFile);
+      assertEquals("recorded", index.getSHA256String(file));
+
+      // the record is dropped when the file changed
+      CommonUtil.writeFile(file, "new content");
+      assertNull(index.get(file));
+      assertEquals(CommonUtil.getSHA256String(file), index.getSHA256String(file));
+
+      // the record of the file not exist will not be saved
+      index.put(new File("FileChecksumIndexTest_k3Ds8_not_exist.txt"), "recorded");
+      index.save();
+      index = new FileChecksumIndex(indexFile);
+      assertNull(index.get(new File("FileChecksumIndexTest_k3Ds8_not_exist.txt")));
+      assertEquals(CommonUtil.getSHA256String(file), index.get(file));
+
+      // the record is dropped when the file is replaced by another file with the same length and last modified time
+      assertEquals("", FileChecksumIndex.getFileKey(new File("FileChecksumIndexTest_k3Ds8_not_exist.txt")));
+      if (!FileChecksumIndex.getFileKey(file).equals("")) {
+        File replacement = new File("FileChecksumIndexTest_k3Ds8_replacement.txt");
+        CommonUtil.writeFile(replacement, "new content");
+        assertTrue(replacement.setLastModified(file.lastModified()));
+        assertTrue(file.delete());
+        assertTrue(replacement.renameTo(file));
+        assertNull(index.get(file));
+      }
+
+      // the broken index is discarded
+      DataOutputStream out = new DataOutputStream(new FileOutputStream(indexFile));
+      try {
+        out.writeInt(FileChecksumIndex.FORMAT_VERSION);
+        out.writeInt(1);
+        out.writeShort(2);
+        out.write(new byte[]{(byte) 0xff, (byte) 0xff});
+      } finally {
+        out.close();
+      }
+      index = new FileChecksumIndex(indexFile);
+      assertNull(index.get(file));
+    } finally {
+      indexFile.delete();
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package updater.patch;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class MinHashSketchTest {
+
+  public MinHashSketchTest() {
+  }
+
+  protected static String getClassName() {
+    return new Object() {
+    }.getClass().getEnclosingClass().getName();
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    System.out.println("***** " + getClassName() + " *****");
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception {
+    System.out.println("******************************\r\n");
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  protected static MinHashSketch sketch(byte[] data) throws IOException {
+    MinHashSketch sketch = MinHashSketch.create(new ByteArrayInputStream(data), 128);
+    long[] hashes = sketch.getHashes();
+    assertTrue(hashes.length <= 128);
+    for (int i = 1; i < hashes.length; i++) {
+      assertTrue(hashes[i - 1] < hashes[i]);
+    }
+    return sketch;
+  }
+
+  @Test
+  public void test() throws IOException {
+    System.out.println("+++++ test +++++");
+
+    Random random = new Random(1);
+    byte[] data = new byte[200000];
+    random.nextBytes(data);
+    // change about 1% of the shingles
+    byte[] modifiedData = data.clone();
+    for (int i = 0; i < modifiedData.length; i += 1000) {
+      modifiedData[i] ^= 1;
+    }
+    byte[] otherData = new byte[200000];
+    random.nextBytes(otherData);
+
+    MinHashSketch sketch = sketch(data);
+    assertEquals(128, sketch.getHashes().length);
+    assertEquals(1F, sketch.getSimilarity(sketch(data.clone())), 0F);
+    assertTrue(sketch.getSimilarity(sketch(modifiedData)) > 0.8F);
+    assertTrue(sketch.getSimilarity(sketch(otherData)) < 0.1F);
+
+    // content shorter than a shingle has no hash
+    assertEquals(0, sketch(new byte[7]).getHashes().length);
+    assertEquals(0F, sketch(new byte[7]).getSimilarity(sketch(new byte[7])), 0F);
+  }
+
+  @Test
+  public void versionlessNameTest() {
+    System.out.println("+++++ versionlessNameTest +++++");
+
+    assertEquals("commons-io-#.jar", PatchCreator.getVersionlessName("commons-io-2.16.1.jar"));
+    assertEquals(PatchCreator.getVersionlessName("asm-9.6.jar"), PatchCreator.getVersionlessName("asm-9.7.jar"));
+    assertEquals("jar", PatchCreator.getExtension("asm-9.7.JAR"));
+    assertEquals("", PatchCreator.getExtension("LICENSE"));
+  }
+}
@@ -0,0 +1,133 @@
+package updater.patch;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.xml.transform.TransformerException;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import updater.TestCommon;
+import updater.script.InvalidFormatException;
+import updater.script.Patch;
+import updater.script.Patch.Operation;
+import updater.script.Patch.ValidationFile;
+import updater.util.CommonUtil;
+import static org.junit.Assert.*;
+
+/**
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class PatchManifestTest {
+
+  protected final String scriptPackagePath = TestCommon.pathToTestPackage + "updater/script/ScriptTest/";
+
+  public PatchManifestTest() {
+  }
+
+  protected static String getClassName() {
+    return new Object() {
+    }.getClass().getEnclosingClass().getName();
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    System.out.println("***** " + getClassName() + " *****");
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception {
+    System.out.println("******************************\r\n");
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  @Test
+  public void test() throws IOException, InvalidFormatException, TransformerException {
+    System.out.println("+++++ test +++++");
+
+    for (int i = 1; i <= 4; i++) {
+      Patch patch = Patch.read(CommonUtil.readFile(new File(scriptPackagePath + "ScriptTest_patch" + i + ".xml")));
+      patch.setDownloadChunkChecksums(1024, Arrays.asList(CommonUtil.byteArrayToHexString(new byte[32]), "not a digest"));
+
+      byte[] manifest = PatchManifest.output(patch);
+      Patch readPatch = PatchManifest.read(manifest);
+      assertArrayEquals(patch.output(), readPatch.output());
+      assertEquals(1024, readPatch.getDownloadChunkLength());
+      assertEquals(patch.getDownloadChunkChecksums(), readPatch.getDownloadChunkChecksums());
+
+      // the manifest is recognized in place of the patch XML
+      ByteArrayOutputStream bout = new ByteArrayOutputStream();
+      PatchWriteUtil.writeManifest(bout, manifest);
+      readPatch = PatchReadUtil.readXML(new ByteArrayInputStream(bout.toByteArray()));
+      assertArrayEquals(patch.output(), readPatch.output());
+
+      bout = new ByteArrayOutputStream();
+      PatchWriteUtil.writeXML(bout, patch.output());
+      readPatch = PatchReadUtil.readXML(new ByteArrayInputStream(bout.toByteArray()));
+      assertArrayEquals(patch.output(), readPatch.output());
+    }
+  }
+
+  @Test
+  public void streamTest() throws IOException, InvalidFormatException, TransformerException {
+    System.out.println("+++++ streamTest +++++");
+
+    List<Operation> operations = new ArrayList<Operation>();
+    List<ValidationFile> validations = new ArrayList<ValidationFile>();
+    int patchPos = 0;
+    for (int i = 1; i <= 1000; i++) {
+      String checksum = CommonUtil.byteArrayToHexString(new byte[]{(byte) i, (byte) (i >> 8), 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 24, 25, 26, 27, 28, 29, 30});
+      String path = "lib/module" + (i / 100) + "/\u6587\u4ef6" + i + ".jar";
+      operations.add(new Operation(i, "patch", patchPos, i, "file", path, checksum, i * 2, checksum, i * 3));
+      validations.add(new ValidationFile(path, checksum, i * 3));
+      patchPos += i;
+    }
+    operations.add(new Operation(1001, "remove", 0, 0, "folder", "lib/module0", null, -1, "", -1));
+    Operation moveOperation = new Operation(1002, "move", 0, 0, "file", "lib/\u6587\u4ef61.jar", operations.get(0).getOldFileChecksum(), 2, operations.get(0).getOldFileChecksum(), 2);
+    moveOperation.setSourceFilePath("lib/module0/\u6587\u4ef61.jar");
+    operations.add(moveOperation);
+    Patch patch = new Patch(1, "patch", "1.0.0", null, "1.0.1", null, null, -1, null, null, null, operations, validations);
+
+    byte[] xml = patch.output();
+    byte[] manifest = PatchManifest.output(patch);
+    assertTrue(manifest.length < xml.length / 4);
+
+    PatchManifest.StreamReader reader = new PatchManifest.StreamReader(manifest);
+    try {
+      assertEquals("1.0.1", reader.getPatch().getVersionTo());
+      assertEquals(1002, reader.countOperations());
+      Operation operation = reader.nextOperation();
+      assertEquals(1, operation.getId());
+      assertEquals("lib/module0/\u6587\u4ef61.jar", operation.getDestFilePath());
+      // the remaining operations are skipped
+      ValidationFile validation = reader.nextValidation();
+      assertEquals("lib/module0/\u6587\u4ef61.jar", validation.getFilePath());
+      assertEquals(3, validation.getFileLength());
+      assertNull(reader.nextOperation());
+    } finally {
+      reader.close();
+    }
+
+    assertArrayEquals(xml, PatchManifest.read(manifest).output());
+    assertEquals("lib/module0/\u6587\u4ef61.jar", PatchManifest.read(manifest).getOperations().get(1001).getSourceFilePath());
+
+    try {
+      PatchManifest.read(Arrays.copyOf(manifest, manifest.length - 1));
+      fail("truncated manifest should not be read");
+    } catch (InvalidFormatException ex) {
+    }
+  }
+}
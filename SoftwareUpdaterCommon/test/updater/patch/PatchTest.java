@@ -2,9 +2,16 @@ package updater.patch;
 
 import updater.concurrent.ConcurrentLock;
 import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 import updater.crypto.AESKey;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import updater.TestCommon;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -13,6 +20,8 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import updater.concurrent.LockUtil;
 import updater.crypto.KeyGenerator;
+import updater.script.Patch.Operation;
+import updater.script.Patch.ValidationFile;
 import updater.util.CommonUtil;
 import static org.junit.Assert.*;
 
@@ -709,6 +718,230 @@ public class PatchTest {
     }
   }
 
+  @Test
+  public void testCreatePatchWithThreads() throws Exception {
+    System.out.println("+++++ testCreatePatchWithThreads +++++");
+
+    File oldFolder = new File(packagePath + File.separator + "test3/software/1.0");
+    File newFolder = new File(packagePath + File.separator + "test3/software/1.1");
+    File patch = new File(tempDir.getAbsolutePath() + File.separator + "patch");
+    File patchWithThreads = new File(tempDir.getAbsolutePath() + File.separator + "patch_threads");
+    File tempDirForCreatePatch = new File(tempDir.getAbsolutePath() + File.separator + "create_patch");
+    tempDirForCreatePatch.mkdirs();
+
+    PatchCreator.createPatch(oldFolder, newFolder, tempDirForCreatePatch, patch, 1, "1.0.0", "1.0.1", null, null);
+    PatchCreator.createPatch(oldFolder, newFolder, tempDirForCreatePatch, patchWithThreads, 1, "1.0.0", "1.0.1", null, null, 4);
+    assertTrue(CommonUtil.compareFile(patch, patchWithThreads));
+
+    assertTrue(CommonUtil.truncateFolder(tempDir));
+    tempDir.delete();
+  }
+
+  @Test
+  public void testIndexedPatch() throws Exception {
+    System.out.println("+++++ testIndexedPatch +++++");
+
+    File oldFolder = new File(packagePath + File.separator + "test3/software/1.0");
+    File newFolder = new File(packagePath + File.separator + "test3/software/1.1");
+    File patch = new File(tempDir.getAbsolutePath() + File.separator + "patch");
+    File repackedPatch = new File(tempDir.getAbsolutePath() + File.separator + "patch_repacked");
+    File tempDirForCreatePatch = new File(tempDir.getAbsolutePath() + File.separator + "create_patch");
+    File extractFolder = new File(tempDir.getAbsolutePath() + File.separator + "extract");
+    tempDirForCreatePatch.mkdirs();
+
+    PatchCreator.createPatch(oldFolder, newFolder, tempDirForCreatePatch, patch, 1, "1.0.0", "1.0.1", null, null);
+    assertTrue(IndexedPatchReader.isIndexedPatch(patch));
+
+    // read the content of the last operation directly
+    IndexedPatchReader reader = new IndexedPatchReader(patch);
+    try {
+      List<Operation> operations = reader.readXML().getOperations();
+      Operation lastOperation = null;
+      for (Operation operation : operations) {
+        if (operation.getPatchLength() > 0) {
+          lastOperation = operation;
+        }
+      }
+      assertNotNull(lastOperation);
+
+      InputStream in = reader.getPatchInputStream(lastOperation);
+      try {
+        new DataInputStream(in).readFully(new byte[lastOperation.getPatchLength()]);
+        assertEquals(-1, in.read());
+      } finally {
+        in.close();
+      }
+    } finally {
+      reader.close();
+    }
+
+    PatchExtractor.extract(patch, extractFolder, null, null);
+    PatchPacker.pack(extractFolder, repackedPatch, null, null);
+    assertTrue(CommonUtil.compareFile(patch, repackedPatch));
+
+    assertTrue(CommonUtil.truncateFolder(tempDir));
+    tempDir.delete();
+  }
+
+  @Test
+  public void testPatchWithThreads() throws Exception {
+    System.out.println("+++++ testPatchWithThreads +++++");
+
+    File oldFolder = new File(packagePath + File.separator + "test3/software/1.0");
+    File newFolder = new File(packagePath + File.separator + "test3/software/1.1");
+    File patch = new File(tempDir.getAbsolutePath() + File.separator + "patch");
+    File tempDirForCreatePatch = new File(tempDir.getAbsolutePath() + File.separator + "create_patch");
+    File softwareFolder = new File(tempDir.getAbsolutePath() + File.separator + "software");
+    File tempDirForPatch = new File(tempDir.getAbsolutePath() + File.separator + "apply_patch");
+    File logFile = new File(tempDir.getAbsolutePath() + File.separator + "action.log");
+    tempDirForCreatePatch.mkdirs();
+    softwareFolder.mkdirs();
+    tempDirForPatch.mkdirs();
+
+    PatchCreator.createPatch(oldFolder, newFolder, tempDirForCreatePatch, patch, 1, "1.0.0", "1.0.1", null, null);
+    TestCommon.copyFolder(oldFolder, softwareFolder);
+
+    List<ReplacementRecord> replacementFailedList = new Patcher(logFile, 4).doPatch(new PatcherListener() {
+
+      @Override
+      public void patchProgress(int percentage, String message) {
+      }
+
+      @Override
+      public void patchEnableCancel(boolean enable) {
+      }
+    }, patch, 0, null, softwareFolder, tempDirForPatch, new HashMap<String, String>());
+    assertTrue(replacementFailedList.isEmpty());
+    assertTrue(TestCommon.compareFolder(softwareFolder, newFolder));
+
+    assertTrue(CommonUtil.truncateFolder(tempDir));
+    tempDir.delete();
+  }
+
+  @Test
+  public void testMoveAndCopy() throws Exception {
+    System.out.println("+++++ testMoveAndCopy +++++");
+
+    File oldFolder = new File(packagePath + File.separator + "move_test/software/1.0");
+    File newFolder = new File(packagePath + File.separator + "move_test/software/1.1");
+    File patch = new File(tempDir.getAbsolutePath() + File.separator + "patch");
+    File tempDirForCreatePatch = new File(tempDir.getAbsolutePath() + File.separator + "create_patch");
+    File logFile = new File(tempDir.getAbsolutePath() + File.separator + "action.log");
+    tempDirForCreatePatch.mkdirs();
+    softwareFolder.mkdirs();
+    tempDirForApplyPatch.mkdirs();
+
+    PatchCreator.createPatch(oldFolder, newFolder, tempDirForCreatePatch, patch, 1, "1.0.0", "1.0.1", null, null);
+
+    // lib/a.txt is moved to bin/a.txt, b.txt is copied to b_copy.txt and the old c.txt is copied to d.txt before c.txt is patched
+    Map<String, Operation> operations = new HashMap<String, Operation>();
+    IndexedPatchReader reader = new IndexedPatchReader(patch);
+    try {
+      for (Operation operation : reader.readXML().getOperations()) {
+        operations.put(operation.getDestFilePath(), operation);
+      }
+    } finally {
+      reader.close();
+    }
+    assertEquals("move", operations.get("bin/a.txt").getType());
+    assertEquals("lib/a.txt", operations.get("bin/a.txt").getSourceFilePath());
+    assertEquals(0, operations.get("bin/a.txt").getPatchLength());
+    assertEquals("copy", operations.get("b_copy.txt").getType());
+    assertEquals("b.txt", operations.get("b_copy.txt").getSourceFilePath());
+    assertEquals("copy", operations.get("d.txt").getType());
+    assertEquals("c.txt", operations.get("d.txt").getSourceFilePath());
+    assertEquals("patch", operations.get("c.txt").getType());
+
+    TestCommon.copyFolder(oldFolder, softwareFolder);
+    List<ReplacementRecord> replacementFailedList = detailPatchingTestInit(patch, null);
+    assertTrue(replacementFailedList.isEmpty());
+    assertTrue(TestCommon.compareFolder(softwareFolder, newFolder));
+    assertFalse(new File(softwareFolder.getAbsolutePath() + File.separator + "lib").exists());
+
+    new Patcher(logFile).revert();
+    assertTrue(TestCommon.compareFolder(softwareFolder, oldFolder));
+    assertFalse(new File(softwareFolder.getAbsolutePath() + File.separator + "bin").exists());
+
+    assertTrue(CommonUtil.truncateFolder(tempDir));
+    tempDir.delete();
+  }
+
+  @Test
+  public void testValidateFiles() throws Exception {
+    System.out.println("+++++ testValidateFiles +++++");
+
+    File folder = new File(packagePath + File.separator + "move_test/software/1.1");
+    String[] filePaths = new String[]{"b.txt", "b_copy.txt", "bin/a.txt", "c.txt", "d.txt"};
+    List<ValidationFile> validations = new ArrayList<ValidationFile>();
+    validations.add(new ValidationFile("bin", "", -1));
+    for (String filePath : filePaths) {
+      File file = new File(folder.getAbsolutePath() + File.separator + filePath);
+      validations.add(new ValidationFile(filePath, CommonUtil.getSHA256String(file), (int) file.length()));
+    }
+
+    final List<Integer> progresses = Collections.synchronizedList(new ArrayList<Integer>());
+    Patcher patcher = new Patcher(new File(tempDir.getAbsolutePath() + File.separator + "action.log"), 4);
+    patcher.softwareDir = folder.getAbsolutePath() + File.separator;
+    patcher.listener = new PatcherListener() {
+
+      @Override
+      public void patchProgress(int percentage, String message) {
+        progresses.add(percentage);
+      }
+
+      @Override
+      public void patchEnableCancel(boolean enable) {
+      }
+    };
+
+    //<editor-fold defaultstate="collapsed" desc="test all files matched">
+    System.out.println("+ test all files matched");
+
+    patcher.progress = 0;
+    patcher.validateFiles(validations, 10F);
+
+    assertEquals(60F, patcher.progress, 0.001F);
+    assertEquals(Arrays.asList(10, 20, 30, 40, 50, 60), progresses);
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="test file not matched">
+    System.out.println("+ test file not matched");
+
+    List<ValidationFile> invalidValidations = new ArrayList<ValidationFile>(validations);
+    ValidationFile validation = validations.get(4);
+    invalidValidations.set(4, new ValidationFile(validation.getFilePath(), validations.get(5).getFileChecksum(), validation.getFileLength()));
+    try {
+      patcher.validateFiles(invalidValidations, 10F);
+      fail("! Validation should fail.");
+    } catch (IOException ex) {
+      assertTrue(ex.getMessage().startsWith("File checksum incorrect: "));
+      assertTrue(ex.getMessage().endsWith("c.txt"));
+    }
+
+    invalidValidations = new ArrayList<ValidationFile>(validations);
+    invalidValidations.set(4, new ValidationFile(validation.getFilePath(), validation.getFileChecksum(), validation.getFileLength() + 1));
+    try {
+      patcher.validateFiles(invalidValidations, 10F);
+      fail("! Validation should fail.");
+    } catch (IOException ex) {
+      assertTrue(ex.getMessage().startsWith("File length not matched, file: "));
+    }
+
+    invalidValidations = new ArrayList<ValidationFile>(validations);
+    invalidValidations.add(0, new ValidationFile("e.txt", validation.getFileChecksum(), validation.getFileLength()));
+    invalidValidations.add(new ValidationFile("lib", "", -1));
+    try {
+      patcher.validateFiles(invalidValidations, 10F);
+      fail("! Validation should fail.");
+    } catch (IOException ex) {
+      assertTrue(ex.getMessage().startsWith("File missed: ") || ex.getMessage().startsWith("Folder missed: "));
+    }
+    //</editor-fold>
+
+    assertTrue(CommonUtil.truncateFolder(tempDir));
+    tempDir.delete();
+  }
+
 //  @Test
   public void patchingTest() throws Exception {
     System.out.println("+++++ patchingTest +++++");
@@ -0,0 +1,106 @@
+package updater.patch;
+
+import com.nothome.delta.ByteBufferSeekableSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class SuffixArrayDifferTest {
+
+  public SuffixArrayDifferTest() {
+  }
+
+  protected static String getClassName() {
+    return new Object() {
+    }.getClass().getEnclosingClass().getName();
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    System.out.println("***** " + getClassName() + " *****");
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception {
+    System.out.println("******************************\r\n");
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  protected static byte[] diffAndPatch(byte[] oldData, byte[] newData) throws IOException {
+    SuffixArrayDiffer differ = new SuffixArrayDiffer();
+
+    ByteArrayOutputStream diffOut = new ByteArrayOutputStream();
+    differ.diff(oldData, newData, diffOut);
+    // the patcher should read exactly the diff and leave the trailing bytes
+    diffOut.write(new byte[]{1, 2, 3});
+    byte[] diff = diffOut.toByteArray();
+
+    ByteArrayInputStream patchIn = new ByteArrayInputStream(diff);
+    ByteArrayOutputStream newOut = new ByteArrayOutputStream();
+    differ.patch(new ByteBufferSeekableSource(oldData), patchIn, newOut);
+    assertArrayEquals(newData, newOut.toByteArray());
+    assertEquals(3, patchIn.available());
+
+    return diff;
+  }
+
+  @Test
+  public void test() throws IOException {
+    System.out.println("+++++ test +++++");
+
+    Random random = new Random(20);
+
+    byte[] oldData = new byte[65536];
+    random.nextBytes(oldData);
+
+    // insert, delete and modify some blocks
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    bout.write(oldData, 0, 10000);
+    bout.write(new byte[]{'i', 'n', 's', 'e', 'r', 't'});
+    bout.write(oldData, 12000, 30000);
+    for (int i = 42000; i < 50000; i++) {
+      bout.write(i % 7 == 0 ? oldData[i] + 1 : oldData[i]);
+    }
+    bout.write(oldData, 0, 2000);
+    bout.write(oldData, 50000, oldData.length - 50000);
+    byte[] newData = bout.toByteArray();
+
+    byte[] diff = diffAndPatch(oldData, newData);
+    assertTrue(diff.length < newData.length / 4);
+
+    diffAndPatch(oldData, oldData);
+    diffAndPatch(oldData, new byte[0]);
+    diffAndPatch(new byte[0], newData);
+    diffAndPatch(new byte[0], new byte[0]);
+
+    for (int i = 0; i < 50; i++) {
+      oldData = new byte[random.nextInt(2000)];
+      newData = new byte[random.nextInt(2000)];
+      // small alphabet to have a lot of repeated suffixes
+      for (int j = 0; j < oldData.length; j++) {
+        oldData[j] = (byte) random.nextInt(3);
+      }
+      for (int j = 0; j < newData.length; j++) {
+        newData[j] = (byte) random.nextInt(3);
+      }
+      diffAndPatch(oldData, newData);
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package updater.patch;
+
+import com.nothome.delta.ByteBufferSeekableSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class TextDifferTest {
+
+  public TextDifferTest() {
+  }
+
+  protected static String getClassName() {
+    return new Object() {
+    }.getClass().getEnclosingClass().getName();
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    System.out.println("***** " + getClassName() + " *****");
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception {
+    System.out.println("******************************\r\n");
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  protected static byte[] diffAndPatch(byte[] oldData, byte[] newData) throws IOException {
+    TextDiffer differ = new TextDiffer();
+
+    ByteArrayOutputStream diffOut = new ByteArrayOutputStream();
+    differ.diff(oldData, newData, diffOut);
+    // the patcher should read exactly the diff and leave the trailing bytes
+    diffOut.write(new byte[]{1, 2, 3});
+    byte[] diff = diffOut.toByteArray();
+
+    ByteArrayInputStream patchIn = new ByteArrayInputStream(diff);
+    ByteArrayOutputStream newOut = new ByteArrayOutputStream();
+    differ.patch(new ByteBufferSeekableSource(oldData), patchIn, newOut);
+    assertArrayEquals(newData, newOut.toByteArray());
+    assertEquals(3, patchIn.available());
+
+    return diff;
+  }
+
+  @Test
+  public void test() throws IOException {
+    System.out.println("+++++ test +++++");
+
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 500; i++) {
+      sb.append("property.").append(i).append("=value ").append(i * 7).append("\r\n");
+    }
+    String oldText = sb.toString();
+    String newText = oldText.replace("property.250=", "property.250.new=").replace("value 21\r\n", "value twenty-one\n");
+
+    byte[] diff = diffAndPatch(oldText.getBytes("UTF-8"), newText.getBytes("UTF-8"));
+    assertTrue(diff.length < newText.length() / 10);
+
+    // any byte should be reproduced
+    byte[] oldData = new byte[512];
+    for (int i = 0; i < oldData.length; i++) {
+      oldData[i] = (byte) i;
+    }
+    byte[] newData = oldData.clone();
+    newData[300] = (byte) 0xff;
+    diffAndPatch(oldData, newData);
+
+    diffAndPatch(oldData, new byte[0]);
+    diffAndPatch(new byte[0], newData);
+  }
+}
@@ -1,15 +1,21 @@
 package updater.script;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import javax.xml.transform.TransformerException;
 import updater.TestCommon;
 import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import updater.script.Patch.Operation;
 import updater.util.CommonUtil;
+import updater.util.XMLUtil;
 import static org.junit.Assert.*;
 
 /**
@@ -93,6 +99,76 @@ public class ScriptTest {
         assertArrayEquals(new String(catalogScript.output(), "UTF-8"), catalog2Data, catalogScript.output());
     }
 
+    @Test
+    public void catalogFeedTest() throws IOException, InvalidFormatException, TransformerException {
+        System.out.println("+++++ catalogFeedTest +++++");
+
+        byte[] catalog2Data = CommonUtil.readFile(new File(packagePath + "ScriptTest_catalog2.xml"));
+        assertNotNull(catalog2Data);
+
+        List<Patch> allPatches = Catalog.read(catalog2Data).getPatchs();
+        assertEquals(2, allPatches.size());
+
+        Catalog catalog = new Catalog(allPatches.subList(0, 1));
+        assertEquals(0, catalog.getVersion());
+
+        // the patch already in the catalog is not included in the entry
+        Catalog feedEntry = catalog.append(allPatches);
+        assertEquals(1, feedEntry.getVersion());
+        assertEquals(1, feedEntry.getPatchs().size());
+        assertEquals(allPatches.get(1).getId(), feedEntry.getPatchs().get(0).getId());
+        assertEquals(1, catalog.getVersion());
+        assertEquals(2, catalog.getPatchs().size());
+
+        // version survive output and read
+        Catalog cachedCatalog = Catalog.read(new Catalog(1, allPatches.subList(0, 1)).output());
+        assertEquals(1, cachedCatalog.getVersion());
+        Catalog readFeedEntry = Catalog.read(feedEntry.output());
+        assertEquals(1, readFeedEntry.getVersion());
+
+        // an unversioned catalog cannot be merged with, nor can a non-consecutive entry
+        assertFalse(new Catalog(allPatches.subList(0, 1)).merge(readFeedEntry));
+        assertFalse(cachedCatalog.merge(new Catalog(3, allPatches)));
+
+        readFeedEntry.setVersion(2);
+        assertTrue(cachedCatalog.merge(readFeedEntry));
+        assertEquals(2, cachedCatalog.getVersion());
+        assertEquals(2, cachedCatalog.getPatchs().size());
+        assertEquals(new String(catalog.output(), "UTF-8").replace(" version=\"1\"", " version=\"2\""), new String(cachedCatalog.output(), "UTF-8"));
+    }
+
+    @Test
+    public void catalogShardTest() throws IOException, InvalidFormatException, TransformerException {
+        System.out.println("+++++ catalogShardTest +++++");
+
+        byte[] catalog2Data = CommonUtil.readFile(new File(packagePath + "ScriptTest_catalog2.xml"));
+        assertNotNull(catalog2Data);
+
+        Catalog catalog = Catalog.read(catalog2Data);
+        catalog.setVersion(5);
+        assertTrue(catalog.getShards().isEmpty());
+
+        // the patch with version-from-subsequent is not in any shard
+        Map<String, Catalog> shardCatalogs = catalog.splitByVersionFrom();
+        assertEquals(1, shardCatalogs.size());
+        Catalog shardCatalog = shardCatalogs.get("1.0.1");
+        assertNotNull(shardCatalog);
+        assertEquals(5, shardCatalog.getVersion());
+        assertEquals(1, shardCatalog.getPatchs().size());
+        assertEquals(2, shardCatalog.getPatchs().get(0).getId());
+
+        Map<String, String> shards = new LinkedHashMap<String, String>();
+        shards.put("1.0.1", "catalog_1.0.1.xml");
+        Catalog index = new Catalog(5, catalog.getPatchs().subList(0, 1), shards);
+
+        Catalog readIndex = Catalog.read(index.output());
+        assertEquals(5, readIndex.getVersion());
+        assertEquals(shards, readIndex.getShards());
+        assertEquals(1, readIndex.getPatchs().size());
+        assertEquals(1, readIndex.getPatchs().get(0).getId());
+        assertArrayEquals(index.output(), readIndex.output());
+    }
+
     @Test
     public void patchTest() throws IOException, InvalidFormatException, TransformerException {
         System.out.println("+++++ patchTest +++++");
@@ -122,4 +198,73 @@ public class ScriptTest {
         assertNotNull(patchScript);
         assertArrayEquals(new String(patchScript.output(), "UTF-8"), patch4Data, patchScript.output());
     }
+
+    @Test
+    public void patchStreamTest() throws IOException, InvalidFormatException, TransformerException {
+        System.out.println("+++++ patchStreamTest +++++");
+
+        byte[] patch1Data = CommonUtil.readFile(new File(packagePath + "ScriptTest_patch1.xml"));
+        assertNotNull(patch1Data);
+        Patch patchScript = Patch.read(patch1Data);
+
+        Patch.StreamReader reader = new Patch.StreamReader(patch1Data);
+        try {
+            Patch header = reader.getPatch();
+            assertEquals(patchScript.getId(), header.getId());
+            assertEquals(patchScript.getVersionTo(), header.getVersionTo());
+            assertTrue(header.getOperations().isEmpty());
+            assertEquals(patchScript.getOperations().size(), reader.countOperations());
+
+            List<Operation> operations = patchScript.getOperations();
+            for (int i = 0, iEnd = operations.size(); i < iEnd; i++) {
+                Operation operation = reader.nextOperation();
+                assertNotNull(operation);
+                assertEquals(operations.get(i).getId(), operation.getId());
+                assertEquals(operations.get(i).getDestFilePath(), operation.getDestFilePath());
+            }
+            assertNull(reader.nextOperation());
+
+            int validationCount = 0;
+            while (reader.nextValidation() != null) {
+                validationCount++;
+            }
+            assertEquals(patchScript.getValidations().size(), validationCount);
+        } finally {
+            reader.close();
+        }
+
+        // the element reader cannot be rewound, the operations are read ahead when counting
+        reader = new Patch.StreamReader(XMLUtil.createElementReader(new ByteArrayInputStream(patch1Data)));
+        try {
+            List<Operation> operations = patchScript.getOperations();
+            assertTrue(operations.size() > 1);
+            Operation operation = reader.nextOperation();
+            assertEquals(operations.get(0).getId(), operation.getId());
+            assertEquals(operations.size(), reader.countOperations());
+            assertEquals(operations.size(), reader.countOperations());
+            for (int i = 1, iEnd = operations.size(); i < iEnd; i++) {
+                operation = reader.nextOperation();
+                assertNotNull(operation);
+                assertEquals(operations.get(i).getId(), operation.getId());
+                assertEquals(operations.get(i).getDestFilePath(), operation.getDestFilePath());
+            }
+            assertNull(reader.nextOperation());
+
+            int validationCount = 0;
+            while (reader.nextValidation() != null) {
+                validationCount++;
+            }
+            assertEquals(patchScript.getValidations().size(), validationCount);
+        } finally {
+            reader.close();
+        }
+
+        reader = new Patch.StreamReader(XMLUtil.createElementReader(new ByteArrayInputStream(patch1Data)));
+        try {
+            assertEquals(patchScript.getOperations().size(), reader.countOperations());
+            assertArrayEquals(patchScript.output(), reader.readAll().output());
+        } finally {
+            reader.close();
+        }
+    }
 }
@@ -6,10 +6,14 @@ package updater.util;
 
 import java.security.interfaces.RSAPublicKey;
 import java.security.interfaces.RSAPrivateKey;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.security.KeyFactory;
+import java.security.MessageDigest;
 import java.security.spec.RSAPrivateKeySpec;
 import java.security.spec.RSAPublicKeySpec;
+import java.util.List;
+import java.util.Random;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import updater.TestCommon;
@@ -92,4 +96,63 @@ public class CommonUtilTest {
             Logger.getLogger(CommonUtilTest.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
+
+    /**
+     * Test of getChunkSHA256Strings method, of class Util.
+     */
+    @Test
+    public void testGetChunkSHA256Strings() throws Exception {
+        System.out.println("+++++ testGetChunkSHA256Strings +++++");
+
+        File testFile = new File("CommonUtilTest_getChunkSHA256Strings.bin");
+        try {
+            byte[] testData = new byte[100000];
+            new Random().nextBytes(testData);
+            CommonUtil.writeFile(testFile, testData);
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (int chunkLength : new int[]{1000, 32768, 40000, 100000, 200000}) {
+                List<String> checksums = CommonUtil.getChunkSHA256Strings(testFile, chunkLength);
+                assertEquals((testData.length + chunkLength - 1) / chunkLength, checksums.size());
+                for (int i = 0, iEnd = checksums.size(); i < iEnd; i++) {
+                    int start = i * chunkLength;
+                    digest.update(testData, start, Math.min(chunkLength, testData.length - start));
+                    assertEquals(CommonUtil.byteArrayToHexString(digest.digest()), checksums.get(i));
+                }
+            }
+
+            CommonUtil.writeFile(testFile, new byte[0]);
+            assertTrue(CommonUtil.getChunkSHA256Strings(testFile, 1000).isEmpty());
+        } finally {
+            testFile.delete();
+        }
+    }
+
+    /**
+     * Test of signCatalog & verifySignedCatalog method, of class Util.
+     */
+    @Test
+    public void testSignCatalog() throws Exception {
+        System.out.println("+++++ testSignCatalog +++++");
+
+        BigInteger mod = new BigInteger(TestCommon.modulusString, 16);
+        RSAPrivateKey privateKey = CommonUtil.getPrivateKey(mod, new BigInteger(TestCommon.privateExponentString, 16));
+        RSAPublicKey publicKey = CommonUtil.getPublicKey(mod, new BigInteger(TestCommon.publicExponentString, 16));
+
+        byte[] testData = new byte[10000];
+        new Random().nextBytes(testData);
+
+        byte[] signed = CommonUtil.signCatalog(privateKey, testData);
+        assertTrue(CommonUtil.isSignedCatalog(signed));
+        assertFalse(CommonUtil.isSignedCatalog(testData));
+        assertArrayEquals(testData, CommonUtil.verifySignedCatalog(publicKey, signed));
+
+        // manipulated content
+        signed[signed.length - 1] ^= 1;
+        try {
+            CommonUtil.verifySignedCatalog(publicKey, signed);
+            fail("! Manipulated catalog should not pass the verification.");
+        } catch (IOException ex) {
+        }
+    }
 }
@@ -5,6 +5,12 @@ import java.io.IOException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import org.junit.After;
@@ -14,6 +20,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import static org.junit.Assert.*;
 import updater.TestCommon;
+import updater.TestHTTPServer;
 
 /**
  * @author Chan Wai Shing <cws1989@gmail.com>
@@ -468,4 +475,199 @@ public class HTTPDownloaderTest {
 
         tempFile.delete();
     }
+
+    protected static byte[] createContent(int length) {
+        byte[] content = new byte[length];
+        new Random(11).nextBytes(content);
+        return content;
+    }
+
+    protected static String getSHA256String(byte[] content, int offset, int length) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(content, offset, length);
+        return CommonUtil.byteArrayToHexString(digest.digest());
+    }
+
+    protected static DownloadProgressListener createListener(final AtomicLong startingPosition, final AtomicLong cumulativeByteDownloaded, final AtomicInteger retryCount) {
+        return new DownloadProgressListener() {
+
+            @Override
+            public void byteStart(long pos) {
+                startingPosition.set(pos);
+            }
+
+            @Override
+            public void byteDownloaded(int numberOfBytes) {
+                cumulativeByteDownloaded.addAndGet(numberOfBytes);
+            }
+
+            @Override
+            public void byteTotal(long total) {
+            }
+
+            @Override
+            public void downloadRetry(DownloadResult result) {
+                retryCount.incrementAndGet();
+            }
+        };
+    }
+
+    @Test
+    public void testSegmented() throws Exception {
+        System.out.println("+++++ testSegmented +++++");
+
+        byte[] content = createContent(3 * HTTPDownloader.MINIMUM_SEGMENT_LENGTH);
+        String checksum = getSHA256String(content, 0, content.length);
+        File tempFile = new File("HTTPDownloaderTest_segmented.kh6am");
+        tempFile.delete();
+
+        TestHTTPServer server = new TestHTTPServer();
+        try {
+            server.put("segmented", content);
+
+            //<editor-fold defaultstate="collapsed" desc="test segmented download">
+            System.out.println("+ test segmented download");
+
+            AtomicLong startingPosition = new AtomicLong(-1L);
+            AtomicLong cumulativeByteDownloaded = new AtomicLong(0L);
+            AtomicInteger retryCount = new AtomicInteger(0);
+
+            HTTPDownloader downloader = new HTTPDownloader();
+            downloader.setResumeFile(tempFile);
+            downloader.setSegments(3);
+            DownloadResult result = downloader.download(createListener(startingPosition, cumulativeByteDownloaded, retryCount), new URL(server.getURL("segmented")), checksum, content.length, 0, 0);
+
+            assertEquals(DownloadResult.SUCCEED, result);
+            assertEquals(0, startingPosition.get());
+            assertEquals(content.length, cumulativeByteDownloaded.get());
+            assertArrayEquals(content, CommonUtil.readFile(tempFile));
+            assertFalse(downloader.getSegmentFile().exists());
+            List<String> ranges = server.getRanges("segmented");
+            assertEquals(3, ranges.size());
+            assertTrue(ranges.contains("bytes=0-" + (HTTPDownloader.MINIMUM_SEGMENT_LENGTH - 1)));
+            assertTrue(ranges.contains("bytes=" + (2 * HTTPDownloader.MINIMUM_SEGMENT_LENGTH) + "-" + (content.length - 1)));
+            //</editor-fold>
+
+            //<editor-fold defaultstate="collapsed" desc="test resume from the segment file">
+            System.out.println("+ test resume from the segment file");
+
+            // the first segment is downloaded, the second segment is partly downloaded
+            int half = content.length / 2, downloaded = half + 100000;
+            byte[] partContent = new byte[content.length];
+            System.arraycopy(content, 0, partContent, 0, downloaded);
+            CommonUtil.writeFile(tempFile, partContent);
+            List<long[]> segmentList = new ArrayList<long[]>();
+            segmentList.add(new long[]{0, half, half});
+            segmentList.add(new long[]{half, content.length, downloaded});
+            downloader = new HTTPDownloader();
+            downloader.setResumeFile(tempFile);
+            downloader.setSegments(2);
+            HTTPDownloader.writeSegments(downloader.getSegmentFile(), content.length, checksum, segmentList);
+            server.getRanges("segmented").clear();
+            startingPosition.set(-1L);
+            cumulativeByteDownloaded.set(0L);
+
+            result = downloader.download(createListener(startingPosition, cumulativeByteDownloaded, retryCount), new URL(server.getURL("segmented")), checksum, content.length, 0, 0);
+
+            assertEquals(DownloadResult.SUCCEED, result);
+            assertEquals(downloaded, startingPosition.get());
+            assertEquals(content.length - downloaded, cumulativeByteDownloaded.get());
+            assertArrayEquals(content, CommonUtil.readFile(tempFile));
+            assertFalse(downloader.getSegmentFile().exists());
+            assertEquals(Arrays.asList("bytes=" + downloaded + "-" + (content.length - 1)), server.getRanges("segmented"));
+            assertEquals(0, retryCount.get());
+            //</editor-fold>
+        } finally {
+            server.stop();
+            tempFile.delete();
+        }
+    }
+
+    @Test
+    public void testSegmentedRangeNotSupported() throws Exception {
+        System.out.println("+++++ testSegmentedRangeNotSupported +++++");
+
+        byte[] content = createContent(2 * HTTPDownloader.MINIMUM_SEGMENT_LENGTH + 12345);
+        String checksum = getSHA256String(content, 0, content.length);
+        File tempFile = new File("HTTPDownloaderTest_range_not_supported.kh6am");
+        tempFile.delete();
+
+        TestHTTPServer server = new TestHTTPServer();
+        try {
+            server.put("no_range", content);
+            server.setRangeSupported(false);
+
+            AtomicLong startingPosition = new AtomicLong(-1L);
+            AtomicLong cumulativeByteDownloaded = new AtomicLong(0L);
+            AtomicInteger retryCount = new AtomicInteger(0);
+
+            HTTPDownloader downloader = new HTTPDownloader();
+            downloader.setResumeFile(tempFile);
+            downloader.setSegments(4);
+            DownloadResult result = downloader.download(createListener(startingPosition, cumulativeByteDownloaded, retryCount), new URL(server.getURL("no_range")), checksum, content.length, 0, 0);
+
+            // fall back to download in single stream
+            assertEquals(DownloadResult.SUCCEED, result);
+            assertEquals(0, startingPosition.get());
+            assertArrayEquals(content, CommonUtil.readFile(tempFile));
+            assertFalse(downloader.getSegmentFile().exists());
+            List<String> ranges = server.getRanges("no_range");
+            assertEquals("", ranges.get(ranges.size() - 1));
+            assertEquals(0, retryCount.get());
+        } finally {
+            server.stop();
+            tempFile.delete();
+        }
+    }
+
+    @Test
+    public void testSegmentedChunkChecksumMismatch() throws Exception {
+        System.out.println("+++++ testSegmentedChunkChecksumMismatch +++++");
+
+        int chunkLength = 262144;
+        byte[] content = createContent(3 * HTTPDownloader.MINIMUM_SEGMENT_LENGTH);
+        String checksum = getSHA256String(content, 0, content.length);
+        List<String> chunkChecksums = new ArrayList<String>();
+        for (int i = 0; i < content.length; i += chunkLength) {
+            chunkChecksums.add(getSHA256String(content, i, Math.min(chunkLength, content.length - i)));
+        }
+        File tempFile = new File("HTTPDownloaderTest_chunk_mismatch.kh6am");
+        tempFile.delete();
+
+        TestHTTPServer server = new TestHTTPServer();
+        try {
+            // corrupt a byte in the 6th chunk, which is in the second segment, in the first response only
+            int corruptedChunkStart = 5 * chunkLength;
+            server.put("chunk_mismatch", content);
+            server.corrupt("chunk_mismatch", corruptedChunkStart + 10, 1);
+
+            AtomicLong startingPosition = new AtomicLong(-1L);
+            AtomicLong cumulativeByteDownloaded = new AtomicLong(0L);
+            AtomicInteger retryCount = new AtomicInteger(0);
+
+            TestCommon.suppressErrorOutput();
+            HTTPDownloader downloader = new HTTPDownloader();
+            downloader.setResumeFile(tempFile);
+            downloader.setSegments(3);
+            downloader.setChunkChecksums(chunkLength, chunkChecksums);
+            DownloadResult result = downloader.download(createListener(startingPosition, cumulativeByteDownloaded, retryCount), new URL(server.getURL("chunk_mismatch")), checksum, content.length, 1, 0);
+            TestCommon.restoreErrorOutput();
+
+            assertEquals(DownloadResult.SUCCEED, result);
+            assertEquals(1, retryCount.get());
+            assertArrayEquals(content, CommonUtil.readFile(tempFile));
+            assertFalse(downloader.getSegmentFile().exists());
+            // the retry continues from the corrupted chunk instead of the start of the segment
+            List<String> ranges = server.getRanges("chunk_mismatch");
+            boolean resumedFromCorruptedChunk = false;
+            for (String range : ranges.subList(3, ranges.size())) {
+                resumedFromCorruptedChunk |= range.startsWith("bytes=" + corruptedChunkStart + "-");
+                assertFalse(range.startsWith("bytes=" + HTTPDownloader.MINIMUM_SEGMENT_LENGTH + "-"));
+            }
+            assertTrue(resumedFromCorruptedChunk);
+        } finally {
+            server.stop();
+            tempFile.delete();
+        }
+    }
 }
@@ -26,6 +26,11 @@ linkFile src/updater/concurrent/LockType.java
 linkFile src/updater/concurrent/LockUtil.java
 mkdir -p "$SOFTWARE_DIRECTORY/src/updater/crypto"
 linkFile src/updater/crypto/AESKey.java
+linkFile src/updater/crypto/AESBlockCipher.java
+linkFile src/updater/crypto/AESDecryptInputStream.java
+linkFile src/updater/crypto/AESEncryptOutputStream.java
+linkFile src/updater/crypto/FastAESForFile.java
+linkFile src/updater/crypto/SHA256Digest.java
 mkdir -p "$SOFTWARE_DIRECTORY/src/updater/gui"
 linkFile src/updater/gui/JTitledPanel.java
 linkFile src/updater/gui/UpdaterWindow.java
@@ -36,12 +41,22 @@ linkFile src/updater/script/Patch.java
 mkdir -p "$SOFTWARE_DIRECTORY/src/updater/patch"
 linkFile src/updater/patch/Compression.java
 linkFile src/updater/patch/OperationType.java
+linkFile src/updater/patch/IndexedPatchReader.java
 linkFile src/updater/patch/PatchReadUtil.java
+linkFile src/updater/patch/ArchiveDiffer.java
+linkFile src/updater/patch/TextDiffer.java
+linkFile src/updater/patch/Differ.java
+linkFile src/updater/patch/DiffEncoding.java
+linkFile src/updater/patch/DiffReport.java
+linkFile src/updater/patch/GDiffDiffer.java
+linkFile src/updater/patch/SuffixArrayDiffer.java
+linkFile src/updater/patch/PatchManifest.java
 linkFile src/updater/patch/PatchRecord.java
 linkFile src/updater/patch/LogAction.java
 linkFile src/updater/patch/LogReader.java
 linkFile src/updater/patch/LogWriter.java
 linkFile src/updater/patch/Patcher.java
+linkFile src/updater/patch/FileChecksumIndex.java
 linkFile src/updater/patch/PatcherListener.java
 linkFile src/updater/patch/ReplacementRecord.java
 mkdir -p "$SOFTWARE_DIRECTORY/src/updater/util"
@@ -68,8 +83,13 @@ mkdir -p "$SOFTWARE_DIRECTORY/src/updater/concurrent"
 linkFile src/updater/concurrent/ConcurrentLock.java
 mkdir -p "$SOFTWARE_DIRECTORY/src/updater/crypto"
 linkFile src/updater/crypto/AESKey.java
+linkFile src/updater/crypto/AESBlockCipher.java
+linkFile src/updater/crypto/AESDecryptInputStream.java
+linkFile src/updater/crypto/AESEncryptOutputStream.java
+linkFile src/updater/crypto/FastAESForFile.java
 linkFile src/updater/crypto/KeyGenerator.java
 linkFile src/updater/crypto/RSAKey.java
+linkFile src/updater/crypto/SHA256Digest.java
 mkdir -p "$SOFTWARE_DIRECTORY/src/updater/script"
 linkFile src/updater/script/Catalog.java
 linkFile src/updater/script/Client.java
@@ -78,9 +98,20 @@ linkFile src/updater/script/Patch.java
 mkdir -p "$SOFTWARE_DIRECTORY/src/updater/patch"
 linkFile src/updater/patch/Compression.java
 linkFile src/updater/patch/OperationType.java
+linkFile src/updater/patch/IndexedPatchReader.java
+linkFile src/updater/patch/IndexedPatchWriter.java
 linkFile src/updater/patch/PatchCreator.java
 linkFile src/updater/patch/PatchExtractor.java
 linkFile src/updater/patch/PatchReadUtil.java
+linkFile src/updater/patch/ArchiveDiffer.java
+linkFile src/updater/patch/TextDiffer.java
+linkFile src/updater/patch/Differ.java
+linkFile src/updater/patch/DiffEncoding.java
+linkFile src/updater/patch/DiffReport.java
+linkFile src/updater/patch/MinHashSketch.java
+linkFile src/updater/patch/GDiffDiffer.java
+linkFile src/updater/patch/SuffixArrayDiffer.java
+linkFile src/updater/patch/PatchManifest.java
 linkFile src/updater/patch/PatchRecord.java
 linkFile src/updater/patch/PatchWriteUtil.java
 linkFile src/updater/patch/LogAction.java
@@ -88,6 +119,7 @@ linkFile src/updater/patch/LogReader.java
 linkFile src/updater/patch/LogWriter.java
 linkFile src/updater/patch/PatchPacker.java
 linkFile src/updater/patch/Patcher.java
+linkFile src/updater/patch/FileChecksumIndex.java
 linkFile src/updater/patch/PatcherListener.java
 linkFile src/updater/patch/ReplacementRecord.java
 mkdir -p "$SOFTWARE_DIRECTORY/src/updater/util"
@@ -124,8 +156,11 @@ linkFile src/updater/util/DownloadProgressListener.java
 linkFile src/updater/util/DownloadProgressUtil.java
 linkFile src/updater/util/DownloadResult.java
 linkFile src/updater/util/HTTPDownloader.java
+linkFile src/updater/util/HTTPTransport.java
+linkFile src/updater/crypto/SHA256Digest.java
 linkFile src/updater/util/Interruptible.java
 linkFile src/updater/util/Pausable.java
 linkFile src/updater/util/XMLUtil.java
 mkdir -p "$SOFTWARE_DIRECTORY/test/updater"
 linkFile test/updater/TestCommon.java
+linkFile test/updater/TestHTTPServer.java
@@ -20,19 +20,25 @@
 // WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 package updater.builder;
 
-import com.nothome.delta.Delta;
-import com.nothome.delta.DiffWriter;
-import com.nothome.delta.GDiffPatcher;
-import com.nothome.delta.GDiffWriter;
+import com.nothome.delta.RandomAccessFileSeekableSource;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.math.BigInteger;
 import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 import org.apache.commons.cli.CommandLine;
@@ -51,6 +57,8 @@ import org.w3c.dom.Element;
 import updater.crypto.AESKey;
 import updater.crypto.KeyGenerator;
 import updater.crypto.RSAKey;
+import updater.patch.DiffEncoding;
+import updater.patch.DiffReport;
 import updater.patch.PatchCreator;
 import updater.patch.PatchExtractor;
 import updater.patch.PatchPacker;
@@ -77,6 +85,9 @@ public class SoftwarePatchBuilder {
     options.addOption(OptionBuilder.hasArg().withArgName("file").
             withDescription("generate SHA-256 checksum of the file").
             create("sha256"));
+    options.addOption(OptionBuilder.hasArg().withArgName("file").
+            withDescription("generate SHA-256 checksum of every 4 MB chunk of the file, output the <chunks> element for the catalog").
+            create("chunks"));
     // cipher key
     options.addOption(OptionBuilder.hasArgs(2).withArgName("method length").withValueSeparator(' ').
             withDescription("AES|RSA for 'method'; generate cipher key with specified key length in bits").
@@ -120,8 +131,14 @@ public class SoftwarePatchBuilder {
 
     // catalog
     options.addOption(OptionBuilder.hasArgs(2).withArgName("mode file").withValueSeparator(' ').
-            withDescription("e|d for 'mode', e for encrypt, d for decrypt; 'file' is the catalog file").
+            withDescription("e|s|d for 'mode', e for encrypt, s for sign, d for decrypt or verify; 'file' is the catalog file").
             create("catalog"));
+    options.addOption(OptionBuilder.hasArgs(2).withArgName("catalog patches").withValueSeparator(' ').
+            withDescription("append the patches in the 'patches' catalog file to the 'catalog' file and increase its version, output the change feed entry; if --key specified, the change feed entry is signed with the RSA key").
+            create("feed"));
+    options.addOption(OptionBuilder.hasArg().withArgName("file").
+            withDescription("split the catalog into shards by version-from, output the root index to --output and the shards to the same folder; if --key specified, the shards and the root index are signed with the RSA key").
+            create("shard"));
 
     // script validation
     options.addOption(OptionBuilder.hasArg().withArgName("file").
@@ -144,6 +161,16 @@ public class SoftwarePatchBuilder {
     options.addOption(OptionBuilder.hasArg().withArgName("version").
             withDescription("specify the version-to").
             withLongOpt("to").create("t"));
+    options.addOption(OptionBuilder.hasArg().withArgName("n").
+            withDescription("specify the number of threads to use when creating or applying patch, default 1").
+            create("threads"));
+    options.addOption(OptionBuilder.hasArg().withArgName("encoding").
+            withDescription("gdiff|sadiff|archive|text for 'encoding'; specify the encoding of the binary diff when creating diff or patch, default gdiff; with archive, archives (e.g. jar) are diffed with the entries uncompressed when creating patch, the client has to reproduce the compressed entries").
+            create("encoding"));
+    options.addOption(OptionBuilder.hasArg().withArgName("ms").
+            withDescription("specify the CPU time in milliseconds for each changed file to try other encodings when creating patch, the smallest diff after compression is used, default 0 (not to try)").
+            create("budget"));
+    options.addOption(new Option("manifest", false, "write the patch script as binary manifest instead of XML when creating or packing patch"));
 
     options.addOption(new Option("h", "help", false, "print this message"));
     options.addOption(new Option("v", "version", false, "show the version of this software"));
@@ -155,6 +182,8 @@ public class SoftwarePatchBuilder {
       line = parser.parse(options, args);
       if (line.hasOption("sha256")) {
         sha256(line, options);
+      } else if (line.hasOption("chunks")) {
+        chunks(line, options);
       } else if (line.hasOption("genkey")) {
         genkey(line, options);
       } else if (line.hasOption("renew")) {
@@ -179,6 +208,10 @@ public class SoftwarePatchBuilder {
         pack(line, options);
       } else if (line.hasOption("catalog")) {
         catalog(line, options);
+      } else if (line.hasOption("feed")) {
+        feed(line, options);
+      } else if (line.hasOption("shard")) {
+        shard(line, options);
       } else if (line.hasOption("validate")) {
         validate(line, options);
       } else if (line.hasOption("version")) {
@@ -220,6 +253,38 @@ public class SoftwarePatchBuilder {
     System.out.println("Checksum: " + sha256);
   }
 
+  public static void chunks(CommandLine line, Options options) throws ParseException, Exception {
+    String chunksArg = line.getOptionValue("chunks");
+    String outputArg = line.getOptionValue("output");
+
+    System.out.println("File: " + chunksArg);
+    if (outputArg != null) {
+      System.out.println("Output file: " + outputArg);
+    }
+    System.out.println();
+
+    List<String> checksums = Util.getChunkSHA256Strings(new File(chunksArg), Patch.DEFAULT_DOWNLOAD_CHUNK_LENGTH);
+
+    Document doc = XMLUtil.createEmptyDocument();
+    Element chunksElement = doc.createElement("chunks");
+    chunksElement.setAttribute("length", Integer.toString(Patch.DEFAULT_DOWNLOAD_CHUNK_LENGTH));
+    doc.appendChild(chunksElement);
+    for (String checksum : checksums) {
+      Element checksumElement = doc.createElement("checksum");
+      checksumElement.setTextContent(checksum);
+      chunksElement.appendChild(checksumElement);
+    }
+    byte[] content = XMLUtil.getOutput(doc);
+
+    if (outputArg != null) {
+      Util.writeFile(new File(outputArg), content);
+    } else {
+      System.out.println(new String(content, "UTF-8"));
+    }
+
+    System.out.println("Number of chunks: " + checksums.size());
+  }
+
   public static void genkey(CommandLine line, Options options) throws ParseException, Exception {
     if (!line.hasOption("output")) {
       throw new Exception("Please specify the path to output the key file using --output or -o");
@@ -286,17 +351,18 @@ public class SoftwarePatchBuilder {
       throw new ParseException("Wrong arguments for 'diff', expecting 2 arguments");
     }
 
+    DiffEncoding diffEncoding = getDiffEncoding(line);
+
     System.out.println("Old file: " + diffArgs[0]);
     System.out.println("New file: " + diffArgs[1]);
     System.out.println("Diff file: " + outputArg);
+    System.out.println("Encoding: " + diffEncoding.getValue());
     System.out.println();
 
     FileOutputStream fout = null;
     try {
       fout = new FileOutputStream(new File(outputArg));
-      DiffWriter diffOut = new GDiffWriter(fout);
-      Delta delta = new Delta();
-      delta.compute(new File(diffArgs[0]), new File(diffArgs[1]), diffOut);
+      diffEncoding.getDiffer().diff(new File(diffArgs[0]), new File(diffArgs[1]), fout);
     } finally {
       Util.closeQuietly(fout);
     }
@@ -316,13 +382,27 @@ public class SoftwarePatchBuilder {
       throw new ParseException("Wrong arguments for 'diffpatch', expecting 2 arguments");
     }
 
+    DiffEncoding diffEncoding = getDiffEncoding(line);
+
     System.out.println("File to apply patch to: " + diffpatchArgs[0]);
     System.out.println("Patch file: " + diffpatchArgs[1]);
     System.out.println("Output file: " + outputArg);
+    System.out.println("Encoding: " + diffEncoding.getValue());
     System.out.println();
 
-    GDiffPatcher diffPatcher = new GDiffPatcher();
-    diffPatcher.patch(new File(diffpatchArgs[0]), new File(diffpatchArgs[1]), new File(outputArg));
+    RandomAccessFileSeekableSource oldFile = null;
+    InputStream patchIn = null;
+    OutputStream fout = null;
+    try {
+      oldFile = new RandomAccessFileSeekableSource(new RandomAccessFile(new File(diffpatchArgs[0]), "r"));
+      patchIn = new BufferedInputStream(new FileInputStream(new File(diffpatchArgs[1])));
+      fout = new BufferedOutputStream(new FileOutputStream(new File(outputArg)));
+      diffEncoding.getDiffer().patch(oldFile, patchIn, fout);
+    } finally {
+      Util.closeQuietly(oldFile);
+      Util.closeQuietly(patchIn);
+      Util.closeQuietly(fout);
+    }
 
     System.out.println("Patching completed.");
   }
@@ -419,12 +499,39 @@ public class SoftwarePatchBuilder {
     System.out.println("Decompression completed.");
   }
 
+  protected static DiffEncoding getDiffEncoding(CommandLine line) throws ParseException {
+    if (!line.hasOption("encoding")) {
+      return DiffEncoding.GDIFF;
+    }
+    DiffEncoding diffEncoding = DiffEncoding.get(line.getOptionValue("encoding"));
+    if (diffEncoding == null) {
+      throw new ParseException("Wrong argument for 'encoding', expecting gdiff, sadiff, archive or text");
+    }
+    return diffEncoding;
+  }
+
+  protected static int getThreads(CommandLine line) throws ParseException {
+    int threads = 1;
+    if (line.hasOption("threads")) {
+      try {
+        threads = Integer.parseInt(line.getOptionValue("threads"));
+      } catch (NumberFormatException ex) {
+        throw new ParseException("Wrong argument for 'threads', expecting a positive integer");
+      }
+      if (threads < 1) {
+        throw new ParseException("Wrong argument for 'threads', expecting a positive integer");
+      }
+    }
+    return threads;
+  }
+
   public static void doPatch(CommandLine line, Options options) throws ParseException, Exception {
     String[] doArgs = line.getOptionValues("do");
 
     if (doArgs.length != 2) {
       throw new ParseException("Wrong arguments for 'do', expecting 2 arguments");
     }
+    int threads = getThreads(line);
 
     System.out.println("Target folder: " + doArgs[0]);
     System.out.println("Patch file: " + doArgs[1]);
@@ -436,21 +543,14 @@ public class SoftwarePatchBuilder {
     tempDir.mkdirs();
 
     AESKey aesKey = null;
-    File decryptedPatchFile = null;
     if (line.hasOption("key")) {
       aesKey = AESKey.read(Util.readFile(new File(line.getOptionValue("key"))));
       if (aesKey.getKey().length != 32) {
         throw new Exception("Currently only support 256 bits AES key.");
       }
-
-      decryptedPatchFile = new File(tempDir.getAbsolutePath() + File.separator + patchFile.getName() + ".decrypted");
-      decryptedPatchFile.delete();
-      decryptedPatchFile.deleteOnExit();
-
-      patchFile = decryptedPatchFile;
     }
 
-    Patcher patcher = new Patcher(new File(tempDir.getAbsolutePath() + "/action.log"));
+    Patcher patcher = new Patcher(new File(tempDir.getAbsolutePath() + "/action.log"), threads);
     patcher.doPatch(new PatcherListener() {
 
       @Override
@@ -511,12 +611,8 @@ public class SoftwarePatchBuilder {
         throw new Exception("Currently only support 256 bits AES key.");
       }
     }
-    File patchFile = new File(outputArg);
-    File encryptedPatchFile = new File(tempDir.getAbsolutePath() + File.separator + patchFile.getName() + ".encrypted");
-    encryptedPatchFile.delete();
-    encryptedPatchFile.deleteOnExit();
 
-    PatchCreator.createFullPatch(new File(fullArg), new File(outputArg), -1, fromArg, fromSubsequentArg, toArg, aesKey, encryptedPatchFile);
+    PatchCreator.createFullPatch(new File(fullArg), new File(outputArg), -1, fromArg, fromSubsequentArg, toArg, aesKey, null, line.hasOption("manifest"));
 
     Util.truncateFolder(tempDir);
     tempDir.delete();
@@ -543,6 +639,19 @@ public class SoftwarePatchBuilder {
     if (patchArgs.length != 2) {
       throw new ParseException("Wrong arguments for 'patch', expecting 2 arguments");
     }
+    int threads = getThreads(line);
+    DiffEncoding diffEncoding = getDiffEncoding(line);
+    long cpuBudget = 0;
+    if (line.hasOption("budget")) {
+      try {
+        cpuBudget = Long.parseLong(line.getOptionValue("budget"));
+      } catch (NumberFormatException ex) {
+        throw new ParseException("Wrong argument for 'budget', expecting a non-negative integer");
+      }
+      if (cpuBudget < 0) {
+        throw new ParseException("Wrong argument for 'budget', expecting a non-negative integer");
+      }
+    }
 
     System.out.println("Old software version: " + fromArg);
     System.out.println("Old software directory: " + patchArgs[0]);
@@ -552,6 +661,11 @@ public class SoftwarePatchBuilder {
     if (line.hasOption("key")) {
       System.out.println("AES key file: " + line.getOptionValue("key"));
     }
+    System.out.println("Threads: " + threads);
+    System.out.println("Encoding: " + diffEncoding.getValue());
+    if (cpuBudget > 0) {
+      System.out.println("CPU budget: " + cpuBudget + "ms");
+    }
     System.out.println();
 
     File tempDir = new File("tmp/" + System.currentTimeMillis());
@@ -565,15 +679,24 @@ public class SoftwarePatchBuilder {
       }
     }
     File patchFile = new File(outputArg);
-    File encryptedPatchFile = new File(tempDir.getAbsolutePath() + File.separator + patchFile.getName() + ".encrypted");
-    encryptedPatchFile.delete();
-    encryptedPatchFile.deleteOnExit();
 
-    PatchCreator.createPatch(new File(patchArgs[0]), new File(patchArgs[1]), tempDir, patchFile, -1, fromArg, toArg, aesKey, encryptedPatchFile);
+    List<DiffReport> diffReports = PatchCreator.createPatch(new File(patchArgs[0]), new File(patchArgs[1]), tempDir, patchFile, -1, fromArg, toArg, aesKey, null, threads, line.hasOption("manifest"), diffEncoding, cpuBudget);
 
     Util.truncateFolder(tempDir);
     tempDir.delete();
 
+    if (!diffReports.isEmpty()) {
+      long totalSaving = 0;
+      for (DiffReport diffReport : diffReports) {
+        System.out.println(String.format("%1$s: %2$s %3$d bytes, %4$s %5$d bytes, saved %6$d bytes (%7$d tried)",
+                diffReport.getPath(), diffReport.getSelected(), diffReport.getSelectedLength(),
+                diffReport.getBaseline(), diffReport.getBaselineLength(), diffReport.getSaving(), diffReport.getTried()));
+        totalSaving += diffReport.getSaving();
+      }
+      System.out.println("Total saved: " + totalSaving + " bytes");
+      System.out.println();
+    }
+
     System.out.println("Patch created.");
   }
 
@@ -600,11 +723,8 @@ public class SoftwarePatchBuilder {
       }
     }
     File patchFile = new File(extractArgs[0]);
-    File decryptedPatchFile = new File(tempDir.getAbsolutePath() + File.separator + patchFile.getName() + ".decrypted");
-    decryptedPatchFile.delete();
-    decryptedPatchFile.deleteOnExit();
 
-    PatchExtractor.extract(patchFile, new File(extractArgs[1]), aesKey, decryptedPatchFile);
+    PatchExtractor.extract(patchFile, new File(extractArgs[1]), aesKey, null);
 
     Util.truncateFolder(tempDir);
     tempDir.delete();
@@ -633,11 +753,8 @@ public class SoftwarePatchBuilder {
       }
     }
     File sourceFolder = new File(packArg);
-    File encryptedPatchFile = new File("tmp/" + sourceFolder.getName() + ".enrypted");
-    encryptedPatchFile.delete();
-    encryptedPatchFile.deleteOnExit();
 
-    PatchPacker.pack(sourceFolder, new File(outputArg), aesKey, encryptedPatchFile);
+    PatchPacker.pack(sourceFolder, new File(outputArg), aesKey, null, line.hasOption("manifest"));
 
     System.out.println("Packing completed.");
   }
@@ -657,13 +774,13 @@ public class SoftwarePatchBuilder {
     if (catalogArgs.length != 2) {
       throw new ParseException("Wrong arguments for 'catalog', expecting 2 arguments");
     }
-    if (!catalogArgs[0].equals("e") && !catalogArgs[0].equals("d")) {
-      throw new ParseException("Catalog mode should be either 'e' or 'd' but not " + catalogArgs[0]);
+    if (!catalogArgs[0].equals("e") && !catalogArgs[0].equals("s") && !catalogArgs[0].equals("d")) {
+      throw new ParseException("Catalog mode should be either 'e', 's' or 'd' but not " + catalogArgs[0]);
     }
 
     RSAKey rsaKey = RSAKey.read(Util.readFile(new File(keyArg)));
 
-    System.out.println("Mode: " + (catalogArgs[0].equals("e") ? "encrypt" : "decrypt"));
+    System.out.println("Mode: " + (catalogArgs[0].equals("e") ? "encrypt" : (catalogArgs[0].equals("s") ? "sign" : "decrypt")));
     System.out.println("Catalog file: " + catalogArgs[1]);
     System.out.println("Key file: " + keyArg);
     System.out.println("Output file: " + outputArg);
@@ -673,7 +790,7 @@ public class SoftwarePatchBuilder {
     File out = new File(outputArg);
     BigInteger mod = new BigInteger(rsaKey.getModulus());
 
-    if (catalogArgs[0].equals("e")) {
+    if (catalogArgs[0].equals("e") || catalogArgs[0].equals("s")) {
       BigInteger privateExp = new BigInteger(rsaKey.getPrivateExponent());
 
       RSAPrivateKey privateKey = CommonUtil.getPrivateKey(mod, privateExp);
@@ -685,19 +802,31 @@ public class SoftwarePatchBuilder {
       gout.finish();
       byte[] compressedData = bout.toByteArray();
 
-      // encrypt
-      int blockSize = mod.bitLength() / 8;
-      byte[] encrypted = Util.rsaEncrypt(privateKey, blockSize, blockSize - 11, compressedData);
+      byte[] manipulated;
+      if (catalogArgs[0].equals("e")) {
+        // encrypt
+        int blockSize = mod.bitLength() / 8;
+        manipulated = Util.rsaEncrypt(privateKey, blockSize, blockSize - 11, compressedData);
+      } else {
+        // sign
+        manipulated = Util.signCatalog(privateKey, compressedData);
+      }
 
       // write to file
-      Util.writeFile(out, encrypted);
+      Util.writeFile(out, manipulated);
     } else {
       BigInteger publicExp = new BigInteger(rsaKey.getPublicExponent());
       RSAPublicKey publicKey = CommonUtil.getPublicKey(mod, publicExp);
 
-      // decrypt
-      int blockSize = mod.bitLength() / 8;
-      byte[] decrypted = Util.rsaDecrypt(publicKey, blockSize, Util.readFile(in));
+      // verify or decrypt
+      byte[] content = Util.readFile(in);
+      byte[] decrypted;
+      if (Util.isSignedCatalog(content)) {
+        decrypted = Util.verifySignedCatalog(publicKey, content);
+      } else {
+        int blockSize = mod.bitLength() / 8;
+        decrypted = Util.rsaDecrypt(publicKey, blockSize, content);
+      }
 
       // decompress
       ByteArrayOutputStream bout = new ByteArrayOutputStream();
@@ -718,6 +847,114 @@ public class SoftwarePatchBuilder {
     System.out.println("Manipulation succeed.");
   }
 
+  /**
+   * Compress and sign the catalog, same as what 'catalog s' does.
+   * @param rsaKey the RSA key to sign with
+   * @param catalogData the catalog
+   * @return the signed catalog
+   */
+  protected static byte[] signCatalog(RSAKey rsaKey, byte[] catalogData) throws Exception {
+    RSAPrivateKey privateKey = CommonUtil.getPrivateKey(new BigInteger(rsaKey.getModulus()), new BigInteger(rsaKey.getPrivateExponent()));
+
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    GZIPOutputStream gout = new GZIPOutputStream(bout);
+    gout.write(catalogData);
+    gout.finish();
+
+    return Util.signCatalog(privateKey, bout.toByteArray());
+  }
+
+  public static void feed(CommandLine line, Options options) throws ParseException, Exception {
+    if (!line.hasOption("output")) {
+      throw new Exception("Please specify the path to output the change feed entry using --output");
+    }
+
+    String[] feedArgs = line.getOptionValues("feed");
+    String outputArg = line.getOptionValue("output");
+
+    if (feedArgs.length != 2) {
+      throw new ParseException("Wrong arguments for 'feed', expecting 2 arguments");
+    }
+
+    RSAKey rsaKey = null;
+    if (line.hasOption("key")) {
+      rsaKey = RSAKey.read(Util.readFile(new File(line.getOptionValue("key"))));
+    }
+
+    System.out.println("Catalog file: " + feedArgs[0]);
+    System.out.println("Patches file: " + feedArgs[1]);
+    if (rsaKey != null) {
+      System.out.println("Key file: " + line.getOptionValue("key"));
+    }
+    System.out.println("Output file: " + outputArg);
+    System.out.println();
+
+    File catalogFile = new File(feedArgs[0]);
+    updater.script.Catalog catalog = updater.script.Catalog.read(Util.readFile(catalogFile));
+    updater.script.Catalog newPatches = updater.script.Catalog.read(Util.readFile(new File(feedArgs[1])));
+
+    updater.script.Catalog feedEntry = catalog.append(newPatches.getPatchs());
+
+    byte[] feedEntryData = feedEntry.output();
+    Util.writeFile(new File(outputArg), rsaKey != null ? signCatalog(rsaKey, feedEntryData) : feedEntryData);
+    Util.writeFile(catalogFile, catalog.output());
+
+    System.out.println("Catalog version: " + catalog.getVersion());
+    System.out.println("Number of patches appended: " + feedEntry.getPatchs().size());
+    System.out.println("Publish the change feed entry with URL ends with: " + feedEntry.getVersion());
+  }
+
+  public static void shard(CommandLine line, Options options) throws ParseException, Exception {
+    if (!line.hasOption("output")) {
+      throw new Exception("Please specify the path to output the root index using --output");
+    }
+
+    String shardArg = line.getOptionValue("shard");
+    String outputArg = line.getOptionValue("output");
+
+    RSAKey rsaKey = null;
+    if (line.hasOption("key")) {
+      rsaKey = RSAKey.read(Util.readFile(new File(line.getOptionValue("key"))));
+    }
+
+    System.out.println("Catalog file: " + shardArg);
+    if (rsaKey != null) {
+      System.out.println("Key file: " + line.getOptionValue("key"));
+    }
+    System.out.println("Output file: " + outputArg);
+    System.out.println();
+
+    updater.script.Catalog catalog = updater.script.Catalog.read(Util.readFile(new File(shardArg)));
+
+    File indexFile = new File(outputArg);
+    File outputFolder = indexFile.getAbsoluteFile().getParentFile();
+    String indexFileName = indexFile.getName();
+    String shardFileNamePrefix = (indexFileName.lastIndexOf('.') != -1 ? indexFileName.substring(0, indexFileName.lastIndexOf('.')) : indexFileName) + "_";
+
+    // patches with version-from-subsequent stay in the root index
+    List<Patch> indexPatches = new ArrayList<Patch>();
+    for (Patch patch : catalog.getPatchs()) {
+      if (patch.getVersionFrom() == null) {
+        indexPatches.add(patch);
+      }
+    }
+
+    Map<String, String> shards = new LinkedHashMap<String, String>();
+    Map<String, updater.script.Catalog> shardCatalogs = catalog.splitByVersionFrom();
+    for (String versionFrom : shardCatalogs.keySet()) {
+      String shardFileName = shardFileNamePrefix + versionFrom + ".xml";
+      byte[] shardData = shardCatalogs.get(versionFrom).output();
+      Util.writeFile(new File(outputFolder, shardFileName), rsaKey != null ? signCatalog(rsaKey, shardData) : shardData);
+      shards.put(versionFrom, shardFileName);
+      System.out.println("Shard: " + shardFileName + ", number of patches: " + shardCatalogs.get(versionFrom).getPatchs().size());
+    }
+
+    byte[] indexData = new updater.script.Catalog(catalog.getVersion(), indexPatches, shards).output();
+    Util.writeFile(indexFile, rsaKey != null ? signCatalog(rsaKey, indexData) : indexData);
+
+    System.out.println("Number of patches in root index: " + indexPatches.size());
+  }
+
   public static void validate(CommandLine line, Options options) throws ParseException, Exception {
     String validateArg = line.getOptionValue("validate");
     String outputArg = line.getOptionValue("output");
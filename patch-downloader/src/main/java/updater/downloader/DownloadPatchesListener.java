@@ -26,6 +26,9 @@ import updater.script.Patch;
 /**
  * The download patch listener for {@link #downloadPatches(updater.downloader.PatchDownloader.DownloadPatchesListener, java.lang.String, java.util.List)} and {@link #downloadPatches(updater.downloader.PatchDownloader.DownloadPatchesListener, java.io.File, updater.script.Client, java.util.List)}.
  * This is used to listen to download patch progress and result notification.
+ * <p>{@link #downloadPatchesProgress(int)} and 
+ * {@link #downloadPatchesMessage(java.lang.String)} may be notified by the 
+ * download threads, but never concurrently.</p>
  * 
  * @author Chan Wai Shing <cws1989@gmail.com>
  */
@@ -0,0 +1,92 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.downloader;
+
+import updater.script.Patch;
+
+/**
+ * Estimate the time in milli second to download and apply the patch as the 
+ * cost.
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class EstimatedTimeCostModel implements PatchCostModel {
+
+  /**
+   * The download speed in bytes per second.
+   */
+  protected long downloadSpeed;
+  /**
+   * The speed to apply full pack patch in bytes of patch per second.
+   */
+  protected long fullPackApplySpeed;
+  /**
+   * The speed to apply other patch in bytes of patch per second.
+   */
+  protected long patchApplySpeed;
+  /**
+   * The fixed time to spend on every patch in milli second, e.g. connection, 
+   * verification, backup.
+   */
+  protected long patchOverhead;
+
+  /**
+   * Constructor. Assume downloading in 1 MB/s, applying full pack patch in 
+   * 20 MB/s, applying other patch in 5 MB/s and 1 second overhead for every 
+   * patch.
+   */
+  public EstimatedTimeCostModel() {
+    this(1048576, 20971520, 5242880, 1000);
+  }
+
+  /**
+   * Constructor.
+   * @param downloadSpeed the download speed in bytes per second
+   * @param fullPackApplySpeed the speed to apply full pack patch in bytes of 
+   * patch per second
+   * @param patchApplySpeed the speed to apply other patch in bytes of patch 
+   * per second
+   * @param patchOverhead the fixed time to spend on every patch in milli 
+   * second
+   */
+  public EstimatedTimeCostModel(long downloadSpeed, long fullPackApplySpeed, long patchApplySpeed, long patchOverhead) {
+    if (downloadSpeed <= 0 || fullPackApplySpeed <= 0 || patchApplySpeed <= 0) {
+      throw new IllegalArgumentException("speed should greater than 0");
+    }
+    if (patchOverhead < 0) {
+      throw new IllegalArgumentException("argument 'patchOverhead' should not be negative");
+    }
+    this.downloadSpeed = downloadSpeed;
+    this.fullPackApplySpeed = fullPackApplySpeed;
+    this.patchApplySpeed = patchApplySpeed;
+    this.patchOverhead = patchOverhead;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long getCost(Patch patch) {
+    long length = Math.max(0, patch.getDownloadLength());
+    long applySpeed = patch.getType() != null && patch.getType().equals("full") ? fullPackApplySpeed : patchApplySpeed;
+    return patchOverhead + length * 1000 / downloadSpeed + length * 1000 / applySpeed;
+  }
+}
@@ -0,0 +1,270 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.downloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.regex.Pattern;
+import updater.script.Patch;
+
+/**
+ * The graph of versions connected by patches, to find the patches to 
+ * upgrade to the highest reachable version with the least cost.
+ * <p>Every version string is parsed once only. The patches are found by 
+ * Dijkstra's shortest path search, ties in cost are broken by the number of 
+ * patches.</p>
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class VersionGraph {
+
+  /**
+   * The valid version format.
+   */
+  protected static final Pattern VERSION_PATTERN = Pattern.compile("[0-9]+(\\.[0-9]+)*");
+  /**
+   * The patches with version-from, keyed by version-from.
+   */
+  protected final Map<String, List<Patch>> patchesByVersionFrom;
+  /**
+   * The patches with version-from-subsequent, a patch with both version-from 
+   * and version-from-subsequent is also in {@link #patchesByVersionFrom}.
+   */
+  protected final List<Patch> subsequentPatches;
+  /**
+   * The parsed versions, keyed by the version string.
+   */
+  protected final Map<String, int[]> versionKeys;
+
+  /**
+   * Constructor.
+   * @param patches all available patches
+   */
+  public VersionGraph(List<Patch> patches) {
+    if (patches == null) {
+      throw new NullPointerException("argument 'patches' cannot be null");
+    }
+
+    patchesByVersionFrom = new HashMap<String, List<Patch>>();
+    subsequentPatches = new ArrayList<Patch>();
+    versionKeys = new HashMap<String, int[]>();
+
+    for (Patch patch : patches) {
+      if (patch.getVersionFrom() != null) {
+        List<Patch> patchList = patchesByVersionFrom.get(patch.getVersionFrom());
+        if (patchList == null) {
+          patchList = new ArrayList<Patch>();
+          patchesByVersionFrom.put(patch.getVersionFrom(), patchList);
+        }
+        patchList.add(patch);
+      }
+      if (patch.getVersionFromSubsequent() != null) {
+        subsequentPatches.add(patch);
+      }
+    }
+  }
+
+  /**
+   * Get the patches to upgrade from {@code fromVersion} to the highest 
+   * reachable version with the least total cost.
+   * @param fromVersion the starting version
+   * @param costModel the cost model
+   * @return the patches in the order to apply, empty if no newer version is 
+   * reachable
+   * @throws IllegalArgumentException version string is not a valid format
+   */
+  public List<Patch> getPatches(String fromVersion, PatchCostModel costModel) {
+    if (fromVersion == null) {
+      throw new NullPointerException("argument 'fromVersion' cannot be null");
+    }
+    if (costModel == null) {
+      throw new NullPointerException("argument 'costModel' cannot be null");
+    }
+
+    // the best path found to every version, settled in the order of cost
+    Map<String, Path> bestPaths = new HashMap<String, Path>();
+    Map<String, Path> settledPaths = new LinkedHashMap<String, Path>();
+    PriorityQueue<Path> queue = new PriorityQueue<Path>();
+
+    Path startPath = new Path(fromVersion, null, null, 0, 0);
+    bestPaths.put(fromVersion, startPath);
+    queue.add(startPath);
+
+    Path path;
+    while ((path = queue.poll()) != null) {
+      if (bestPaths.get(path.version) != path) {
+        // a better path was found after this was queued
+        continue;
+      }
+      settledPaths.put(path.version, path);
+
+      for (Patch patch : getPatchesFrom(path.version)) {
+        long cost = costModel.getCost(patch);
+        if (cost < 0) {
+          continue;
+        }
+
+        String versionTo = patch.getVersionTo();
+        if (settledPaths.containsKey(versionTo)) {
+          continue;
+        }
+        Path newPath = new Path(versionTo, patch, path, path.cost + cost, path.count + 1);
+        Path bestPath = bestPaths.get(versionTo);
+        if (bestPath == null || newPath.compareTo(bestPath) < 0) {
+          bestPaths.put(versionTo, newPath);
+          queue.add(newPath);
+        }
+      }
+    }
+
+    // find the highest version, take the cheapest one if there are several
+    Path targetPath = null;
+    String maxVersion = fromVersion;
+    for (Path settledPath : settledPaths.values()) {
+      if (settledPath == startPath) {
+        continue;
+      }
+      long compareResult = compareVersion(settledPath.version, maxVersion);
+      if (compareResult > 0) {
+        maxVersion = settledPath.version;
+        targetPath = settledPath;
+      } else if (compareResult == 0 && targetPath != null && settledPath.compareTo(targetPath) < 0) {
+        targetPath = settledPath;
+      }
+    }
+
+    List<Patch> returnResult = new ArrayList<Patch>();
+    for (Path _path = targetPath; _path != null && _path.patch != null; _path = _path.previous) {
+      returnResult.add(_path.patch);
+    }
+    Collections.reverse(returnResult);
+
+    return returnResult;
+  }
+
+  /**
+   * Get the patches that can be applied on {@code version}.
+   * @param version the version
+   * @return the patches
+   */
+  protected List<Patch> getPatchesFrom(String version) {
+    List<Patch> returnResult = new ArrayList<Patch>();
+
+    List<Patch> patchList = patchesByVersionFrom.get(version);
+    if (patchList != null) {
+      returnResult.addAll(patchList);
+    }
+    for (Patch patch : subsequentPatches) {
+      if (version.equals(patch.getVersionFrom())) {
+        // added above
+        continue;
+      }
+      if (compareVersion(version, patch.getVersionFromSubsequent()) >= 0 && compareVersion(patch.getVersionTo(), version) > 0) {
+        returnResult.add(patch);
+      }
+    }
+
+    return returnResult;
+  }
+
+  /**
+   * Compare {@code version1} and {@code version2}, the same as 
+   * {@link updater.util.CommonUtil#compareVersion(java.lang.String, java.lang.String)} 
+   * but use the cached parsed versions.
+   * @param version1 version string
+   * @param version2 version string to compare to
+   * @return 0 if two version are equal, > 0 if {@code version1} is larger 
+   * than {@code version2}, < 0 if {@code version1} is smaller than 
+   * {@code version2}
+   * @throws IllegalArgumentException version string is not a valid format
+   */
+  protected long compareVersion(String version1, String version2) {
+    int[] version1Key = getVersionKey(version1);
+    int[] version2Key = getVersionKey(version2);
+
+    for (int i = 0, iEnd = Math.min(version1Key.length, version2Key.length); i < iEnd; i++) {
+      if (version1Key[i] != version2Key[i]) {
+        return version1Key[i] > version2Key[i] ? 1 : -1;
+      }
+    }
+
+    return 0;
+  }
+
+  /**
+   * Get the parsed {@code version}.
+   * @param version the version string
+   * @return the numbers in the version
+   * @throws IllegalArgumentException version string is not a valid format
+   */
+  protected int[] getVersionKey(String version) {
+    int[] versionKey = versionKeys.get(version);
+    if (versionKey == null) {
+      if (!VERSION_PATTERN.matcher(version).matches()) {
+        throw new IllegalArgumentException("Valid version number should be [0-9]+(\\.[0-9]+)*, found: " + version);
+      }
+
+      String[] versionParted = version.split("\\.");
+      versionKey = new int[versionParted.length];
+      for (int i = 0; i < versionParted.length; i++) {
+        versionKey[i] = Integer.parseInt(versionParted[i]);
+      }
+      versionKeys.put(version, versionKey);
+    }
+    return versionKey;
+  }
+
+  /**
+   * The path from the starting version to {@link #version}.
+   */
+  protected static class Path implements Comparable<Path> {
+
+    protected final String version;
+    /**
+     * The last patch on the path, null if this is the starting version.
+     */
+    protected final Patch patch;
+    protected final Path previous;
+    protected final long cost;
+    protected final int count;
+
+    protected Path(String version, Patch patch, Path previous, long cost, int count) {
+      this.version = version;
+      this.patch = patch;
+      this.previous = previous;
+      this.cost = cost;
+      this.count = count;
+    }
+
+    @Override
+    public int compareTo(Path o) {
+      if (cost != o.cost) {
+        return cost < o.cost ? -1 : 1;
+      }
+      return count < o.count ? -1 : (count == o.count ? 0 : 1);
+    }
+  }
+}
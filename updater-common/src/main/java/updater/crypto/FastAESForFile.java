@@ -0,0 +1,347 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.crypto;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import watne.seis720.project.AESForFile;
+import watne.seis720.project.Padding;
+
+/**
+ * The {@link AESForFile} using {@link AESBlockCipher} to encrypt and decrypt 
+ * files. The output is the same as {@link AESForFile}.
+ * <p>Same as {@link AESForFile}, each block is encrypted independently, the 
+ * mode and the initialization vector have no effect on the files. Only 
+ * {@link Padding#PKCS5PADDING} and {@link Padding#NOPADDING} are supported.</p>
+ * <p>As the blocks are independent, the decryption can be split into 
+ * {@link #PARALLEL_CHUNK_SIZE} chunks and done by multiple threads, see 
+ * {@link #setThreads(int)}.</p>
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class FastAESForFile extends AESForFile {
+
+  /**
+   * The size of the chunk to process between the checks of pause and 
+   * interruption.
+   */
+  protected static final int CHUNK_SIZE = 32768;
+  /**
+   * The size of the chunk every thread decrypt at a time when decrypting 
+   * with multiple threads.
+   */
+  protected static final int PARALLEL_CHUNK_SIZE = 1048576;
+  /**
+   * The number of threads to use in decryption.
+   */
+  protected int threads;
+
+  /**
+   * Constructor.
+   */
+  public FastAESForFile() {
+    super();
+    threads = 1;
+  }
+
+  /**
+   * Get the number of threads to use in decryption.
+   * @return the number of threads
+   */
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * Set the number of threads to use in decryption. Files not larger than 
+   * {@link #PARALLEL_CHUNK_SIZE} are always decrypted by the calling thread.
+   * @param threads the number of threads, should be at least 1
+   */
+  public void setThreads(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("argument 'threads' should be at least 1");
+    }
+    this.threads = threads;
+  }
+
+  /**
+   * Get the block cipher using the current key and key size.
+   * @return the block cipher
+   */
+  protected AESBlockCipher getBlockCipher() {
+    if (getKey() == null) {
+      throw new IllegalStateException("Uninitialized key.");
+    }
+    return new AESBlockCipher(getKey(), getKeySize().getNumRounds());
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void encryptFile(File inputFile, File outputFile) throws Exception {
+    AESBlockCipher cipher = getBlockCipher();
+    boolean pad = getPadding() == Padding.PKCS5PADDING;
+
+    DataInputStream reader = null;
+    OutputStream writer = null;
+    try {
+      reader = new DataInputStream(new FileInputStream(inputFile));
+      writer = new BufferedOutputStream(new FileOutputStream(outputFile), CHUNK_SIZE);
+
+      byte[] buf = new byte[CHUNK_SIZE + AESBlockCipher.BLOCK_SIZE];
+      int percentage = 0;
+      long inputFileLength = inputFile.length(), cumulateRead = 0;
+      while (cumulateRead < inputFileLength) {
+        check();
+
+        int length = (int) Math.min(CHUNK_SIZE, inputFileLength - cumulateRead);
+        reader.readFully(buf, 0, length);
+        cumulateRead += length;
+
+        if (cumulateRead == inputFileLength && pad) {
+          // the padding is added even if the last block is full
+          int paddingLength = AESBlockCipher.BLOCK_SIZE - (length % AESBlockCipher.BLOCK_SIZE);
+          for (int i = 0; i < paddingLength; i++) {
+            buf[length + i] = (byte) paddingLength;
+          }
+          length += paddingLength;
+        } else if (length % AESBlockCipher.BLOCK_SIZE != 0) {
+          throw new IOException("The length of the file is not a multiple of the block size.");
+        }
+
+        cipher.encryptBlocks(buf, 0, length);
+        writer.write(buf, 0, length);
+
+        percentage = notifyProgress(percentage, cumulateRead, inputFileLength);
+      }
+    } finally {
+      if (writer != null) {
+        writer.close();
+      }
+      if (reader != null) {
+        reader.close();
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void decryptFile(File inputFile, File outputFile) throws Exception {
+    AESBlockCipher cipher = getBlockCipher();
+    boolean pad = getPadding() == Padding.PKCS5PADDING;
+
+    long inputFileLength = inputFile.length();
+    if (inputFileLength % AESBlockCipher.BLOCK_SIZE != 0) {
+      throw new IOException("The length of the file is not a multiple of the block size.");
+    }
+
+    if (threads > 1 && inputFileLength > PARALLEL_CHUNK_SIZE) {
+      decryptFileParallel(cipher, pad, inputFile, outputFile);
+      return;
+    }
+
+    DataInputStream reader = null;
+    OutputStream writer = null;
+    try {
+      reader = new DataInputStream(new FileInputStream(inputFile));
+      writer = new BufferedOutputStream(new FileOutputStream(outputFile), CHUNK_SIZE);
+
+      byte[] buf = new byte[CHUNK_SIZE];
+      int percentage = 0;
+      long cumulateRead = 0;
+      while (cumulateRead < inputFileLength) {
+        check();
+
+        int length = (int) Math.min(CHUNK_SIZE, inputFileLength - cumulateRead);
+        reader.readFully(buf, 0, length);
+        cumulateRead += length;
+
+        cipher.decryptBlocks(buf, 0, length);
+        if (cumulateRead == inputFileLength && pad) {
+          int paddingLength = buf[length - 1];
+          if (paddingLength < 1 || paddingLength > AESBlockCipher.BLOCK_SIZE) {
+            throw new IOException(String.format("Invalid number of padding bytes: %1$d", paddingLength));
+          }
+          length -= paddingLength;
+        }
+        writer.write(buf, 0, length);
+
+        percentage = notifyProgress(percentage, cumulateRead, inputFileLength);
+      }
+    } finally {
+      if (writer != null) {
+        writer.close();
+      }
+      if (reader != null) {
+        reader.close();
+      }
+    }
+  }
+
+  /**
+   * Decrypt the file by {@link #threads} threads. Every thread read, decrypt 
+   * and write a {@link #PARALLEL_CHUNK_SIZE} chunk of the file by positional 
+   * read and write.
+   * @param cipher the block cipher
+   * @param pad true to remove the PKCS5 padding
+   * @param inputFile the file to decrypt
+   * @param outputFile the file to save the decrypted data
+   * @throws IOException error occurred when reading, writing or the padding 
+   * is invalid
+   */
+  protected void decryptFileParallel(final AESBlockCipher cipher, boolean pad, File inputFile, File outputFile) throws IOException {
+    RandomAccessFile reader = null;
+    RandomAccessFile writer = null;
+    ExecutorService executor = null;
+    try {
+      reader = new RandomAccessFile(inputFile, "r");
+      writer = new RandomAccessFile(outputFile, "rw");
+      final FileChannel readChannel = reader.getChannel();
+      final FileChannel writeChannel = writer.getChannel();
+
+      long inputFileLength = readChannel.size();
+      final long outputFileLength;
+      if (pad) {
+        byte[] lastBlock = new byte[AESBlockCipher.BLOCK_SIZE];
+        readFully(readChannel, lastBlock, 0, lastBlock.length, inputFileLength - lastBlock.length);
+        cipher.decryptBlocks(lastBlock, 0, lastBlock.length);
+        int paddingLength = lastBlock[lastBlock.length - 1];
+        if (paddingLength < 1 || paddingLength > AESBlockCipher.BLOCK_SIZE) {
+          throw new IOException(String.format("Invalid number of padding bytes: %1$d", paddingLength));
+        }
+        outputFileLength = inputFileLength - paddingLength;
+      } else {
+        outputFileLength = inputFileLength;
+      }
+      writer.setLength(outputFileLength);
+
+      executor = Executors.newFixedThreadPool(threads);
+      CompletionService<Integer> completionService = new ExecutorCompletionService<Integer>(executor);
+
+      // limit the number of chunks in memory
+      int chunkCount = (int) ((inputFileLength + PARALLEL_CHUNK_SIZE - 1) / PARALLEL_CHUNK_SIZE);
+      int submitted = 0, completed = 0;
+      int percentage = 0;
+      long cumulateRead = 0;
+      while (completed < chunkCount) {
+        while (submitted < chunkCount && submitted - completed < threads * 2) {
+          final long position = (long) submitted * PARALLEL_CHUNK_SIZE;
+          final int length = (int) Math.min(PARALLEL_CHUNK_SIZE, inputFileLength - position);
+          completionService.submit(new Callable<Integer>() {
+
+            @Override
+            public Integer call() throws Exception {
+              byte[] buf = new byte[length];
+              readFully(readChannel, buf, 0, length, position);
+              cipher.decryptBlocks(buf, 0, length);
+
+              ByteBuffer buffer = ByteBuffer.wrap(buf, 0, (int) Math.min(length, outputFileLength - position));
+              while (buffer.hasRemaining()) {
+                writeChannel.write(buffer, position + buffer.position());
+              }
+              return length;
+            }
+          });
+          submitted++;
+        }
+
+        check();
+
+        try {
+          cumulateRead += completionService.take().get();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          check();
+        } catch (ExecutionException ex) {
+          Throwable cause = ex.getCause();
+          throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+        completed++;
+
+        percentage = notifyProgress(percentage, cumulateRead, inputFileLength);
+      }
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+      if (writer != null) {
+        writer.close();
+      }
+      if (reader != null) {
+        reader.close();
+      }
+    }
+  }
+
+  /**
+   * Read the {@code channel} at {@code position} to fill up {@code len} 
+   * bytes of {@code b}.
+   * @param channel the channel to read from
+   * @param b the buffer to read into
+   * @param off the offset in {@code b}
+   * @param len the number of bytes to read
+   * @param position the position in the channel
+   * @throws IOException error occurred when reading or end of file reached
+   */
+  protected static void readFully(FileChannel channel, byte[] b, int off, int len, long position) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position() - off) == -1) {
+        throw new IOException("Unexpected end of file.");
+      }
+    }
+  }
+
+  /**
+   * Notify the listener if the percentage changed.
+   * @param percentage the last notified percentage
+   * @param cumulateRead the number of bytes processed
+   * @param total the total number of bytes
+   * @return the current percentage
+   */
+  protected int notifyProgress(int percentage, long cumulateRead, long total) {
+    if (listener != null) {
+      int tempPercentage = (int) ((double) (cumulateRead * 100) / (double) total);
+      if (percentage != tempPercentage) {
+        listener.cryptProgress(tempPercentage);
+        return tempPercentage;
+      }
+    }
+    return percentage;
+  }
+}
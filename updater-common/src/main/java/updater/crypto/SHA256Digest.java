@@ -0,0 +1,272 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * SHA-256 message digest whose intermediate state can be exported and 
+ * imported, so the digest of a partly processed data can be saved and 
+ * continued later (e.g. when resuming a download).
+ * <p>This class is not thread-safe.</p>
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class SHA256Digest {
+
+  /**
+   * The format version of the exported state.
+   */
+  protected static final int STATE_FORMAT_VERSION = 1;
+  /**
+   * The round constants.
+   */
+  protected static final int[] K = {
+    0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+    0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+    0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+    0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+    0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+    0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+    0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+    0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+  };
+  /**
+   * The hash value.
+   */
+  protected final int[] h;
+  /**
+   * The incomplete block waiting for more data.
+   */
+  protected final byte[] buffer;
+  /**
+   * The message schedule, kept to avoid allocation for every block.
+   */
+  protected final int[] w;
+  /**
+   * The total number of bytes processed.
+   */
+  protected long length;
+
+  /**
+   * Constructor.
+   */
+  public SHA256Digest() {
+    h = new int[8];
+    buffer = new byte[64];
+    w = new int[64];
+    reset();
+  }
+
+  /**
+   * Reset the digest to the initial state.
+   */
+  public final void reset() {
+    h[0] = 0x6a09e667;
+    h[1] = 0xbb67ae85;
+    h[2] = 0x3c6ef372;
+    h[3] = 0xa54ff53a;
+    h[4] = 0x510e527f;
+    h[5] = 0x9b05688c;
+    h[6] = 0x1f83d9ab;
+    h[7] = 0x5be0cd19;
+    length = 0;
+  }
+
+  /**
+   * Get the total number of bytes processed.
+   * @return the number of bytes
+   */
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * Update the digest with one byte.
+   * @param b the byte
+   */
+  public void update(byte b) {
+    update(new byte[]{b}, 0, 1);
+  }
+
+  /**
+   * Update the digest with the bytes.
+   * @param b the bytes
+   * @param off the start offset in {@code b}
+   * @param len the number of bytes
+   */
+  public void update(byte[] b, int off, int len) {
+    if (b == null) {
+      throw new NullPointerException("argument 'b' cannot be null");
+    }
+    if (off < 0 || len < 0 || off + len > b.length) {
+      throw new IndexOutOfBoundsException();
+    }
+
+    int bufferLength = (int) (length & 63);
+    length += len;
+
+    if (bufferLength > 0) {
+      int lengthToCopy = Math.min(len, 64 - bufferLength);
+      System.arraycopy(b, off, buffer, bufferLength, lengthToCopy);
+      off += lengthToCopy;
+      len -= lengthToCopy;
+      if (bufferLength + lengthToCopy < 64) {
+        return;
+      }
+      processBlock(buffer, 0);
+    }
+    while (len >= 64) {
+      processBlock(b, off);
+      off += 64;
+      len -= 64;
+    }
+    if (len > 0) {
+      System.arraycopy(b, off, buffer, 0, len);
+    }
+  }
+
+  /**
+   * Complete the digest and reset the digest to the initial state.
+   * @return the 32 bytes digest
+   */
+  public byte[] digest() {
+    long bitLength = length << 3;
+
+    byte[] padding = new byte[(int) (((length + 8) & ~63L) + 64 - length)];
+    padding[0] = (byte) 0x80;
+    for (int i = 0; i < 8; i++) {
+      padding[padding.length - 1 - i] = (byte) (bitLength >>> (i * 8));
+    }
+    update(padding, 0, padding.length);
+
+    byte[] result = new byte[32];
+    for (int i = 0; i < 8; i++) {
+      int value = h[i];
+      result[i * 4] = (byte) (value >>> 24);
+      result[i * 4 + 1] = (byte) (value >>> 16);
+      result[i * 4 + 2] = (byte) (value >>> 8);
+      result[i * 4 + 3] = (byte) value;
+    }
+
+    reset();
+
+    return result;
+  }
+
+  /**
+   * Export the current state, the state can be imported by 
+   * {@link #setState(byte[])} to continue the digest.
+   * @return the state
+   */
+  public byte[] getState() {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream(112);
+    DataOutputStream out = new DataOutputStream(bout);
+    try {
+      out.writeInt(STATE_FORMAT_VERSION);
+      out.writeLong(length);
+      for (int i = 0; i < 8; i++) {
+        out.writeInt(h[i]);
+      }
+      out.write(buffer, 0, (int) (length & 63));
+      out.flush();
+    } catch (IOException ex) {
+      // not possible for ByteArrayOutputStream
+      throw new RuntimeException(ex);
+    }
+    return bout.toByteArray();
+  }
+
+  /**
+   * Import the state exported by {@link #getState()}.
+   * @param state the state
+   * @throws IOException the state is invalid
+   */
+  public void setState(byte[] state) throws IOException {
+    if (state == null) {
+      throw new NullPointerException("argument 'state' cannot be null");
+    }
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(state));
+    if (in.readInt() != STATE_FORMAT_VERSION) {
+      throw new IOException("The format version of the state is not supported.");
+    }
+    long _length = in.readLong();
+    if (_length < 0 || state.length != 44 + (int) (_length & 63)) {
+      throw new IOException("The state is invalid.");
+    }
+    for (int i = 0; i < 8; i++) {
+      h[i] = in.readInt();
+    }
+    in.readFully(buffer, 0, (int) (_length & 63));
+    length = _length;
+  }
+
+  /**
+   * Process a 64 bytes block.
+   * @param b the data
+   * @param off the start offset of the block in {@code b}
+   */
+  protected void processBlock(byte[] b, int off) {
+    for (int i = 0; i < 16; i++) {
+      int index = off + i * 4;
+      w[i] = (b[index] << 24) | ((b[index + 1] & 0xff) << 16) | ((b[index + 2] & 0xff) << 8) | (b[index + 3] & 0xff);
+    }
+    for (int i = 16; i < 64; i++) {
+      int w2 = w[i - 2], w15 = w[i - 15];
+      int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+      int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
+      w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+    }
+
+    int a = h[0], b0 = h[1], c = h[2], d = h[3], e = h[4], f = h[5], g = h[6], hh = h[7];
+    for (int i = 0; i < 64; i++) {
+      int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+      int ch = (e & f) ^ (~e & g);
+      int temp1 = hh + s1 + ch + K[i] + w[i];
+      int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+      int maj = (a & b0) ^ (a & c) ^ (b0 & c);
+      int temp2 = s0 + maj;
+
+      hh = g;
+      g = f;
+      f = e;
+      e = d + temp1;
+      d = c;
+      c = b0;
+      b0 = a;
+      a = temp1 + temp2;
+    }
+
+    h[0] += a;
+    h[1] += b0;
+    h[2] += c;
+    h[3] += d;
+    h[4] += e;
+    h[5] += f;
+    h[6] += g;
+    h[7] += hh;
+  }
+}
@@ -0,0 +1,106 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+/**
+ * The report of selecting the diff of a changed file among the encodings 
+ * when creating patch, see {@link PatchCreator}. The lengths are the lengths 
+ * after compression.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class DiffReport {
+
+  /**
+   * The path of the file.
+   */
+  protected final String path;
+  /**
+   * The name of the selected encoding, e.g. 'gdiff(32)' or 'replace'.
+   */
+  protected final String selected;
+  /**
+   * The compressed length of the selected.
+   */
+  protected final long selectedLength;
+  /**
+   * The name of the encoding that would be used without the selection.
+   */
+  protected final String baseline;
+  /**
+   * The compressed length of the baseline.
+   */
+  protected final long baselineLength;
+  /**
+   * The number of encodings tried, including the baseline.
+   */
+  protected final int tried;
+
+  /**
+   * Constructor.
+   * @param path the path of the file
+   * @param selected the name of the selected encoding
+   * @param selectedLength the compressed length of the selected
+   * @param baseline the name of the encoding that would be used without 
+   * the selection
+   * @param baselineLength the compressed length of the baseline
+   * @param tried the number of encodings tried, including the baseline
+   */
+  public DiffReport(String path, String selected, long selectedLength, String baseline, long baselineLength, int tried) {
+    this.path = path;
+    this.selected = selected;
+    this.selectedLength = selectedLength;
+    this.baseline = baseline;
+    this.baselineLength = baselineLength;
+    this.tried = tried;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  public String getSelected() {
+    return selected;
+  }
+
+  public long getSelectedLength() {
+    return selectedLength;
+  }
+
+  public String getBaseline() {
+    return baseline;
+  }
+
+  public long getBaselineLength() {
+    return baselineLength;
+  }
+
+  public int getTried() {
+    return tried;
+  }
+
+  /**
+   * Get the bytes saved by the selection.
+   * @return the bytes saved
+   */
+  public long getSaving() {
+    return baselineLength - selectedLength;
+  }
+}
@@ -0,0 +1,131 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import com.nothome.delta.ByteBufferSeekableSource;
+import com.nothome.delta.Delta;
+import com.nothome.delta.GDiffPatcher;
+import com.nothome.delta.GDiffWriter;
+import com.nothome.delta.SeekableSource;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The differ using the GDiff format, the diff is computed by 
+ * {@link com.nothome.delta.Delta} that match the new file with fixed-size 
+ * chunks of the old file.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class GDiffDiffer implements Differ {
+
+  /**
+   * The size of the chunks to match.
+   */
+  protected final int chunkSize;
+
+  /**
+   * Constructor.
+   */
+  public GDiffDiffer() {
+    this(Delta.DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Constructor.
+   * @param chunkSize the size of the chunks of the old file to match, smaller 
+   * chunk find more matches but take more memory
+   */
+  public GDiffDiffer(int chunkSize) {
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("argument 'chunkSize' should be greater than 0");
+    }
+    this.chunkSize = chunkSize;
+  }
+
+  @Override
+  public boolean canDiff(File oldFile, File newFile) {
+    return true;
+  }
+
+  @Override
+  public void diff(File oldFile, File newFile, OutputStream out) throws IOException {
+    if (oldFile == null) {
+      throw new NullPointerException("argument 'oldFile' cannot be null");
+    }
+    if (newFile == null) {
+      throw new NullPointerException("argument 'newFile' cannot be null");
+    }
+    if (out == null) {
+      throw new NullPointerException("argument 'out' cannot be null");
+    }
+
+    Delta delta = new Delta();
+    delta.setChunkSize(chunkSize);
+    delta.compute(oldFile, newFile, new GDiffWriter(getUnclosableStream(out)));
+  }
+
+  @Override
+  public void diff(byte[] oldData, byte[] newData, OutputStream out) throws IOException {
+    if (oldData == null) {
+      throw new NullPointerException("argument 'oldData' cannot be null");
+    }
+    if (newData == null) {
+      throw new NullPointerException("argument 'newData' cannot be null");
+    }
+    if (out == null) {
+      throw new NullPointerException("argument 'out' cannot be null");
+    }
+
+    Delta delta = new Delta();
+    delta.setChunkSize(chunkSize);
+    delta.compute(new ByteBufferSeekableSource(oldData), new ByteArrayInputStream(newData), new GDiffWriter(getUnclosableStream(out)));
+  }
+
+  /**
+   * Get a stream that write to {@code out} but only flush {@code out} when 
+   * closed. {@link com.nothome.delta.Delta} close the writer when finished.
+   * @param out the stream to write to
+   * @return the stream
+   */
+  protected static OutputStream getUnclosableStream(OutputStream out) {
+    return new FilterOutputStream(out) {
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        flush();
+      }
+    };
+  }
+
+  @Override
+  public void patch(SeekableSource oldFile, InputStream patchIn, OutputStream out) throws IOException {
+    new GDiffPatcher().patch(oldFile, patchIn, out);
+  }
+}
@@ -0,0 +1,460 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import org.tukaani.xz.XZInputStream;
+import updater.crypto.AESBlockCipher;
+import updater.crypto.AESDecryptInputStream;
+import updater.crypto.AESKey;
+import updater.script.InvalidFormatException;
+import updater.script.Patch;
+import updater.script.Patch.Operation;
+import updater.util.CommonUtil;
+
+/**
+ * Reader of the indexed patch.
+ * <p>
+ * The indexed patch (format version 2) store the patch XML and the content 
+ * of every operation in separately compressed blocks, the offset of the 
+ * blocks are recorded in the index at the end of the patch, so the content 
+ * of any operation can be read without decompressing those before it.
+ * </p>
+ * <pre>
+ * "PATCH"       5 bytes, the header
+ * 0x82          1 byte, {@link #FORMAT_MARKER}
+ * compression   1 byte, {@link Compression#getValue()}
+ * blocks        the patch XML block followed by the operation blocks
+ * index         4 bytes number of entries, then for every entry 8 bytes 
+ *               patch position (-1 for the patch XML), 8 bytes offset and 
+ *               8 bytes length of the block
+ * index offset  8 bytes
+ * </pre>
+ * The patch (format version 1) without the index has the compression method 
+ * right after the header, which is always less than 0x80.
+ * <p>
+ * The encrypted patch is the whole patch above encrypted block by block with 
+ * {@link PatchReadUtil#getCipher(AESKey)}, the blocks are decrypted when 
+ * read, so the content of any operation can still be read directly.
+ * </p>
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class IndexedPatchReader implements Closeable {
+
+  /**
+   * The format version of the indexed patch.
+   */
+  public static final int FORMAT_VERSION = 2;
+  /**
+   * The byte right after the header that indicate the patch is an indexed 
+   * patch.
+   */
+  public static final int FORMAT_MARKER = 0x80 | FORMAT_VERSION;
+  /**
+   * The patch file.
+   */
+  protected RandomAccessFile file;
+  /**
+   * The channel of {@link #file}, use positional read so the blocks can be 
+   * read concurrently.
+   */
+  protected FileChannel channel;
+  /**
+   * The cipher to decrypt the patch, null if the patch is not encrypted.
+   */
+  protected AESBlockCipher cipher;
+  /**
+   * The length of the (decrypted) patch.
+   */
+  protected long length;
+  /**
+   * The compression method of the blocks.
+   */
+  protected Compression compression;
+  /**
+   * The offset of the patch XML block.
+   */
+  protected long xmlOffset;
+  /**
+   * The length of the patch XML block.
+   */
+  protected long xmlLength;
+  /**
+   * The patch positions of the operation blocks, in ascending order.
+   */
+  protected long[] patchPositions;
+  /**
+   * The offsets of the operation blocks.
+   */
+  protected long[] offsets;
+  /**
+   * The lengths of the operation blocks.
+   */
+  protected long[] lengths;
+
+  /**
+   * Constructor.
+   * @param patchFile the patch file
+   * @throws IOException error occurred when reading the patch or the patch 
+   * is not a valid indexed patch
+   */
+  public IndexedPatchReader(File patchFile) throws IOException {
+    this(patchFile, null);
+  }
+
+  /**
+   * Constructor.
+   * @param patchFile the patch file
+   * @param aesKey the cipher key to decrypt the patch, null means the patch 
+   * is not encrypted
+   * @throws IOException error occurred when reading the patch or the patch 
+   * is not a valid indexed patch
+   */
+  public IndexedPatchReader(File patchFile, AESKey aesKey) throws IOException {
+    if (patchFile == null) {
+      throw new NullPointerException("argument 'patchFile' cannot be null");
+    }
+
+    file = new RandomAccessFile(patchFile, "r");
+    try {
+      channel = file.getChannel();
+
+      length = file.length();
+      if (aesKey != null) {
+        cipher = PatchReadUtil.getCipher(aesKey);
+        if (length == 0 || length % AESBlockCipher.BLOCK_SIZE != 0) {
+          throw new IOException("The length of the encrypted patch is not a multiple of the block size.");
+        }
+        byte[] lastBlock = new byte[AESBlockCipher.BLOCK_SIZE];
+        readFully(channel, lastBlock, length - lastBlock.length);
+        cipher.decryptBlocks(lastBlock, 0, lastBlock.length);
+        int paddingLength = lastBlock[lastBlock.length - 1];
+        if (paddingLength < 1 || paddingLength > AESBlockCipher.BLOCK_SIZE) {
+          throw new IOException("Failed to decrypt the patch, invalid padding.");
+        }
+        length -= paddingLength;
+      }
+
+      byte[] header = new byte[7];
+      readFully(header, 0);
+      PatchReadUtil.readHeader(new ByteArrayInputStream(header));
+      if ((header[5] & 0xff) != FORMAT_MARKER) {
+        throw new IOException("The patch is not an indexed patch.");
+      }
+      compression = Compression.getCompression(header[6] & 0xff);
+      if (compression == null) {
+        throw new IOException("Compression method not supported/not exist");
+      }
+
+      // index
+      if (length < header.length + 12) {
+        throw new IOException("The patch is truncated.");
+      }
+      byte[] indexOffsetData = new byte[8];
+      readFully(indexOffsetData, length - 8);
+      long indexOffset = new DataInputStream(new ByteArrayInputStream(indexOffsetData)).readLong();
+      if (indexOffset < header.length || indexOffset > length - 12) {
+        throw new IOException("Invalid index offset of the patch.");
+      }
+      long indexLength = length - 8 - indexOffset;
+      if (indexLength < 4 + 24 || (indexLength - 4) % 24 != 0 || indexLength > Integer.MAX_VALUE) {
+        throw new IOException("Invalid index of the patch.");
+      }
+
+      byte[] indexData = new byte[(int) indexLength];
+      readFully(indexData, indexOffset);
+      DataInputStream indexIn = new DataInputStream(new ByteArrayInputStream(indexData));
+      int entryCount = indexIn.readInt();
+      if (entryCount != (indexLength - 4) / 24) {
+        throw new IOException("Invalid index of the patch.");
+      }
+      if (indexIn.readLong() != -1) {
+        throw new IOException("Patch XML not found in the index of the patch.");
+      }
+      xmlOffset = indexIn.readLong();
+      xmlLength = indexIn.readLong();
+
+      patchPositions = new long[entryCount - 1];
+      offsets = new long[entryCount - 1];
+      lengths = new long[entryCount - 1];
+      for (int i = 0, iEnd = entryCount - 1; i < iEnd; i++) {
+        patchPositions[i] = indexIn.readLong();
+        offsets[i] = indexIn.readLong();
+        lengths[i] = indexIn.readLong();
+        if (i > 0 && patchPositions[i] <= patchPositions[i - 1]) {
+          throw new IOException("Invalid index of the patch.");
+        }
+      }
+    } catch (IOException ex) {
+      CommonUtil.closeQuietly(file);
+      throw ex;
+    }
+  }
+
+  /**
+   * Check if the patch is an indexed patch.
+   * @param patchFile the patch file
+   * @return true if it is an indexed patch, false if not
+   * @throws IOException error occurred when reading the patch or the patch 
+   * header is invalid
+   */
+  public static boolean isIndexedPatch(File patchFile) throws IOException {
+    return isIndexedPatch(patchFile, null);
+  }
+
+  /**
+   * Check if the patch is an indexed patch.
+   * @param patchFile the patch file
+   * @param aesKey the cipher key to decrypt the patch, null means the patch 
+   * is not encrypted
+   * @return true if it is an indexed patch, false if not
+   * @throws IOException error occurred when reading the patch or the patch 
+   * header is invalid
+   */
+  public static boolean isIndexedPatch(File patchFile, AESKey aesKey) throws IOException {
+    if (patchFile == null) {
+      throw new NullPointerException("argument 'patchFile' cannot be null");
+    }
+
+    InputStream in = null;
+    try {
+      in = new BufferedInputStream(new FileInputStream(patchFile));
+      if (aesKey != null) {
+        in = new AESDecryptInputStream(in, PatchReadUtil.getCipher(aesKey));
+      }
+      PatchReadUtil.readHeader(in);
+      return in.read() == FORMAT_MARKER;
+    } finally {
+      CommonUtil.closeQuietly(in);
+    }
+  }
+
+  /**
+   * Read the patch XML.
+   * @return the patch XML
+   * @throws IOException error occurred when reading
+   * @throws InvalidFormatException the format of the XML read is incorrect
+   */
+  public Patch readXML() throws IOException, InvalidFormatException {
+    InputStream in = null;
+    try {
+      in = getBlockInputStream(xmlOffset, xmlLength);
+      return PatchReadUtil.readXML(in);
+    } finally {
+      CommonUtil.closeQuietly(in);
+    }
+  }
+
+  /**
+   * Read the patch XML but leave the operations and validations unread.
+   * @return the reader of the patch XML
+   * @throws IOException error occurred when reading
+   * @throws InvalidFormatException the format of the XML read is incorrect
+   */
+  public Patch.StreamReader openXML() throws IOException, InvalidFormatException {
+    InputStream in = null;
+    try {
+      in = getBlockInputStream(xmlOffset, xmlLength);
+      return PatchReadUtil.openXML(in);
+    } finally {
+      CommonUtil.closeQuietly(in);
+    }
+  }
+
+  /**
+   * Get the input stream of the content of the {@code operation}. The 
+   * streams returned can be read concurrently.
+   * @param operation the operation
+   * @return the decompressed input stream, should be closed after use
+   * @throws IOException error occurred when reading or the content is not 
+   * found in the index
+   */
+  public InputStream getPatchInputStream(Operation operation) throws IOException {
+    if (operation == null) {
+      throw new NullPointerException("argument 'operation' cannot be null");
+    }
+
+    if (operation.getPatchLength() <= 0) {
+      return new ByteArrayInputStream(new byte[0]);
+    }
+
+    int index = Arrays.binarySearch(patchPositions, operation.getPatchPos());
+    if (index < 0) {
+      throw new IOException(String.format("Content of operation not found in the index of the patch, id: %1$d, patch position: %2$d", operation.getId(), operation.getPatchPos()));
+    }
+
+    return getBlockInputStream(offsets[index], lengths[index]);
+  }
+
+  /**
+   * Get the decompressed input stream of the block.
+   * @param offset the offset of the block
+   * @param length the length of the block
+   * @return the input stream
+   * @throws IOException error occurred when creating the decompress stream
+   */
+  protected InputStream getBlockInputStream(long offset, long length) throws IOException {
+    InputStream in = new BufferedInputStream(new BlockInputStream(offset, length));
+    switch (compression) {
+      case GZIP:
+        return new GZIPInputStream(in);
+      case LZMA2:
+        return new XZInputStream(in);
+      default:
+        throw new IOException("Compression method not supported/not exist");
+    }
+  }
+
+  /**
+   * Read the (decrypted) patch at {@code position} by positional read, this 
+   * can be called concurrently.
+   * @param position the position in the patch
+   * @param b the buffer to read into
+   * @param off the offset in {@code b}
+   * @param len the maximum number of bytes to read
+   * @return the number of bytes read, -1 if {@code position} is at the end 
+   * of the patch
+   * @throws IOException error occurred when reading
+   */
+  protected int read(long position, byte[] b, int off, int len) throws IOException {
+    if (position >= length) {
+      return -1;
+    }
+    len = (int) Math.min(Math.min(len, length - position), 65536);
+
+    if (cipher == null) {
+      return channel.read(ByteBuffer.wrap(b, off, len), position);
+    }
+
+    // read and decrypt the whole blocks that cover the range
+    long blockStart = position - position % AESBlockCipher.BLOCK_SIZE;
+    long blockEnd = position + len + AESBlockCipher.BLOCK_SIZE - 1;
+    blockEnd -= blockEnd % AESBlockCipher.BLOCK_SIZE;
+    byte[] blocks = new byte[(int) (blockEnd - blockStart)];
+    readFully(channel, blocks, blockStart);
+    cipher.decryptBlocks(blocks, 0, blocks.length);
+    System.arraycopy(blocks, (int) (position - blockStart), b, off, len);
+    return len;
+  }
+
+  /**
+   * Read the (decrypted) patch at {@code position} to fill up {@code b}.
+   * @param b the buffer to read into
+   * @param position the position in the patch
+   * @throws IOException error occurred when reading or end of patch reached
+   */
+  protected void readFully(byte[] b, long position) throws IOException {
+    int cumulativeByteRead = 0;
+    while (cumulativeByteRead < b.length) {
+      int byteRead = read(position + cumulativeByteRead, b, cumulativeByteRead, b.length - cumulativeByteRead);
+      if (byteRead == -1) {
+        throw new IOException("The patch is truncated.");
+      }
+      cumulativeByteRead += byteRead;
+    }
+  }
+
+  /**
+   * Read the {@code channel} at {@code position} to fill up {@code b}.
+   * @param channel the channel to read from
+   * @param b the buffer to read into
+   * @param position the position in the channel
+   * @throws IOException error occurred when reading or end of channel reached
+   */
+  protected static void readFully(FileChannel channel, byte[] b, long position) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(b);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) == -1) {
+        throw new IOException("The patch is truncated.");
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+  /**
+   * Input stream that read a range of the (decrypted) patch by positional 
+   * read.
+   */
+  protected class BlockInputStream extends InputStream {
+
+    /**
+     * The current position.
+     */
+    protected long position;
+    /**
+     * The end position (exclusive).
+     */
+    protected final long end;
+
+    /**
+     * Constructor.
+     * @param offset the start position
+     * @param length the length of the range
+     */
+    protected BlockInputStream(long offset, long length) {
+      this.position = offset;
+      this.end = offset + length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (position >= end) {
+        return -1;
+      }
+
+      int byteRead = IndexedPatchReader.this.read(position, b, off, (int) Math.min(len, end - position));
+      if (byteRead > 0) {
+        position += byteRead;
+      }
+      return byteRead;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(end - position, Integer.MAX_VALUE);
+    }
+  }
+}
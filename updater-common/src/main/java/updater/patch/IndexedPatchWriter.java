@@ -0,0 +1,293 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import javax.xml.transform.TransformerException;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+import updater.crypto.AESEncryptOutputStream;
+import updater.crypto.AESKey;
+import updater.script.Patch;
+
+/**
+ * Writer of the indexed patch. The patch XML should be written first, then 
+ * the content of the operations in the order of their patch position.
+ * @see IndexedPatchReader
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class IndexedPatchWriter implements Closeable {
+
+  /**
+   * The output stream of the patch file.
+   */
+  protected FileOutputStream fout;
+  /**
+   * The channel of {@link #fout}, for getting the offset of the blocks.
+   */
+  protected FileChannel channel;
+  /**
+   * The stream that encrypt the patch, null if the patch is not encrypted.
+   */
+  protected AESEncryptOutputStream encryptOut;
+  /**
+   * The buffered stream of {@link #fout}, flushed after every block.
+   */
+  protected OutputStream out;
+  /**
+   * The compression method of the blocks.
+   */
+  protected Compression compression;
+  /**
+   * The index entries, every entry is {patch position, offset, length}.
+   */
+  protected List<long[]> index;
+  /**
+   * The patch position of the next operation block.
+   */
+  protected long patchPos;
+
+  /**
+   * Constructor.
+   * @param patch the file to save the patch
+   * @param compression the compression method of the blocks
+   * @throws IOException error occurred when writing the header
+   */
+  public IndexedPatchWriter(File patch, Compression compression) throws IOException {
+    this(patch, compression, null);
+  }
+
+  /**
+   * Constructor.
+   * @param patch the file to save the patch
+   * @param compression the compression method of the blocks
+   * @param aesKey the cipher key to encrypt the patch, null means not to 
+   * encrypt
+   * @throws IOException error occurred when writing the header
+   */
+  public IndexedPatchWriter(File patch, Compression compression, AESKey aesKey) throws IOException {
+    if (patch == null) {
+      throw new NullPointerException("argument 'patch' cannot be null");
+    }
+    if (compression == null) {
+      throw new NullPointerException("argument 'compression' cannot be null");
+    }
+
+    this.compression = compression;
+    index = new ArrayList<long[]>();
+    patchPos = 0;
+
+    fout = new FileOutputStream(patch);
+    channel = fout.getChannel();
+    if (aesKey != null) {
+      encryptOut = new AESEncryptOutputStream(fout, PatchReadUtil.getCipher(aesKey));
+      out = new BufferedOutputStream(encryptOut);
+    } else {
+      out = new BufferedOutputStream(fout);
+    }
+
+    PatchWriteUtil.writeHeader(out);
+    out.write(IndexedPatchReader.FORMAT_MARKER);
+    out.write(compression.getValue());
+  }
+
+  /**
+   * Write the patch XML, this should be called before writing any content.
+   * @param content the content of patch XML
+   * @throws IOException error occurred when writing
+   */
+  public void writeXML(byte[] content) throws IOException {
+    if (content == null) {
+      throw new NullPointerException("argument 'content' cannot be null");
+    }
+    if (!index.isEmpty()) {
+      throw new IllegalStateException("The patch XML is already written.");
+    }
+
+    long offset = getPosition();
+    OutputStream blockOut = getBlockOutputStream(content.length + 3);
+    PatchWriteUtil.writeXML(blockOut, content);
+    blockOut.close();
+    index.add(new long[]{-1, offset, getPosition() - offset});
+  }
+
+  /**
+   * Write the binary manifest in place of the patch XML, this should be 
+   * called before writing any content.
+   * @param content the manifest, see {@link PatchManifest}
+   * @throws IOException error occurred when writing
+   */
+  public void writeManifest(byte[] content) throws IOException {
+    if (content == null) {
+      throw new NullPointerException("argument 'content' cannot be null");
+    }
+    if (!index.isEmpty()) {
+      throw new IllegalStateException("The patch XML is already written.");
+    }
+
+    long offset = getPosition();
+    OutputStream blockOut = getBlockOutputStream(content.length + 8);
+    PatchWriteUtil.writeManifest(blockOut, content);
+    blockOut.close();
+    index.add(new long[]{-1, offset, getPosition() - offset});
+  }
+
+  /**
+   * Write the patch as XML, or as binary manifest if {@code binaryManifest} 
+   * is true or the XML exceeds {@link PatchWriteUtil#MAX_XML_LENGTH}.
+   * @param patch the patch script
+   * @param binaryManifest true to write binary manifest
+   * @throws IOException error occurred when generating the XML or writing
+   */
+  public void writeScript(Patch patch, boolean binaryManifest) throws IOException {
+    if (patch == null) {
+      throw new NullPointerException("argument 'patch' cannot be null");
+    }
+
+    if (!binaryManifest) {
+      byte[] content;
+      try {
+        content = patch.output();
+      } catch (TransformerException ex) {
+        throw new IOException("Error occurred when generating the patch script: " + ex.getMessage());
+      }
+      if (content.length <= PatchWriteUtil.MAX_XML_LENGTH) {
+        writeXML(content);
+        return;
+      }
+    }
+    writeManifest(PatchManifest.output(patch));
+  }
+
+  /**
+   * Write the content of the file as the content of the next operation. 
+   * Empty file will not be recorded.
+   * @param fromFile the file to read
+   * @throws IOException error occurred when reading the file or writing
+   */
+  public void writePatch(File fromFile) throws IOException {
+    if (fromFile == null) {
+      throw new NullPointerException("argument 'fromFile' cannot be null");
+    }
+    if (index.isEmpty()) {
+      throw new IllegalStateException("The patch XML should be written first.");
+    }
+
+    long fileLength = fromFile.length();
+    if (fileLength == 0) {
+      return;
+    }
+
+    long offset = getPosition();
+    OutputStream blockOut = getBlockOutputStream(fileLength);
+    PatchWriteUtil.writePatch(fromFile, blockOut);
+    blockOut.close();
+    index.add(new long[]{patchPos, offset, getPosition() - offset});
+
+    patchPos += fileLength;
+  }
+
+  /**
+   * Write the index and close the patch file. Nothing should be written after 
+   * this.
+   * @throws IOException error occurred when writing
+   */
+  public void finish() throws IOException {
+    if (index.isEmpty()) {
+      throw new IllegalStateException("The patch XML should be written first.");
+    }
+
+    long indexOffset = getPosition();
+    DataOutputStream dout = new DataOutputStream(out);
+    dout.writeInt(index.size());
+    for (long[] entry : index) {
+      dout.writeLong(entry[0]);
+      dout.writeLong(entry[1]);
+      dout.writeLong(entry[2]);
+    }
+    dout.writeLong(indexOffset);
+    // closing the stream also write the padding of the encryption
+    dout.close();
+    out = null;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (out != null) {
+      out.close();
+    }
+  }
+
+  /**
+   * Get the current position in the (unencrypted) patch.
+   * @return the position
+   * @throws IOException error occurred when flushing the buffer
+   */
+  protected long getPosition() throws IOException {
+    out.flush();
+    return encryptOut != null ? encryptOut.getLength() : channel.position();
+  }
+
+  /**
+   * Get the compress output stream for a new block, closing the stream will 
+   * finish the block but not close the patch file.
+   * @param length the uncompressed length of the block, used to limit the 
+   * dictionary size of LZMA2 for small blocks
+   * @return the compress output stream
+   * @throws IOException error occurred when creating the compress output 
+   * stream
+   */
+  protected OutputStream getBlockOutputStream(long length) throws IOException {
+    OutputStream blockOut = new FilterOutputStream(out) {
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        flush();
+      }
+    };
+    switch (compression) {
+      case GZIP:
+        return new GZIPOutputStream(blockOut);
+      case LZMA2:
+        LZMA2Options options = new LZMA2Options();
+        options.setDictSize((int) Math.max(LZMA2Options.DICT_SIZE_MIN, Math.min(length, options.getDictSize())));
+        return new XZOutputStream(blockOut, options);
+      default:
+        throw new IOException("Compression method not supported/not exist");
+    }
+  }
+}
@@ -0,0 +1,206 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import updater.util.CommonUtil;
+
+/**
+ * The bottom-k MinHash sketch of the content of a file, used to estimate how 
+ * similar two files are without comparing them.
+ * <p>
+ * Every {@link #SHINGLE_LENGTH} consecutive bytes of the content is hashed, 
+ * and the sketch keeps the {@code k} smallest distinct hashes. The Jaccard 
+ * similarity of two files is estimated by the fraction of the {@code k} 
+ * smallest hashes of the two sketches combined that are in both sketches.
+ * </p>
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class MinHashSketch {
+
+  /**
+   * The number of bytes hashed together.
+   */
+  public static final int SHINGLE_LENGTH = 8;
+  /**
+   * The hashes in ascending order.
+   */
+  protected final long[] hashes;
+  /**
+   * The maximum number of hashes kept.
+   */
+  protected final int k;
+
+  /**
+   * Constructor.
+   * @param hashes the distinct hashes in ascending order
+   * @param k the maximum number of hashes kept
+   */
+  public MinHashSketch(long[] hashes, int k) {
+    if (hashes == null) {
+      throw new NullPointerException("argument 'hashes' cannot be null");
+    }
+    if (k < 1) {
+      throw new IllegalArgumentException("argument 'k' should be at least 1");
+    }
+    this.hashes = hashes;
+    this.k = k;
+  }
+
+  /**
+   * Create the sketch of the file.
+   * @param file the file
+   * @param k the maximum number of hashes to keep
+   * @return the sketch
+   * @throws IOException error occurred when reading the file
+   */
+  public static MinHashSketch create(File file, int k) throws IOException {
+    if (file == null) {
+      throw new NullPointerException("argument 'file' cannot be null");
+    }
+
+    InputStream in = null;
+    try {
+      in = new BufferedInputStream(new FileInputStream(file));
+      return create(in, k);
+    } finally {
+      CommonUtil.closeQuietly(in);
+    }
+  }
+
+  /**
+   * Create the sketch of the content read from the stream.
+   * @param in the input stream to read the content from
+   * @param k the maximum number of hashes to keep
+   * @return the sketch
+   * @throws IOException error occurred when reading the stream
+   */
+  public static MinHashSketch create(InputStream in, int k) throws IOException {
+    if (in == null) {
+      throw new NullPointerException("argument 'in' cannot be null");
+    }
+    if (k < 1) {
+      throw new IllegalArgumentException("argument 'k' should be at least 1");
+    }
+
+    // collect the hashes smaller than the k-th smallest found so far, and drop the larger ones when the buffer is full
+    long[] buffer = new long[k * 4];
+    int count = 0;
+    long threshold = Long.MAX_VALUE;
+
+    byte[] buf = new byte[32768];
+    int byteRead;
+    long shingle = 0;
+    long length = 0;
+    while ((byteRead = in.read(buf)) != -1) {
+      for (int i = 0; i < byteRead; i++) {
+        shingle = (shingle << 8) | (buf[i] & 0xff);
+        length++;
+        if (length < SHINGLE_LENGTH) {
+          continue;
+        }
+        long hash = mix(shingle);
+        if (hash < threshold) {
+          buffer[count++] = hash;
+          if (count == buffer.length) {
+            count = keepSmallest(buffer, count, k);
+            if (count == k) {
+              threshold = buffer[k - 1];
+            }
+          }
+        }
+      }
+    }
+    count = keepSmallest(buffer, count, k);
+
+    return new MinHashSketch(Arrays.copyOf(buffer, count), k);
+  }
+
+  /**
+   * Sort the first {@code count} values in {@code buffer}, remove the 
+   * duplicates and keep the {@code k} smallest.
+   * @return the number of values kept
+   */
+  protected static int keepSmallest(long[] buffer, int count, int k) {
+    Arrays.sort(buffer, 0, count);
+    int kept = 0;
+    for (int i = 0; i < count && kept < k; i++) {
+      if (kept == 0 || buffer[i] != buffer[kept - 1]) {
+        buffer[kept++] = buffer[i];
+      }
+    }
+    return kept;
+  }
+
+  /**
+   * The finalizer of MurmurHash3, spread the bits of the shingle over the 
+   * hash.
+   */
+  protected static long mix(long value) {
+    value ^= value >>> 33;
+    value *= 0xff51afd7ed558ccdL;
+    value ^= value >>> 33;
+    value *= 0xc4ceb9fe1a85ec53L;
+    value ^= value >>> 33;
+    return value;
+  }
+
+  /**
+   * Get the hashes.
+   * @return the hashes in ascending order
+   */
+  public long[] getHashes() {
+    return Arrays.copyOf(hashes, hashes.length);
+  }
+
+  /**
+   * Estimate the Jaccard similarity of the content of this sketch and 
+   * {@code sketch}.
+   * @param sketch the sketch to compare with
+   * @return the similarity from 0 to 1, 0 if both content are shorter than 
+   * {@link #SHINGLE_LENGTH}
+   */
+  public float getSimilarity(MinHashSketch sketch) {
+    if (sketch == null) {
+      throw new NullPointerException("argument 'sketch' cannot be null");
+    }
+
+    int _k = Math.min(k, sketch.k);
+    int union = 0, shared = 0;
+    for (int i = 0, j = 0; union < _k && (i < hashes.length || j < sketch.hashes.length); union++) {
+      if (j >= sketch.hashes.length || (i < hashes.length && hashes[i] < sketch.hashes[j])) {
+        i++;
+      } else if (i >= hashes.length || sketch.hashes[j] < hashes[i]) {
+        j++;
+      } else {
+        shared++;
+        i++;
+        j++;
+      }
+    }
+    return union == 0 ? 0F : (float) shared / (float) union;
+  }
+}
@@ -26,7 +26,15 @@ package updater.patch;
  */
 public enum OperationType {
 
-  NEW("new"), FORCE("force"), REPLACE("replace"), PATCH("patch"), REMOVE("remove");
+  NEW("new"), FORCE("force"), REPLACE("replace"), PATCH("patch"), REMOVE("remove"),
+  /**
+   * Rename the source file in the old version to the destination.
+   */
+  MOVE("move"),
+  /**
+   * Copy the source file in the old version to the destination.
+   */
+  COPY("copy");
   /**
    * The string value representation of the operation type.
    */
@@ -20,7 +20,6 @@
 // WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 package updater.patch;
 
-import com.nothome.delta.GDiffPatcher;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
@@ -29,10 +28,22 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import updater.crypto.AESDecryptInputStream;
 import updater.crypto.AESKey;
 import updater.script.InvalidFormatException;
 import updater.script.Patch;
@@ -43,11 +54,6 @@ import updater.util.InterruptibleInputStream;
 import updater.util.InterruptibleOutputStream;
 import updater.util.Pausable;
 import updater.util.SeekableFile;
-import watne.seis720.project.AESForFile;
-import watne.seis720.project.AESForFileListener;
-import watne.seis720.project.KeySize;
-import watne.seis720.project.Mode;
-import watne.seis720.project.Padding;
 
 /**
  * The patch patcher.
@@ -60,9 +66,9 @@ public class Patcher implements Pausable {
    */
   protected File logFile;
   /**
-   * The buffer for general purpose.
+   * The number of threads to use when applying the patch.
    */
-  private byte[] buf;
+  protected int threads;
   /**
    * The patching progress, from 0 to 100.
    */
@@ -88,24 +94,25 @@ public class Patcher implements Pausable {
    */
   protected LogWriter log;
   /**
-   * Pausable.
+   * The indexed patch, null if the patch is not an indexed patch.
    */
+  protected IndexedPatchReader indexedPatch;
   /**
-   * The output stream of 'temporary storage when patching old file to new file'.
+   * The checksums of the files, include those computed when writing the new 
+   * files.
    */
-  protected InterruptibleOutputStream newFileOut;
+  protected final FileChecksumIndex checksumIndex;
   /**
-   * The input stream of the patch.
+   * Pausable.
    */
-  protected InterruptibleInputStream interruptiblePatchIn;
   /**
-   * The random accessible file of old file (when patching old file to new file).
+   * Indicate currently is paused or not.
    */
-  protected SeekableFile seekableRandomAccessOldFile;
+  protected boolean pause;
   /**
-   * The AES cryptor.
+   * The streams and files that are being read or written.
    */
-  protected AESForFile aesCryptor;
+  protected final List<Pausable> pausables;
 
   /**
    * Constructor.
@@ -114,19 +121,53 @@ public class Patcher implements Pausable {
    * valid directory
    */
   public Patcher(File logFile) throws IOException {
+    this(logFile, 1);
+  }
+
+  /**
+   * Constructor.
+   * @param logFile the log file
+   * @param threads the number of threads to use, if greater than 1, the new 
+   * files of the operations of indexed patch will be prepared concurrently 
+   * ahead of the operation being done
+   * @throws IOException {@code softwareDir} or {@code tempDir} is not a 
+   * valid directory
+   */
+  public Patcher(File logFile, int threads) throws IOException {
+    this(logFile, threads, new FileChecksumIndex());
+  }
+
+  /**
+   * Constructor.
+   * @param logFile the log file
+   * @param threads the number of threads to use, see 
+   * {@link #Patcher(java.io.File, int)}
+   * @param checksumIndex the checksum index, the checksums of the files that 
+   * are not changed since recorded will be trusted without reading the files, 
+   * and the index will be updated when reading or writing the files
+   * @throws IOException {@code softwareDir} or {@code tempDir} is not a 
+   * valid directory
+   */
+  public Patcher(File logFile, int threads, FileChecksumIndex checksumIndex) throws IOException {
     if (logFile == null) {
       throw new NullPointerException("argument 'logFile' cannot be null");
     }
+    if (checksumIndex == null) {
+      throw new NullPointerException("argument 'checksumIndex' cannot be null");
+    }
+    if (threads < 1) {
+      throw new IllegalArgumentException("argument 'threads' should be at least 1");
+    }
 
     this.logFile = logFile;
+    this.threads = threads;
 
-    buf = new byte[32768];
     progress = 0;
 
-    newFileOut = null;
-    interruptiblePatchIn = null;
-    seekableRandomAccessOldFile = null;
-    aesCryptor = null;
+    this.checksumIndex = checksumIndex;
+
+    pause = false;
+    pausables = new ArrayList<Pausable>();
   }
 
   /**
@@ -136,21 +177,37 @@ public class Patcher implements Pausable {
   @Override
   public void pause(boolean pause) {
     synchronized (this) {
-      if (newFileOut != null) {
-        newFileOut.pause(pause);
-      }
-      if (interruptiblePatchIn != null) {
-        interruptiblePatchIn.pause(pause);
-      }
-      if (seekableRandomAccessOldFile != null) {
-        seekableRandomAccessOldFile.pause(pause);
+      this.pause = pause;
+      for (Pausable pausable : pausables) {
+        pausable.pause(pause);
       }
-      if (aesCryptor != null) {
-        aesCryptor.pause(pause);
+    }
+  }
+
+  /**
+   * Add the {@code pausable} to the list that will be paused and resumed by 
+   * {@link #pause(boolean)}.
+   * @param pausable the pausable
+   */
+  protected void addPausable(Pausable pausable) {
+    synchronized (this) {
+      pausables.add(pausable);
+      if (pause) {
+        pausable.pause(true);
       }
     }
   }
 
+  /**
+   * Remove the {@code pausable} from the list.
+   * @param pausable the pausable
+   */
+  protected void removePausable(Pausable pausable) {
+    synchronized (this) {
+      pausables.remove(pausable);
+    }
+  }
+
   /**
    * Prepare the new file according to the {@code operation}.
    * @param operation the operation to get the information from
@@ -173,8 +230,6 @@ public class Patcher implements Pausable {
       throw new NullPointerException("argument 'destFile' cannot be null");
     }
 
-    interruptiblePatchIn = patchIn;
-
     OperationType operationType = OperationType.get(operation.getType());
     if (operationType == null) {
       return;
@@ -182,10 +237,18 @@ public class Patcher implements Pausable {
 
     // check if the new file is already patched and waiting for do replacement already
     if (newFile.exists()) {
-      if (newFile.length() == operation.getNewFileLength() && CommonUtil.getSHA256String(newFile).equals(operation.getNewFileChecksum())) {
-        long byteSkipped = interruptiblePatchIn.skip(operation.getPatchLength());
-        if (byteSkipped != operation.getPatchLength()) {
-          throw new IOException("Failed to skip remaining bytes in 'patchIn'.");
+      if (newFile.length() == operation.getNewFileLength() && checksumIndex.getSHA256String(newFile).equals(operation.getNewFileChecksum())) {
+        // the stream of the indexed patch is for this operation only, no need to skip
+        if (indexedPatch == null) {
+          addPausable(patchIn);
+          try {
+            long byteSkipped = patchIn.skip(operation.getPatchLength());
+            if (byteSkipped != operation.getPatchLength()) {
+              throw new IOException("Failed to skip remaining bytes in 'patchIn'.");
+            }
+          } finally {
+            removePausable(patchIn);
+          }
         }
         return;
       } else {
@@ -195,12 +258,37 @@ public class Patcher implements Pausable {
       }
     }
 
-    // do operation
-    newFileOut = null;
+    writeNewFile(operationType, operation, patchIn, newFile, destFile);
+  }
+
+  /**
+   * Write the new file according to the {@code operation}. This can be 
+   * called concurrently for different operations.
+   * @param operationType the type of the operation
+   * @param operation the operation to get the information from
+   * @param patchIn the patch input stream
+   * @param newFile the new file
+   * @param destFile the destination file
+   * @throws IOException error occurred when creating the new file
+   */
+  protected void writeNewFile(OperationType operationType, Operation operation, final InterruptibleInputStream patchIn, File newFile, File destFile) throws IOException {
+    MessageDigest digest = null;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IOException(ex);
+    }
+
+    InterruptibleOutputStream newFileOut = null;
     RandomAccessFile randomAccessOldFile = null;
-    seekableRandomAccessOldFile = null;
+    SeekableFile seekableRandomAccessOldFile = null;
+    InterruptibleInputStream sourceIn = null;
+    addPausable(patchIn);
     try {
-      newFileOut = new InterruptibleOutputStream(new BufferedOutputStream(new FileOutputStream(newFile)));
+      // digest the bytes when writing them, so the new file need not be read again for the checksum
+      newFileOut = new InterruptibleOutputStream(new BufferedOutputStream(new DigestOutputStream(new FileOutputStream(newFile), digest)));
+      addPausable(newFileOut);
+      final InterruptibleOutputStream _newFileOut = newFileOut;
 
       switch (operationType) {
         case FORCE:
@@ -211,14 +299,15 @@ public class Patcher implements Pausable {
 
             @Override
             public void run() {
-              CommonUtil.closeQuietly(newFileOut);
-              CommonUtil.closeQuietly(interruptiblePatchIn);
+              CommonUtil.closeQuietly(_newFileOut);
+              CommonUtil.closeQuietly(patchIn);
             }
           };
           newFileOut.addInterruptedTask(_interruptedTask);
-          interruptiblePatchIn.addInterruptedTask(_interruptedTask);
+          patchIn.addInterruptedTask(_interruptedTask);
           //</editor-fold>
 
+          byte[] buf = new byte[32768];
           int byteRead;
           int remaining = operation.getPatchLength();
           while (true) {
@@ -227,7 +316,7 @@ public class Patcher implements Pausable {
             }
 
             int lengthToRead = buf.length > remaining ? remaining : buf.length;
-            byteRead = interruptiblePatchIn.read(buf, 0, lengthToRead);
+            byteRead = patchIn.read(buf, 0, lengthToRead);
             if (byteRead == -1) {
               break;
             }
@@ -236,9 +325,15 @@ public class Patcher implements Pausable {
           }
           break;
         case PATCH:
-          GDiffPatcher diffPatcher = new GDiffPatcher();
-          randomAccessOldFile = new RandomAccessFile(destFile, "r");
+          DiffEncoding diffEncoding = DiffEncoding.get(operation.getPatchEncoding());
+          if (diffEncoding == null) {
+            throw new IOException(String.format("Patch encoding not supported: %1$s", operation.getPatchEncoding()));
+          }
+          Differ differ = diffEncoding.getDiffer();
+          // the 'patch' operation with source patch the source instead of the destination
+          randomAccessOldFile = new RandomAccessFile(operation.getSourceFilePath() != null ? new File(softwareDir + operation.getSourceFilePath()) : destFile, "r");
           seekableRandomAccessOldFile = new SeekableFile(randomAccessOldFile);
+          addPausable(seekableRandomAccessOldFile);
 
           //<editor-fold defaultstate="collapsed" desc="add interrupted tasks">
           final RandomAccessFile _randomAccessOldFile = randomAccessOldFile;
@@ -246,27 +341,151 @@ public class Patcher implements Pausable {
 
             @Override
             public void run() {
-              CommonUtil.closeQuietly(newFileOut);
-              CommonUtil.closeQuietly(interruptiblePatchIn);
+              CommonUtil.closeQuietly(_newFileOut);
+              CommonUtil.closeQuietly(patchIn);
               CommonUtil.closeQuietly(_randomAccessOldFile);
             }
           };
           newFileOut.addInterruptedTask(__interruptedTask);
-          interruptiblePatchIn.addInterruptedTask(__interruptedTask);
+          patchIn.addInterruptedTask(__interruptedTask);
           seekableRandomAccessOldFile.addInterruptedTask(__interruptedTask);
           //</editor-fold>
 
-          diffPatcher.patch(seekableRandomAccessOldFile, interruptiblePatchIn, newFileOut);
+          differ.patch(seekableRandomAccessOldFile, patchIn, newFileOut);
+          break;
+        case COPY:
+          sourceIn = new InterruptibleInputStream(new BufferedInputStream(new FileInputStream(softwareDir + operation.getSourceFilePath())));
+          addPausable(sourceIn);
+
+          //<editor-fold defaultstate="collapsed" desc="add interrupted tasks">
+          final InterruptibleInputStream _sourceIn = sourceIn;
+          Runnable ___interruptedTask = new Runnable() {
+
+            @Override
+            public void run() {
+              CommonUtil.closeQuietly(_newFileOut);
+              CommonUtil.closeQuietly(_sourceIn);
+            }
+          };
+          newFileOut.addInterruptedTask(___interruptedTask);
+          sourceIn.addInterruptedTask(___interruptedTask);
+          //</editor-fold>
+
+          byte[] copyBuf = new byte[32768];
+          int copyByteRead;
+          while ((copyByteRead = sourceIn.read(copyBuf)) != -1) {
+            newFileOut.write(copyBuf, 0, copyByteRead);
+          }
           break;
       }
+
+      newFileOut.close();
+      checksumIndex.put(newFile, CommonUtil.byteArrayToHexString(digest.digest()));
     } finally {
       CommonUtil.closeQuietly(randomAccessOldFile);
       CommonUtil.closeQuietly(newFileOut);
-      newFileOut = null;
-      interruptiblePatchIn = null;
-      seekableRandomAccessOldFile = null;
+      CommonUtil.closeQuietly(sourceIn);
+      removePausable(patchIn);
+      if (newFileOut != null) {
+        removePausable(newFileOut);
+      }
+      if (seekableRandomAccessOldFile != null) {
+        removePausable(seekableRandomAccessOldFile);
+      }
+      if (sourceIn != null) {
+        removePausable(sourceIn);
+      }
     }
   }
+
+  /**
+   * Rename the new file to the destination file, the checksum computed when 
+   * writing the new file will be moved along.
+   * @param newFile the new file
+   * @param destFile the destination file
+   * @return true if succeed, false if not
+   */
+  protected boolean renameNewFile(File newFile, File destFile) {
+    if (!newFile.renameTo(destFile)) {
+      return false;
+    }
+    checksumIndex.move(newFile, destFile);
+    return true;
+  }
+
+  /**
+   * Submit a task to {@code executor} to prepare the new file of the 
+   * {@code operation} of the indexed patch in advance. The new file will be 
+   * verified by {@link #prepareNewFile(updater.script.Patch.Operation, 
+   * updater.util.InterruptibleInputStream, java.io.File, java.io.File)} when 
+   * doing the operation, and will be prepared again if it is incorrect.
+   * @param executor the executor to run the task
+   * @param operation the operation
+   * @return the future of the task, null if the new file of the operation 
+   * need not or cannot be prepared in advance
+   */
+  protected Future<?> submitPrepareNewFile(ExecutorService executor, final Operation operation) {
+    final OperationType operationType = OperationType.get(operation.getType());
+    if (operationType == null || operation.getPatchLength() <= 0 || !operation.getFileType().equals("file")) {
+      return null;
+    }
+
+    final File newFile = new File(tempDir + File.separator + operation.getId());
+    final File destFile = new File(softwareDir + operation.getDestFilePath());
+    File backupFile = new File(tempDir + File.separator + "old_" + operation.getId());
+    if (newFile.exists() || backupFile.exists()) {
+      return null;
+    }
+    // only when the new file is surely needed, see the logic in doOperation
+    switch (operationType) {
+      case NEW:
+        if (destFile.exists()) {
+          return null;
+        }
+        break;
+      case FORCE:
+        if (destFile.exists() && destFile.length() == operation.getNewFileLength()) {
+          return null;
+        }
+        break;
+      case PATCH:
+        if (operation.getSourceFilePath() != null) {
+          File sourceFile = new File(softwareDir + operation.getSourceFilePath());
+          if (destFile.exists() || !sourceFile.isFile() || sourceFile.length() != operation.getOldFileLength()) {
+            return null;
+          }
+        } else if (!destFile.isFile() || destFile.length() != operation.getOldFileLength()) {
+          return null;
+        }
+        break;
+      case REPLACE:
+        if (!destFile.isFile() || destFile.length() != operation.getOldFileLength()) {
+          return null;
+        }
+        break;
+      default:
+        return null;
+    }
+
+    final IndexedPatchReader _indexedPatch = indexedPatch;
+    return executor.submit(new Runnable() {
+
+      @Override
+      public void run() {
+        InterruptibleInputStream patchIn = null;
+        try {
+          patchIn = new InterruptibleInputStream(_indexedPatch.getPatchInputStream(operation), operation.getPatchLength());
+          writeNewFile(operationType, operation, patchIn, newFile, destFile);
+        } catch (Exception ex) {
+          // failure is allowed, it will be prepared again when doing the operation
+          newFile.delete();
+        } finally {
+          CommonUtil.closeQuietly(patchIn);
+        }
+      }
+    });
+  }
+
   protected int logFileIndex;
   protected boolean logDestFileExist;
   protected String logBackupFileAbsPath;
@@ -382,6 +601,28 @@ public class Patcher implements Pausable {
 //    dest not exist:
 //      ** backup exist & new exist -> new->dest;
 //         else -> {error}
+//move:
+//  type file: (source as new, dest)
+//    dest exist:
+//      dest is folder:
+//        ** {error}                        30
+//      dest is file:
+//        ** length & checksum of dest match new -> {ok};       31
+//           else -> {error}                32
+//    dest not exist:
+//      ** length & checksum of source match old -> source->dest;               33
+//         else -> {error}                  34
+//copy & patch with source:
+//  type file: (source, new, dest)
+//    dest exist:
+//      dest is folder:
+//        ** {error}                        35
+//      dest is file:
+//        ** length & checksum of dest match new -> {ok};       36
+//           else -> {error}                37
+//    dest not exist:
+//      ** length & checksum of source match old -> copy/patch source -> new, new->dest;     38
+//         else -> {error}                  39
     //</editor-fold>
 
     if (operation == null) {
@@ -408,6 +649,7 @@ public class Patcher implements Pausable {
       destFileExist = destFile.exists();
     }
     String newFileAbsPath = newFile.getAbsolutePath(), destFileAbsPath = destFile.getAbsolutePath(), backupFileAbsPath = backupFile.getAbsolutePath();
+    File sourceFile = operation.getSourceFilePath() != null ? new File(softwareDir + operation.getSourceFilePath()) : null;
     switch (operationType) {
       case REMOVE:
         prepareLog(operation.getId(), destFileExist, backupFileAbsPath, "", destFileAbsPath);
@@ -440,6 +682,7 @@ public class Patcher implements Pausable {
               throw new IOException(String.format("Remove file: destFile %1$s expecting file but is a folder", destFileAbsPath));
             } else {
               log(6);
+              checksumIndex.remove(destFile);
               if (!destFile.renameTo(backupFile)) {
                 returnValue = new ReplacementRecord(operationType, 6, destFileAbsPath, "", backupFileAbsPath);
               }
@@ -481,7 +724,7 @@ public class Patcher implements Pausable {
               log(12);
               throw new IOException(String.format("Add new file: destFile %1$s expecting a file but is a folder", destFileAbsPath));
             } else {
-              if (operation.getNewFileLength() == destFile.length() && operation.getNewFileChecksum().equals(CommonUtil.getSHA256String(destFile))) {
+              if (operation.getNewFileLength() == destFile.length() && operation.getNewFileChecksum().equals(checksumIndex.getSHA256String(destFile))) {
                 log(13);
                 // succeed
               } else {
@@ -492,7 +735,7 @@ public class Patcher implements Pausable {
           } else {
             log(15);
             prepareNewFile(operation, patchIn, newFile, destFile);
-            if (!newFile.renameTo(destFile)) {
+            if (!renameNewFile(newFile, destFile)) {
               returnValue = new ReplacementRecord(operationType, 15, destFileAbsPath, newFileAbsPath, backupFileAbsPath);
             }
           }
@@ -527,7 +770,7 @@ public class Patcher implements Pausable {
               long destFileLength = destFile.length();
               String destFileChecksum = null;
               try {
-                destFileChecksum = CommonUtil.getSHA256String(destFile);
+                destFileChecksum = checksumIndex.getSHA256String(destFile);
               } catch (IOException ex) {
                 // failure is allowed
               }
@@ -538,7 +781,7 @@ public class Patcher implements Pausable {
               } else if (!backupFile.exists() && (operation.getNewFileLength() != destFileLength || !operation.getNewFileChecksum().equals(destFileChecksum))) {
                 log(20);
                 prepareNewFile(operation, patchIn, newFile, destFile);
-                if (!destFile.renameTo(backupFile) || !newFile.renameTo(destFile)) {
+                if (!destFile.renameTo(backupFile) || !renameNewFile(newFile, destFile)) {
                   returnValue = new ReplacementRecord(operationType, 20, destFileAbsPath, newFileAbsPath, backupFileAbsPath);
                 }
               } else if (operation.getNewFileLength() == destFileLength && operation.getNewFileChecksum().equals(destFileChecksum)) {
@@ -553,7 +796,7 @@ public class Patcher implements Pausable {
           } else {
             log(23);
             prepareNewFile(operation, patchIn, newFile, destFile);
-            if (!newFile.renameTo(destFile)) {
+            if (!renameNewFile(newFile, destFile)) {
               returnValue = new ReplacementRecord(operationType, 23, destFileAbsPath, newFileAbsPath, backupFileAbsPath);
             }
           }
@@ -561,6 +804,10 @@ public class Patcher implements Pausable {
         break;
       case PATCH:
       case REPLACE:
+        if (sourceFile != null) {
+          returnValue = doOperationFromSource(operationType, operation, patchIn, sourceFile, newFile, destFile, destFileExist);
+          break;
+        }
         prepareLog(operation.getId(), destFileExist, backupFileAbsPath, newFileAbsPath, destFileAbsPath);
         listener.patchProgress((int) progress, String.format("Patching %1$s ...", operation.getDestFilePath()));
         if (destFile.exists()) {
@@ -570,7 +817,7 @@ public class Patcher implements Pausable {
           } else {
             String destFileChecksum = null;
             try {
-              destFileChecksum = CommonUtil.getSHA256String(destFile);
+              destFileChecksum = checksumIndex.getSHA256String(destFile);
             } catch (IOException ex) {
               // failure is allowed
             }
@@ -584,7 +831,7 @@ public class Patcher implements Pausable {
             } else if (operation.getOldFileLength() == destFile.length() && operation.getOldFileChecksum().equals(destFileChecksum)) {
               log(26);
               prepareNewFile(operation, patchIn, newFile, destFile);
-              if (!destFile.renameTo(backupFile) || !newFile.renameTo(destFile)) {
+              if (!destFile.renameTo(backupFile) || !renameNewFile(newFile, destFile)) {
                 returnValue = new ReplacementRecord(operationType, 26, destFileAbsPath, newFileAbsPath, backupFileAbsPath);
               }
             } else {
@@ -595,7 +842,7 @@ public class Patcher implements Pausable {
         } else {
           if (backupFile.exists() && newFile.exists()) {
             log(28);
-            if (!newFile.renameTo(destFile)) {
+            if (!renameNewFile(newFile, destFile)) {
               returnValue = new ReplacementRecord(operationType, 28, destFileAbsPath, newFileAbsPath, backupFileAbsPath);
             }
           } else {
@@ -604,6 +851,10 @@ public class Patcher implements Pausable {
           }
         }
         break;
+      case MOVE:
+      case COPY:
+        returnValue = doOperationFromSource(operationType, operation, patchIn, sourceFile, newFile, destFile, destFileExist);
+        break;
     }
 
     log.logPatch(returnValue == null ? LogAction.FINISH : LogAction.FAILED, operation.getId());
@@ -611,6 +862,65 @@ public class Patcher implements Pausable {
     return returnValue;
   }
 
+  /**
+   * Do the 'move', 'copy' or 'patch' operation that take the content from the 
+   * source file, see the logic in {@link #doOperation(updater.patch.PatchRecord, updater.script.Patch.Operation, updater.util.InterruptibleInputStream)}.
+   * @param operationType the type of the operation
+   * @param operation the operation to do
+   * @param patchIn the stream to read in
+   * @param sourceFile the source file
+   * @param newFile the new file
+   * @param destFile the destination file
+   * @param destFileExist true if the destination file exist before the 
+   * operation
+   * @return null if succeed, a {@link PatchRecord} if replacement of files 
+   * failed
+   * @throws IOException error occurred when doing operation
+   */
+  protected ReplacementRecord doOperationFromSource(OperationType operationType, Operation operation, InterruptibleInputStream patchIn, File sourceFile, File newFile, File destFile, boolean destFileExist) throws IOException {
+    ReplacementRecord returnValue = null;
+    String newFileAbsPath = newFile.getAbsolutePath(), destFileAbsPath = destFile.getAbsolutePath();
+    boolean isMove = operationType == OperationType.MOVE;
+    // the source is recorded as the new file of 'move', so it will be moved back when reverting
+    String sourceFileAbsPath = sourceFile.getAbsolutePath();
+    prepareLog(operation.getId(), destFileExist, "", isMove ? sourceFileAbsPath : newFileAbsPath, destFileAbsPath);
+    listener.patchProgress((int) progress, String.format(isMove ? "Moving %1$s ..." : (operationType == OperationType.COPY ? "Copying %1$s ..." : "Patching %1$s ..."), operation.getDestFilePath()));
+    if (destFile.exists()) {
+      if (destFile.isDirectory()) {
+        log(isMove ? 30 : 35);
+        throw new IOException(String.format("Move/Copy/Patch file: destFile %1$s expecting file but is a folder", destFileAbsPath));
+      } else {
+        if (operation.getNewFileLength() == destFile.length() && operation.getNewFileChecksum().equals(checksumIndex.getSHA256String(destFile))) {
+          log(isMove ? 31 : 36);
+          // succeed
+        } else {
+          log(isMove ? 32 : 37);
+          throw new IOException(String.format("Move/Copy/Patch file: destFile %1$s exist and not match with the length & checksum of the new file", destFileAbsPath));
+        }
+      }
+    } else {
+      if (sourceFile.isFile() && operation.getOldFileLength() == sourceFile.length() && operation.getOldFileChecksum().equals(checksumIndex.getSHA256String(sourceFile))) {
+        if (isMove) {
+          log(33);
+          if (!renameNewFile(sourceFile, destFile)) {
+            returnValue = new ReplacementRecord(operationType, 33, destFileAbsPath, sourceFileAbsPath, "");
+          }
+        } else {
+          log(38);
+          prepareNewFile(operation, patchIn, newFile, destFile);
+          if (!renameNewFile(newFile, destFile)) {
+            returnValue = new ReplacementRecord(operationType, 38, destFileAbsPath, newFileAbsPath, "");
+          }
+        }
+      } else {
+        log(isMove ? 34 : 39);
+        throw new IOException(String.format("Move/Copy/Patch file: sourceFile %1$s not found or not match with the length & checksum of the old file", sourceFileAbsPath));
+      }
+    }
+
+    return returnValue;
+  }
+
   /**
    * Apply the patch.
    * @param listener the listener to listen to patching event and information
@@ -655,7 +965,6 @@ public class Patcher implements Pausable {
     }
 
 
-    File _patchFile = patchFile;
     List<ReplacementRecord> replacementFailedList = new ArrayList<ReplacementRecord>();
     int startFromFileIndex = 0;
     Map<Integer, PatchRecord> extraFileIndexes = new HashMap<Integer, PatchRecord>();
@@ -683,7 +992,6 @@ public class Patcher implements Pausable {
     //</editor-fold>
 
 
-    float decryptProgress = 0;
     float prepareProgress = 5;
     float updateProgress = 65;
     float validateFilesProgress = 30;
@@ -693,81 +1001,35 @@ public class Patcher implements Pausable {
     progress = stageMinimumProgress;
 
 
-    //<editor-fold defaultstate="collapsed" desc="decrypt the patch">
-    if (aesKey != null) {
-      decryptProgress = 25;
-      updateProgress = 50;
-      validateFilesProgress = 20;
-
-      File tempFileForDecryption = new File(tempDir.getAbsolutePath() + File.separator + patchId + ".patch.decrypted");
-
-      final float _decryptProgress = decryptProgress;
-      final float _stageMinimumProgress = stageMinimumProgress;
-      try {
-        AESForFileListener aesForFileListener = new AESForFileListener() {
-
-          @Override
-          public void cryptProgress(int percentage) {
-            listener.patchProgress((int) (_stageMinimumProgress + ((float) percentage / 100F) * _decryptProgress), "Decrypting patch ...");
-          }
-        };
-
-        aesCryptor = new AESForFile();
-        aesCryptor.setListener(aesForFileListener);
-        aesCryptor.setMode(Mode.CBC);
-        aesCryptor.setPadding(Padding.PKCS5PADDING);
-        aesCryptor.setKeySize(KeySize.BITS256);
-        aesCryptor.setKey(aesKey.getKey());
-        aesCryptor.setInitializationVector(aesKey.getIV());
-        aesCryptor.decryptFile(_patchFile, tempFileForDecryption);
-      } catch (Exception ex) {
-        throw new IOException(ex);
-      } finally {
-        aesCryptor = null;
-      }
-
-      _patchFile = tempFileForDecryption;
-    }
-    //</editor-fold>
-
-
-    stageMinimumProgress += decryptProgress;
-    progress = stageMinimumProgress;
-
-
     InputStream patchIn = null;
+    ExecutorService executor = null;
     log = new LogWriter(logFile);
     try {
-      patchIn = new BufferedInputStream(new FileInputStream(_patchFile));
-
-
       listener.patchProgress((int) progress, "Preparing new patch ...");
       listener.patchEnableCancel(false);
       // header
-      PatchReadUtil.readHeader(patchIn);
-      InputStream decompressedPatchIn = PatchReadUtil.readCompressionMethod(patchIn);
-      Patch patch = null;
+      InputStream decompressedPatchIn = null;
+      Patch.StreamReader patchReader = null;
+      int operationCount = 0;
       try {
-        patch = PatchReadUtil.readXML(decompressedPatchIn);
+        // the patch is decrypted while reading
+        if (IndexedPatchReader.isIndexedPatch(patchFile, aesKey)) {
+          indexedPatch = new IndexedPatchReader(patchFile, aesKey);
+          patchReader = indexedPatch.openXML();
+        } else {
+          patchIn = aesKey != null
+                  ? new BufferedInputStream(new AESDecryptInputStream(new FileInputStream(patchFile), PatchReadUtil.getCipher(aesKey)))
+                  : new BufferedInputStream(new FileInputStream(patchFile));
+          PatchReadUtil.readHeader(patchIn);
+          decompressedPatchIn = PatchReadUtil.readCompressionMethod(patchIn);
+          patchReader = PatchReadUtil.openXML(decompressedPatchIn);
+        }
+        // the operations are read one by one when doing them, only count them here for the progress
+        operationCount = patchReader.countOperations();
       } catch (InvalidFormatException ex) {
         throw new IOException(ex);
       }
 
-      List<Operation> operations = patch.getOperations();
-      List<ValidationFile> validations = patch.getValidations();
-      for (Operation operation : operations) {
-        String destChangeTo = null;
-        if ((destChangeTo = destinationReplacement.get(operation.getDestFilePath())) != null) {
-          operation.setDestFilePath(destChangeTo);
-        }
-      }
-      for (ValidationFile validation : validations) {
-        String destChangeTo = null;
-        if ((destChangeTo = destinationReplacement.get(validation.getFilePath())) != null) {
-          validation.setFilePath(destChangeTo);
-        }
-      }
-
       // start log
       if (!patchingStarted) {
         log.logStart();
@@ -783,28 +1045,86 @@ public class Patcher implements Pausable {
       listener.patchProgress((int) progress, "Updating ...");
       listener.patchEnableCancel(true);
       // start patch - patch files and store to temporary directory first
-      float progressStep = updateProgress / (float) operations.size();
-      for (int i = 0, iEnd = operations.size(); i < iEnd; i++) {
-        Operation _operation = operations.get(i);
+      // for indexed patch, the new files are prepared concurrently ahead of the operations, the operations are still done in order
+      Map<Integer, Future<?>> preparations = new HashMap<Integer, Future<?>>();
+      int preparationWindow = threads * 2, nextPreparation = 0;
+      if (indexedPatch != null && threads > 1) {
+        executor = Executors.newFixedThreadPool(threads);
+      }
+      float progressStep = updateProgress / (float) operationCount;
+      // the operations read ahead for preparation, the first one is the operation i + 1
+      LinkedList<Operation> operationsAhead = new LinkedList<Operation>();
+      for (int i = 0;; i++) {
+        Operation _operation = !operationsAhead.isEmpty() ? operationsAhead.removeFirst() : nextOperation(patchReader, destinationReplacement);
+        if (_operation == null) {
+          break;
+        }
+
+        Future<?> preparation = null;
+        if (executor != null) {
+          for (; nextPreparation <= i + preparationWindow; nextPreparation++) {
+            Operation operationToPrepare = _operation;
+            if (nextPreparation > i) {
+              Operation operationAhead = null;
+              while (operationsAhead.size() < nextPreparation - i && (operationAhead = nextOperation(patchReader, destinationReplacement)) != null) {
+                operationsAhead.add(operationAhead);
+              }
+              if (operationsAhead.size() < nextPreparation - i) {
+                break;
+              }
+              operationToPrepare = operationsAhead.get(nextPreparation - i - 1);
+            }
+            if (nextPreparation + 1 >= startFromFileIndex && extraFileIndexes.get(nextPreparation + 1) == null) {
+              Future<?> _preparation = submitPrepareNewFile(executor, operationToPrepare);
+              if (_preparation != null) {
+                preparations.put(nextPreparation, _preparation);
+              }
+            }
+          }
+          preparation = preparations.remove(i);
+          if (preparation != null) {
+            try {
+              preparation.get();
+            } catch (InterruptedException ex) {
+              Thread.currentThread().interrupt();
+              throw new IOException(ex);
+            } catch (ExecutionException ex) {
+              // failure is allowed, the new file will be prepared again when doing the operation
+            }
+          }
+        }
 
         if (!(i + 1 >= startFromFileIndex || extraFileIndexes.get(i + 1) != null)) {
-          long byteSkipped = decompressedPatchIn.skip(_operation.getPatchLength());
-          if (byteSkipped != _operation.getPatchLength()) {
-            throw new IOException("Failed to skip remaining bytes in 'interruptiblePatchIn'.");
+          // indexed patch seek to the content of the operation directly, no need to skip
+          if (indexedPatch == null) {
+            long byteSkipped = decompressedPatchIn.skip(_operation.getPatchLength());
+            if (byteSkipped != _operation.getPatchLength()) {
+              throw new IOException("Failed to skip remaining bytes in 'interruptiblePatchIn'.");
+            }
           }
           continue;
         }
 
-        InterruptibleInputStream operationIn = new InterruptibleInputStream(decompressedPatchIn, _operation.getPatchLength());
-        ReplacementRecord failedReplacement = doOperation(extraFileIndexes.get(i + 1), _operation, operationIn);
-        if (operationIn.remaining() != 0) {
-          long byteSkipped = decompressedPatchIn.skip(operationIn.remaining());
-          if (byteSkipped != operationIn.remaining()) {
-            throw new IOException("Failed to skip remaining bytes in 'interruptiblePatchIn'.");
+        InputStream _patchIn = indexedPatch != null ? indexedPatch.getPatchInputStream(_operation) : decompressedPatchIn;
+        try {
+          InterruptibleInputStream operationIn = new InterruptibleInputStream(_patchIn, _operation.getPatchLength());
+          ReplacementRecord failedReplacement = doOperation(extraFileIndexes.get(i + 1), _operation, operationIn);
+          if (indexedPatch == null && operationIn.remaining() != 0) {
+            long byteSkipped = decompressedPatchIn.skip(operationIn.remaining());
+            if (byteSkipped != operationIn.remaining()) {
+              throw new IOException("Failed to skip remaining bytes in 'interruptiblePatchIn'.");
+            }
+          }
+          if (failedReplacement != null) {
+            replacementFailedList.add(failedReplacement);
+          } else if (preparation != null) {
+            // the new file prepared in advance is not used
+            new File(tempDir + File.separator + _operation.getId()).delete();
+          }
+        } finally {
+          if (indexedPatch != null) {
+            CommonUtil.closeQuietly(_patchIn);
           }
-        }
-        if (failedReplacement != null) {
-          replacementFailedList.add(failedReplacement);
         }
 
         progress += progressStep;
@@ -815,35 +1135,27 @@ public class Patcher implements Pausable {
       progress = stageMinimumProgress;
 
 
+      List<ValidationFile> validations = new ArrayList<ValidationFile>();
+      try {
+        ValidationFile validation;
+        while ((validation = patchReader.nextValidation()) != null) {
+          String destChangeTo = null;
+          if ((destChangeTo = destinationReplacement.get(validation.getFilePath())) != null) {
+            validation.setFilePath(destChangeTo);
+          }
+          validations.add(validation);
+        }
+      } catch (InvalidFormatException ex) {
+        throw new IOException(ex);
+      } finally {
+        patchReader.close();
+      }
+
       if (replacementFailedList.isEmpty()) {
         listener.patchProgress((int) progress, "Validating files ...");
         listener.patchEnableCancel(false);
         // validate files
-        progressStep = validateFilesProgress / (float) validations.size();
-        for (ValidationFile _validationFile : validations) {
-          listener.patchProgress((int) progress, String.format("Validating file: %1$s", _validationFile.getFilePath()));
-
-          File _file = new File(this.softwareDir + _validationFile.getFilePath());
-
-          if (_validationFile.getFileLength() == -1) {
-            if (!_file.isDirectory()) {
-              throw new IOException(String.format("Folder missed: %1$s", _file.getAbsolutePath()));
-            }
-          } else {
-            if (!_file.exists()) {
-              throw new IOException(String.format("File missed: %1$s", _file.getAbsolutePath()));
-            }
-            if (_file.length() != _validationFile.getFileLength()) {
-              throw new IOException(String.format("File length not matched, file: %1$s, expected: %2$d, found: %3$d",
-                      _file.getAbsolutePath(), _validationFile.getFileLength(), _file.length()));
-            }
-            if (!CommonUtil.getSHA256String(_file).equals(_validationFile.getFileChecksum())) {
-              throw new IOException(String.format("File checksum incorrect: %1$s", _file.getAbsolutePath()));
-            }
-          }
-
-          progress += progressStep;
-        }
+        validateFiles(validations, validateFilesProgress / (float) validations.size());
       }
 
 
@@ -856,14 +1168,165 @@ public class Patcher implements Pausable {
         log.logEnd();
       }
     } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
       CommonUtil.closeQuietly(log);
       log = null;
       CommonUtil.closeQuietly(patchIn);
+      CommonUtil.closeQuietly(indexedPatch);
+      indexedPatch = null;
     }
 
     return replacementFailedList;
   }
 
+  /**
+   * Read the next operation from the patch and replace its destination and 
+   * source path if required.
+   * @param patchReader the reader of the patch
+   * @param destinationReplacement see {@link #doPatch(updater.patch.PatcherListener, java.io.File, int, updater.crypto.AESKey, java.io.File, java.io.File, java.util.Map)}
+   * @return the operation, null if there is no more operation
+   * @throws IOException the format of the operation is invalid
+   */
+  protected static Operation nextOperation(Patch.StreamReader patchReader, Map<String, String> destinationReplacement) throws IOException {
+    Operation operation;
+    try {
+      operation = patchReader.nextOperation();
+    } catch (InvalidFormatException ex) {
+      throw new IOException(ex);
+    }
+    String destChangeTo = null;
+    if (operation != null && (destChangeTo = destinationReplacement.get(operation.getDestFilePath())) != null) {
+      operation.setDestFilePath(destChangeTo);
+    }
+    String sourceChangeTo = null;
+    if (operation != null && operation.getSourceFilePath() != null && (sourceChangeTo = destinationReplacement.get(operation.getSourceFilePath())) != null) {
+      operation.setSourceFilePath(sourceChangeTo);
+    }
+    return operation;
+  }
+
+  /**
+   * Validate the files concurrently using {@link #threads} threads. Stop on 
+   * the first file that is missed or not matched.
+   * @param validations the files to validate
+   * @param progressStep the progress to increase for each file validated
+   * @throws IOException any file is missed or not matched, or error occurred 
+   * when reading the file
+   */
+  protected void validateFiles(List<ValidationFile> validations, float progressStep) throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      CompletionService<Object> completionService = new ExecutorCompletionService<Object>(executor);
+      for (final ValidationFile validation : validations) {
+        completionService.submit(new Callable<Object>() {
+
+          @Override
+          public Object call() throws Exception {
+            validateFile(validation);
+            return null;
+          }
+        });
+      }
+
+      int lastProgress = (int) progress;
+      for (int i = 0, iEnd = validations.size(); i < iEnd; i++) {
+        try {
+          completionService.take().get();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new IOException(ex);
+        } catch (ExecutionException ex) {
+          Throwable cause = ex.getCause();
+          if (cause instanceof IOException) {
+            throw (IOException) cause;
+          }
+          throw new IOException(cause);
+        }
+
+        progress += progressStep;
+        if ((int) progress != lastProgress) {
+          lastProgress = (int) progress;
+          listener.patchProgress(lastProgress, "Validating files ...");
+        }
+      }
+    } finally {
+      // stop the remaining validations if any failed
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Validate the file.
+   * @param validation the validation information of the file
+   * @throws IOException the file is missed or not matched, or error occurred 
+   * when reading the file
+   */
+  protected void validateFile(ValidationFile validation) throws IOException {
+    File file = new File(softwareDir + validation.getFilePath());
+
+    if (validation.getFileLength() == -1) {
+      if (!file.isDirectory()) {
+        throw new IOException(String.format("Folder missed: %1$s", file.getAbsolutePath()));
+      }
+    } else {
+      if (!file.exists()) {
+        throw new IOException(String.format("File missed: %1$s", file.getAbsolutePath()));
+      }
+      if (file.length() != validation.getFileLength()) {
+        throw new IOException(String.format("File length not matched, file: %1$s, expected: %2$d, found: %3$d",
+                file.getAbsolutePath(), validation.getFileLength(), file.length()));
+      }
+      if (!getSHA256String(file).equals(validation.getFileChecksum())) {
+        throw new IOException(String.format("File checksum incorrect: %1$s", file.getAbsolutePath()));
+      }
+    }
+  }
+
+  /**
+   * Get the SHA-256 checksum of the file from {@link #checksumIndex}, or read 
+   * the file if not recorded. The reading can be paused by 
+   * {@link #pause(boolean)} and stopped by interrupting the thread.
+   * @param file the file
+   * @return the SHA-256 checksum in hex string
+   * @throws IOException error occurred when reading the file
+   */
+  protected String getSHA256String(File file) throws IOException {
+    String checksum = checksumIndex.get(file);
+    if (checksum != null) {
+      return checksum;
+    }
+
+    MessageDigest digest = null;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IOException(ex);
+    }
+
+    InterruptibleInputStream in = null;
+    try {
+      in = new InterruptibleInputStream(new FileInputStream(file));
+      addPausable(in);
+
+      byte[] buf = new byte[32768];
+      int byteRead;
+      while ((byteRead = in.read(buf)) != -1) {
+        digest.update(buf, 0, byteRead);
+      }
+    } finally {
+      CommonUtil.closeQuietly(in);
+      if (in != null) {
+        removePausable(in);
+      }
+    }
+
+    checksum = CommonUtil.byteArrayToHexString(digest.digest());
+    checksumIndex.put(file, checksum);
+    return checksum;
+  }
+
   /**
    * Revert the patching and restore to unpatched state.
    * @throws IOException read log failed, or error occurred when doing revert 
@@ -910,6 +1373,8 @@ public class Patcher implements Pausable {
       case 25:
       case 26:
       case 28:
+      case 33:
+      case 38:
         revertFile(patchRecord);
         break;
       case 0:
@@ -927,11 +1392,19 @@ public class Patcher implements Pausable {
       case 24:
       case 27:
       case 29:
+      case 30:
+      case 32:
+      case 34:
+      case 35:
+      case 37:
+      case 39:
         break;
       case 9:
       case 13:
       case 16:
       case 21:
+      case 31:
+      case 36:
         if (patchRecord.isDestinationFileExist()) {
           break;
         } else {
@@ -968,6 +1441,7 @@ public class Patcher implements Pausable {
       if (!backupFile.renameTo(destFile)) {
         throw new IOException(String.format("Failed to move %1$s to %2$s (backup->dest)", patchRecord.getBackupFilePath(), patchRecord.getDestinationFilePath()));
       }
+      checksumIndex.remove(destFile);
     }
   }
 
@@ -0,0 +1,578 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import com.nothome.delta.SeekableSource;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import updater.util.CommonUtil;
+
+/**
+ * The differ that match the new file against the suffix array of the old 
+ * file, using the algorithm of bsdiff by Colin Percival. Unlike the 
+ * fixed-chunk matching of GDiff, it finds the approximate matches (those 
+ * only differ in some bytes, like the shifted addresses in compiled code) 
+ * and record the byte-wise difference of them, which is mostly zero and 
+ * compress well.
+ * <p>
+ * Both files are read into memory and the suffix array take 8 bytes per 
+ * byte of the old file when sorting, so files larger than the maximum 
+ * length are not accepted by {@link #canDiff(java.io.File, java.io.File)}.
+ * </p>
+ * <pre>
+ * "SADF"        4 bytes, the header
+ * new length    varint
+ * records       until the new file is complete, every record is:
+ *   diff length   varint
+ *   diff          the bytes to add to the old file at the current position, 
+ *                 in runs of varint number of zero bytes (the bytes are 
+ *                 the same as the old file), varint number of non-zero 
+ *                 bytes, then the non-zero bytes
+ *   extra length  varint
+ *   extra         the bytes to copy to the new file
+ *   seek          zigzag-encoded varint, the offset to adjust the current 
+ *                 position of the old file by after the diff
+ * </pre>
+ * The diff is applied in one pass over the diff with the old file accessed 
+ * by seeking, so no more than the buffers are held in memory.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class SuffixArrayDiffer implements Differ {
+
+  /**
+   * The default maximum length of the files to diff.
+   */
+  public static final int DEFAULT_MAX_FILE_LENGTH = 33554432;
+  protected static final byte[] HEADER = new byte[]{'S', 'A', 'D', 'F'};
+  /**
+   * The maximum length of the files to diff.
+   */
+  protected final int maxFileLength;
+
+  /**
+   * Constructor.
+   */
+  public SuffixArrayDiffer() {
+    this(DEFAULT_MAX_FILE_LENGTH);
+  }
+
+  /**
+   * Constructor.
+   * @param maxFileLength the maximum length of the files to diff
+   */
+  public SuffixArrayDiffer(int maxFileLength) {
+    this.maxFileLength = maxFileLength;
+  }
+
+  @Override
+  public boolean canDiff(File oldFile, File newFile) {
+    return oldFile.length() <= maxFileLength && newFile.length() <= maxFileLength;
+  }
+
+  @Override
+  public void diff(File oldFile, File newFile, OutputStream out) throws IOException {
+    if (oldFile == null) {
+      throw new NullPointerException("argument 'oldFile' cannot be null");
+    }
+    if (newFile == null) {
+      throw new NullPointerException("argument 'newFile' cannot be null");
+    }
+    if (out == null) {
+      throw new NullPointerException("argument 'out' cannot be null");
+    }
+    if (!canDiff(oldFile, newFile)) {
+      throw new IOException(String.format("The file is larger than the maximum length %1$d, old file: %2$s, new file: %3$s",
+              maxFileLength, oldFile.getAbsolutePath(), newFile.getAbsolutePath()));
+    }
+
+    diff(CommonUtil.readFile(oldFile), CommonUtil.readFile(newFile), out);
+  }
+
+  @Override
+  public void diff(byte[] oldData, byte[] newData, OutputStream out) throws IOException {
+    if (oldData == null) {
+      throw new NullPointerException("argument 'oldData' cannot be null");
+    }
+    if (newData == null) {
+      throw new NullPointerException("argument 'newData' cannot be null");
+    }
+    if (out == null) {
+      throw new NullPointerException("argument 'out' cannot be null");
+    }
+
+    int[] suffixArray = sortSuffixes(oldData);
+    int oldLength = oldData.length, newLength = newData.length;
+
+    OutputStream diffOut = new BufferedOutputStream(out);
+    diffOut.write(HEADER);
+    writeVarint(diffOut, newLength);
+
+    byte[] buf = new byte[32768];
+    int[] pos = new int[1];
+    int scan = 0, length = 0, lastScan = 0, lastPos = 0, lastOffset = 0;
+    while (scan < newLength) {
+      // find the next exact match that is not simply the extension of the last approximate match
+      int oldScore = 0;
+      for (int scsc = scan += length; scan < newLength; scan++) {
+        length = search(suffixArray, oldData, newData, scan, 0, oldLength, pos);
+
+        for (; scsc < scan + length; scsc++) {
+          if (scsc + lastOffset < oldLength && oldData[scsc + lastOffset] == newData[scsc]) {
+            oldScore++;
+          }
+        }
+
+        if ((length == oldScore && length != 0) || length > oldScore + 8) {
+          break;
+        }
+
+        if (scan + lastOffset < oldLength && oldData[scan + lastOffset] == newData[scan]) {
+          oldScore--;
+        }
+      }
+
+      if (length != oldScore || scan == newLength) {
+        // extend the last match forward
+        int score = 0, forwardScore = 0, forwardLength = 0;
+        for (int i = 0; lastScan + i < scan && lastPos + i < oldLength;) {
+          if (oldData[lastPos + i] == newData[lastScan + i]) {
+            score++;
+          }
+          i++;
+          if (score * 2 - i > forwardScore * 2 - forwardLength) {
+            forwardScore = score;
+            forwardLength = i;
+          }
+        }
+
+        // extend the new match backward
+        int backwardLength = 0;
+        if (scan < newLength) {
+          score = 0;
+          int backwardScore = 0;
+          for (int i = 1; scan >= lastScan + i && pos[0] >= i; i++) {
+            if (oldData[pos[0] - i] == newData[scan - i]) {
+              score++;
+            }
+            if (score * 2 - i > backwardScore * 2 - backwardLength) {
+              backwardScore = score;
+              backwardLength = i;
+            }
+          }
+        }
+
+        // split the overlap
+        if (lastScan + forwardLength > scan - backwardLength) {
+          int overlap = (lastScan + forwardLength) - (scan - backwardLength);
+          score = 0;
+          int splitScore = 0, splitLength = 0;
+          for (int i = 0; i < overlap; i++) {
+            if (newData[lastScan + forwardLength - overlap + i] == oldData[lastPos + forwardLength - overlap + i]) {
+              score++;
+            }
+            if (newData[scan - backwardLength + i] == oldData[pos[0] - backwardLength + i]) {
+              score--;
+            }
+            if (score > splitScore) {
+              splitScore = score;
+              splitLength = i + 1;
+            }
+          }
+          forwardLength += splitLength - overlap;
+          backwardLength -= splitLength;
+        }
+
+        writeVarint(diffOut, forwardLength);
+        writeDiff(diffOut, oldData, lastPos, newData, lastScan, forwardLength, buf);
+
+        int extraLength = (scan - backwardLength) - (lastScan + forwardLength);
+        writeVarint(diffOut, extraLength);
+        diffOut.write(newData, lastScan + forwardLength, extraLength);
+
+        int seek = (pos[0] - backwardLength) - (lastPos + forwardLength);
+        writeVarint(diffOut, ((seek << 1) ^ (seek >> 31)) & 0xffffffffL);
+
+        lastScan = scan - backwardLength;
+        lastPos = pos[0] - backwardLength;
+        lastOffset = pos[0] - scan;
+      }
+    }
+
+    diffOut.flush();
+  }
+
+  /**
+   * Write the byte-wise difference of the old data and new data in runs of 
+   * zero and non-zero bytes.
+   */
+  protected static void writeDiff(OutputStream out, byte[] oldData, int oldStart, byte[] newData, int newStart, int length, byte[] buf) throws IOException {
+    int i = 0;
+    while (i < length) {
+      int zeroLength = 0;
+      while (i < length && oldData[oldStart + i] == newData[newStart + i]) {
+        zeroLength++;
+        i++;
+      }
+
+      // short zero runs are included in the non-zero run
+      int nonZeroEnd = i;
+      for (int zeroCount = 0; nonZeroEnd + zeroCount < length && zeroCount < 4;) {
+        if (oldData[oldStart + nonZeroEnd + zeroCount] == newData[newStart + nonZeroEnd + zeroCount]) {
+          zeroCount++;
+        } else {
+          nonZeroEnd += zeroCount + 1;
+          zeroCount = 0;
+        }
+      }
+
+      writeVarint(out, zeroLength);
+      writeVarint(out, nonZeroEnd - i);
+      while (i < nonZeroEnd) {
+        int chunkLength = Math.min(buf.length, nonZeroEnd - i);
+        for (int j = 0; j < chunkLength; j++, i++) {
+          buf[j] = (byte) (newData[newStart + i] - oldData[oldStart + i]);
+        }
+        out.write(buf, 0, chunkLength);
+      }
+    }
+  }
+
+  @Override
+  public void patch(SeekableSource oldFile, InputStream patchIn, OutputStream out) throws IOException {
+    if (oldFile == null) {
+      throw new NullPointerException("argument 'oldFile' cannot be null");
+    }
+    if (patchIn == null) {
+      throw new NullPointerException("argument 'patchIn' cannot be null");
+    }
+    if (out == null) {
+      throw new NullPointerException("argument 'out' cannot be null");
+    }
+
+    byte[] buf = new byte[32768];
+    byte[] oldBuf = new byte[32768];
+
+    readFully(patchIn, buf, HEADER.length);
+    for (int i = 0; i < HEADER.length; i++) {
+      if (buf[i] != HEADER[i]) {
+        throw new IOException("Invalid header of the diff.");
+      }
+    }
+
+    long newLength = readVarint(patchIn);
+    long newPos = 0, oldPos = 0;
+    while (newPos < newLength) {
+      long diffLength = readVarint(patchIn);
+      if (diffLength > newLength - newPos) {
+        throw new IOException("Invalid diff, the new file exceed the length.");
+      }
+      oldFile.seek(oldPos);
+      for (long remaining = diffLength; remaining > 0;) {
+        long zeroLength = readVarint(patchIn);
+        long nonZeroLength = readVarint(patchIn);
+        if (zeroLength > remaining || nonZeroLength > remaining - zeroLength || zeroLength + nonZeroLength == 0) {
+          throw new IOException("Invalid diff, the run exceed the length.");
+        }
+        remaining -= zeroLength + nonZeroLength;
+
+        while (zeroLength > 0) {
+          int chunkLength = (int) Math.min(oldBuf.length, zeroLength);
+          readFully(oldFile, oldBuf, chunkLength);
+          out.write(oldBuf, 0, chunkLength);
+          zeroLength -= chunkLength;
+        }
+        while (nonZeroLength > 0) {
+          int chunkLength = (int) Math.min(buf.length, nonZeroLength);
+          readFully(patchIn, buf, chunkLength);
+          readFully(oldFile, oldBuf, chunkLength);
+          for (int i = 0; i < chunkLength; i++) {
+            buf[i] += oldBuf[i];
+          }
+          out.write(buf, 0, chunkLength);
+          nonZeroLength -= chunkLength;
+        }
+      }
+      newPos += diffLength;
+      oldPos += diffLength;
+
+      long extraLength = readVarint(patchIn);
+      if (extraLength > newLength - newPos) {
+        throw new IOException("Invalid diff, the new file exceed the length.");
+      }
+      for (long remaining = extraLength; remaining > 0;) {
+        int chunkLength = (int) Math.min(buf.length, remaining);
+        readFully(patchIn, buf, chunkLength);
+        out.write(buf, 0, chunkLength);
+        remaining -= chunkLength;
+      }
+      newPos += extraLength;
+
+      long seek = readVarint(patchIn);
+      oldPos += (seek >>> 1) ^ -(seek & 1);
+      if (oldPos < 0) {
+        throw new IOException("Invalid diff, seek to negative position of the old file.");
+      }
+    }
+  }
+
+  /**
+   * Sort the suffixes of the data by the algorithm of Larsson and Sadakane.
+   * @param data the data
+   * @return the suffix array, the starting positions of the suffixes in 
+   * lexicographical order, the first one is always the empty suffix
+   */
+  protected static int[] sortSuffixes(byte[] data) {
+    int length = data.length;
+    int[] I = new int[length + 1];
+    int[] V = new int[length + 1];
+
+    int[] buckets = new int[256];
+    for (int i = 0; i < length; i++) {
+      buckets[data[i] & 0xff]++;
+    }
+    for (int i = 1; i < 256; i++) {
+      buckets[i] += buckets[i - 1];
+    }
+    for (int i = 255; i > 0; i--) {
+      buckets[i] = buckets[i - 1];
+    }
+    buckets[0] = 0;
+
+    for (int i = 0; i < length; i++) {
+      I[++buckets[data[i] & 0xff]] = i;
+    }
+    I[0] = length;
+    for (int i = 0; i < length; i++) {
+      V[i] = buckets[data[i] & 0xff];
+    }
+    V[length] = 0;
+    for (int i = 1; i < 256; i++) {
+      if (buckets[i] == buckets[i - 1] + 1) {
+        I[buckets[i]] = -1;
+      }
+    }
+    I[0] = -1;
+
+    // negative value in I is the length of the sorted group
+    for (int h = 1; I[0] != -(length + 1); h += h) {
+      int groupLength = 0;
+      int i = 0;
+      while (i < length + 1) {
+        if (I[i] < 0) {
+          groupLength -= I[i];
+          i -= I[i];
+        } else {
+          if (groupLength != 0) {
+            I[i - groupLength] = -groupLength;
+          }
+          groupLength = V[I[i]] + 1 - i;
+          split(I, V, i, groupLength, h);
+          i += groupLength;
+          groupLength = 0;
+        }
+      }
+      if (groupLength != 0) {
+        I[i - groupLength] = -groupLength;
+      }
+    }
+
+    for (int i = 0; i < length + 1; i++) {
+      I[V[i]] = i;
+    }
+    return I;
+  }
+
+  /**
+   * Sort the group of suffixes by the rank of their h-th position.
+   */
+  protected static void split(int[] I, int[] V, int start, int length, int h) {
+    while (length >= 16) {
+      int x = V[I[start + length / 2] + h];
+      int jj = 0, kk = 0;
+      for (int i = start; i < start + length; i++) {
+        if (V[I[i] + h] < x) {
+          jj++;
+        }
+        if (V[I[i] + h] == x) {
+          kk++;
+        }
+      }
+      jj += start;
+      kk += jj;
+
+      int i = start, j = 0, k = 0;
+      while (i < jj) {
+        if (V[I[i] + h] < x) {
+          i++;
+        } else if (V[I[i] + h] == x) {
+          int tmp = I[i];
+          I[i] = I[jj + j];
+          I[jj + j] = tmp;
+          j++;
+        } else {
+          int tmp = I[i];
+          I[i] = I[kk + k];
+          I[kk + k] = tmp;
+          k++;
+        }
+      }
+      while (jj + j < kk) {
+        if (V[I[jj + j] + h] == x) {
+          j++;
+        } else {
+          int tmp = I[jj + j];
+          I[jj + j] = I[kk + k];
+          I[kk + k] = tmp;
+          k++;
+        }
+      }
+
+      // the lower part should be sorted before updating the group number of the equal part
+      if (jj > start) {
+        split(I, V, start, jj - start, h);
+      }
+      for (i = 0; i < kk - jj; i++) {
+        V[I[jj + i]] = kk - 1;
+      }
+      if (jj == kk - 1) {
+        I[jj] = -1;
+      }
+      if (start + length <= kk) {
+        return;
+      }
+      length = start + length - kk;
+      start = kk;
+    }
+
+    for (int k = start, j; k < start + length; k += j) {
+      j = 1;
+      int x = V[I[k] + h];
+      for (int i = 1; k + i < start + length; i++) {
+        if (V[I[k + i] + h] < x) {
+          x = V[I[k + i] + h];
+          j = 0;
+        }
+        if (V[I[k + i] + h] == x) {
+          int tmp = I[k + j];
+          I[k + j] = I[k + i];
+          I[k + i] = tmp;
+          j++;
+        }
+      }
+      for (int i = 0; i < j; i++) {
+        V[I[k + i]] = k + j - 1;
+      }
+      if (j == 1) {
+        I[k] = -1;
+      }
+    }
+  }
+
+  /**
+   * Binary search the suffix array for the longest match of the new data 
+   * starting at {@code newStart}.
+   * @param pos output, the position of the match in the old data
+   * @return the length of the match
+   */
+  protected static int search(int[] I, byte[] oldData, byte[] newData, int newStart, int start, int end, int[] pos) {
+    while (end - start >= 2) {
+      int x = start + (end - start) / 2;
+      if (compare(oldData, I[x], newData, newStart) < 0) {
+        start = x;
+      } else {
+        end = x;
+      }
+    }
+
+    int startLength = matchLength(oldData, I[start], newData, newStart);
+    int endLength = matchLength(oldData, I[end], newData, newStart);
+    if (startLength > endLength) {
+      pos[0] = I[start];
+      return startLength;
+    }
+    pos[0] = I[end];
+    return endLength;
+  }
+
+  protected static int compare(byte[] oldData, int oldStart, byte[] newData, int newStart) {
+    for (int i = oldStart, j = newStart; i < oldData.length && j < newData.length; i++, j++) {
+      int difference = (oldData[i] & 0xff) - (newData[j] & 0xff);
+      if (difference != 0) {
+        return difference;
+      }
+    }
+    return 0;
+  }
+
+  protected static int matchLength(byte[] oldData, int oldStart, byte[] newData, int newStart) {
+    int i = oldStart, j = newStart;
+    while (i < oldData.length && j < newData.length && oldData[i] == newData[j]) {
+      i++;
+      j++;
+    }
+    return i - oldStart;
+  }
+
+  protected static void writeVarint(OutputStream out, long value) throws IOException {
+    while ((value & ~0x7fL) != 0) {
+      out.write((int) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  protected static long readVarint(InputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.read();
+      if (b == -1) {
+        throw new IOException("Reach the end of stream.");
+      }
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Invalid varint in the diff.");
+  }
+
+  protected static void readFully(InputStream in, byte[] b, int length) throws IOException {
+    for (int byteRead, cumulativeByteRead = 0; cumulativeByteRead < length; cumulativeByteRead += byteRead) {
+      byteRead = in.read(b, cumulativeByteRead, length - cumulativeByteRead);
+      if (byteRead == -1) {
+        throw new IOException("Reach the end of stream.");
+      }
+    }
+  }
+
+  protected static void readFully(SeekableSource in, byte[] b, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(b, 0, length);
+    while (buffer.hasRemaining()) {
+      if (in.read(buffer) == -1) {
+        throw new IOException("Reach the end of the old file.");
+      }
+    }
+  }
+}
@@ -0,0 +1,145 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import com.nothome.delta.SeekableSource;
+import com.nothome.delta.text.Delta;
+import com.nothome.delta.text.TextPatcher;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import updater.util.CommonUtil;
+
+/**
+ * The differ using the text delta of {@link com.nothome.delta.text.Delta}, 
+ * it suits text files like scripts and configurations. The bytes are mapped 
+ * to characters by ISO-8859-1, so any file can be diffed and reproduced 
+ * exactly.
+ * <pre>
+ * diff length   varint
+ * diff          the text delta in ISO-8859-1
+ * </pre>
+ * The old file, the new file and the diff are held in memory when diffing 
+ * and patching, so files larger than the maximum length are not accepted by 
+ * {@link #canDiff(java.io.File, java.io.File)}.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class TextDiffer implements Differ {
+
+  /**
+   * The default maximum length of the files to diff.
+   */
+  public static final int DEFAULT_MAX_FILE_LENGTH = 8388608;
+  /**
+   * The charset that map every byte to a character.
+   */
+  protected static final String CHARSET = "ISO-8859-1";
+  /**
+   * The maximum length of the files to diff.
+   */
+  protected final int maxFileLength;
+
+  /**
+   * Constructor.
+   */
+  public TextDiffer() {
+    this(DEFAULT_MAX_FILE_LENGTH);
+  }
+
+  /**
+   * Constructor.
+   * @param maxFileLength the maximum length of the files to diff
+   */
+  public TextDiffer(int maxFileLength) {
+    this.maxFileLength = maxFileLength;
+  }
+
+  @Override
+  public boolean canDiff(File oldFile, File newFile) {
+    return oldFile.length() <= maxFileLength && newFile.length() <= maxFileLength;
+  }
+
+  @Override
+  public void diff(File oldFile, File newFile, OutputStream out) throws IOException {
+    if (oldFile == null) {
+      throw new NullPointerException("argument 'oldFile' cannot be null");
+    }
+    if (newFile == null) {
+      throw new NullPointerException("argument 'newFile' cannot be null");
+    }
+    if (out == null) {
+      throw new NullPointerException("argument 'out' cannot be null");
+    }
+    if (!canDiff(oldFile, newFile)) {
+      throw new IOException(String.format("The file is larger than the maximum length %1$d, old file: %2$s, new file: %3$s",
+              maxFileLength, oldFile.getAbsolutePath(), newFile.getAbsolutePath()));
+    }
+
+    diff(CommonUtil.readFile(oldFile), CommonUtil.readFile(newFile), out);
+  }
+
+  @Override
+  public void diff(byte[] oldData, byte[] newData, OutputStream out) throws IOException {
+    if (oldData == null) {
+      throw new NullPointerException("argument 'oldData' cannot be null");
+    }
+    if (newData == null) {
+      throw new NullPointerException("argument 'newData' cannot be null");
+    }
+    if (out == null) {
+      throw new NullPointerException("argument 'out' cannot be null");
+    }
+
+    String diff = new Delta().compute(new String(oldData, CHARSET), new String(newData, CHARSET));
+    byte[] diffBytes = diff.getBytes(CHARSET);
+    SuffixArrayDiffer.writeVarint(out, diffBytes.length);
+    out.write(diffBytes);
+  }
+
+  @Override
+  public void patch(SeekableSource oldFile, InputStream patchIn, OutputStream out) throws IOException {
+    if (oldFile == null) {
+      throw new NullPointerException("argument 'oldFile' cannot be null");
+    }
+    if (patchIn == null) {
+      throw new NullPointerException("argument 'patchIn' cannot be null");
+    }
+    if (out == null) {
+      throw new NullPointerException("argument 'out' cannot be null");
+    }
+
+    long diffLength = SuffixArrayDiffer.readVarint(patchIn);
+    if (diffLength > Integer.MAX_VALUE) {
+      throw new IOException("Invalid diff, the diff exceed the maximum length.");
+    }
+    byte[] diffBytes = new byte[(int) diffLength];
+    SuffixArrayDiffer.readFully(patchIn, diffBytes, diffBytes.length);
+
+    String newData;
+    try {
+      newData = new TextPatcher(new String(ArchiveDiffer.readAll(oldFile), CHARSET)).patch(new String(diffBytes, CHARSET));
+    } catch (RuntimeException ex) {
+      throw new IOException("Invalid diff: " + ex.getMessage());
+    }
+    out.write(newData.getBytes(CHARSET));
+  }
+}
@@ -20,27 +20,68 @@
 // WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 package updater.script;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.TransformerException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
 import updater.util.XMLUtil;
+import updater.util.XMLUtil.XMLElementReader;
+import updater.util.XMLUtil.XMLElementWriter;
 
 /**
  * This script includes information for software to decide which patch(es) to 
  * download to update itself to latest available version.
  * It also contain the download URL, size and checksum of the patch.
+ * <p>
+ * The catalog carries a version number that is increased every time patches 
+ * are appended to it. The patches appended in version <i>n</i> are also 
+ * published as a catalog of their own with version <i>n</i> (an entry of the 
+ * change feed), so that a client holding version <i>n - 1</i> only need to 
+ * fetch that entry and {@link #merge(updater.script.Catalog)} it.</p>
+ * <p>
+ * A catalog can also be published as a small root index plus one shard per 
+ * version-from (see {@link #splitByVersionFrom()}). The index contains the 
+ * patches with version-from-subsequent and the URL of every shard, so a 
+ * client only need to fetch the shards of the versions it can reach.</p>
  * 
  * @author Chan Wai Shing <cws1989@gmail.com>
  */
 public class Catalog {
 
+  protected long version;
   protected List<Patch> patches;
+  protected Map<String, String> shards;
 
   public Catalog(List<Patch> patches) {
+    this(0, patches);
+  }
+
+  public Catalog(long version, List<Patch> patches) {
+    this(version, patches, null);
+  }
+
+  public Catalog(long version, List<Patch> patches, Map<String, String> shards) {
+    this.version = version;
     this.patches = patches != null ? new ArrayList<Patch>(patches) : new ArrayList<Patch>();
+    this.shards = shards != null ? new LinkedHashMap<String, String>(shards) : new LinkedHashMap<String, String>();
+  }
+
+  /**
+   * Get the version of the catalog, 0 means the catalog is not versioned.
+   * @return the version
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  public void setVersion(long version) {
+    this.version = version;
   }
 
   public List<Patch> getPatchs() {
@@ -55,44 +96,171 @@ public class Catalog {
     this.patches = new ArrayList<Patch>(patches);
   }
 
-  public static Catalog read(byte[] content) throws InvalidFormatException {
-    if (content == null) {
-      throw new NullPointerException("argument 'content' cannot be null");
+  /**
+   * Append the patches of a change feed entry to this catalog. Patches with 
+   * id already exist in this catalog are skipped.
+   * @param feedEntry the change feed entry, its version must be the version 
+   * of this catalog plus one
+   * @return true if merged, false if {@code feedEntry} is not the entry 
+   * following the version of this catalog
+   */
+  public boolean merge(Catalog feedEntry) {
+    if (feedEntry == null) {
+      throw new NullPointerException("argument 'feedEntry' cannot be null");
+    }
+    if (version == 0 || feedEntry.version != version + 1) {
+      return false;
     }
 
-    Document doc;
-    try {
-      doc = XMLUtil.readDocument(content);
-    } catch (Exception ex) {
-      throw new InvalidFormatException("XML format incorrect. " + ex.getMessage());
+    Set<Integer> existingIds = new HashSet<Integer>();
+    for (Patch patch : patches) {
+      existingIds.add(patch.getId());
     }
+    for (Patch patch : feedEntry.patches) {
+      if (existingIds.add(patch.getId())) {
+        patches.add(patch);
+      }
+    }
+    version = feedEntry.version;
 
-    Element _patchesNode = doc.getDocumentElement();
+    return true;
+  }
 
-    List<Patch> _patches = new ArrayList<Patch>();
+  /**
+   * Append the patches to this catalog and increase the version of the 
+   * catalog by one.
+   * @param newPatches the patches to append
+   * @return the change feed entry for the new version, contain only the 
+   * patches in {@code newPatches} that are not already in this catalog
+   */
+  public Catalog append(List<Patch> newPatches) {
+    if (newPatches == null) {
+      throw new NullPointerException("argument 'newPatches' cannot be null");
+    }
 
-    NodeList _patchNodeList = _patchesNode.getElementsByTagName("patch");
-    for (int i = 0, iEnd = _patchNodeList.getLength(); i < iEnd; i++) {
-      Element _patchNode = (Element) _patchNodeList.item(i);
-      _patches.add(Patch.read(_patchNode));
+    Catalog feedEntry = new Catalog(version + 1, null);
+    Set<Integer> existingIds = new HashSet<Integer>();
+    for (Patch patch : patches) {
+      existingIds.add(patch.getId());
+    }
+    for (Patch patch : newPatches) {
+      if (existingIds.add(patch.getId())) {
+        feedEntry.patches.add(patch);
+      }
     }
 
-    return new Catalog(_patches);
+    patches.addAll(feedEntry.patches);
+    version = feedEntry.version;
+
+    return feedEntry;
   }
 
-  public byte[] output() throws TransformerException {
-    Document doc = XMLUtil.createEmptyDocument();
-    if (doc == null) {
-      return null;
-    }
+  /**
+   * Get the shards of this catalog.
+   * @return a map that key is the version-from and value is the URL of the 
+   * shard (can be relative to the URL of this catalog), empty if this catalog 
+   * is not a sharded one
+   */
+  public Map<String, String> getShards() {
+    return new LinkedHashMap<String, String>(shards);
+  }
 
-    Element rootElement = doc.createElement("patches");
-    doc.appendChild(rootElement);
+  public void setShards(Map<String, String> shards) {
+    if (shards == null) {
+      this.shards = new LinkedHashMap<String, String>();
+      return;
+    }
+    this.shards = new LinkedHashMap<String, String>(shards);
+  }
 
+  /**
+   * Group the patches that have version-from by their version-from. The 
+   * catalogs returned have the same version as this catalog.
+   * @return a map that key is the version-from and value is the catalog 
+   * containing the patches of that version-from, in the order they appear
+   */
+  public Map<String, Catalog> splitByVersionFrom() {
+    Map<String, Catalog> returnResult = new LinkedHashMap<String, Catalog>();
     for (Patch patch : patches) {
-      rootElement.appendChild(patch.getElement(doc));
+      if (patch.getVersionFrom() == null) {
+        continue;
+      }
+      Catalog shard = returnResult.get(patch.getVersionFrom());
+      if (shard == null) {
+        shard = new Catalog(version, null);
+        returnResult.put(patch.getVersionFrom(), shard);
+      }
+      shard.patches.add(patch);
+    }
+    return returnResult;
+  }
+
+  public static Catalog read(byte[] content) throws InvalidFormatException {
+    if (content == null) {
+      throw new NullPointerException("argument 'content' cannot be null");
+    }
+
+    XMLElementReader reader = XMLUtil.createElementReader(new ByteArrayInputStream(content));
+    try {
+      long _version = 0;
+      String _versionString = reader.getAttribute("version");
+      if (_versionString != null) {
+        try {
+          _version = Long.parseLong(_versionString);
+        } catch (NumberFormatException ex) {
+          throw new InvalidFormatException("Attribute 'version' of <patches> is not a valid number: " + _versionString);
+        }
+      }
+
+      List<Patch> _patches = new ArrayList<Patch>();
+      Map<String, String> _shards = new LinkedHashMap<String, String>();
+      while (reader.nextChild()) {
+        String name = reader.getName();
+        if (name.equals("patch")) {
+          _patches.add(Patch.read(reader));
+        } else if (name.equals("shard")) {
+          String _from = reader.getAttribute("from");
+          if (_from == null || _from.isEmpty()) {
+            throw new InvalidFormatException("Attribute 'from' not found in <shard>.");
+          }
+          _shards.put(_from, reader.readText());
+        } else {
+          reader.skip();
+        }
+      }
+
+      return new Catalog(_version, _patches, _shards);
+    } catch (XMLStreamException ex) {
+      throw new InvalidFormatException("XML format incorrect. " + ex.getMessage());
+    } finally {
+      reader.close();
     }
+  }
 
-    return XMLUtil.getOutput(doc);
+  public byte[] output() throws TransformerException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    try {
+      XMLElementWriter writer = XMLUtil.createElementWriter(bout);
+
+      writer.startElement("patches");
+      if (version != 0) {
+        writer.attribute("version", Long.toString(version));
+      }
+      for (String shardFrom : shards.keySet()) {
+        writer.startElement("shard");
+        writer.attribute("from", shardFrom);
+        writer.text(shards.get(shardFrom));
+        writer.endElement();
+      }
+      for (Patch patch : patches) {
+        patch.write(writer);
+      }
+      writer.endElement();
+
+      writer.finish();
+    } catch (XMLStreamException ex) {
+      throw new TransformerException(ex);
+    }
+    return bout.toByteArray();
   }
 }
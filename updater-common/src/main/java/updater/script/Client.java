@@ -20,13 +20,15 @@
 // WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 package updater.script;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.TransformerException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
 import updater.util.XMLUtil;
+import updater.util.XMLUtil.XMLElementReader;
+import updater.util.XMLUtil.XMLElementWriter;
 
 /**
  * This script contains the information needed for the launcher and downloader. 
@@ -49,6 +51,7 @@ public class Client {
   protected String launchMainClass;
   //
   protected String catalogUrl;
+  protected String catalogFeedUrl;
   protected String catalogPublicKeyModulus;
   protected String catalogPublicKeyExponent;
   protected long catalogLastUpdated;
@@ -60,7 +63,7 @@ public class Client {
           String storagePath,
           Information information,
           String launchType, String launchAfterLaunch, List<String> launchCommands, String launchJarPath, String launchMainClass,
-          String catalogUrl, String catalogPublicKeyModulus, String catalogPublicKeyExponent, long catalogLastUpdated, Boolean catalogFullPackOnly,
+          String catalogUrl, String catalogFeedUrl, String catalogPublicKeyModulus, String catalogPublicKeyExponent, long catalogLastUpdated, Boolean catalogFullPackOnly,
           List<Patch> patches) {
     this.version = version;
 
@@ -75,6 +78,7 @@ public class Client {
     this.launchMainClass = launchMainClass;
 
     this.catalogUrl = catalogUrl;
+    this.catalogFeedUrl = catalogFeedUrl;
     this.catalogLastUpdated = catalogLastUpdated;
     this.catalogPublicKeyModulus = catalogPublicKeyModulus;
     this.catalogPublicKeyExponent = catalogPublicKeyExponent;
@@ -159,6 +163,19 @@ public class Client {
     this.catalogUrl = catalogUrl;
   }
 
+  /**
+   * Get the URL prefix of the change feed of the catalog. The entry of 
+   * version <i>n</i> is located at this prefix followed by <i>n</i>.
+   * @return the URL prefix, null means the catalog has no change feed
+   */
+  public String getCatalogFeedUrl() {
+    return catalogFeedUrl;
+  }
+
+  public void setCatalogFeedUrl(String catalogFeedUrl) {
+    this.catalogFeedUrl = catalogFeedUrl;
+  }
+
   public String getCatalogPublicKeyModulus() {
     return catalogPublicKeyModulus;
   }
@@ -208,186 +225,209 @@ public class Client {
       throw new NullPointerException("argument 'content' cannot be null");
     }
 
-    Document doc;
+    XMLElementReader reader = XMLUtil.createElementReader(new ByteArrayInputStream(content));
     try {
-      doc = XMLUtil.readDocument(content);
-    } catch (Exception ex) {
-      throw new InvalidFormatException("XML format incorrect. " + ex.getMessage());
-    }
-
-    Element _rootNode = doc.getDocumentElement();
-
-    String _version = XMLUtil.getTextContent(_rootNode, "version", true);
-
-    String _storagePath = XMLUtil.getTextContent(_rootNode, "storage-path", true);
-
-    Element _informationNode = XMLUtil.getElement(_rootNode, "information", false);
-    Information _information = null;
-    if (_informationNode != null) {
-      _information = Information.read(_informationNode);
-    }
-
-    String _launchType = null;
-    String _launchAfterLaunch = null;
-    List<String> _launchCommands = new ArrayList<String>();
-    String _launchJarPath = null;
-    String _launchMainClass = null;
-    Element _launchNode = XMLUtil.getElement(_rootNode, "launch", false);
-    if (_launchNode != null) {
-      _launchType = XMLUtil.getTextContent(_launchNode, "type", true);
-      _launchAfterLaunch = XMLUtil.getTextContent(_launchNode, "after-launch", false);
-      NodeList commandNodeList = XMLUtil.getNodeList(_launchNode, "command", -1, -1);
-      for (int i = 0, iEnd = commandNodeList.getLength(); i < iEnd; i++) {
-        Element _commandNode = (Element) commandNodeList.item(i);
-        _launchCommands.add(_commandNode.getTextContent());
+      String _version = null;
+      String _storagePath = null;
+      Information _information = null;
+
+      boolean _launchExist = false;
+      String _launchType = null;
+      String _launchAfterLaunch = null;
+      List<String> _launchCommands = new ArrayList<String>();
+      String _launchJarPath = null;
+      String _launchMainClass = null;
+
+      boolean _catalogExist = false;
+      String _catalogUrl = null;
+      String _catalogFeedUrl = null;
+      String _catalogPublicKeyModulus = null;
+      String _catalogPublicKeyExponent = null;
+      boolean _catalogPublicKeyExist = false;
+      String _catalogLastUpdatedString = null;
+      String _catalogFullPackOnlyString = null;
+
+      List<Patch> _patches = new ArrayList<Patch>();
+
+      while (reader.nextChild()) {
+        String name = reader.getName();
+        if (name.equals("version")) {
+          _version = reader.readText();
+        } else if (name.equals("storage-path")) {
+          _storagePath = reader.readText();
+        } else if (name.equals("information")) {
+          _information = Information.read(reader);
+        } else if (name.equals("launch")) {
+          _launchExist = true;
+          while (reader.nextChild()) {
+            String launchName = reader.getName();
+            if (launchName.equals("type")) {
+              _launchType = reader.readText();
+            } else if (launchName.equals("after-launch")) {
+              _launchAfterLaunch = reader.readText();
+            } else if (launchName.equals("command")) {
+              _launchCommands.add(reader.readText());
+            } else if (launchName.equals("jar-path")) {
+              _launchJarPath = reader.readText();
+            } else if (launchName.equals("main-class")) {
+              _launchMainClass = reader.readText();
+            } else {
+              reader.skip();
+            }
+          }
+        } else if (name.equals("catalog")) {
+          _catalogExist = true;
+          while (reader.nextChild()) {
+            String catalogName = reader.getName();
+            if (catalogName.equals("url")) {
+              _catalogUrl = reader.readText();
+            } else if (catalogName.equals("feed-url")) {
+              _catalogFeedUrl = reader.readText();
+            } else if (catalogName.equals("public-key")) {
+              _catalogPublicKeyExist = true;
+              while (reader.nextChild()) {
+                if (reader.getName().equals("modulus")) {
+                  _catalogPublicKeyModulus = reader.readText();
+                } else if (reader.getName().equals("exponent")) {
+                  _catalogPublicKeyExponent = reader.readText();
+                } else {
+                  reader.skip();
+                }
+              }
+            } else if (catalogName.equals("last-updated")) {
+              _catalogLastUpdatedString = reader.readText();
+            } else if (catalogName.equals("full-pack-only")) {
+              _catalogFullPackOnlyString = reader.readText();
+            } else {
+              reader.skip();
+            }
+          }
+        } else if (name.equals("patches")) {
+          while (reader.nextChild()) {
+            if (reader.getName().equals("patch")) {
+              _patches.add(Patch.read(reader));
+            } else {
+              reader.skip();
+            }
+          }
+        } else {
+          reader.skip();
+        }
       }
-      _launchJarPath = XMLUtil.getTextContent(_launchNode, "jar-path", false);
-      _launchMainClass = XMLUtil.getTextContent(_launchNode, "main-class", false);
 
-      if (_launchType.equals("jar") && (_launchJarPath == null || _launchMainClass == null)) {
-        throw new InvalidFormatException("Launch type if 'jar', <jar-path> and <main-class> must exist under <launch>.");
-      }
-      if (_launchType.equals("command") && _launchCommands == null) {
-        throw new InvalidFormatException("Launch type if 'command', <command> must exist under <launch>.");
-      }
-    }
+      XMLUtil.checkExist(_version, "root", "version");
+      XMLUtil.checkExist(_storagePath, "root", "storage-path");
 
-    String _catalogUrl = null;
-    String _catalogPublicKeyModulus = null;
-    String _catalogPublicKeyExponent = null;
-    Long _catalogLastUpdated = -1L;
-    Boolean _catalogFullPackOnly = null;
-    Element _catalogNode = XMLUtil.getElement(_rootNode, "catalog", false);
-    if (_catalogNode != null) {
-      _catalogUrl = XMLUtil.getTextContent(_catalogNode, "url", true);
-
-      Element catalogPublicKeyElement = XMLUtil.getElement(_catalogNode, "public-key", false);
-      if (catalogPublicKeyElement != null) {
-        _catalogPublicKeyModulus = XMLUtil.getTextContent(catalogPublicKeyElement, "modulus", true);
-        _catalogPublicKeyExponent = XMLUtil.getTextContent(catalogPublicKeyElement, "exponent", true);
+      if (_launchExist) {
+        XMLUtil.checkExist(_launchType, "launch", "type");
+        if (_launchType.equals("jar") && (_launchJarPath == null || _launchMainClass == null)) {
+          throw new InvalidFormatException("Launch type if 'jar', <jar-path> and <main-class> must exist under <launch>.");
+        }
+        if (_launchType.equals("command") && _launchCommands.isEmpty()) {
+          throw new InvalidFormatException("Launch type if 'command', <command> must exist under <launch>.");
+        }
       }
 
-      String _catalogLastUpdatedString = XMLUtil.getTextContent(_catalogNode, "last-updated", false);
-      _catalogLastUpdated = _catalogLastUpdatedString != null ? Long.parseLong(_catalogLastUpdatedString) : -1;
-    }
-
-    List<Patch> _patches = new ArrayList<Patch>();
-    Element _patchesElement = XMLUtil.getElement(_rootNode, "patches", false);
-    if (_patchesElement != null) {
-      NodeList _patchNodeList = _patchesElement.getElementsByTagName("patch");
-      for (int i = 0, iEnd = _patchNodeList.getLength(); i < iEnd; i++) {
-        Element _patchNode = (Element) _patchNodeList.item(i);
-        _patches.add(Patch.read(_patchNode));
+      long _catalogLastUpdated = -1;
+      Boolean _catalogFullPackOnly = null;
+      if (_catalogExist) {
+        XMLUtil.checkExist(_catalogUrl, "catalog", "url");
+        if (_catalogPublicKeyExist) {
+          XMLUtil.checkExist(_catalogPublicKeyModulus, "public-key", "modulus");
+          XMLUtil.checkExist(_catalogPublicKeyExponent, "public-key", "exponent");
+        }
+        if (_catalogLastUpdatedString != null) {
+          try {
+            _catalogLastUpdated = Long.parseLong(_catalogLastUpdatedString);
+          } catch (NumberFormatException ex) {
+            throw new InvalidFormatException("<last-updated> of <catalog> is not a valid number, found: " + _catalogLastUpdatedString);
+          }
+        }
+        if (_catalogFullPackOnlyString != null) {
+          _catalogFullPackOnly = _catalogFullPackOnlyString.equals("true");
+        }
       }
-    }
-    String _catalogFullPackOnlyString = XMLUtil.getTextContent(_catalogNode, "full-pack-only", false);
-    if (_catalogFullPackOnlyString != null) {
-      _catalogFullPackOnly = _catalogFullPackOnlyString.equals("true");
-    }
 
-    return new Client(_version,
-            _storagePath, _information,
-            _launchType, _launchAfterLaunch, _launchCommands, _launchJarPath, _launchMainClass,
-            _catalogUrl, _catalogPublicKeyModulus, _catalogPublicKeyExponent, _catalogLastUpdated, _catalogFullPackOnly,
-            _patches);
+      return new Client(_version,
+              _storagePath, _information,
+              _launchType, _launchAfterLaunch, _launchCommands, _launchJarPath, _launchMainClass,
+              _catalogUrl, _catalogFeedUrl, _catalogPublicKeyModulus, _catalogPublicKeyExponent, _catalogLastUpdated, _catalogFullPackOnly,
+              _patches);
+    } catch (XMLStreamException ex) {
+      throw new InvalidFormatException("XML format incorrect. " + ex.getMessage());
+    } finally {
+      reader.close();
+    }
   }
 
   public byte[] output() throws TransformerException {
-    Document doc = XMLUtil.createEmptyDocument();
-    if (doc == null) {
-      return null;
-    }
-
-    Element rootElement = doc.createElement("root");
-    doc.appendChild(rootElement);
-
-    Element versionElement = doc.createElement("version");
-    versionElement.setTextContent(version);
-    rootElement.appendChild(versionElement);
-
-    Element storagePathElement = doc.createElement("storage-path");
-    storagePathElement.setTextContent(storagePath);
-    rootElement.appendChild(storagePathElement);
-
-    if (information != null) {
-      Element informationElement = information.getElement(doc);
-      rootElement.appendChild(informationElement);
-    }
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    try {
+      XMLElementWriter writer = XMLUtil.createElementWriter(bout);
 
-    if (launchType != null) {
-      Element launchElement = doc.createElement("launch");
-      rootElement.appendChild(launchElement);
+      writer.startElement("root");
 
-      Element launchTypeElement = doc.createElement("type");
-      launchTypeElement.setTextContent(launchType);
-      launchElement.appendChild(launchTypeElement);
+      writer.textElement("version", version);
+      writer.textElement("storage-path", storagePath);
 
-      if (launchAfterLaunch != null) {
-        Element launchAfterLaunchElement = doc.createElement("after-launch");
-        launchAfterLaunchElement.setTextContent(launchAfterLaunch);
-        launchElement.appendChild(launchAfterLaunchElement);
+      if (information != null) {
+        information.write(writer);
       }
-      if (launchType.equals("command")) {
-        for (String _command : launchCommands) {
-          Element launchCommandElement = doc.createElement("command");
-          launchCommandElement.setTextContent(_command);
-          launchElement.appendChild(launchCommandElement);
+
+      if (launchType != null) {
+        writer.startElement("launch");
+        writer.textElement("type", launchType);
+        if (launchAfterLaunch != null) {
+          writer.textElement("after-launch", launchAfterLaunch);
         }
+        if (launchType.equals("command")) {
+          for (String _command : launchCommands) {
+            writer.textElement("command", _command);
+          }
+        }
+        if (launchType.equals("jar")) {
+          writer.textElement("jar-path", launchJarPath);
+          writer.textElement("main-class", launchMainClass);
+        }
+        writer.endElement();
       }
-      if (launchType.equals("jar")) {
-        Element launchJarPathElement = doc.createElement("jar-path");
-        launchJarPathElement.setTextContent(launchJarPath);
-        launchElement.appendChild(launchJarPathElement);
-
-        Element launchMainClassElement = doc.createElement("main-class");
-        launchMainClassElement.setTextContent(launchMainClass);
-        launchElement.appendChild(launchMainClassElement);
-      }
-    }
-
-    if (catalogUrl != null) {
-      Element catalogElement = doc.createElement("catalog");
-      rootElement.appendChild(catalogElement);
-
-      Element catalogUrlElement = doc.createElement("url");
-      catalogUrlElement.setTextContent(catalogUrl);
-      catalogElement.appendChild(catalogUrlElement);
-      if (catalogPublicKeyModulus != null) {
-        Element catalogPublicKeyElement = doc.createElement("public-key");
-        catalogElement.appendChild(catalogPublicKeyElement);
 
-        Element catalogPublicKeyModulusElement = doc.createElement("modulus");
-        catalogPublicKeyModulusElement.setTextContent(catalogPublicKeyModulus);
-        catalogPublicKeyElement.appendChild(catalogPublicKeyModulusElement);
-
-        Element catalogPublicKeyExponentElement = doc.createElement("exponent");
-        catalogPublicKeyExponentElement.setTextContent(catalogPublicKeyExponent);
-        catalogPublicKeyElement.appendChild(catalogPublicKeyExponentElement);
-      }
-      if (catalogLastUpdated != -1) {
-        Element catalogLastUpdatedElement = doc.createElement("last-updated");
-        catalogLastUpdatedElement.setTextContent(Long.toString(catalogLastUpdated));
-        catalogElement.appendChild(catalogLastUpdatedElement);
-      }
-      if (catalogFullPackOnly != null) {
-        Element catalogFullPackOnlyElement = doc.createElement("full-pack-only");
-        catalogFullPackOnlyElement.setTextContent(Boolean.toString(catalogFullPackOnly));
-        catalogElement.appendChild(catalogFullPackOnlyElement);
+      if (catalogUrl != null) {
+        writer.startElement("catalog");
+        writer.textElement("url", catalogUrl);
+        if (catalogFeedUrl != null) {
+          writer.textElement("feed-url", catalogFeedUrl);
+        }
+        if (catalogPublicKeyModulus != null) {
+          writer.startElement("public-key");
+          writer.textElement("modulus", catalogPublicKeyModulus);
+          writer.textElement("exponent", catalogPublicKeyExponent);
+          writer.endElement();
+        }
+        if (catalogLastUpdated != -1) {
+          writer.textElement("last-updated", Long.toString(catalogLastUpdated));
+        }
+        if (catalogFullPackOnly != null) {
+          writer.textElement("full-pack-only", Boolean.toString(catalogFullPackOnly));
+        }
+        writer.endElement();
       }
-    }
 
-    if (!patches.isEmpty()) {
-      Element patchesElement = doc.createElement("patches");
-      rootElement.appendChild(patchesElement);
-      for (Patch patch : patches) {
-        Element _patchElement = patch.getElement(doc);
-        if (_patchElement != null) {
-          patchesElement.appendChild(_patchElement);
+      if (!patches.isEmpty()) {
+        writer.startElement("patches");
+        for (Patch patch : patches) {
+          patch.write(writer);
         }
+        writer.endElement();
       }
-    }
 
-    return XMLUtil.getOutput(doc);
+      writer.endElement();
+
+      writer.finish();
+    } catch (XMLStreamException ex) {
+      throw new TransformerException(ex);
+    }
+    return bout.toByteArray();
   }
 
   public static class Information {
@@ -488,124 +528,92 @@ public class Client {
       this.downloaderIconPath = downloaderIconPath;
     }
 
-    protected static Information read(Element informationElement) throws InvalidFormatException {
-      if (informationElement == null) {
-        throw new NullPointerException("argument 'informationElement' cannot be null");
-      }
-
-      String _softwareName = null;
-      String _softwareIconLocation = null;
-      String _softwareIconPath = null;
-      Element _softwareElement = XMLUtil.getElement(informationElement, "software", false);
-      if (_softwareElement != null) {
-        _softwareName = XMLUtil.getTextContent(_softwareElement, "name", true);
-
-        Element _softwareIconElement = XMLUtil.getElement(_softwareElement, "icon", true);
-        _softwareIconLocation = XMLUtil.getTextContent(_softwareIconElement, "location", true);
-        _softwareIconPath = XMLUtil.getTextContent(_softwareIconElement, "path", true);
+    protected static Information read(XMLElementReader reader) throws InvalidFormatException, XMLStreamException {
+      String[] _software = null;
+      String[] _launcher = null;
+      String[] _downloader = null;
+      while (reader.nextChild()) {
+        String name = reader.getName();
+        if (name.equals("software")) {
+          _software = readEntry(reader, name);
+        } else if (name.equals("launcher")) {
+          _launcher = readEntry(reader, name);
+        } else if (name.equals("downloader")) {
+          _downloader = readEntry(reader, name);
+        } else {
+          reader.skip();
+        }
       }
 
-      String _launcherName = null;
-      String _launcherIconLocation = null;
-      String _launcherIconPath = null;
-      Element _launcherElement = XMLUtil.getElement(informationElement, "launcher", false);
-      if (_launcherElement != null) {
-        _launcherName = XMLUtil.getTextContent(_launcherElement, "name", true);
-
-        Element _launcherIconElement = XMLUtil.getElement(_launcherElement, "icon", true);
-        _launcherIconLocation = XMLUtil.getTextContent(_launcherIconElement, "location", true);
-        _launcherIconPath = XMLUtil.getTextContent(_launcherIconElement, "path", true);
+      _software = _software != null ? _software : new String[3];
+      _launcher = _launcher != null ? _launcher : new String[3];
+      _downloader = _downloader != null ? _downloader : new String[3];
+      return new Information(_software[0], _software[1], _software[2],
+              _launcher[0], _launcher[1], _launcher[2],
+              _downloader[0], _downloader[1], _downloader[2]);
+    }
+
+    /**
+     * Read the &lt;software&gt;, &lt;launcher&gt; or &lt;downloader&gt; 
+     * element.
+     * @return the name, icon location and icon path
+     */
+    protected static String[] readEntry(XMLElementReader reader, String tagName) throws InvalidFormatException, XMLStreamException {
+      String _name = null;
+      String _iconLocation = null;
+      String _iconPath = null;
+      boolean _iconExist = false;
+      while (reader.nextChild()) {
+        if (reader.getName().equals("name")) {
+          _name = reader.readText();
+        } else if (reader.getName().equals("icon")) {
+          _iconExist = true;
+          while (reader.nextChild()) {
+            if (reader.getName().equals("location")) {
+              _iconLocation = reader.readText();
+            } else if (reader.getName().equals("path")) {
+              _iconPath = reader.readText();
+            } else {
+              reader.skip();
+            }
+          }
+        } else {
+          reader.skip();
+        }
       }
 
-      String _downloaderName = null;
-      String _downloaderIconLocation = null;
-      String _downloaderIconPath = null;
-      Element _downloaderElement = XMLUtil.getElement(informationElement, "downloader", false);
-      if (_downloaderElement != null) {
-        _downloaderName = XMLUtil.getTextContent(_downloaderElement, "name", true);
-
-        Element _downloaderIconElement = XMLUtil.getElement(_downloaderElement, "icon", true);
-        _downloaderIconLocation = XMLUtil.getTextContent(_downloaderIconElement, "location", true);
-        _downloaderIconPath = XMLUtil.getTextContent(_downloaderIconElement, "path", true);
+      XMLUtil.checkExist(_name, tagName, "name");
+      if (!_iconExist) {
+        throw new InvalidFormatException(String.format("Element <icon> not found in <%1$s>.", tagName));
       }
+      XMLUtil.checkExist(_iconLocation, "icon", "location");
+      XMLUtil.checkExist(_iconPath, "icon", "path");
 
-      return new Information(_softwareName, _softwareIconLocation, _softwareIconPath,
-              _launcherName, _launcherIconLocation, _launcherIconPath,
-              _downloaderName, _downloaderIconLocation, _downloaderIconPath);
+      return new String[]{_name, _iconLocation, _iconPath};
     }
 
-    protected Element getElement(Document doc) {
-      if (doc == null) {
-        throw new NullPointerException("argument 'doc' cannot be null");
-      }
-
-      Element _information = doc.createElement("information");
-
-
+    protected void write(XMLElementWriter writer) throws XMLStreamException {
+      writer.startElement("information");
       if (softwareName != null) {
-        Element _software = doc.createElement("software");
-        _information.appendChild(_software);
-
-        Element _softwareName = doc.createElement("name");
-        _softwareName.appendChild(doc.createTextNode(softwareName));
-        _software.appendChild(_softwareName);
-
-        Element _softwareIcon = doc.createElement("icon");
-        _software.appendChild(_softwareIcon);
-
-        Element _softwareIconLocation = doc.createElement("location");
-        _softwareIconLocation.appendChild(doc.createTextNode(softwareIconLocation));
-        _softwareIcon.appendChild(_softwareIconLocation);
-
-        Element _softwareIconPath = doc.createElement("path");
-        _softwareIconPath.appendChild(doc.createTextNode(softwareIconPath));
-        _softwareIcon.appendChild(_softwareIconPath);
+        writeEntry(writer, "software", softwareName, softwareIconLocation, softwareIconPath);
       }
-
-
       if (launcherName != null) {
-        Element _launcher = doc.createElement("launcher");
-        _information.appendChild(_launcher);
-
-        Element _launcherName = doc.createElement("name");
-        _launcherName.appendChild(doc.createTextNode(launcherName));
-        _launcher.appendChild(_launcherName);
-
-        Element _launcherIcon = doc.createElement("icon");
-        _launcher.appendChild(_launcherIcon);
-
-        Element _launcherIconLocation = doc.createElement("location");
-        _launcherIconLocation.appendChild(doc.createTextNode(launcherIconLocation));
-        _launcherIcon.appendChild(_launcherIconLocation);
-
-        Element _launcherIconPath = doc.createElement("path");
-        _launcherIconPath.appendChild(doc.createTextNode(launcherIconPath));
-        _launcherIcon.appendChild(_launcherIconPath);
+        writeEntry(writer, "launcher", launcherName, launcherIconLocation, launcherIconPath);
       }
-
-
       if (downloaderName != null) {
-        Element _downloader = doc.createElement("downloader");
-        _information.appendChild(_downloader);
-
-        Element _downloaderName = doc.createElement("name");
-        _downloaderName.appendChild(doc.createTextNode(downloaderName));
-        _downloader.appendChild(_downloaderName);
-
-        Element _downloaderIcon = doc.createElement("icon");
-        _downloader.appendChild(_downloaderIcon);
-
-        Element _downloaderIconLocation = doc.createElement("location");
-        _downloaderIconLocation.appendChild(doc.createTextNode(downloaderIconLocation));
-        _downloaderIcon.appendChild(_downloaderIconLocation);
-
-        Element _downloaderIconPath = doc.createElement("path");
-        _downloaderIconPath.appendChild(doc.createTextNode(downloaderIconPath));
-        _downloaderIcon.appendChild(_downloaderIconPath);
+        writeEntry(writer, "downloader", downloaderName, downloaderIconLocation, downloaderIconPath);
       }
+      writer.endElement();
+    }
 
-
-      return _information;
+    protected static void writeEntry(XMLElementWriter writer, String tagName, String name, String iconLocation, String iconPath) throws XMLStreamException {
+      writer.startElement(tagName);
+      writer.textElement("name", name);
+      writer.startElement("icon");
+      writer.textElement("location", iconLocation);
+      writer.textElement("path", iconPath);
+      writer.endElement();
+      writer.endElement();
     }
   }
 }
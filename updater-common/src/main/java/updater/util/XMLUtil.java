@@ -23,13 +23,22 @@ package updater.util;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
@@ -50,6 +59,58 @@ import updater.script.InvalidFormatException;
 public class XMLUtil {
 
   private static final Logger LOG = Logger.getLogger(XMLUtil.class.getName());
+  /**
+   * The factories are costly to look up and create, so they are created once. 
+   * StAX factories are thread-safe after configured, the DOM builder and the 
+   * transformer are not, so they are cached per thread.
+   */
+  protected static final XMLInputFactory INPUT_FACTORY;
+  protected static final XMLOutputFactory OUTPUT_FACTORY;
+  protected static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = DocumentBuilderFactory.newInstance();
+  protected static final TransformerFactory TRANSFORMER_FACTORY = TransformerFactory.newInstance();
+  protected static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER = new ThreadLocal<DocumentBuilder>() {
+
+    @Override
+    protected DocumentBuilder initialValue() {
+      try {
+        synchronized (DOCUMENT_BUILDER_FACTORY) {
+          return DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();
+        }
+      } catch (ParserConfigurationException ex) {
+        // should not get this exception
+        LOG.log(Level.SEVERE, null, ex);
+        return null;
+      }
+    }
+  };
+  protected static final ThreadLocal<Transformer> TRANSFORMER = new ThreadLocal<Transformer>() {
+
+    @Override
+    protected Transformer initialValue() {
+      try {
+        Transformer transformer;
+        synchronized (TRANSFORMER_FACTORY) {
+          transformer = TRANSFORMER_FACTORY.newTransformer();
+        }
+        transformer.setOutputProperty(OutputKeys.METHOD, "xml");
+        transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+        transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
+        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+        return transformer;
+      } catch (TransformerException ex) {
+        // should not get this exception
+        LOG.log(Level.SEVERE, null, ex);
+        return null;
+      }
+    }
+  };
+
+  static {
+    INPUT_FACTORY = XMLInputFactory.newInstance();
+    INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+  }
 
   protected XMLUtil() {
   }
@@ -148,13 +209,10 @@ public class XMLUtil {
       throw new NullPointerException("argument 'doc' cannot be null");
     }
 
-    TransformerFactory transformerFactory = TransformerFactory.newInstance();
-
-    Transformer transformer = transformerFactory.newTransformer();
-    transformer.setOutputProperty(OutputKeys.METHOD, "xml");
-    transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-    transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-    transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+    Transformer transformer = TRANSFORMER.get();
+    if (transformer == null) {
+      throw new TransformerException("Failed to create transformer.");
+    }
 
     ByteArrayOutputStream bout = new ByteArrayOutputStream();
     transformer.transform(new DOMSource(doc), new StreamResult(bout));
@@ -174,17 +232,15 @@ public class XMLUtil {
       throw new NullPointerException("argument 'content' cannot be null");
     }
 
-    Document doc = null;
+    DocumentBuilder docBuilder = DOCUMENT_BUILDER.get();
+    if (docBuilder == null) {
+      return null;
+    }
     try {
-      DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-      DocumentBuilder docBuilder = dbFactory.newDocumentBuilder();
-      doc = docBuilder.parse(new ByteArrayInputStream(content));
-    } catch (ParserConfigurationException ex) {
-      // should not get this exception
-      LOG.log(Level.SEVERE, null, ex);
+      return docBuilder.parse(new ByteArrayInputStream(content));
+    } finally {
+      docBuilder.reset();
     }
-
-    return doc;
   }
 
   /**
@@ -192,16 +248,260 @@ public class XMLUtil {
    * @return the empty document
    */
   public static Document createEmptyDocument() {
-    Document doc = null;
+    DocumentBuilder docBuilder = DOCUMENT_BUILDER.get();
+    return docBuilder == null ? null : docBuilder.newDocument();
+  }
+
+  /**
+   * Create a StAX reader and move it to the root element.
+   * @param in the stream to read the XML from
+   * @return the reader
+   * @throws InvalidFormatException the XML has no root element or error 
+   * occurred when reading
+   */
+  public static XMLElementReader createElementReader(InputStream in) throws InvalidFormatException {
+    if (in == null) {
+      throw new NullPointerException("argument 'in' cannot be null");
+    }
+
     try {
-      DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-      DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
-      doc = docBuilder.newDocument();
-    } catch (Exception ex) {
-      // create empty document, should not get any exception
-      LOG.log(Level.SEVERE, null, ex);
-    }
-    return doc;
+      XMLElementReader reader = new XMLElementReader(INPUT_FACTORY.createXMLStreamReader(in));
+      if (!reader.nextChild()) {
+        throw new InvalidFormatException("XML format incorrect. Root element not found.");
+      }
+      return reader;
+    } catch (XMLStreamException ex) {
+      throw new InvalidFormatException("XML format incorrect. " + ex.getMessage());
+    }
+  }
+
+  /**
+   * Create a StAX writer that output in the same format as 
+   * {@link #getOutput(org.w3c.dom.Document)}.
+   * @param out the stream to write the XML to
+   * @return the writer
+   * @throws XMLStreamException error occurred when writing
+   */
+  public static XMLElementWriter createElementWriter(OutputStream out) throws XMLStreamException {
+    if (out == null) {
+      throw new NullPointerException("argument 'out' cannot be null");
+    }
+    return new XMLElementWriter(out);
+  }
+
+  /**
+   * Check if the element that must exist is found.
+   * @param value the value read from the element, null means not found
+   * @param parentTagName the tag name of the parent element
+   * @param tagName the tag name of the element
+   * @return {@code value}
+   * @throws InvalidFormatException {@code value} is null
+   */
+  public static <T> T checkExist(T value, String parentTagName, String tagName) throws InvalidFormatException {
+    if (value == null) {
+      throw new InvalidFormatException(String.format("Element <%1$s> not found in <%2$s>.", tagName, parentTagName));
+    }
+    return value;
+  }
+
+  /**
+   * A thin wrapper of {@link javax.xml.stream.XMLStreamReader} to walk the 
+   * elements one level at a time. Every child element moved to by 
+   * {@link #nextChild()} should be consumed by {@link #readText()}, 
+   * {@link #skip()} or looping {@link #nextChild()} until it returns false.
+   */
+  public static class XMLElementReader {
+
+    protected final XMLStreamReader reader;
+
+    protected XMLElementReader(XMLStreamReader reader) {
+      this.reader = reader;
+    }
+
+    /**
+     * Move to the next child element of the current element.
+     * @return true if moved to the child element, false if reached the end 
+     * of the current element
+     * @throws XMLStreamException error occurred when reading
+     */
+    public boolean nextChild() throws XMLStreamException {
+      while (reader.hasNext()) {
+        int event = reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          return true;
+        } else if (event == XMLStreamConstants.END_ELEMENT) {
+          return false;
+        }
+      }
+      return false;
+    }
+
+    public String getName() {
+      return reader.getLocalName();
+    }
+
+    /**
+     * Get the attribute of the current element.
+     * @param name the name of the attribute
+     * @return the value, null if not exist
+     */
+    public String getAttribute(String name) {
+      return reader.getAttributeValue(null, name);
+    }
+
+    /**
+     * Read the text content of the current element and move to its end.
+     * @return the text content
+     * @throws XMLStreamException the element contains child element or error 
+     * occurred when reading
+     */
+    public String readText() throws XMLStreamException {
+      return reader.getElementText();
+    }
+
+    /**
+     * Skip the current element and all its descendants.
+     * @throws XMLStreamException error occurred when reading
+     */
+    public void skip() throws XMLStreamException {
+      int depth = 1;
+      while (depth > 0) {
+        int event = reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          depth++;
+        } else if (event == XMLStreamConstants.END_ELEMENT) {
+          depth--;
+        }
+      }
+    }
+
+    public void close() {
+      try {
+        reader.close();
+      } catch (XMLStreamException ex) {
+        LOG.log(Level.WARNING, null, ex);
+      }
+    }
+  }
+
+  /**
+   * A thin wrapper of {@link javax.xml.stream.XMLStreamWriter} that indent 
+   * the elements and write element without content as empty element, same 
+   * as {@link #getOutput(org.w3c.dom.Document)} does.
+   */
+  public static class XMLElementWriter {
+
+    protected final OutputStream out;
+    protected final XMLStreamWriter writer;
+    protected final String lineSeparator;
+    /**
+     * The element started but not yet written, it is written when it get 
+     * content or written as empty element when it is ended.
+     */
+    protected String pendingName;
+    protected List<String> pendingAttributes;
+    /**
+     * For each started element, indicate if it has child element.
+     */
+    protected LinkedList<Boolean> hasChildren;
+
+    protected XMLElementWriter(OutputStream out) throws XMLStreamException {
+      this.out = out;
+      lineSeparator = System.getProperty("line.separator");
+      pendingName = null;
+      pendingAttributes = new ArrayList<String>();
+      hasChildren = new LinkedList<Boolean>();
+
+      try {
+        // XMLStreamWriter cannot write the 'standalone' declaration
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>".getBytes("UTF-8"));
+      } catch (IOException ex) {
+        throw new XMLStreamException(ex);
+      }
+      writer = OUTPUT_FACTORY.createXMLStreamWriter(out, "UTF-8");
+    }
+
+    public void startElement(String name) throws XMLStreamException {
+      writePending();
+      if (!hasChildren.isEmpty()) {
+        hasChildren.set(0, true);
+      }
+      writeIndent();
+      pendingName = name;
+      hasChildren.addFirst(false);
+    }
+
+    public void attribute(String name, String value) {
+      pendingAttributes.add(name);
+      pendingAttributes.add(value);
+    }
+
+    public void text(String text) throws XMLStreamException {
+      if (text == null || text.isEmpty()) {
+        return;
+      }
+      writePending();
+      writer.writeCharacters(text);
+    }
+
+    public void endElement() throws XMLStreamException {
+      boolean hasChild = hasChildren.removeFirst();
+      if (pendingName != null) {
+        writer.writeEmptyElement(pendingName);
+        writePendingAttributes();
+        pendingName = null;
+        return;
+      }
+      if (hasChild) {
+        writeIndent();
+      }
+      writer.writeEndElement();
+    }
+
+    /**
+     * Write an element with text content only.
+     * @param name the tag name
+     * @param text the text content
+     * @throws XMLStreamException error occurred when writing
+     */
+    public void textElement(String name, String text) throws XMLStreamException {
+      startElement(name);
+      text(text);
+      endElement();
+    }
+
+    /**
+     * Finish writing, all started elements should be ended.
+     * @throws XMLStreamException error occurred when writing
+     */
+    public void finish() throws XMLStreamException {
+      writer.writeCharacters(lineSeparator);
+      writer.flush();
+      writer.close();
+    }
+
+    protected void writePending() throws XMLStreamException {
+      if (pendingName != null) {
+        writer.writeStartElement(pendingName);
+        writePendingAttributes();
+        pendingName = null;
+      }
+    }
+
+    protected void writePendingAttributes() throws XMLStreamException {
+      for (int i = 0, iEnd = pendingAttributes.size(); i < iEnd; i += 2) {
+        writer.writeAttribute(pendingAttributes.get(i), pendingAttributes.get(i + 1));
+      }
+      pendingAttributes.clear();
+    }
+
+    protected void writeIndent() throws XMLStreamException {
+      StringBuilder sb = new StringBuilder(lineSeparator);
+      for (int i = 0, iEnd = hasChildren.size(); i < iEnd; i++) {
+        sb.append("  ");
+      }
+      writer.writeCharacters(sb.toString());
+    }
   }
 
   /**
@@ -15,6 +15,11 @@ call:linkFile src\updater\concurrent\LockType.java
 call:linkFile src\updater\concurrent\LockUtil.java
 mkdir "%softwareDirectory%\src\updater\crypto"
 call:linkFile src\updater\crypto\AESKey.java
+call:linkFile src\updater\crypto\AESBlockCipher.java
+call:linkFile src\updater\crypto\AESDecryptInputStream.java
+call:linkFile src\updater\crypto\AESEncryptOutputStream.java
+call:linkFile src\updater\crypto\FastAESForFile.java
+call:linkFile src\updater\crypto\SHA256Digest.java
 mkdir "%softwareDirectory%\src\updater\gui"
 call:linkFile src\updater\gui\JTitledPanel.java
 call:linkFile src\updater\gui\UpdaterWindow.java
@@ -25,12 +30,22 @@ call:linkFile src\updater\script\Patch.java
 mkdir "%softwareDirectory%\src\updater\patch"
 call:linkFile src\updater\patch\Compression.java
 call:linkFile src\updater\patch\OperationType.java
+call:linkFile src\updater\patch\IndexedPatchReader.java
 call:linkFile src\updater\patch\PatchReadUtil.java
+call:linkFile src\updater\patch\ArchiveDiffer.java
+call:linkFile src\updater\patch\TextDiffer.java
+call:linkFile src\updater\patch\Differ.java
+call:linkFile src\updater\patch\DiffEncoding.java
+call:linkFile src\updater\patch\DiffReport.java
+call:linkFile src\updater\patch\GDiffDiffer.java
+call:linkFile src\updater\patch\SuffixArrayDiffer.java
+call:linkFile src\updater\patch\PatchManifest.java
 call:linkFile src\updater\patch\PatchRecord.java
 call:linkFile src\updater\patch\LogAction.java
 call:linkFile src\updater\patch\LogReader.java
 call:linkFile src\updater\patch\LogWriter.java
 call:linkFile src\updater\patch\Patcher.java
+call:linkFile src\updater\patch\FileChecksumIndex.java
 call:linkFile src\updater\patch\PatcherListener.java
 call:linkFile src\updater\patch\ReplacementRecord.java
 mkdir "%softwareDirectory%\src\updater\util"
@@ -57,8 +72,13 @@ mkdir "%softwareDirectory%\src\updater\concurrent"
 call:linkFile src\updater\concurrent\ConcurrentLock.java
 mkdir "%softwareDirectory%\src\updater\crypto"
 call:linkFile src\updater\crypto\AESKey.java
+call:linkFile src\updater\crypto\AESBlockCipher.java
+call:linkFile src\updater\crypto\AESDecryptInputStream.java
+call:linkFile src\updater\crypto\AESEncryptOutputStream.java
+call:linkFile src\updater\crypto\FastAESForFile.java
 call:linkFile src\updater\crypto\KeyGenerator.java
 call:linkFile src\updater\crypto\RSAKey.java
+call:linkFile src\updater\crypto\SHA256Digest.java
 mkdir "%softwareDirectory%\src\updater\script"
 call:linkFile src\updater\script\Catalog.java
 call:linkFile src\updater\script\Client.java
@@ -67,9 +87,20 @@ call:linkFile src\updater\script\Patch.java
 mkdir "%softwareDirectory%\src\updater\patch"
 call:linkFile src\updater\patch\Compression.java
 call:linkFile src\updater\patch\OperationType.java
+call:linkFile src\updater\patch\IndexedPatchReader.java
+call:linkFile src\updater\patch\IndexedPatchWriter.java
 call:linkFile src\updater\patch\PatchCreator.java
 call:linkFile src\updater\patch\PatchExtractor.java
 call:linkFile src\updater\patch\PatchReadUtil.java
+call:linkFile src\updater\patch\ArchiveDiffer.java
+call:linkFile src\updater\patch\TextDiffer.java
+call:linkFile src\updater\patch\Differ.java
+call:linkFile src\updater\patch\DiffEncoding.java
+call:linkFile src\updater\patch\DiffReport.java
+call:linkFile src\updater\patch\MinHashSketch.java
+call:linkFile src\updater\patch\GDiffDiffer.java
+call:linkFile src\updater\patch\SuffixArrayDiffer.java
+call:linkFile src\updater\patch\PatchManifest.java
 call:linkFile src\updater\patch\PatchRecord.java
 call:linkFile src\updater\patch\PatchWriteUtil.java
 call:linkFile src\updater\patch\LogAction.java
@@ -77,6 +108,7 @@ call:linkFile src\updater\patch\LogReader.java
 call:linkFile src\updater\patch\LogWriter.java
 call:linkFile src\updater\patch\PatchPacker.java
 call:linkFile src\updater\patch\Patcher.java
+call:linkFile src\updater\patch\FileChecksumIndex.java
 call:linkFile src\updater\patch\PatcherListener.java
 call:linkFile src\updater\patch\ReplacementRecord.java
 mkdir "%softwareDirectory%\src\updater\util"
@@ -113,11 +145,14 @@ call:linkFile src\updater\util\DownloadProgressListener.java
 call:linkFile src\updater\util\DownloadProgressUtil.java
 call:linkFile src\updater\util\DownloadResult.java
 call:linkFile src\updater\util\HTTPDownloader.java
+call:linkFile src\updater\util\HTTPTransport.java
+call:linkFile src\updater\crypto\SHA256Digest.java
 call:linkFile src\updater\util\Interruptible.java
 call:linkFile src\updater\util\Pausable.java
 call:linkFile src\updater\util\XMLUtil.java
 mkdir "%softwareDirectory%\test\updater"
 call:linkFile test\updater\TestCommon.java
+call:linkFile test\updater\TestHTTPServer.java
 
 
 echo.&pause&goto:eof
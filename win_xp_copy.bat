@@ -15,6 +15,11 @@ call:copyFile src\updater\concurrent\LockType.java
 call:copyFile src\updater\concurrent\LockUtil.java
 mkdir "%softwareDirectory%\src\updater\crypto"
 call:copyFile src\updater\crypto\AESKey.java
+call:copyFile src\updater\crypto\AESBlockCipher.java
+call:copyFile src\updater\crypto\AESDecryptInputStream.java
+call:copyFile src\updater\crypto\AESEncryptOutputStream.java
+call:copyFile src\updater\crypto\FastAESForFile.java
+call:copyFile src\updater\crypto\SHA256Digest.java
 mkdir "%softwareDirectory%\src\updater\gui"
 call:copyFile src\updater\gui\JTitledPanel.java
 call:copyFile src\updater\gui\UpdaterWindow.java
@@ -25,12 +30,22 @@ call:copyFile src\updater\script\Patch.java
 mkdir "%softwareDirectory%\src\updater\patch"
 call:copyFile src\updater\patch\Compression.java
 call:copyFile src\updater\patch\OperationType.java
+call:copyFile src\updater\patch\IndexedPatchReader.java
 call:copyFile src\updater\patch\PatchReadUtil.java
+call:copyFile src\updater\patch\ArchiveDiffer.java
+call:copyFile src\updater\patch\TextDiffer.java
+call:copyFile src\updater\patch\Differ.java
+call:copyFile src\updater\patch\DiffEncoding.java
+call:copyFile src\updater\patch\DiffReport.java
+call:copyFile src\updater\patch\GDiffDiffer.java
+call:copyFile src\updater\patch\SuffixArrayDiffer.java
+call:copyFile src\updater\patch\PatchManifest.java
 call:copyFile src\updater\patch\PatchRecord.java
 call:copyFile src\updater\patch\LogAction.java
 call:copyFile src\updater\patch\LogReader.java
 call:copyFile src\updater\patch\LogWriter.java
 call:copyFile src\updater\patch\Patcher.java
+call:copyFile src\updater\patch\FileChecksumIndex.java
 call:copyFile src\updater\patch\PatcherListener.java
 call:copyFile src\updater\patch\ReplacementRecord.java
 mkdir "%softwareDirectory%\src\updater\util"
@@ -57,8 +72,13 @@ mkdir "%softwareDirectory%\src\updater\concurrent"
 call:copyFile src\updater\concurrent\ConcurrentLock.java
 mkdir "%softwareDirectory%\src\updater\crypto"
 call:copyFile src\updater\crypto\AESKey.java
+call:copyFile src\updater\crypto\AESBlockCipher.java
+call:copyFile src\updater\crypto\AESDecryptInputStream.java
+call:copyFile src\updater\crypto\AESEncryptOutputStream.java
+call:copyFile src\updater\crypto\FastAESForFile.java
 call:copyFile src\updater\crypto\KeyGenerator.java
 call:copyFile src\updater\crypto\RSAKey.java
+call:copyFile src\updater\crypto\SHA256Digest.java
 mkdir "%softwareDirectory%\src\updater\script"
 call:copyFile src\updater\script\Catalog.java
 call:copyFile src\updater\script\Client.java
@@ -67,9 +87,20 @@ call:copyFile src\updater\script\Patch.java
 mkdir "%softwareDirectory%\src\updater\patch"
 call:copyFile src\updater\patch\Compression.java
 call:copyFile src\updater\patch\OperationType.java
+call:copyFile src\updater\patch\IndexedPatchReader.java
+call:copyFile src\updater\patch\IndexedPatchWriter.java
 call:copyFile src\updater\patch\PatchCreator.java
 call:copyFile src\updater\patch\PatchExtractor.java
 call:copyFile src\updater\patch\PatchReadUtil.java
+call:copyFile src\updater\patch\ArchiveDiffer.java
+call:copyFile src\updater\patch\TextDiffer.java
+call:copyFile src\updater\patch\Differ.java
+call:copyFile src\updater\patch\DiffEncoding.java
+call:copyFile src\updater\patch\DiffReport.java
+call:copyFile src\updater\patch\MinHashSketch.java
+call:copyFile src\updater\patch\GDiffDiffer.java
+call:copyFile src\updater\patch\SuffixArrayDiffer.java
+call:copyFile src\updater\patch\PatchManifest.java
 call:copyFile src\updater\patch\PatchRecord.java
 call:copyFile src\updater\patch\PatchWriteUtil.java
 call:copyFile src\updater\patch\LogAction.java
@@ -77,6 +108,7 @@ call:copyFile src\updater\patch\LogReader.java
 call:copyFile src\updater\patch\LogWriter.java
 call:copyFile src\updater\patch\PatchPacker.java
 call:copyFile src\updater\patch\Patcher.java
+call:copyFile src\updater\patch\FileChecksumIndex.java
 call:copyFile src\updater\patch\PatcherListener.java
 call:copyFile src\updater\patch\ReplacementRecord.java
 mkdir "%softwareDirectory%\src\updater\util"
@@ -113,11 +145,14 @@ call:copyFile src\updater\util\DownloadProgressListener.java
 call:copyFile src\updater\util\DownloadProgressUtil.java
 call:copyFile src\updater\util\DownloadResult.java
 call:copyFile src\updater\util\HTTPDownloader.java
+call:copyFile src\updater\util\HTTPTransport.java
+call:copyFile src\updater\crypto\SHA256Digest.java
 call:copyFile src\updater\util\Interruptible.java
 call:copyFile src\updater\util\Pausable.java
 call:copyFile src\updater\util\XMLUtil.java
 mkdir "%softwareDirectory%\test\updater"
 call:copyFile test\updater\TestCommon.java
+call:copyFile test\updater\TestHTTPServer.java
 
 
 echo.&pause&goto:eof